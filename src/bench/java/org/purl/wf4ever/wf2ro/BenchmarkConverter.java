@@ -0,0 +1,194 @@
+package org.purl.wf4ever.wf2ro;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.purl.wf4ever.rosrs.client.Annotable;
+import org.purl.wf4ever.rosrs.client.Annotation;
+import org.purl.wf4ever.rosrs.client.Folder;
+import org.purl.wf4ever.rosrs.client.ResearchObject;
+import org.purl.wf4ever.rosrs.client.Resource;
+
+import uk.org.taverna.scufl2.api.container.WorkflowBundle;
+
+/**
+ * An in-memory converter for the benchmarks, modelled on MockupWf2ROConverter. Resources and annotation bodies are
+ * read to the end and discarded, so that only the cost of producing them is measured, and no manifest is kept, so
+ * that repeating a phase doesn't make the converter grow.
+ */
+public class BenchmarkConverter extends Wf2ROConverter {
+
+    /** RO URI. */
+    public static final URI RO_URI = URI.create("http://example.org/ROs/ro1/");
+
+    /** Buffer size for reading the bodies. */
+    private static final int BUFFER_SIZE = 8192;
+
+    /** The research object. */
+    private final ResearchObject ro = new ResearchObject(RO_URI, null);
+
+    /** External resources by URI. */
+    private final Map<URI, Resource> external = new ConcurrentHashMap<>();
+
+    /** Folder for the main workflow, or null. */
+    private final Folder extractMain;
+
+    /** Folder for nested workflows, or null. */
+    private final Folder extractNested;
+
+    /** Folder for scripts, or null. */
+    private final Folder extractScripts;
+
+    /** Folder for services, or null. */
+    private final Folder extractServices;
+
+    /** Bytes read from all bodies. */
+    private final AtomicLong bytes = new AtomicLong();
+
+    /** Used for annotation URIs. */
+    private final AtomicInteger annCnt = new AtomicInteger();
+
+
+    /**
+     * Constructor.
+     *
+     * @param wfbundle
+     *            workflow bundle
+     * @param wfUri
+     *            workflow URI
+     * @param extract
+     *            whether to extract the nested workflows, scripts and services
+     */
+    public BenchmarkConverter(WorkflowBundle wfbundle, URI wfUri, boolean extract) {
+        super(wfbundle, wfUri);
+        this.extractMain = extract ? folder("workflows/") : null;
+        this.extractNested = extract ? folder("nested/") : null;
+        this.extractScripts = extract ? folder("scripts/") : null;
+        this.extractServices = extract ? folder("services/") : null;
+    }
+
+
+    /**
+     * @param path
+     *            folder path
+     * @return a folder of the research object
+     */
+    private Folder folder(String path) {
+        return new Folder(ro, RO_URI.resolve(path), null, null, null, null, false);
+    }
+
+
+    /**
+     * @return bytes read from all resources and annotation bodies
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+
+    /**
+     * Read a body to the end.
+     *
+     * @param in
+     *            the body
+     * @throws IOException
+     *             when the body can't be read
+     */
+    private void drain(InputStream in)
+            throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long total = 0;
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            total += n;
+        }
+        bytes.addAndGet(total);
+    }
+
+
+    @Override
+    protected ResearchObject createResearchObject(UUID wfUUID) {
+        return ro;
+    }
+
+
+    @Override
+    protected Resource uploadAggregatedResource(ResearchObject ro, String path, InputStream in, String contentType)
+            throws IOException {
+        drain(in);
+        return new Resource(ro, ro.getUri().resolve(path), null, null, null);
+    }
+
+
+    @Override
+    protected Annotation uploadAnnotation(ResearchObject ro, String name, Annotable target, InputStream in,
+            String contentType) {
+        int cnt = annCnt.incrementAndGet();
+        try {
+            drain(in);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        URI ann = ro.getUri().resolve(".ro/ann-" + name + "-" + cnt);
+        URI body = ro.getUri().resolve(".ro/body-" + name + "-" + cnt);
+        return new Annotation(ro, ann, body, Collections.singleton(target.getUri()), null, null);
+    }
+
+
+    @Override
+    protected Resource aggregateExternal(ResearchObject ro, URI uri) {
+        Resource resource = new Resource(ro, uri, null, null, null);
+        external.put(uri, resource);
+        return resource;
+    }
+
+
+    @Override
+    protected void addToFolder(Folder folder, Resource resource, String entryName) {
+        // folders are not kept
+    }
+
+
+    @Override
+    protected Collection<String> getFolderEntryNames(Folder folder) {
+        return Collections.emptyList();
+    }
+
+
+    @Override
+    protected Map<URI, Resource> getAggregatedResources(ResearchObject ro) {
+        return external;
+    }
+
+
+    @Override
+    public Folder getExtractMain() {
+        return extractMain;
+    }
+
+
+    @Override
+    public Folder getExtractNested() {
+        return extractNested;
+    }
+
+
+    @Override
+    public Folder getExtractScripts() {
+        return extractScripts;
+    }
+
+
+    @Override
+    public Folder getExtractServices() {
+        return extractServices;
+    }
+}
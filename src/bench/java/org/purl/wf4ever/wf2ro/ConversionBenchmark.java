@@ -0,0 +1,226 @@
+package org.purl.wf4ever.wf2ro;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.purl.wf4ever.rosrs.client.Annotation;
+import org.purl.wf4ever.rosrs.client.ResearchObject;
+import org.purl.wf4ever.rosrs.client.Resource;
+
+import uk.org.taverna.scufl2.api.configurations.Configuration;
+import uk.org.taverna.scufl2.api.container.WorkflowBundle;
+import uk.org.taverna.scufl2.api.core.Workflow;
+import uk.org.taverna.scufl2.api.io.WorkflowBundleIO;
+import uk.org.taverna.scufl2.api.profiles.Profile;
+
+/**
+ * Measures the phases of the conversion separately, and the whole conversion, for each of the test workflows. Run
+ * with <code>mvn -Pbench test-compile exec:exec</code>, which adds the GC profiler for the allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConversionBenchmark {
+
+    /** Workflow, in src/test/resources. */
+    @Param({ "helloanyone.t2flow", "nesting.t2flow", "hello_world_190236.t2flow" })
+    public String workflow;
+
+    /** Reads the workflows. */
+    private final WorkflowBundleIO io = new WorkflowBundleIO();
+
+    /** The t2flow. */
+    private byte[] t2flow;
+
+    /** The parsed workflow bundle. */
+    private WorkflowBundle wfbundle;
+
+    /** The converter for running single phases. */
+    private BenchmarkConverter converter;
+
+    /** The research object. */
+    private ResearchObject ro;
+
+    /** The aggregated workflow bundle. */
+    private Resource wfbundleAggregated;
+
+    /** Nested workflows. */
+    private List<Workflow> nested;
+
+    /** Scripts of the workflow. */
+    private List<String> scripts;
+
+
+    /**
+     * Parse the workflow and aggregate it once.
+     *
+     * @throws Exception
+     *             when the workflow can't be read
+     */
+    @Setup
+    public void setUp()
+            throws Exception {
+        try (InputStream in = getClass().getClassLoader().getResourceAsStream(workflow)) {
+            t2flow = IOUtils.toByteArray(in);
+        }
+        wfbundle = parseT2flow();
+        converter = new BenchmarkConverter(wfbundle, URI.create(workflow), true);
+        ro = converter.createResearchObject(null);
+        wfbundleAggregated = converter.addWorkflowBundle(ro, wfbundle, "bench.wfbundle");
+        nested = new ArrayList<>();
+        for (Workflow wf : wfbundle.getWorkflows()) {
+            if (wf != wfbundle.getMainWorkflow()) {
+                nested.add(wf);
+            }
+        }
+        scripts = new ArrayList<>();
+        for (Profile p : wfbundle.getProfiles()) {
+            for (Configuration conf : p.getConfigurations()) {
+                String script = conf.getJson().path("script").asText();
+                if (!script.isEmpty()) {
+                    scripts.add(script);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Parse the t2flow.
+     *
+     * @return the workflow bundle
+     * @throws Exception
+     *             when the workflow can't be read
+     */
+    @Benchmark
+    public WorkflowBundle parseT2flow()
+            throws Exception {
+        return io.readBundle(new ByteArrayInputStream(t2flow), null);
+    }
+
+
+    /**
+     * Serialize the workflow bundle.
+     *
+     * @return the aggregated workflow bundle
+     * @throws Exception
+     *             when the workflow bundle can't be serialized
+     */
+    @Benchmark
+    public Resource addWorkflowBundle()
+            throws Exception {
+        return converter.addWorkflowBundle(ro, wfbundle, "bench.wfbundle");
+    }
+
+
+    /**
+     * Generate the wfdesc annotation.
+     *
+     * @return the annotation
+     * @throws Exception
+     *             when the annotation can't be generated
+     */
+    @Benchmark
+    public Annotation wfdesc()
+            throws Exception {
+        return converter.addWfDescAnnotation(ro, wfbundle, wfbundleAggregated);
+    }
+
+
+    /**
+     * Generate the roevo annotation.
+     *
+     * @return the annotation
+     * @throws Exception
+     *             when the annotation can't be generated
+     */
+    @Benchmark
+    public Annotation roevo()
+            throws Exception {
+        return converter.addRoEvoAnnotation(ro, wfbundle, wfbundleAggregated);
+    }
+
+
+    /**
+     * Copy the annotations of the workflow bundle.
+     *
+     * @return the annotation URIs
+     * @throws Exception
+     *             when the annotations can't be read
+     */
+    @Benchmark
+    public List<URI> extractAnnotations()
+            throws Exception {
+        List<URI> added = new ArrayList<>();
+        converter.extractAnnotations(ro, wfbundleAggregated, wfbundle, added);
+        return added;
+    }
+
+
+    /**
+     * Build the bundles of all nested workflows.
+     *
+     * @param bh
+     *            consumes the bundles
+     * @throws Exception
+     *             when a bundle can't be built
+     */
+    @Benchmark
+    public void nestedExtraction(Blackhole bh)
+            throws Exception {
+        NestedBundleExtractor extractor = new NestedBundleExtractor(wfbundle);
+        for (Workflow wf : nested) {
+            bh.consume(extractor.extract(wf));
+        }
+    }
+
+
+    /**
+     * Hash all scripts.
+     *
+     * @param bh
+     *            consumes the hashes
+     */
+    @Benchmark
+    public void scriptHashing(Blackhole bh) {
+        for (String script : scripts) {
+            bh.consume(converter.utf8sha(script));
+        }
+    }
+
+
+    /**
+     * Run the whole conversion, extracting everything, with the phases in the calling thread.
+     *
+     * @return bytes produced
+     * @throws Exception
+     *             any kind of conversion problem
+     */
+    @Benchmark
+    public long convert()
+            throws Exception {
+        BenchmarkConverter full = new BenchmarkConverter(wfbundle, URI.create(workflow), true);
+        full.convert();
+        return full.getBytes();
+    }
+}
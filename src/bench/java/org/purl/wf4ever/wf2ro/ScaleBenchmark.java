@@ -0,0 +1,107 @@
+package org.purl.wf4ever.wf2ro;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.org.taverna.scufl2.api.container.WorkflowBundle;
+
+/**
+ * Measures how the conversion scales with the size of generated workflows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ScaleBenchmark {
+
+    /** Processors per workflow. */
+    @Param({ "10", "100", "500" })
+    public int processors;
+
+    /** Levels of nested workflows. */
+    @Param({ "0", "2" })
+    public int depth;
+
+    /** Scripts per workflow, as a fraction of processors. */
+    @Param({ "0.2" })
+    public double scripts;
+
+    /** Services per workflow, as a fraction of processors. */
+    @Param({ "0.2" })
+    public double services;
+
+    /** Annotations per workflow. */
+    @Param({ "10" })
+    public int annotations;
+
+    /** The generated workflow bundle. */
+    private WorkflowBundle wfbundle;
+
+    /** The converter for running single phases. */
+    private BenchmarkConverter converter;
+
+
+    /**
+     * Generate the workflow.
+     *
+     * @throws Exception
+     *             when the workflow can't be generated
+     */
+    @Setup
+    public void setUp()
+            throws Exception {
+        WorkflowGenerator generator = new WorkflowGenerator();
+        generator.setProcessors(processors);
+        generator.setScripts((int) (processors * scripts));
+        generator.setServices((int) (processors * services));
+        generator.setDepth(depth);
+        generator.setNestedPerWorkflow(2);
+        generator.setAnnotations(annotations);
+        wfbundle = generator.generate("generated");
+        converter = new BenchmarkConverter(wfbundle, URI.create("generated.wfbundle"), true);
+    }
+
+
+    /**
+     * Serialize the workflow bundle.
+     *
+     * @return the aggregated workflow bundle
+     * @throws Exception
+     *             when the workflow bundle can't be serialized
+     */
+    @Benchmark
+    public Object addWorkflowBundle()
+            throws Exception {
+        return converter.addWorkflowBundle(converter.createResearchObject(null), wfbundle, "generated.wfbundle");
+    }
+
+
+    /**
+     * Run the whole conversion, extracting everything, with the phases in the calling thread.
+     *
+     * @return bytes produced
+     * @throws Exception
+     *             any kind of conversion problem
+     */
+    @Benchmark
+    public long convert()
+            throws Exception {
+        BenchmarkConverter full = new BenchmarkConverter(wfbundle, URI.create("generated.wfbundle"), true);
+        full.convert();
+        return full.getBytes();
+    }
+}
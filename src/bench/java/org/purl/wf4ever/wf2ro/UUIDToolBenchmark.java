@@ -0,0 +1,48 @@
+package org.purl.wf4ever.wf2ro;
+
+import java.net.URI;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the name based UUIDs used for identifying web services.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UUIDToolBenchmark {
+
+    /** A web service URI. */
+    private final URI uri = URI.create("http://www.ebi.ac.uk/Tools/services/soap/ncbiblast?wsdl");
+
+
+    /**
+     * @return UUID v5 of the URI
+     */
+    @Benchmark
+    public UUID namespaceUUID() {
+        return UUIDTool.namespaceUUID(uri);
+    }
+
+
+    /**
+     * @return UUID v3 of the URI
+     */
+    @Benchmark
+    public UUID namespaceUUIDv3md5() {
+        return UUIDTool.namespaceUUIDv3md5(UUIDTool.NAMESPACE_URI, uri.toASCIIString());
+    }
+}
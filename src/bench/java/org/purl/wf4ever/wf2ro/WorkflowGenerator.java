@@ -0,0 +1,385 @@
+package org.purl.wf4ever.wf2ro;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.UUID;
+
+import uk.org.taverna.scufl2.api.activity.Activity;
+import uk.org.taverna.scufl2.api.annotation.Annotation;
+import uk.org.taverna.scufl2.api.configurations.Configuration;
+import uk.org.taverna.scufl2.api.container.WorkflowBundle;
+import uk.org.taverna.scufl2.api.core.DataLink;
+import uk.org.taverna.scufl2.api.core.Processor;
+import uk.org.taverna.scufl2.api.core.Workflow;
+import uk.org.taverna.scufl2.api.io.WorkflowBundleIO;
+import uk.org.taverna.scufl2.api.io.WriterException;
+import uk.org.taverna.scufl2.api.port.InputProcessorPort;
+import uk.org.taverna.scufl2.api.port.InputWorkflowPort;
+import uk.org.taverna.scufl2.api.port.OutputProcessorPort;
+import uk.org.taverna.scufl2.api.port.OutputWorkflowPort;
+import uk.org.taverna.scufl2.api.port.SenderPort;
+import uk.org.taverna.scufl2.api.profiles.ProcessorBinding;
+import uk.org.taverna.scufl2.api.profiles.Profile;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Generates workflow bundles of a given size for scale testing the converter. Every workflow is a chain of processors:
+ * first the scripts, alternating beanshell and R, then the services, cycling through WSDL, REST and soaplab, then the
+ * nested workflows and then string constants up to the requested number of processors. Nested workflows have the same
+ * shape as their parents. Scripts and services are all different, so none of them is skipped as a duplicate.
+ *
+ * Scufl2 can't write t2flow, so the bundles are written as wfbundle only.
+ */
+public class WorkflowGenerator {
+
+    /** Activity and configuration type namespace. */
+    private static final URI ACTIVITY = URI.create("http://ns.taverna.org.uk/2010/activity/");
+
+    /** Annotation body media type. */
+    private static final String TEXT_TURTLE = "text/turtle";
+
+    /** Processors per workflow. */
+    private int processors = 10;
+
+    /** Scripts per workflow. */
+    private int scripts = 2;
+
+    /** Services per workflow. */
+    private int services = 3;
+
+    /** Levels of nested workflows below the main workflow. */
+    private int depth = 0;
+
+    /** Nested workflows per workflow, for all but the last level. */
+    private int nestedPerWorkflow = 1;
+
+    /** Annotations of each workflow. */
+    private int annotations = 2;
+
+    /** Numbers the generated scripts, services and annotations. */
+    private int counter;
+
+
+    /**
+     * @param processors
+     *            processors per workflow, at least as many as scripts, services and nested workflows together
+     */
+    public void setProcessors(int processors) {
+        this.processors = processors;
+    }
+
+
+    /**
+     * @param scripts
+     *            scripts per workflow
+     */
+    public void setScripts(int scripts) {
+        this.scripts = scripts;
+    }
+
+
+    /**
+     * @param services
+     *            services per workflow
+     */
+    public void setServices(int services) {
+        this.services = services;
+    }
+
+
+    /**
+     * @param depth
+     *            levels of nested workflows, 0 for none
+     */
+    public void setDepth(int depth) {
+        this.depth = depth;
+    }
+
+
+    /**
+     * @param nestedPerWorkflow
+     *            nested workflows in each workflow that is not at the last level
+     */
+    public void setNestedPerWorkflow(int nestedPerWorkflow) {
+        this.nestedPerWorkflow = nestedPerWorkflow;
+    }
+
+
+    /**
+     * @param annotations
+     *            annotations of each workflow
+     */
+    public void setAnnotations(int annotations) {
+        this.annotations = annotations;
+    }
+
+
+    /**
+     * Generate a workflow bundle.
+     *
+     * @param name
+     *            name of the bundle and its main workflow
+     * @return the workflow bundle
+     * @throws IOException
+     *             when the annotation bodies can't be added
+     */
+    public synchronized WorkflowBundle generate(String name)
+            throws IOException {
+        counter = 0;
+        WorkflowBundle wfbundle = new WorkflowBundle();
+        wfbundle.setName(name);
+        Profile profile = new Profile("generated");
+        profile.setParent(wfbundle);
+        wfbundle.setMainProfile(profile);
+        wfbundle.setMainWorkflow(workflow(wfbundle, profile, name, depth));
+        return wfbundle;
+    }
+
+
+    /**
+     * Generate a workflow and its nested workflows.
+     *
+     * @param wfbundle
+     *            the workflow bundle
+     * @param profile
+     *            the profile
+     * @param name
+     *            workflow name
+     * @param levels
+     *            levels of nested workflows below this one
+     * @return the workflow
+     * @throws IOException
+     *             when the annotation bodies can't be added
+     */
+    private Workflow workflow(WorkflowBundle wfbundle, Profile profile, String name, int levels)
+            throws IOException {
+        Workflow wf = new Workflow(name);
+        wf.setParent(wfbundle);
+        InputWorkflowPort in = new InputWorkflowPort(wf, "in");
+        in.setDepth(0);
+        OutputWorkflowPort out = new OutputWorkflowPort(wf, "out");
+        SenderPort previous = in;
+        int nested = levels > 0 ? nestedPerWorkflow : 0;
+        int total = Math.max(processors, scripts + services + nested);
+        for (int i = 0; i < total; i++) {
+            Processor processor;
+            if (i < scripts) {
+                processor = script(wf, profile, i);
+            } else if (i < scripts + services) {
+                processor = service(wf, profile, i - scripts);
+            } else if (i < scripts + services + nested) {
+                Workflow child = workflow(wfbundle, profile, name + "_nested" + (i - scripts - services),
+                    levels - 1);
+                ObjectNode json = JsonNodeFactory.instance.objectNode();
+                json.put("nestedWorkflow", child.getName());
+                processor = processor(wf, profile, child.getName(), "nested-workflow", json);
+            } else {
+                ObjectNode json = JsonNodeFactory.instance.objectNode();
+                json.put("string", "constant " + i);
+                processor = processor(wf, profile, "constant" + i, "constant", json);
+            }
+            InputProcessorPort processorIn = new InputProcessorPort(processor, "in");
+            processorIn.setDepth(0);
+            OutputProcessorPort processorOut = new OutputProcessorPort(processor, "out");
+            processorOut.setDepth(0);
+            processorOut.setGranularDepth(0);
+            new DataLink(wf, previous, processorIn);
+            previous = processorOut;
+        }
+        new DataLink(wf, previous, out);
+        for (int i = 0; i < annotations; i++) {
+            annotate(wfbundle, wf);
+        }
+        return wf;
+    }
+
+
+    /**
+     * Generate a script processor, beanshell or R.
+     *
+     * @param wf
+     *            the workflow
+     * @param profile
+     *            the profile
+     * @param i
+     *            script index
+     * @return the processor
+     */
+    private Processor script(Workflow wf, Profile profile, int i) {
+        int n = ++counter;
+        ObjectNode json = JsonNodeFactory.instance.objectNode();
+        if (i % 2 == 0) {
+            json.put("script", "// generated script " + n + "\nout = in + \"" + wf.getName() + "\";\n");
+            return processor(wf, profile, "beanshell" + i, "beanshell", json);
+        } else {
+            json.put("script", "# generated script " + n + "\nout <- paste(in, \"" + wf.getName() + "\")\n");
+            return processor(wf, profile, "rshell" + i, "rshell", json);
+        }
+    }
+
+
+    /**
+     * Generate a service processor, WSDL, REST or soaplab.
+     *
+     * @param wf
+     *            the workflow
+     * @param profile
+     *            the profile
+     * @param i
+     *            service index
+     * @return the processor
+     */
+    private Processor service(Workflow wf, Profile profile, int i) {
+        int n = ++counter;
+        String host = "http://service" + n + ".example.org/";
+        ObjectNode json = JsonNodeFactory.instance.objectNode();
+        switch (i % 3) {
+            case 0:
+                ObjectNode operation = json.putObject("operation");
+                operation.put("wsdl", host + "service?wsdl");
+                operation.put("name", "run");
+                return processor(wf, profile, "wsdl" + i, "wsdl", json);
+            case 1:
+                ObjectNode request = json.putObject("request");
+                request.put("absoluteURITemplate", host + "items/{id}");
+                request.put("httpMethod", "GET");
+                return processor(wf, profile, "rest" + i, "rest", json);
+            default:
+                json.put("endpoint", host + "soaplab/run");
+                return processor(wf, profile, "soaplab" + i, "soaplab", json);
+        }
+    }
+
+
+    /**
+     * Generate a processor bound to a configured activity.
+     *
+     * @param wf
+     *            the workflow
+     * @param profile
+     *            the profile
+     * @param name
+     *            processor name
+     * @param type
+     *            activity type, relative to the activity namespace
+     * @param json
+     *            the configuration
+     * @return the processor
+     */
+    private Processor processor(Workflow wf, Profile profile, String name, String type, ObjectNode json) {
+        Processor processor = new Processor(wf, name);
+        String beanName = wf.getName() + "_" + name;
+        Activity activity = new Activity(beanName);
+        activity.setType(ACTIVITY.resolve(type));
+        activity.setParent(profile);
+        ProcessorBinding binding = new ProcessorBinding();
+        binding.setName(beanName);
+        binding.setBoundProcessor(processor);
+        binding.setBoundActivity(activity);
+        binding.setParent(profile);
+        Configuration configuration = new Configuration(beanName);
+        configuration.setType(ACTIVITY.resolve(type + "#Config"));
+        configuration.setConfigures(activity);
+        configuration.setJson(json);
+        configuration.setParent(profile);
+        return processor;
+    }
+
+
+    /**
+     * Add a description of a workflow, with the body in the bundle resources.
+     *
+     * @param wfbundle
+     *            the workflow bundle
+     * @param wf
+     *            the workflow
+     * @throws IOException
+     *             when the body can't be added
+     */
+    private void annotate(WorkflowBundle wfbundle, Workflow wf)
+            throws IOException {
+        int n = ++counter;
+        String path = "annotation/" + UUID.randomUUID() + ".ttl";
+        String body = String.format("<../workflow/%s/> <http://purl.org/dc/terms/description> "
+                + "\"Generated description %d of %s\" .%n", wf.getName(), n, wf.getName());
+        wfbundle.getResources().addResource(body, path, TEXT_TURTLE);
+        Annotation annotation = new Annotation();
+        annotation.setTarget(wf);
+        annotation.setBody(URI.create(path));
+        annotation.setParent(wfbundle);
+    }
+
+
+    /**
+     * Generate workflow bundles of growing size into a directory.
+     *
+     * Usage: <code>WorkflowGenerator output-directory processors... [-scripts n] [-services n] [-depth n]
+     * [-nested n] [-annotations n]</code>, one bundle is written for each number of processors.
+     *
+     * @param args
+     *            command line arguments
+     * @throws IOException
+     *             when a bundle can't be written
+     * @throws WriterException
+     *             when a bundle can't be serialized
+     */
+    public static void main(String[] args)
+            throws IOException, WriterException {
+        WorkflowGenerator generator = new WorkflowGenerator();
+        File output = null;
+        StringBuilder sizes = new StringBuilder();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("-") && i + 1 < args.length) {
+                int value = Integer.parseInt(args[++i]);
+                switch (args[i - 1]) {
+                    case "-scripts":
+                        generator.setScripts(value);
+                        break;
+                    case "-services":
+                        generator.setServices(value);
+                        break;
+                    case "-depth":
+                        generator.setDepth(value);
+                        break;
+                    case "-nested":
+                        generator.setNestedPerWorkflow(value);
+                        break;
+                    case "-annotations":
+                        generator.setAnnotations(value);
+                        break;
+                    default:
+                        usage();
+                }
+            } else if (output == null) {
+                output = new File(args[i]);
+            } else {
+                sizes.append(args[i]).append(' ');
+            }
+        }
+        if (output == null || sizes.length() == 0) {
+            usage();
+        }
+        output.mkdirs();
+        WorkflowBundleIO io = new WorkflowBundleIO();
+        for (String size : sizes.toString().trim().split(" ")) {
+            generator.setProcessors(Integer.parseInt(size));
+            String name = "generated_" + size;
+            File file = new File(output, name + ".wfbundle");
+            io.writeBundle(generator.generate(name), file, "application/vnd.taverna.scufl2.workflow-bundle");
+            System.out.println(file + ": " + file.length() + " bytes");
+        }
+    }
+
+
+    /**
+     * Print the command line usage.
+     */
+    private static void usage() {
+        System.err.println("Usage: WorkflowGenerator output-directory processors... [-scripts n] [-services n] "
+                + "[-depth n] [-nested n] [-annotations n]");
+        System.exit(2);
+    }
+}
@@ -0,0 +1,144 @@
+package org.purl.wf4ever.wf2ro.rest;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.purl.wf4ever.wf2ro.PhaseTiming;
+
+/**
+ * Measures how polling the statuses of finished jobs scales with the number of polling threads. One segment is a
+ * single lock, like the synchronized map the store replaced.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JobStatusStoreBenchmark {
+
+    /** Finished jobs. */
+    @Param({ "10000" })
+    public int jobs;
+
+    /** Segments of the store. */
+    @Param({ "1", "16" })
+    public int segments;
+
+    /** The journal file. */
+    private File file;
+
+    /** The store. */
+    private JobStatusStore store;
+
+    /** UUIDs of the finished jobs. */
+    private UUID[] uuids;
+
+
+    /**
+     * Store the statuses.
+     *
+     * @throws IOException
+     *             when the journal can't be written
+     */
+    @Setup
+    public void setUp()
+            throws IOException {
+        file = File.createTempFile("wf2ro-jobs", ".journal");
+        file.delete();
+        store = new JobStatusStore(file, jobs, segments);
+        uuids = new UUID[jobs];
+        for (int i = 0; i < jobs; i++) {
+            uuids[i] = UUID.randomUUID();
+            JobStatus status = new JobStatus(URI.create("http://example.org/wf" + i + ".t2flow"),
+                    "application/vnd.taverna.t2flow+xml", new JobExtractFolders(), URI.create("http://example.org/ROs/"
+                            + i + "/"), Job.State.DONE, Arrays.asList(URI.create("http://example.org/ROs/" + i
+                            + "/wf.wfbundle")), null);
+            status.setPhases(Arrays.asList(new PhaseTiming("read", 40, 10, 1000), new PhaseTiming("wfbundle", 200,
+                    150, 50000)));
+            store.put(uuids[i], status);
+        }
+    }
+
+
+    /**
+     * Close and delete the journal.
+     *
+     * @throws IOException
+     *             when the journal can't be closed
+     */
+    @TearDown
+    public void tearDown()
+            throws IOException {
+        store.close();
+        file.delete();
+    }
+
+
+    /**
+     * @return the status of a random job
+     * @throws IOException
+     *             when the status can't be decoded
+     */
+    private JobStatus poll()
+            throws IOException {
+        return store.get(uuids[ThreadLocalRandom.current().nextInt(jobs)]);
+    }
+
+
+    /**
+     * @return the status of a random job, polled by one thread
+     * @throws IOException
+     *             when the status can't be decoded
+     */
+    @Benchmark
+    @Threads(1)
+    public JobStatus poll1Thread()
+            throws IOException {
+        return poll();
+    }
+
+
+    /**
+     * @return the status of a random job, polled by 4 threads
+     * @throws IOException
+     *             when the status can't be decoded
+     */
+    @Benchmark
+    @Threads(4)
+    public JobStatus poll4Threads()
+            throws IOException {
+        return poll();
+    }
+
+
+    /**
+     * @return the status of a random job, polled by 16 threads
+     * @throws IOException
+     *             when the status can't be decoded
+     */
+    @Benchmark
+    @Threads(16)
+    public JobStatus poll16Threads()
+            throws IOException {
+        return poll();
+    }
+}
@@ -0,0 +1,162 @@
+/**
+ *
+ */
+package org.purl.wf4ever.wf2ro;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+import org.purl.wf4ever.rosrs.client.Folder;
+import org.purl.wf4ever.rosrs.client.ResearchObject;
+import org.purl.wf4ever.rosrs.client.exception.ROSRSException;
+
+/**
+ * Remembers which extracted resources (scripts, services, nested workflows)
+ * are already in a folder or, when extracted without a folder, in the research
+ * object. Resources are recognized by the tokens the converter puts in their
+ * names: a UUID or a SHA-1 hex digest.
+ *
+ * The tokens of a folder are read from its entry names, and those of a
+ * research object from its resource URIs, the first time the folder or the
+ * research object is checked. After that the checks don't need to scan the
+ * entries again.
+ *
+ */
+class AggregationIndex {
+
+	/** Logger. */
+	private static final Logger LOG = Logger.getLogger(AggregationIndex.class);
+
+	/** A UUID or a SHA-1 hex digest, not part of a longer hex string. */
+	private static final Pattern TOKEN = Pattern.compile("(?<![0-9a-f])(?:[0-9a-f]{8}-[0-9a-f]{4}-"
+			+ "[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}|[0-9a-f]{40})(?![0-9a-f])",
+			Pattern.CASE_INSENSITIVE);
+
+	/** Tokens present in each folder or research object, by its URI. */
+	private final ConcurrentMap<URI, Set<String>> scopes = new ConcurrentHashMap<>();
+
+	/** The converter, which lists the folders and the research object. */
+	private final Wf2ROConverter converter;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param converter
+	 *            the converter, which lists the folders and the research
+	 *            object
+	 */
+	AggregationIndex(Wf2ROConverter converter) {
+		this.converter = converter;
+	}
+
+	/**
+	 * Claim a token before extracting the resource it identifies.
+	 *
+	 * @param ro
+	 *            the research object
+	 * @param folder
+	 *            the folder where the resource is extracted, or null if it is
+	 *            only aggregated
+	 * @param token
+	 *            the UUID or SHA-1 digest identifying the resource
+	 * @return true if the resource should be extracted, false if it is
+	 *         already in the folder or research object
+	 * @throws ROSRSException
+	 *             when the folder can't be loaded
+	 */
+	boolean claim(ResearchObject ro, Folder folder, String token) throws ROSRSException {
+		if (token.isEmpty()) {
+			return true;
+		}
+		return tokens(ro, folder).add(token.toLowerCase());
+	}
+
+	/**
+	 * Release a token claimed by a resource that couldn't be extracted.
+	 *
+	 * @param ro
+	 *            the research object
+	 * @param folder
+	 *            the folder where the resource was extracted, or null
+	 * @param token
+	 *            the token
+	 */
+	void release(ResearchObject ro, Folder folder, String token) {
+		Set<String> tokens = scopes.get(scopeOf(ro, folder));
+		if (tokens != null) {
+			tokens.remove(token.toLowerCase());
+		}
+	}
+
+	/**
+	 * Get the tokens of a folder or research object, reading them on first
+	 * use.
+	 *
+	 * @param ro
+	 *            the research object
+	 * @param folder
+	 *            the folder, or null for the research object
+	 * @return the tokens
+	 * @throws ROSRSException
+	 *             when the folder can't be loaded
+	 */
+	private Set<String> tokens(ResearchObject ro, Folder folder) throws ROSRSException {
+		URI scope = scopeOf(ro, folder);
+		Set<String> tokens = scopes.get(scope);
+		if (tokens != null) {
+			return tokens;
+		}
+		Object lock = folder != null ? folder : ro;
+		synchronized (lock) {
+			tokens = scopes.get(scope);
+			if (tokens != null) {
+				return tokens;
+			}
+			tokens = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+			if (folder != null) {
+				for (String name : converter.getFolderEntryNames(folder)) {
+					addTokens(name, tokens);
+				}
+			} else {
+				for (URI resource : converter.getAggregatedResources(ro).keySet()) {
+					addTokens(resource.toString(), tokens);
+				}
+			}
+			LOG.debug(String.format("Indexed %d tokens in %s", tokens.size(), scope));
+			scopes.put(scope, tokens);
+			return tokens;
+		}
+	}
+
+	/**
+	 * @param ro
+	 *            the research object
+	 * @param folder
+	 *            the folder, or null
+	 * @return the URI of the folder or of the research object
+	 */
+	private static URI scopeOf(ResearchObject ro, Folder folder) {
+		return folder != null ? folder.getUri() : ro.getUri();
+	}
+
+	/**
+	 * Find the tokens in a name or URI.
+	 *
+	 * @param name
+	 *            the name or URI
+	 * @param tokens
+	 *            where to add the tokens found
+	 */
+	static void addTokens(String name, Set<String> tokens) {
+		Matcher matcher = TOKEN.matcher(name);
+		while (matcher.find()) {
+			tokens.add(matcher.group().toLowerCase());
+		}
+	}
+}
@@ -0,0 +1,349 @@
+/**
+ *
+ */
+package org.purl.wf4ever.wf2ro;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.log4j.Logger;
+
+/**
+ * A disk cache of generated annotation bodies, such as the wfdesc description
+ * and the roevo history of a workflow bundle, which are the same every time
+ * the same workflow is converted with the same generator. The bodies are
+ * stored gzipped, in files named after the hash of their key, and the least
+ * recently used ones are removed when the files exceed the size budget.
+ *
+ * A body is stored while it is serialized for its first upload, and only if
+ * the serialization completes. The cache survives restarts.
+ *
+ */
+public class AnnotationCache {
+
+	/** Logger. */
+	private static final Logger LOG = Logger.getLogger(AnnotationCache.class);
+
+	/** Body file extension. */
+	private static final String BODY = ".gz";
+
+	/** Keys. */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** The cache directory. */
+	private final File dir;
+
+	/** Size budget of the compressed bodies in bytes. */
+	private final long maxBytes;
+
+	/** Compressed body sizes by file name, least recently used first. */
+	private final LinkedHashMap<String, Long> bodies = new LinkedHashMap<>(16, 0.75f, true);
+
+	/** Size of the compressed bodies in bytes. */
+	private long size;
+
+	/** Bodies read from the cache. */
+	private final AtomicLong hitCount = new AtomicLong();
+
+	/** Bodies generated. */
+	private final AtomicLong missCount = new AtomicLong();
+
+	/** Bodies removed to keep the size budget. */
+	private final AtomicLong evictedCount = new AtomicLong();
+
+	/**
+	 * Constructor. Reads the bodies already in the directory.
+	 *
+	 * @param dir
+	 *            the cache directory, created if it doesn't exist
+	 * @param maxBytes
+	 *            size budget of the compressed bodies in bytes
+	 * @throws IOException
+	 *             when the directory can't be created
+	 */
+	public AnnotationCache(File dir, long maxBytes) throws IOException {
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Can't create the annotation cache directory " + dir);
+		}
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		List<File> found = new ArrayList<>();
+		for (File file : files) {
+			if (file.getName().endsWith(BODY)) {
+				found.add(file);
+			} else if (file.getName().endsWith(".tmp")) {
+				// left by an interrupted serialization
+				delete(file);
+			}
+		}
+		Collections.sort(found, new Comparator<File>() {
+
+			@Override
+			public int compare(File f1, File f2) {
+				return Long.compare(f1.lastModified(), f2.lastModified());
+			}
+		});
+		synchronized (this) {
+			for (File file : found) {
+				bodies.put(file.getName(), file.length());
+				size += file.length();
+			}
+			evict();
+		}
+		LOG.debug(String.format("Annotation cache %s has %d bodies, %d bytes", dir,
+				bodies.size(), size));
+	}
+
+	/**
+	 * Open a cached body.
+	 *
+	 * @param key
+	 *            the body key, identifying the content it was generated from
+	 *            and the generator
+	 * @return the uncompressed body, or null if it isn't cached
+	 */
+	public InputStream open(String key) {
+		String name = fileName(key);
+		File file = new File(dir, name);
+		synchronized (this) {
+			if (bodies.get(name) == null) {
+				missCount.incrementAndGet();
+				return null;
+			}
+			if (!file.setLastModified(System.currentTimeMillis())) {
+				LOG.debug("Can't mark the cached annotation body " + name + " as used");
+			}
+		}
+		try {
+			// an evicted file stays readable once it is open
+			InputStream in = new GZIPInputStream(new FileInputStream(file));
+			hitCount.incrementAndGet();
+			return in;
+		} catch (IOException e) {
+			LOG.warn("Can't read the cached annotation body " + name, e);
+			synchronized (this) {
+				remove(name);
+			}
+			missCount.incrementAndGet();
+			return null;
+		}
+	}
+
+	/**
+	 * Wrap the serialization of a body so that the body is stored in the cache
+	 * when the serialization completes.
+	 *
+	 * @param key
+	 *            the body key, identifying the content it is generated from and
+	 *            the generator
+	 * @param serialization
+	 *            the serialization of the body
+	 * @return a serialization writing the body also to the cache
+	 */
+	public SerializerPool.Serialization record(final String key,
+			final SerializerPool.Serialization serialization) {
+		return new SerializerPool.Serialization() {
+
+			@Override
+			public void writeTo(OutputStream out) throws Exception {
+				File tmp = File.createTempFile("annotation", ".tmp", dir);
+				boolean complete = false;
+				try {
+					try (OutputStream copy = new GZIPOutputStream(new FileOutputStream(tmp))) {
+						serialization.writeTo(new TeeOutputStream(out, copy));
+					}
+					complete = true;
+				} finally {
+					if (!complete) {
+						delete(tmp);
+					}
+				}
+				store(fileName(key), tmp);
+			}
+		};
+	}
+
+	/**
+	 * Move a complete body into place.
+	 *
+	 * @param name
+	 *            file name of the body
+	 * @param tmp
+	 *            the temporary file with the body
+	 */
+	private synchronized void store(String name, File tmp) {
+		remove(name);
+		File file = new File(dir, name);
+		if (!tmp.renameTo(file)) {
+			LOG.warn("Can't move the annotation body to " + file);
+			delete(tmp);
+			return;
+		}
+		bodies.put(name, file.length());
+		size += file.length();
+		evict();
+	}
+
+	/**
+	 * Remove a body. The caller must hold the cache lock.
+	 *
+	 * @param name
+	 *            file name of the body
+	 */
+	private void remove(String name) {
+		Long length = bodies.remove(name);
+		if (length != null) {
+			size -= length;
+			delete(new File(dir, name));
+		}
+	}
+
+	/**
+	 * Remove the least recently used bodies until they fit the budget. The
+	 * caller must hold the cache lock.
+	 */
+	private void evict() {
+		Iterator<Map.Entry<String, Long>> iterator = bodies.entrySet().iterator();
+		while (size > maxBytes && iterator.hasNext()) {
+			Map.Entry<String, Long> body = iterator.next();
+			iterator.remove();
+			size -= body.getValue();
+			delete(new File(dir, body.getKey()));
+			evictedCount.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @param key
+	 *            body key
+	 * @return file name of the body
+	 */
+	private static String fileName(String key) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(UTF8));
+			return Hex.encodeHexString(Arrays.copyOf(digest, 20)) + BODY;
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Delete a file, logging a failure.
+	 *
+	 * @param file
+	 *            the file
+	 */
+	private static void delete(File file) {
+		if (!file.delete() && file.exists()) {
+			LOG.warn("Can't delete " + file);
+		}
+	}
+
+	/**
+	 * @return number of cached bodies
+	 */
+	public synchronized int getEntryCount() {
+		return bodies.size();
+	}
+
+	/**
+	 * @return size of the compressed bodies in bytes
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return number of bodies read from the cache
+	 */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * @return number of bodies not found in the cache
+	 */
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	/**
+	 * @return number of bodies removed to keep the size budget
+	 */
+	public long getEvictedCount() {
+		return evictedCount.get();
+	}
+
+	/**
+	 * Writes to two streams. Closing it only flushes them, since the
+	 * serialization may close its stream before the copy is finished.
+	 *
+	 */
+	private static class TeeOutputStream extends OutputStream {
+
+		/** The main stream. */
+		private final OutputStream out;
+
+		/** The copy. */
+		private final OutputStream copy;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param out
+		 *            the main stream
+		 * @param copy
+		 *            the copy
+		 */
+		TeeOutputStream(OutputStream out, OutputStream copy) {
+			this.out = out;
+			this.copy = copy;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			copy.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			copy.write(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+			copy.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+	}
+}
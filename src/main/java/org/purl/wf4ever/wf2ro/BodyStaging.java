@@ -0,0 +1,277 @@
+/**
+ *
+ */
+package org.purl.wf4ever.wf2ro;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Serializes upload bodies completely before they are uploaded, so that their
+ * length is known, the serialization doesn't wait for the network and an upload
+ * can be retried without serializing the body again.
+ *
+ * Bodies smaller than the threshold are kept in memory, larger ones are spilled
+ * to a temporary file which is read through a file channel. The file is not
+ * memory-mapped: the ROSRS client only accepts an {@link InputStream}, which
+ * copies the bytes anyway, and a mapping would stay alive until it is garbage
+ * collected, keeping the file from being deleted on some platforms.
+ *
+ */
+public class BodyStaging {
+
+	/** Logger. */
+	private static final Logger LOG = Logger.getLogger(BodyStaging.class);
+
+	/** Default size above which bodies are written to a file. */
+	public static final int DEFAULT_THRESHOLD = 1024 * 1024;
+
+	/** Size in bytes above which bodies are written to a file. */
+	private final int threshold;
+
+	/** Directory for the temporary files, or null for the default one. */
+	private final File directory;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param threshold
+	 *            size in bytes above which bodies are written to a file
+	 * @param directory
+	 *            directory for the temporary files, or null for the system
+	 *            default
+	 */
+	public BodyStaging(int threshold, File directory) {
+		this.threshold = threshold;
+		this.directory = directory;
+	}
+
+	/**
+	 * Serialize a body.
+	 *
+	 * @param name
+	 *            what is serialized, for logging
+	 * @param serialization
+	 *            the serialization
+	 * @return the serialized body, which must be closed to release the
+	 *         temporary file
+	 * @throws IOException
+	 *             when the body can't be serialized or stored
+	 */
+	public StagedBody stage(String name, SerializerPool.Serialization serialization)
+			throws IOException {
+		try (SpillingOutputStream out = new SpillingOutputStream(name)) {
+			try {
+				serialization.writeTo(out);
+			} catch (IOException e) {
+				out.discard();
+				throw e;
+			} catch (Exception e) {
+				out.discard();
+				throw new IOException("Can't serialize " + name, e);
+			}
+			out.flush();
+			StagedBody body = out.toBody();
+			LOG.debug(String.format("Staged %s, %d bytes", name, body.length()));
+			return body;
+		}
+	}
+
+	/**
+	 * An upload body that has been serialized completely.
+	 *
+	 */
+	public abstract static class StagedBody implements Closeable {
+
+		/**
+		 * @return the body length in bytes
+		 */
+		public abstract long length();
+
+		/**
+		 * Open a new stream to read the body from the beginning. Can be called
+		 * more than once.
+		 *
+		 * @return a stream with the body
+		 * @throws IOException
+		 *             when the body can't be read
+		 */
+		public abstract InputStream openStream() throws IOException;
+	}
+
+	/**
+	 * A body kept in memory.
+	 *
+	 */
+	private static class MemoryBody extends StagedBody {
+
+		/** The body. */
+		private final byte[] bytes;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param bytes
+		 *            the body
+		 */
+		MemoryBody(byte[] bytes) {
+			this.bytes = bytes;
+		}
+
+		@Override
+		public long length() {
+			return bytes.length;
+		}
+
+		@Override
+		public InputStream openStream() {
+			return new ByteArrayInputStream(bytes);
+		}
+
+		@Override
+		public void close() {
+			// nothing to release
+		}
+	}
+
+	/**
+	 * A body stored in a temporary file.
+	 *
+	 */
+	private static class FileBody extends StagedBody {
+
+		/** The temporary file. */
+		private final File file;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param file
+		 *            the temporary file
+		 */
+		FileBody(File file) {
+			this.file = file;
+		}
+
+		@Override
+		public long length() {
+			return file.length();
+		}
+
+		@Override
+		public InputStream openStream() throws IOException {
+			return Channels.newInputStream(FileChannel.open(file.toPath(), StandardOpenOption.READ));
+		}
+
+		@Override
+		public void close() {
+			if (!file.delete()) {
+				LOG.warn("Can't delete the temporary file " + file);
+			}
+		}
+	}
+
+	/**
+	 * Writes to memory until the threshold is reached, then to a temporary
+	 * file.
+	 *
+	 */
+	private class SpillingOutputStream extends OutputStream {
+
+		/** What is serialized, for logging. */
+		private final String name;
+
+		/** The body while it is small. */
+		private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+
+		/** The temporary file once the body is large. */
+		private File file;
+
+		/** The temporary file stream. */
+		private OutputStream fileOut;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param name
+		 *            what is serialized, for logging
+		 */
+		SpillingOutputStream(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (fileOut == null && memory.size() + len > threshold) {
+				file = File.createTempFile("wf2ro-", ".body", directory);
+				LOG.debug("Spilling " + name + " to " + file);
+				fileOut = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+				memory.writeTo(fileOut);
+				memory = null;
+			}
+			if (fileOut != null) {
+				fileOut.write(b, off, len);
+			} else {
+				memory.write(b, off, len);
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (fileOut != null) {
+				fileOut.flush();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (fileOut != null) {
+				fileOut.close();
+			}
+		}
+
+		/**
+		 * @return the staged body
+		 * @throws IOException
+		 *             when the temporary file can't be closed
+		 */
+		StagedBody toBody() throws IOException {
+			if (file != null) {
+				fileOut.close();
+				return new FileBody(file);
+			}
+			return new MemoryBody(memory.toByteArray());
+		}
+
+		/**
+		 * Delete the temporary file after a failure.
+		 */
+		void discard() {
+			try {
+				close();
+			} catch (IOException e) {
+				LOG.warn("Exception when closing the temporary file " + file, e);
+			}
+			if (file != null && !file.delete()) {
+				LOG.warn("Can't delete the temporary file " + file);
+			}
+		}
+	}
+}
@@ -0,0 +1,303 @@
+/**
+ *
+ */
+package org.purl.wf4ever.wf2ro;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import uk.org.taverna.scufl2.api.container.WorkflowBundle;
+import uk.org.taverna.scufl2.api.io.ReaderException;
+import uk.org.taverna.scufl2.api.io.WorkflowBundleIO;
+
+/**
+ * A memory cache of parsed workflow bundles, keyed by the content of the
+ * source document (see {@link WorkflowSource}), so that a workflow converted
+ * into several ROs is parsed once. A document being parsed for one job is not
+ * parsed again for another one, which waits for the first parse instead.
+ *
+ * The heap size of a bundle is estimated from the size of its source, and the
+ * least recently used bundles are removed when the estimates exceed the
+ * budget.
+ *
+ * The bundles are not copied: one instance is shared by all the jobs
+ * converting the same document, concurrently, so the jobs must never modify
+ * them, for example by adding annotations, workflows or profiles, setting the
+ * main workflow or profile, or reparenting their beans. Any such change would
+ * leak into the other jobs. The converter only reads its bundle, and
+ * {@link NestedBundleExtractor} builds new bundles without changing it. The
+ * only writer is the workflow bundle writer, which stores the serialized
+ * workflows in the UCF package of the bundle and is therefore called with the
+ * package locked, like the other package reads. With assertions enabled, a
+ * cached bundle is checked for changes of its structure every time it is
+ * handed out.
+ *
+ */
+public class BundleCache {
+
+	/** Logger. */
+	private static final Logger LOG = Logger.getLogger(BundleCache.class);
+
+	/**
+	 * Estimated heap bytes of a parsed bundle per byte of its source. A
+	 * t2flow document is mostly markup, most of which becomes beans, URIs and
+	 * JSON configurations.
+	 */
+	public static final int HEAP_PER_SOURCE_BYTE = 4;
+
+	/** Reads the bundles. */
+	private final WorkflowBundleIO io;
+
+	/** Budget of the estimated heap size of the bundles in bytes. */
+	private final long maxBytes;
+
+	/** Parsed bundles by key, least recently used first. */
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+	/** Bundles being parsed by key, guarded by the cache lock. */
+	private final Map<String, FutureTask<WorkflowBundle>> parsing = new HashMap<>();
+
+	/** Estimated heap size of the bundles in bytes. */
+	private long size;
+
+	/** Bundles found in the cache or parsed by another job. */
+	private final AtomicLong hitCount = new AtomicLong();
+
+	/** Bundles parsed. */
+	private final AtomicLong missCount = new AtomicLong();
+
+	/** Bundles removed to keep the budget. */
+	private final AtomicLong evictedCount = new AtomicLong();
+
+	/**
+	 * A parsed bundle.
+	 *
+	 */
+	private static final class Entry {
+
+		/** The bundle. */
+		private final WorkflowBundle bundle;
+
+		/** Estimated heap size in bytes. */
+		private final long size;
+
+		/** Number of workflows when parsed. */
+		private final int workflows;
+
+		/** Number of profiles when parsed. */
+		private final int profiles;
+
+		/** Number of annotations when parsed. */
+		private final int annotations;
+
+		/** The main workflow when parsed. */
+		private final Object mainWorkflow;
+
+		/** The main profile when parsed. */
+		private final Object mainProfile;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param bundle
+		 *            the bundle
+		 * @param size
+		 *            estimated heap size in bytes
+		 */
+		private Entry(WorkflowBundle bundle, long size) {
+			this.bundle = bundle;
+			this.size = size;
+			this.workflows = bundle.getWorkflows().size();
+			this.profiles = bundle.getProfiles().size();
+			this.annotations = bundle.getAnnotations().size();
+			this.mainWorkflow = bundle.getMainWorkflow();
+			this.mainProfile = bundle.getMainProfile();
+		}
+
+		/**
+		 * @return true if the structure of the bundle hasn't changed since it
+		 *         was parsed
+		 */
+		private boolean isUnchanged() {
+			return bundle.getWorkflows().size() == workflows
+					&& bundle.getProfiles().size() == profiles
+					&& bundle.getAnnotations().size() == annotations
+					&& bundle.getMainWorkflow() == mainWorkflow
+					&& bundle.getMainProfile() == mainProfile;
+		}
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param io
+	 *            reads the bundles
+	 * @param maxBytes
+	 *            budget of the estimated heap size of the bundles in bytes
+	 */
+	public BundleCache(WorkflowBundleIO io, long maxBytes) {
+		this.io = io;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Read a workflow bundle, parsing it unless the same document has been
+	 * parsed before. The returned bundle may be shared with other callers and
+	 * must not be modified.
+	 *
+	 * @param in
+	 *            the source document, read completely but not closed
+	 * @param format
+	 *            the media type of the document
+	 * @return the bundle
+	 * @throws ReaderException
+	 *             when the document can't be parsed
+	 * @throws IOException
+	 *             when the document can't be read
+	 */
+	public WorkflowBundle read(InputStream in, String format) throws ReaderException,
+			IOException {
+		return read(WorkflowSource.read(in, format));
+	}
+
+	/**
+	 * Get the workflow bundle of a document, parsing it unless the same
+	 * document has been parsed before. The returned bundle may be shared with
+	 * other callers and must not be modified.
+	 *
+	 * @param source
+	 *            the source document
+	 * @return the bundle
+	 * @throws ReaderException
+	 *             when the document can't be parsed
+	 * @throws IOException
+	 *             when the document can't be read
+	 */
+	public WorkflowBundle read(final WorkflowSource source) throws ReaderException, IOException {
+		final String key = source.getKey();
+		FutureTask<WorkflowBundle> task = new FutureTask<>(new Callable<WorkflowBundle>() {
+
+			@Override
+			public WorkflowBundle call() throws Exception {
+				WorkflowBundle bundle = io.readBundle(source.openStream(), source.getFormat());
+				put(key, new Entry(bundle, (long) source.getLength() * HEAP_PER_SOURCE_BYTE));
+				return bundle;
+			}
+		});
+		FutureTask<WorkflowBundle> running;
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			if (entry != null) {
+				hitCount.incrementAndGet();
+				assert entry.isUnchanged() : "A shared workflow bundle has been modified";
+				return entry.bundle;
+			}
+			// the parse adds the bundle before it is unregistered
+			running = parsing.get(key);
+			if (running == null) {
+				parsing.put(key, task);
+			}
+		}
+		if (running == null) {
+			missCount.incrementAndGet();
+			try {
+				task.run();
+			} finally {
+				synchronized (this) {
+					parsing.remove(key);
+				}
+			}
+		} else {
+			hitCount.incrementAndGet();
+			task = running;
+		}
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the workflow to be parsed", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof ReaderException) {
+				throw (ReaderException) cause;
+			} else if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException(cause);
+		}
+	}
+
+	/**
+	 * Add a parsed bundle and remove the least recently used ones above the
+	 * budget. A bundle larger than the whole budget is not kept.
+	 *
+	 * @param key
+	 *            bundle key
+	 * @param entry
+	 *            the bundle
+	 */
+	private synchronized void put(String key, Entry entry) {
+		if (entry.size > maxBytes) {
+			LOG.debug(String.format("Not caching a workflow bundle of about %d bytes", entry.size));
+			return;
+		}
+		entries.put(key, entry);
+		size += entry.size;
+		Iterator<Entry> iterator = entries.values().iterator();
+		while (size > maxBytes && iterator.hasNext()) {
+			Entry evicted = iterator.next();
+			iterator.remove();
+			size -= evicted.size;
+			evictedCount.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @return number of cached bundles
+	 */
+	public synchronized int getEntryCount() {
+		return entries.size();
+	}
+
+	/**
+	 * @return estimated heap size of the cached bundles in bytes
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return number of bundles found in the cache or parsed by another caller
+	 */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * @return number of bundles parsed
+	 */
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	/**
+	 * @return number of bundles removed to keep the budget
+	 */
+	public long getEvictedCount() {
+		return evictedCount.get();
+	}
+}
@@ -0,0 +1,179 @@
+/**
+ *
+ */
+package org.purl.wf4ever.wf2ro;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Cancellation of a conversion, shared by the threads working on it. The
+ * converter checks it between and inside its phases, and the upload bodies it
+ * tracks fail on their next read once it is cancelled. Cancelling also closes
+ * the tracked bodies, so that uploads waiting for a serializer and serializers
+ * waiting for an upload are released at once.
+ *
+ */
+public class Cancellation {
+
+	/** Logger. */
+	private static final Logger LOG = Logger.getLogger(Cancellation.class);
+
+	/** Whether the conversion has been cancelled. */
+	private volatile boolean cancelled;
+
+	/** When the conversion was cancelled, in System.nanoTime(). */
+	private volatile long cancelledAt;
+
+	/** Upload bodies being read. */
+	private final Set<Closeable> open = Collections
+			.newSetFromMap(new ConcurrentHashMap<Closeable, Boolean>());
+
+	/**
+	 * Cancel the conversion and close the upload bodies being read. Only the
+	 * first call has an effect.
+	 */
+	public void cancel() {
+		synchronized (this) {
+			if (cancelled) {
+				return;
+			}
+			cancelledAt = System.nanoTime();
+			cancelled = true;
+		}
+		for (Closeable closeable : open) {
+			close(closeable);
+		}
+	}
+
+	/**
+	 * @return true if the conversion has been cancelled
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * @return when the conversion was cancelled, in System.nanoTime(), or 0
+	 *         if it hasn't been
+	 */
+	public long getCancelledAt() {
+		return cancelled ? cancelledAt : 0;
+	}
+
+	/**
+	 * Stop the current thread's work if the conversion has been cancelled.
+	 *
+	 * @throws CancellationException
+	 *             if the conversion has been cancelled
+	 */
+	public void check() {
+		if (cancelled) {
+			throw new CancellationException("The conversion has been cancelled");
+		}
+	}
+
+	/**
+	 * Track an upload body, which fails on its next read and is closed when
+	 * the conversion is cancelled.
+	 *
+	 * @param in
+	 *            the body
+	 * @return the tracked body, which must be closed or read to its end
+	 */
+	public InputStream track(InputStream in) {
+		TrackedInputStream tracked = new TrackedInputStream(in);
+		open.add(tracked);
+		if (cancelled) {
+			// cancelled before the body was added
+			close(tracked);
+		}
+		return tracked;
+	}
+
+	/**
+	 * Close a tracked body, logging a failure.
+	 *
+	 * @param closeable
+	 *            the body
+	 */
+	private static void close(Closeable closeable) {
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			LOG.debug("Exception when closing a cancelled upload body", e);
+		}
+	}
+
+	/**
+	 * An upload body that fails once the conversion is cancelled. A read
+	 * released by the cancellation fails too, so that the body is not taken
+	 * for a complete one.
+	 *
+	 */
+	private class TrackedInputStream extends FilterInputStream {
+
+		/**
+		 * Constructor.
+		 *
+		 * @param in
+		 *            the body
+		 */
+		TrackedInputStream(InputStream in) {
+			super(in);
+		}
+
+		/**
+		 * @throws InterruptedIOException
+		 *             if the conversion has been cancelled
+		 */
+		private void checkCancelled() throws InterruptedIOException {
+			if (cancelled) {
+				throw new InterruptedIOException("The conversion has been cancelled");
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			checkCancelled();
+			int b = super.read();
+			checkCancelled();
+			if (b < 0) {
+				open.remove(this);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			checkCancelled();
+			int n = super.read(b, off, len);
+			checkCancelled();
+			if (n < 0) {
+				open.remove(this);
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			checkCancelled();
+			return super.skip(n);
+		}
+
+		@Override
+		public void close() throws IOException {
+			open.remove(this);
+			super.close();
+		}
+	}
+}
@@ -0,0 +1,309 @@
+/**
+ *
+ */
+package org.purl.wf4ever.wf2ro;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A set of conversion phases with explicit dependencies between them. Phases
+ * can be run one after another in the calling thread, or on an executor, in
+ * which case each phase is started as soon as all phases it depends on have
+ * finished.
+ *
+ * A phase that throws an exception fails the whole run, and the phases that
+ * depend on it are skipped. Phases that should not stop the conversion must
+ * handle their own errors. The phases can be run only once.
+ *
+ */
+class ConversionPhases {
+
+	/** Logger. */
+	private static final Logger LOG = Logger.getLogger(ConversionPhases.class);
+
+	/**
+	 * A single conversion phase.
+	 *
+	 */
+	interface Phase {
+
+		/**
+		 * Run the phase.
+		 *
+		 * @throws Exception
+		 *             any kind of conversion problem
+		 */
+		void run() throws Exception;
+	}
+
+	/** Phases by name, in the order they were added. */
+	private final Map<String, Node> nodes = new LinkedHashMap<>();
+
+	/** Records the time of each phase, or null. */
+	private PhaseTimings timings;
+
+	/** Checked before each phase, or null. */
+	private Cancellation cancellation;
+
+	/**
+	 * Set where to record the time of each phase.
+	 *
+	 * @param timings
+	 *            the phase timings, or null to not record them
+	 */
+	void setTimings(PhaseTimings timings) {
+		this.timings = timings;
+	}
+
+	/**
+	 * Set the cancellation checked before each phase. A phase that isn't
+	 * started because of it fails, so the phases depending on it are skipped.
+	 *
+	 * @param cancellation
+	 *            the cancellation, or null to run all phases
+	 */
+	void setCancellation(Cancellation cancellation) {
+		this.cancellation = cancellation;
+	}
+
+	/**
+	 * Add a phase. The phases it depends on must have been added before, so
+	 * the order in which phases are added is always a valid sequential order.
+	 *
+	 * @param name
+	 *            unique phase name, used for logging
+	 * @param phase
+	 *            the phase
+	 * @param dependsOn
+	 *            names of the phases that must finish before this one starts
+	 */
+	void add(String name, Phase phase, String... dependsOn) {
+		add(name, name, phase, dependsOn);
+	}
+
+	/**
+	 * Add a phase of a kind, timed under the key of the kind. The phases it
+	 * depends on must have been added before.
+	 *
+	 * @param key
+	 *            phase key, the same for all the phases of the kind
+	 * @param name
+	 *            unique phase name, used for logging
+	 * @param phase
+	 *            the phase
+	 * @param dependsOn
+	 *            names of the phases that must finish before this one starts
+	 */
+	void add(String key, String name, Phase phase, String... dependsOn) {
+		if (nodes.containsKey(name)) {
+			throw new IllegalArgumentException("Duplicate phase " + name);
+		}
+		Node node = new Node(key, name, phase, dependsOn.length);
+		for (String dependency : dependsOn) {
+			Node before = nodes.get(dependency);
+			if (before == null) {
+				throw new IllegalArgumentException("Phase " + name
+						+ " depends on unknown phase " + dependency);
+			}
+			before.dependents.add(node);
+		}
+		nodes.put(name, node);
+		LOG.debug("Added phase " + name + " depending on " + Arrays.toString(dependsOn));
+	}
+
+	/**
+	 * Run all phases.
+	 *
+	 * @param executor
+	 *            executor to run the phases in parallel, or null to run them
+	 *            one after another in the calling thread
+	 * @throws Exception
+	 *             the first exception thrown by a phase
+	 */
+	void run(Executor executor) throws Exception {
+		if (executor == null) {
+			for (Node node : nodes.values()) {
+				runPhase(node);
+			}
+			return;
+		}
+		// find the roots first, finishing phases start their dependents
+		List<Node> roots = new ArrayList<>();
+		for (Node node : nodes.values()) {
+			if (node.pending.get() == 0) {
+				roots.add(node);
+			}
+		}
+		Run run = new Run(executor);
+		for (Node node : roots) {
+			run.schedule(node);
+		}
+		run.done.await();
+		if (run.failure.get() != null) {
+			Throwable e = run.failure.get();
+			if (e instanceof Exception) {
+				throw (Exception) e;
+			}
+			throw (Error) e;
+		}
+	}
+
+	/**
+	 * Run a phase in the current thread, recording its time.
+	 *
+	 * @param node
+	 *            the phase
+	 * @throws Exception
+	 *             thrown by the phase
+	 * @throws java.util.concurrent.CancellationException
+	 *             if the conversion has been cancelled
+	 */
+	private void runPhase(Node node) throws Exception {
+		if (cancellation != null) {
+			cancellation.check();
+		}
+		if (timings == null) {
+			node.phase.run();
+			return;
+		}
+		PhaseTimings.Running running = timings.start(node.key, node.name);
+		try {
+			node.phase.run();
+		} finally {
+			timings.stop(running);
+		}
+	}
+
+	/**
+	 * A phase and its position in the dependency graph.
+	 *
+	 */
+	private static class Node {
+
+		/** Phase key. */
+		private final String key;
+
+		/** Phase name. */
+		private final String name;
+
+		/** The phase. */
+		private final Phase phase;
+
+		/** Phases that depend on this one. */
+		private final List<Node> dependents = new ArrayList<>();
+
+		/** Number of dependencies that haven't finished yet. */
+		private final AtomicInteger pending;
+
+		/** Whether a dependency has failed, so that this phase must not run. */
+		private volatile boolean skip;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param key
+		 *            phase key
+		 * @param name
+		 *            phase name
+		 * @param phase
+		 *            the phase
+		 * @param dependencies
+		 *            number of dependencies
+		 */
+		Node(String key, String name, Phase phase, int dependencies) {
+			this.key = key;
+			this.name = name;
+			this.phase = phase;
+			this.pending = new AtomicInteger(dependencies);
+		}
+	}
+
+	/**
+	 * State of a single parallel run.
+	 *
+	 */
+	private class Run {
+
+		/** The executor. */
+		private final Executor executor;
+
+		/** Counts down as phases finish or are skipped. */
+		private final CountDownLatch done = new CountDownLatch(nodes.size());
+
+		/** The first failure. */
+		private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+		/**
+		 * Constructor.
+		 *
+		 * @param executor
+		 *            the executor
+		 */
+		Run(Executor executor) {
+			this.executor = executor;
+		}
+
+		/**
+		 * Start a phase whose dependencies have all finished.
+		 *
+		 * @param node
+		 *            the phase
+		 */
+		void schedule(final Node node) {
+			Runnable task = new Runnable() {
+
+				@Override
+				public void run() {
+					execute(node);
+				}
+			};
+			try {
+				executor.execute(task);
+			} catch (RejectedExecutionException e) {
+				LOG.debug("Phase " + node.name + " rejected by the executor, running it in place");
+				task.run();
+			}
+		}
+
+		/**
+		 * Run a phase and schedule the phases that were waiting for it.
+		 *
+		 * @param node
+		 *            the phase
+		 */
+		void execute(Node node) {
+			boolean failed = node.skip;
+			if (node.skip) {
+				LOG.debug("Skipping phase " + node.name + " because a phase it depends on failed");
+			} else {
+				try {
+					runPhase(node);
+				} catch (Throwable e) {
+					LOG.debug("Phase " + node.name + " failed", e);
+					failure.compareAndSet(null, e);
+					failed = true;
+				}
+			}
+			for (Node dependent : node.dependents) {
+				if (failed) {
+					dependent.skip = true;
+				}
+				if (dependent.pending.decrementAndGet() == 0) {
+					schedule(dependent);
+				}
+			}
+			done.countDown();
+		}
+	}
+}
@@ -0,0 +1,559 @@
+/**
+ *
+ */
+package org.purl.wf4ever.wf2ro;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URLConnection;
+import java.nio.charset.Charset;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.log4j.Logger;
+
+/**
+ * A disk cache of fetched workflow documents. The bodies are stored once per
+ * content, named after their SHA-256 hash, and each cached URI has a small
+ * entry with the hash of its body and the validators (ETag, Last-Modified)
+ * returned with it. A cached document is revalidated with a conditional GET
+ * every time it is opened, so that an unchanged document is not downloaded
+ * again. If the revalidation fails, the cached copy is used.
+ *
+ * When the bodies exceed the size budget, the least recently used entries are
+ * removed, and the bodies no longer referenced by any entry are deleted. A
+ * document larger than the budget is not cached, it is read from a temporary
+ * file deleted when the stream is closed. The entries are read from the
+ * directory when the cache is created, so the cache survives restarts.
+ *
+ * Only HTTP(S) documents are cached.
+ *
+ */
+public class DocumentCache {
+
+	/** Logger. */
+	private static final Logger LOG = Logger.getLogger(DocumentCache.class);
+
+	/** Body file extension. */
+	private static final String BODY = ".body";
+
+	/** Entry file extension. */
+	private static final String ENTRY = ".entry";
+
+	/** Entry names and URIs. */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Timeout for connecting and reading, in milliseconds. */
+	private static final int TIMEOUT_MS = 60000;
+
+	/** The cache directory. */
+	private final File dir;
+
+	/** Size budget of the bodies in bytes. */
+	private final long maxBytes;
+
+	/** Entries by URI, least recently used first. */
+	private final LinkedHashMap<URI, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+	/** Number of entries referencing each body, by content hash. */
+	private final Map<String, Integer> references = new HashMap<>();
+
+	/** Size of the bodies in bytes. */
+	private long size;
+
+	/** Documents not modified since they were cached. */
+	private final AtomicLong hitCount = new AtomicLong();
+
+	/** Documents downloaded. */
+	private final AtomicLong missCount = new AtomicLong();
+
+	/** Cached documents used because they couldn't be revalidated. */
+	private final AtomicLong staleCount = new AtomicLong();
+
+	/** Entries removed to keep the size budget. */
+	private final AtomicLong evictedCount = new AtomicLong();
+
+	/**
+	 * A cached URI.
+	 *
+	 */
+	private static final class Entry {
+
+		/** The URI. */
+		private URI uri;
+
+		/** SHA-256 of the body, hex encoded. */
+		private String hash;
+
+		/** Body length. */
+		private long length;
+
+		/** ETag, or null. */
+		private String etag;
+
+		/** Last-Modified, or null. */
+		private String lastModified;
+	}
+
+	/**
+	 * Constructor. Reads the entries already in the directory.
+	 *
+	 * @param dir
+	 *            the cache directory, created if it doesn't exist
+	 * @param maxBytes
+	 *            size budget of the cached bodies in bytes
+	 * @throws IOException
+	 *             when the directory can't be created
+	 */
+	public DocumentCache(File dir, long maxBytes) throws IOException {
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Can't create the document cache directory " + dir);
+		}
+		load();
+	}
+
+	/**
+	 * Read the entries in the directory, least recently used first.
+	 */
+	private void load() {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		List<File> entryFiles = new ArrayList<>();
+		for (File file : files) {
+			if (file.getName().endsWith(ENTRY)) {
+				entryFiles.add(file);
+			} else if (file.getName().endsWith(".tmp")) {
+				// left by an interrupted download
+				delete(file);
+			}
+		}
+		Collections.sort(entryFiles, new Comparator<File>() {
+
+			@Override
+			public int compare(File f1, File f2) {
+				return Long.compare(f1.lastModified(), f2.lastModified());
+			}
+		});
+		for (File file : entryFiles) {
+			try (InputStream in = new FileInputStream(file)) {
+				Properties properties = new Properties();
+				properties.load(in);
+				Entry entry = new Entry();
+				entry.uri = URI.create(properties.getProperty("uri"));
+				entry.hash = properties.getProperty("hash");
+				entry.length = Long.parseLong(properties.getProperty("length"));
+				entry.etag = properties.getProperty("etag");
+				entry.lastModified = properties.getProperty("lastModified");
+				if (bodyFile(entry.hash).length() != entry.length) {
+					LOG.warn("Removing the document cache entry of " + entry.uri
+							+ " with a missing body");
+					delete(file);
+					continue;
+				}
+				add(entry);
+			} catch (IOException | RuntimeException e) {
+				LOG.warn("Removing the unreadable document cache entry " + file, e);
+				delete(file);
+			}
+		}
+		// bodies no entry refers to
+		for (File file : files) {
+			String name = file.getName();
+			if (name.endsWith(BODY)
+					&& !references.containsKey(name.substring(0, name.length() - BODY.length()))) {
+				delete(file);
+			}
+		}
+		evict();
+		LOG.debug(String.format("Document cache %s has %d entries, %d bytes", dir,
+				entries.size(), size));
+	}
+
+	/**
+	 * Open a document, from the cache if it hasn't changed.
+	 *
+	 * @param uri
+	 *            document URI
+	 * @return the document content
+	 * @throws IOException
+	 *             when the document can't be downloaded and isn't cached
+	 */
+	public InputStream open(URI uri) throws IOException {
+		String scheme = uri.getScheme();
+		if (!"http".equalsIgnoreCase(scheme) && !"https".equalsIgnoreCase(scheme)) {
+			return uri.toURL().openStream();
+		}
+		Entry cached;
+		synchronized (this) {
+			cached = entries.get(uri);
+		}
+		HttpURLConnection connection;
+		int status;
+		try {
+			connection = connect(uri, cached);
+			status = connection.getResponseCode();
+		} catch (IOException e) {
+			InputStream stale = openCached(cached);
+			if (stale == null) {
+				throw e;
+			}
+			LOG.warn("Can't revalidate " + uri + ", using the cached copy", e);
+			staleCount.incrementAndGet();
+			return stale;
+		}
+		if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+			connection.disconnect();
+			InputStream in = openCached(cached);
+			if (in != null) {
+				hitCount.incrementAndGet();
+				return in;
+			}
+			// evicted in the meantime
+			connection = connect(uri, null);
+			status = connection.getResponseCode();
+		}
+		if (status != HttpURLConnection.HTTP_OK) {
+			connection.disconnect();
+			throw new IOException("Server returned HTTP response code: " + status + " for URL: "
+					+ uri);
+		}
+		missCount.incrementAndGet();
+		return download(uri, connection);
+	}
+
+	/**
+	 * Open a connection, conditional if the document is cached.
+	 *
+	 * @param uri
+	 *            document URI
+	 * @param cached
+	 *            the cache entry, or null
+	 * @return the connection
+	 * @throws IOException
+	 *             when the connection fails
+	 */
+	private HttpURLConnection connect(URI uri, Entry cached) throws IOException {
+		URLConnection connection = uri.toURL().openConnection();
+		connection.setConnectTimeout(TIMEOUT_MS);
+		connection.setReadTimeout(TIMEOUT_MS);
+		if (cached != null) {
+			if (cached.etag != null) {
+				connection.setRequestProperty("If-None-Match", cached.etag);
+			}
+			if (cached.lastModified != null) {
+				connection.setRequestProperty("If-Modified-Since", cached.lastModified);
+			}
+		}
+		return (HttpURLConnection) connection;
+	}
+
+	/**
+	 * Open a cached body and mark its entry as recently used.
+	 *
+	 * @param entry
+	 *            the entry, or null
+	 * @return the body, or null if the entry is null or has been evicted
+	 */
+	private synchronized InputStream openCached(Entry entry) {
+		if (entry == null || entries.get(entry.uri) != entry) {
+			return null;
+		}
+		try {
+			InputStream in = new FileInputStream(bodyFile(entry.hash));
+			if (!entryFile(entry.uri).setLastModified(System.currentTimeMillis())) {
+				LOG.debug("Can't mark the document cache entry of " + entry.uri + " as used");
+			}
+			return in;
+		} catch (IOException e) {
+			LOG.warn("Can't read the cached body of " + entry.uri, e);
+			remove(entry);
+			return null;
+		}
+	}
+
+	/**
+	 * Download a document into the cache, or into a temporary file if it is
+	 * larger than the budget.
+	 *
+	 * @param uri
+	 *            document URI
+	 * @param connection
+	 *            the connection, with status 200
+	 * @return the document content
+	 * @throws IOException
+	 *             when the document can't be downloaded or stored
+	 */
+	private InputStream download(URI uri, HttpURLConnection connection) throws IOException {
+		MessageDigest sha256;
+		try {
+			sha256 = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		final File tmp = File.createTempFile("download", ".tmp", dir);
+		boolean uncached = false;
+		long length = 0;
+		try {
+			try (InputStream in = new DigestInputStream(connection.getInputStream(), sha256);
+					OutputStream out = new FileOutputStream(tmp)) {
+				byte[] buffer = new byte[64 * 1024];
+				int n;
+				while ((n = in.read(buffer)) >= 0) {
+					out.write(buffer, 0, n);
+					length += n;
+				}
+			}
+			if (length > maxBytes) {
+				LOG.debug(String.format("%s has %d bytes, more than the document cache, not caching it",
+						uri, length));
+				synchronized (this) {
+					// the cached copy is out of date
+					Entry previous = entries.get(uri);
+					if (previous != null) {
+						remove(previous);
+					}
+				}
+				InputStream in = new FileInputStream(tmp) {
+
+					@Override
+					public void close() throws IOException {
+						try {
+							super.close();
+						} finally {
+							delete(tmp);
+						}
+					}
+				};
+				uncached = true;
+				return in;
+			}
+			Entry entry = new Entry();
+			entry.uri = uri;
+			entry.hash = Hex.encodeHexString(sha256.digest());
+			entry.length = length;
+			entry.etag = connection.getHeaderField("ETag");
+			entry.lastModified = connection.getHeaderField("Last-Modified");
+			synchronized (this) {
+				File body = bodyFile(entry.hash);
+				if (body.length() != length) {
+					if (body.exists()) {
+						delete(body);
+					}
+					if (!tmp.renameTo(body)) {
+						throw new IOException("Can't move the downloaded document to " + body);
+					}
+				}
+				// the entry file is overwritten, and the previous body is kept if
+				// it is the new one
+				Entry previous = entries.get(uri);
+				if (previous != null && unindex(previous)
+						&& !previous.hash.equals(entry.hash)) {
+					delete(bodyFile(previous.hash));
+				}
+				writeEntry(entry);
+				add(entry);
+				// opened before any eviction, so that a concurrent download can't
+				// delete the body before it is read
+				InputStream in = new FileInputStream(body);
+				evict();
+				return in;
+			}
+		} finally {
+			if (!uncached && tmp.exists()) {
+				delete(tmp);
+			}
+		}
+	}
+
+	/**
+	 * Store an entry on disk.
+	 *
+	 * @param entry
+	 *            the entry
+	 * @throws IOException
+	 *             when the entry can't be written
+	 */
+	private void writeEntry(Entry entry) throws IOException {
+		Properties properties = new Properties();
+		properties.setProperty("uri", entry.uri.toString());
+		properties.setProperty("hash", entry.hash);
+		properties.setProperty("length", Long.toString(entry.length));
+		if (entry.etag != null) {
+			properties.setProperty("etag", entry.etag);
+		}
+		if (entry.lastModified != null) {
+			properties.setProperty("lastModified", entry.lastModified);
+		}
+		try (OutputStream out = new FileOutputStream(entryFile(entry.uri))) {
+			properties.store(out, null);
+		}
+	}
+
+	/**
+	 * Add an entry to the index. The caller must hold the cache lock.
+	 *
+	 * @param entry
+	 *            the entry
+	 */
+	private void add(Entry entry) {
+		entries.put(entry.uri, entry);
+		Integer count = references.get(entry.hash);
+		if (count == null) {
+			references.put(entry.hash, 1);
+			size += entry.length;
+		} else {
+			references.put(entry.hash, count + 1);
+		}
+	}
+
+	/**
+	 * Remove an entry, and its body if no other entry refers to it. The caller
+	 * must hold the cache lock.
+	 *
+	 * @param entry
+	 *            the entry
+	 */
+	private void remove(Entry entry) {
+		delete(entryFile(entry.uri));
+		if (unindex(entry)) {
+			delete(bodyFile(entry.hash));
+		}
+	}
+
+	/**
+	 * Remove an entry from the index, without deleting its files. The caller
+	 * must hold the cache lock.
+	 *
+	 * @param entry
+	 *            the entry
+	 * @return true if no other entry refers to its body
+	 */
+	private boolean unindex(Entry entry) {
+		entries.remove(entry.uri);
+		Integer count = references.get(entry.hash);
+		if (count == null || count <= 1) {
+			references.remove(entry.hash);
+			size -= entry.length;
+			return true;
+		}
+		references.put(entry.hash, count - 1);
+		return false;
+	}
+
+	/**
+	 * Remove the least recently used entries until the bodies fit the budget.
+	 * The caller must hold the cache lock.
+	 */
+	private void evict() {
+		Iterator<Entry> iterator = new ArrayList<>(entries.values()).iterator();
+		while (size > maxBytes && iterator.hasNext()) {
+			Entry entry = iterator.next();
+			LOG.debug("Evicting " + entry.uri + " from the document cache");
+			remove(entry);
+			evictedCount.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @param hash
+	 *            content hash
+	 * @return the body file
+	 */
+	private File bodyFile(String hash) {
+		return new File(dir, hash + BODY);
+	}
+
+	/**
+	 * @param uri
+	 *            document URI
+	 * @return the entry file
+	 */
+	private File entryFile(URI uri) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(
+					uri.toString().getBytes(UTF8));
+			// a different name space than the bodies
+			return new File(dir, Hex.encodeHexString(Arrays.copyOf(digest, 20)) + ENTRY);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Delete a file, logging a failure.
+	 *
+	 * @param file
+	 *            the file
+	 */
+	private static void delete(File file) {
+		if (!file.delete() && file.exists()) {
+			LOG.warn("Can't delete " + file);
+		}
+	}
+
+	/**
+	 * @return number of cached URIs
+	 */
+	public synchronized int getEntryCount() {
+		return entries.size();
+	}
+
+	/**
+	 * @return size of the cached bodies in bytes
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return number of documents opened from the cache after revalidation
+	 */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * @return number of documents downloaded
+	 */
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	/**
+	 * @return number of documents opened from the cache because they couldn't
+	 *         be revalidated
+	 */
+	public long getStaleCount() {
+		return staleCount.get();
+	}
+
+	/**
+	 * @return number of entries removed to keep the size budget
+	 */
+	public long getEvictedCount() {
+		return evictedCount.get();
+	}
+}
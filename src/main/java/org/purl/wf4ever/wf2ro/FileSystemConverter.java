@@ -0,0 +1,233 @@
+/**
+ *
+ */
+package org.purl.wf4ever.wf2ro;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.log4j.Logger;
+
+import uk.org.taverna.scufl2.api.container.WorkflowBundle;
+import uk.org.taverna.scufl2.api.io.WorkflowBundleIO;
+
+/**
+ * A Wf-RO converter writing the research object as a directory tree: the
+ * resources and annotation bodies as files, and the manifest, with the folder
+ * descriptions, as <code>.ro/manifest.rdf</code>.
+ *
+ * The research object is built in a temporary sibling directory, created with
+ * the first stored resource, which is atomically renamed to the target directory when the conversion succeeds and
+ * deleted when it fails, so the target directory never holds an incomplete
+ * research object.
+ *
+ */
+public class FileSystemConverter extends LocalConverter {
+
+	/** Logger. */
+	private static final Logger LOG = Logger.getLogger(FileSystemConverter.class);
+
+	/** The directory where the research object is created. */
+	private final Path target;
+
+	/** The directory where the research object is built. */
+	private final Path staging;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param wfbundle
+	 *            the workflow bundle
+	 * @param wfUri
+	 *            workflow URI
+	 * @param target
+	 *            the directory to create, must not exist
+	 * @throws IOException
+	 *             when the target exists
+	 */
+	public FileSystemConverter(WorkflowBundle wfbundle, URI wfUri, Path target) throws IOException {
+		super(wfbundle, wfUri, directoryURI(target));
+		this.target = target.toAbsolutePath();
+		if (Files.exists(this.target)) {
+			throw new FileAlreadyExistsException(this.target.toString());
+		}
+		this.staging = this.target.resolveSibling("." + this.target.getFileName() + "-"
+				+ UUID.randomUUID());
+	}
+
+	/**
+	 * @param directory
+	 *            a directory
+	 * @return the directory URI, ending with a slash
+	 */
+	private static URI directoryURI(Path directory) {
+		String uri = directory.toAbsolutePath().toUri().toString();
+		return URI.create(uri.endsWith("/") ? uri : uri + "/");
+	}
+
+	@Override
+	protected void store(String path, InputStream in) throws IOException {
+		Path file = staging.resolve(path).normalize();
+		if (!file.startsWith(staging)) {
+			throw new IOException("Path outside of the research object: " + path);
+		}
+		// creates the staging directory too
+		Files.createDirectories(file.getParent());
+		// write next to the final file and move it in place, so that a file
+		// is never seen incomplete
+		Path tmp = Files.createTempFile(file.getParent(), ".", ".tmp");
+		try {
+			try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE);
+					ReadableByteChannel source = Channels.newChannel(in)) {
+				long position = 0;
+				long n;
+				while ((n = channel.transferFrom(source, position, 1024 * 1024)) > 0) {
+					position += n;
+				}
+			}
+			Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	@Override
+	protected void finish(boolean success) throws IOException {
+		if (success) {
+			Files.move(staging, target, StandardCopyOption.ATOMIC_MOVE);
+			LOG.debug("Created the research object " + target);
+		} else {
+			deleteTree(staging);
+		}
+	}
+
+	/**
+	 * Delete a directory with its content.
+	 *
+	 * @param directory
+	 *            the directory
+	 * @throws IOException
+	 *             when a file can't be deleted
+	 */
+	private static void deleteTree(Path directory) throws IOException {
+		if (!Files.exists(directory)) {
+			return;
+		}
+		Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+					throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+				if (e != null) {
+					throw e;
+				}
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Convert workflows into research objects in a directory, one
+	 * subdirectory per workflow, named after the workflow file.
+	 *
+	 * Usage: <code>FileSystemConverter [-main folder] [-nested folder]
+	 * [-scripts folder] [-services folder] output-directory workflow...</code>
+	 * where the folders are relative to the research object.
+	 *
+	 * @param args
+	 *            command line arguments
+	 */
+	public static void main(String[] args) {
+		URI main = null;
+		URI nested = null;
+		URI scripts = null;
+		URI services = null;
+		List<String> paths = new ArrayList<>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].startsWith("-") && i + 1 < args.length) {
+				URI folder = URI.create(args[i + 1]);
+				switch (args[i]) {
+				case "-main":
+					main = folder;
+					break;
+				case "-nested":
+					nested = folder;
+					break;
+				case "-scripts":
+					scripts = folder;
+					break;
+				case "-services":
+					services = folder;
+					break;
+				default:
+					usage();
+					return;
+				}
+				i++;
+			} else {
+				paths.add(args[i]);
+			}
+		}
+		if (paths.size() < 2) {
+			usage();
+			return;
+		}
+		Path output = Paths.get(paths.get(0));
+		WorkflowBundleIO io = new WorkflowBundleIO();
+		int failed = 0;
+		for (String path : paths.subList(1, paths.size())) {
+			File workflow = new File(path);
+			String name = workflow.getName().replaceAll("\\.[^.]*$", "");
+			long start = System.nanoTime();
+			try {
+				WorkflowBundle wfbundle = io.readBundle(workflow, null);
+				FileSystemConverter converter = new FileSystemConverter(wfbundle,
+						workflow.toURI(), output.resolve(name));
+				converter.setExtractFolders(main, nested, scripts, services);
+				converter.convert();
+				System.out.println(String.format("%s: %d resources, %d ms", path, converter
+						.getResourcesAdded().size(), (System.nanoTime() - start) / 1000000));
+			} catch (Exception e) {
+				LOG.error("Can't convert " + path, e);
+				System.out.println(String.format("%s: failed, %s", path, e.getMessage()));
+				failed++;
+			}
+		}
+		if (failed > 0) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Print the command line usage.
+	 */
+	private static void usage() {
+		System.err.println("Usage: FileSystemConverter [-main folder] [-nested folder] "
+				+ "[-scripts folder] [-services folder] output-directory workflow...");
+		System.exit(2);
+	}
+}
@@ -0,0 +1,136 @@
+/**
+ *
+ */
+package org.purl.wf4ever.wf2ro;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies in microseconds, with 8 buckets per power
+ * of two, so that percentiles are exact below 8 microseconds and at most 12.5%
+ * too high above. Latencies above about 12 days are counted in the last
+ * bucket. The maximum is exact.
+ *
+ */
+class LatencyHistogram {
+
+	/** Buckets per power of two, as a power of two. */
+	private static final int SUB_BITS = 3;
+
+	/** Buckets per power of two. */
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	/** Largest power of two covered. */
+	private static final int MAX_EXPONENT = 40;
+
+	/** Number of buckets. */
+	private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+
+	/** Latencies in each bucket. */
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	/** Number of latencies. */
+	private final AtomicLong count = new AtomicLong();
+
+	/** Sum of latencies. */
+	private final AtomicLong sum = new AtomicLong();
+
+	/** Largest latency. */
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Record a latency.
+	 *
+	 * @param micros
+	 *            latency in microseconds
+	 */
+	void record(long micros) {
+		long value = Math.max(0, micros);
+		counts.incrementAndGet(index(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+
+	/**
+	 * @param value
+	 *            latency in microseconds
+	 * @return its bucket
+	 */
+	static int index(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if (exponent > MAX_EXPONENT) {
+			return BUCKETS - 1;
+		}
+		int mantissa = (int) (value >> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + mantissa;
+	}
+
+	/**
+	 * @param index
+	 *            a bucket
+	 * @return the largest latency counted in the bucket
+	 */
+	static long upperBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+		long mantissa = index % SUB_BUCKETS;
+		long lower = (SUB_BUCKETS + mantissa) << (exponent - SUB_BITS);
+		return lower + (1L << (exponent - SUB_BITS)) - 1;
+	}
+
+	/**
+	 * @return number of latencies
+	 */
+	long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return sum of latencies in microseconds
+	 */
+	long getSum() {
+		return sum.get();
+	}
+
+	/**
+	 * @return largest latency in microseconds
+	 */
+	long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Estimate a percentile. Latencies recorded while the percentile is
+	 * computed may or may not be included.
+	 *
+	 * @param quantile
+	 *            the quantile, between 0 and 1
+	 * @return the latency in microseconds below which the given fraction of
+	 *         latencies are, or 0 if none has been recorded
+	 */
+	long getPercentile(double quantile) {
+		long total = count.get();
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(quantile * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(upperBound(i), max.get());
+			}
+		}
+		return max.get();
+	}
+}
@@ -0,0 +1,326 @@
+/**
+ *
+ */
+package org.purl.wf4ever.wf2ro;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.purl.wf4ever.rosrs.client.Annotable;
+import org.purl.wf4ever.rosrs.client.Annotation;
+import org.purl.wf4ever.rosrs.client.Folder;
+import org.purl.wf4ever.rosrs.client.ResearchObject;
+import org.purl.wf4ever.rosrs.client.Resource;
+
+import uk.org.taverna.scufl2.api.container.WorkflowBundle;
+
+/**
+ * A Wf-RO converter that writes the research object to local storage instead
+ * of uploading it to RODL. The resources and annotation bodies are stored as
+ * they are created, the manifest, which also describes the folders, is stored
+ * last.
+ *
+ */
+public abstract class LocalConverter extends Wf2ROConverter {
+
+	/** RO URI, the base of all resource URIs. */
+	protected final URI roURI;
+
+	/** The manifest. */
+	private final LocalManifest manifest;
+
+	/** The research object. */
+	private ResearchObject ro;
+
+	/** Aggregated resources by URI. */
+	private final Map<URI, Resource> resources = new ConcurrentHashMap<>();
+
+	/** Folders by URI. */
+	private final ConcurrentMap<URI, Folder> folders = new ConcurrentHashMap<>();
+
+	/** URI of RO Folder where to extract the main workflow, or null. */
+	private URI extractMain;
+
+	/** URI of RO Folder where to extract nested workflows, or null. */
+	private URI extractNested;
+
+	/** URI of RO Folder where to extract scripts, or null. */
+	private URI extractScripts;
+
+	/** URI of RO Folder where to extract services, or null. */
+	private URI extractServices;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param wfbundle
+	 *            the workflow bundle
+	 * @param wfUri
+	 *            workflow URI
+	 * @param roURI
+	 *            research object URI, ending with a slash
+	 */
+	public LocalConverter(WorkflowBundle wfbundle, URI wfUri, URI roURI) {
+		super(wfbundle, wfUri);
+		this.roURI = roURI;
+		this.manifest = new LocalManifest(roURI);
+	}
+
+	/**
+	 * Set the folders where to extract the workflows, scripts and services.
+	 * Relative folder URIs are resolved against the RO URI. A folder equal to
+	 * the RO URI extracts without adding to a folder.
+	 *
+	 * @param main
+	 *            folder for the main workflow, or null to not add it to any
+	 *            folder
+	 * @param nested
+	 *            folder for nested workflows, or null to not extract
+	 * @param scripts
+	 *            folder for scripts, or null to not extract
+	 * @param services
+	 *            folder for services, or null to not extract
+	 */
+	public void setExtractFolders(URI main, URI nested, URI scripts, URI services) {
+		this.extractMain = resolveFolder(main);
+		this.extractNested = resolveFolder(nested);
+		this.extractScripts = resolveFolder(scripts);
+		this.extractServices = resolveFolder(services);
+	}
+
+	/**
+	 * @param folder
+	 *            folder URI or null
+	 * @return absolute folder URI ending with a slash, or null
+	 */
+	private URI resolveFolder(URI folder) {
+		if (folder == null) {
+			return null;
+		}
+		URI uri = roURI.resolve(folder);
+		if (!uri.getPath().endsWith("/")) {
+			uri = URI.create(uri + "/");
+		}
+		return uri;
+	}
+
+	@Override
+	public void convert() throws Exception {
+		boolean success = false;
+		try {
+			super.convert();
+			try (InputStream in = manifestStream()) {
+				store(LocalManifest.MANIFEST_PATH, in);
+			}
+			success = true;
+		} finally {
+			finish(success);
+		}
+	}
+
+	/**
+	 * @return the manifest serialized
+	 * @throws IOException
+	 *             when the manifest can't be written
+	 */
+	private InputStream manifestStream() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		manifest.write(out);
+		return new ByteArrayInputStream(out.toByteArray());
+	}
+
+	/**
+	 * Store a resource.
+	 *
+	 * @param path
+	 *            path relative to the research object
+	 * @param in
+	 *            the resource content
+	 * @throws IOException
+	 *             when the resource can't be stored
+	 */
+	protected abstract void store(String path, InputStream in) throws IOException;
+
+	/**
+	 * Complete or abandon the research object after the conversion.
+	 *
+	 * @param success
+	 *            true if the conversion succeeded and the manifest has been
+	 *            stored
+	 * @throws IOException
+	 *             when the research object can't be completed
+	 */
+	protected abstract void finish(boolean success) throws IOException;
+
+	/**
+	 * The research object is created under the converter lock, the folders
+	 * are kept in a concurrent map and the manifest is synchronized.
+	 * Subclasses must store the resources of parallel phases safely.
+	 * 
+	 * @return true
+	 */
+	@Override
+	protected boolean isThreadSafe() {
+		return true;
+	}
+
+	@Override
+	protected synchronized ResearchObject createResearchObject(UUID wfUUID) {
+		if (ro == null) {
+			ro = new ResearchObject(roURI, null);
+		}
+		return ro;
+	}
+
+	@Override
+	protected Resource uploadAggregatedResource(ResearchObject ro, String path, InputStream in,
+			String contentType) throws IOException {
+		URI uri = roURI.resolve(path);
+		store(relativePath(uri), in);
+		manifest.addResource(uri);
+		Resource resource = new Resource(ro, uri, null, null, null);
+		resources.put(uri, resource);
+		return resource;
+	}
+
+	@Override
+	protected Annotation uploadAnnotation(ResearchObject ro, String name, Annotable target,
+			InputStream in, String contentType) {
+		String targetName = target.getUri().getPath().replaceAll("/+$", "").replaceAll(".*/", "");
+		if (targetName.isEmpty()) {
+			targetName = "ro";
+		}
+		String randomBit = "" + Math.abs(UUID.randomUUID().getLeastSignificantBits());
+		URI body = roURI.resolve(".ro/" + targetName + "-" + name + "-" + randomBit
+				+ extension(contentType));
+		URI annotation = roURI.resolve(".ro/annotations/" + UUID.randomUUID());
+		try {
+			store(relativePath(body), in);
+		} catch (IOException e) {
+			throw new IllegalStateException("Can't store the annotation body " + body, e);
+		}
+		manifest.addAnnotation(annotation, body, target.getUri());
+		return new Annotation(ro, annotation, body, Collections.singleton(target.getUri()), null,
+				null);
+	}
+
+	/**
+	 * @param contentType
+	 *            annotation body content type
+	 * @return the file extension for the annotation body
+	 */
+	private static String extension(String contentType) {
+		if ("application/rdf+xml".equals(contentType)) {
+			return ".rdf";
+		}
+		return ".ttl";
+	}
+
+	/**
+	 * @param uri
+	 *            a URI within the research object
+	 * @return the URI relative to the research object
+	 * @throws IllegalArgumentException
+	 *             if the URI is not within the research object
+	 */
+	private String relativePath(URI uri) {
+		URI relative = roURI.relativize(uri);
+		if (relative.isAbsolute() || relative.getPath().isEmpty()) {
+			throw new IllegalArgumentException("Not a resource of " + roURI + ": " + uri);
+		}
+		return relative.getPath();
+	}
+
+	@Override
+	protected Resource aggregateExternal(ResearchObject ro, URI external) {
+		manifest.addResource(external);
+		Resource resource = new Resource(ro, external, null, null, null);
+		resources.put(external, resource);
+		return resource;
+	}
+
+	@Override
+	protected void addToFolder(Folder folder, Resource resource, String entryName) {
+		if (folder != null) {
+			manifest.addFolderEntry(folder.getUri(), resource.getUri(), entryName);
+		}
+	}
+
+	@Override
+	protected Collection<String> getFolderEntryNames(Folder folder) {
+		return manifest.getFolderEntryNames(folder.getUri());
+	}
+
+	@Override
+	protected Map<URI, Resource> getAggregatedResources(ResearchObject ro) {
+		return resources;
+	}
+
+	/**
+	 * Get a folder, adding it to the manifest the first time.
+	 *
+	 * @param uri
+	 *            folder URI or null
+	 * @return the folder, or null if the URI is null or equal to the RO URI
+	 */
+	private Folder getFolder(URI uri) {
+		if (uri == null || uri.equals(roURI)) {
+			return null;
+		}
+		Folder folder = folders.get(uri);
+		if (folder == null) {
+			folder = new Folder(createResearchObject(null), uri, null, null, null, null, false);
+			Folder previous = folders.putIfAbsent(uri, folder);
+			if (previous != null) {
+				folder = previous;
+			} else {
+				manifest.addFolder(uri);
+			}
+		}
+		return folder;
+	}
+
+	@Override
+	public Folder getExtractMain() {
+		return getFolder(extractMain);
+	}
+
+	@Override
+	public Folder getExtractNested() {
+		return getFolder(extractNested);
+	}
+
+	@Override
+	public Folder getExtractScripts() {
+		return getFolder(extractScripts);
+	}
+
+	@Override
+	public Folder getExtractServices() {
+		return getFolder(extractServices);
+	}
+
+	@Override
+	public boolean isExtractNested() {
+		return extractNested != null;
+	}
+
+	@Override
+	public boolean isExtractScripts() {
+		return extractScripts != null;
+	}
+
+	@Override
+	public boolean isExtractServices() {
+		return extractServices != null;
+	}
+}
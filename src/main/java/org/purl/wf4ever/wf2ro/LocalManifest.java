@@ -0,0 +1,215 @@
+/**
+ *
+ */
+package org.purl.wf4ever.wf2ro;
+
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.Resource;
+
+/**
+ * The manifest of a research object written to local storage instead of
+ * RODL. It records the aggregated resources, annotations and folders and
+ * writes them as <code>.ro/manifest.rdf</code>, with the folder descriptions
+ * included.
+ *
+ */
+class LocalManifest {
+
+	/** Path of the manifest in the research object. */
+	static final String MANIFEST_PATH = ".ro/manifest.rdf";
+
+	/** RO ontology namespace. */
+	private static final String RO = "http://purl.org/wf4ever/ro#";
+
+	/** ORE namespace. */
+	private static final String ORE = "http://www.openarchives.org/ore/terms/";
+
+	/** Annotation ontology namespace. */
+	private static final String AO = "http://purl.org/ao/";
+
+	/** RDF namespace. */
+	private static final String RDF = "http://www.w3.org/1999/02/22-rdf-syntax-ns#";
+
+	/** Research object URI. */
+	private final URI roURI;
+
+	/** Aggregated resources, internal and external. */
+	private final List<URI> resources = new ArrayList<>();
+
+	/** Annotation bodies by annotation URI. */
+	private final Map<URI, URI> annotationBodies = new LinkedHashMap<>();
+
+	/** Annotation targets by annotation URI. */
+	private final Map<URI, URI> annotationTargets = new LinkedHashMap<>();
+
+	/** Folder entries by folder URI. */
+	private final Map<URI, List<Entry>> folders = new LinkedHashMap<>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param roURI
+	 *            research object URI
+	 */
+	LocalManifest(URI roURI) {
+		this.roURI = roURI;
+	}
+
+	/**
+	 * Record an aggregated resource.
+	 *
+	 * @param uri
+	 *            resource URI
+	 */
+	synchronized void addResource(URI uri) {
+		if (!resources.contains(uri)) {
+			resources.add(uri);
+		}
+	}
+
+	/**
+	 * Record an annotation. Its body is aggregated too.
+	 *
+	 * @param annotation
+	 *            annotation URI
+	 * @param body
+	 *            annotation body URI
+	 * @param target
+	 *            annotated resource URI
+	 */
+	synchronized void addAnnotation(URI annotation, URI body, URI target) {
+		addResource(body);
+		annotationBodies.put(annotation, body);
+		annotationTargets.put(annotation, target);
+	}
+
+	/**
+	 * Record a folder.
+	 *
+	 * @param folder
+	 *            folder URI
+	 */
+	synchronized void addFolder(URI folder) {
+		if (!folders.containsKey(folder)) {
+			folders.put(folder, new ArrayList<Entry>());
+		}
+	}
+
+	/**
+	 * Record a folder entry.
+	 *
+	 * @param folder
+	 *            folder URI
+	 * @param resource
+	 *            resource URI
+	 * @param name
+	 *            entry name
+	 */
+	synchronized void addFolderEntry(URI folder, URI resource, String name) {
+		addFolder(folder);
+		folders.get(folder).add(new Entry(resource, name));
+	}
+
+	/**
+	 * @param folder
+	 *            folder URI
+	 * @return names of the folder entries
+	 */
+	synchronized List<String> getFolderEntryNames(URI folder) {
+		List<String> names = new ArrayList<>();
+		if (folders.containsKey(folder)) {
+			for (Entry entry : folders.get(folder)) {
+				names.add(entry.name);
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Write the manifest as RDF/XML with URIs relative to the research object.
+	 *
+	 * @param out
+	 *            the output stream
+	 */
+	synchronized void write(OutputStream out) {
+		Model model = ModelFactory.createDefaultModel();
+		model.setNsPrefix("ro", RO);
+		model.setNsPrefix("ore", ORE);
+		model.setNsPrefix("ao", AO);
+		Property type = model.createProperty(RDF + "type");
+		Property aggregates = model.createProperty(ORE + "aggregates");
+
+		Resource ro = model.createResource(roURI.toString());
+		ro.addProperty(type, model.createResource(RO + "ResearchObject"));
+		Resource manifest = model.createResource(roURI.resolve(MANIFEST_PATH).toString());
+		manifest.addProperty(type, model.createResource(RO + "Manifest"));
+		manifest.addProperty(model.createProperty(ORE + "describes"), ro);
+
+		for (URI uri : resources) {
+			Resource resource = model.createResource(uri.toString());
+			resource.addProperty(type, model.createResource(RO + "Resource"));
+			ro.addProperty(aggregates, resource);
+		}
+		for (Map.Entry<URI, URI> entry : annotationBodies.entrySet()) {
+			Resource annotation = model.createResource(entry.getKey().toString());
+			annotation.addProperty(type, model.createResource(RO + "AggregatedAnnotation"));
+			annotation.addProperty(model.createProperty(AO + "body"),
+					model.createResource(entry.getValue().toString()));
+			annotation.addProperty(model.createProperty(RO + "annotatesAggregatedResource"),
+					model.createResource(annotationTargets.get(entry.getKey()).toString()));
+			ro.addProperty(aggregates, annotation);
+		}
+		for (Map.Entry<URI, List<Entry>> entry : folders.entrySet()) {
+			Resource folder = model.createResource(entry.getKey().toString());
+			folder.addProperty(type, model.createResource(RO + "Folder"));
+			ro.addProperty(aggregates, folder);
+			for (Entry folderEntry : entry.getValue()) {
+				Resource resource = model.createResource(folderEntry.resource.toString());
+				folder.addProperty(aggregates, resource);
+				Resource proxy = model.createResource(roURI.resolve(
+						".ro/proxies/" + UUID.randomUUID()).toString());
+				proxy.addProperty(type, model.createResource(RO + "FolderEntry"));
+				proxy.addProperty(model.createProperty(ORE + "proxyFor"), resource);
+				proxy.addProperty(model.createProperty(ORE + "proxyIn"), folder);
+				proxy.addProperty(model.createProperty(RO + "entryName"), folderEntry.name);
+			}
+		}
+		model.write(out, "RDF/XML", roURI.toString());
+	}
+
+	/**
+	 * A folder entry.
+	 *
+	 */
+	private static class Entry {
+
+		/** Resource URI. */
+		private final URI resource;
+
+		/** Entry name. */
+		private final String name;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param resource
+		 *            resource URI
+		 * @param name
+		 *            entry name
+		 */
+		Entry(URI resource, String name) {
+			this.resource = resource;
+			this.name = name;
+		}
+	}
+}
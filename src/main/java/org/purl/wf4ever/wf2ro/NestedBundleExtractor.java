@@ -0,0 +1,234 @@
+/**
+ *
+ */
+package org.purl.wf4ever.wf2ro;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import uk.org.taverna.scufl2.api.activity.Activity;
+import uk.org.taverna.scufl2.api.annotation.Annotation;
+import uk.org.taverna.scufl2.api.common.Child;
+import uk.org.taverna.scufl2.api.common.WorkflowBean;
+import uk.org.taverna.scufl2.api.configurations.Configuration;
+import uk.org.taverna.scufl2.api.container.WorkflowBundle;
+import uk.org.taverna.scufl2.api.core.Processor;
+import uk.org.taverna.scufl2.api.core.Workflow;
+import uk.org.taverna.scufl2.api.profiles.ProcessorBinding;
+import uk.org.taverna.scufl2.api.profiles.Profile;
+import uk.org.taverna.scufl2.ucfpackage.UCFPackage;
+
+/**
+ * Builds, for a nested workflow, a workflow bundle with only what that workflow
+ * needs: the workflows it references directly or through other nested
+ * workflows, the processor bindings, activities and configurations of their
+ * processors and the annotations of all of these.
+ *
+ * The original bundle is not modified. The beans are shared with it and keep
+ * it as their parent, so that their URIs in the new bundle, which has the same
+ * base URI, stay the same. The new bundle must therefore only be serialized,
+ * not modified.
+ *
+ */
+public class NestedBundleExtractor {
+
+	/** Logger. */
+	private static final Logger LOG = Logger.getLogger(NestedBundleExtractor.class);
+
+	/** Configuration property with the name of a nested workflow. */
+	private static final String NESTED_WORKFLOW = "nestedWorkflow";
+
+	/** The original workflow bundle. */
+	private final WorkflowBundle wfbundle;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param wfbundle
+	 *            the original workflow bundle
+	 */
+	public NestedBundleExtractor(WorkflowBundle wfbundle) {
+		this.wfbundle = wfbundle;
+	}
+
+	/**
+	 * Build a workflow bundle with the given workflow as the main one.
+	 *
+	 * @param workflow
+	 *            a workflow of the original bundle
+	 * @return a new workflow bundle
+	 * @throws IOException
+	 *             when the annotation bodies can't be copied
+	 */
+	public WorkflowBundle extract(Workflow workflow) throws IOException {
+		Set<WorkflowBean> included = Collections
+				.newSetFromMap(new IdentityHashMap<WorkflowBean, Boolean>());
+		WorkflowBundle extracted = new WorkflowBundle();
+		extracted.setName(wfbundle.getName());
+		extracted.setGlobalBaseURI(wfbundle.getGlobalBaseURI());
+
+		Deque<Workflow> pending = new ArrayDeque<>();
+		pending.add(workflow);
+		included.add(workflow);
+		while (!pending.isEmpty()) {
+			Workflow wf = pending.remove();
+			extracted.getWorkflows().add(wf);
+			for (Processor processor : wf.getProcessors()) {
+				included.add(processor);
+				for (Workflow nested : bindProcessor(processor, included)) {
+					if (included.add(nested)) {
+						pending.add(nested);
+					}
+				}
+			}
+		}
+		extracted.setMainWorkflow(workflow);
+
+		for (Profile profile : wfbundle.getProfiles()) {
+			Profile pruned = pruneProfile(profile, included);
+			if (pruned.getProcessorBindings().isEmpty() && profile != wfbundle.getMainProfile()) {
+				continue;
+			}
+			pruned.setParent(extracted);
+			included.add(profile);
+			if (profile == wfbundle.getMainProfile()) {
+				extracted.setMainProfile(pruned);
+			}
+		}
+
+		copyAnnotations(extracted, included);
+		LOG.debug(String.format("Extracted %d of %d workflows for %s",
+				extracted.getWorkflows().size(), wfbundle.getWorkflows().size(), workflow.getName()));
+		return extracted;
+	}
+
+	/**
+	 * Find the bindings, activities and configurations of a processor.
+	 *
+	 * @param processor
+	 *            the processor
+	 * @param included
+	 *            beans included so far, to which the found ones are added
+	 * @return the workflows nested in the processor
+	 */
+	private Set<Workflow> bindProcessor(Processor processor, Set<WorkflowBean> included) {
+		Set<Workflow> nested = Collections.newSetFromMap(new IdentityHashMap<Workflow, Boolean>());
+		for (Profile profile : wfbundle.getProfiles()) {
+			for (ProcessorBinding binding : profile.getProcessorBindings()) {
+				if (binding.getBoundProcessor() != processor) {
+					continue;
+				}
+				included.add(binding);
+				Activity activity = binding.getBoundActivity();
+				if (activity != null) {
+					included.add(activity);
+				}
+			}
+			for (Configuration conf : profile.getConfigurations()) {
+				if (conf.getConfigures() != processor && !included.contains(conf.getConfigures())) {
+					continue;
+				}
+				included.add(conf);
+				String name = conf.getJson().path(NESTED_WORKFLOW).asText();
+				if (!name.isEmpty()) {
+					Workflow wf = wfbundle.getWorkflows().getByName(name);
+					if (wf != null) {
+						nested.add(wf);
+					} else {
+						LOG.warn("Nested workflow " + name + " of " + processor.getName()
+								+ " not found");
+					}
+				}
+			}
+		}
+		return nested;
+	}
+
+	/**
+	 * Create a profile with only the included beans of another profile.
+	 *
+	 * @param profile
+	 *            the original profile
+	 * @param included
+	 *            beans to keep
+	 * @return a new profile with the same name
+	 */
+	private Profile pruneProfile(Profile profile, Set<WorkflowBean> included) {
+		Profile pruned = new Profile(profile.getName());
+		for (ProcessorBinding binding : profile.getProcessorBindings()) {
+			if (included.contains(binding)) {
+				pruned.getProcessorBindings().add(binding);
+			}
+		}
+		for (Activity activity : profile.getActivities()) {
+			if (included.contains(activity)) {
+				pruned.getActivities().add(activity);
+			}
+		}
+		for (Configuration conf : profile.getConfigurations()) {
+			if (included.contains(conf)) {
+				pruned.getConfigurations().add(conf);
+			}
+		}
+		return pruned;
+	}
+
+	/**
+	 * Copy the annotations of the included beans, and their bodies.
+	 *
+	 * @param extracted
+	 *            the new bundle
+	 * @param included
+	 *            the included beans
+	 * @throws IOException
+	 *             when an annotation body can't be copied
+	 */
+	private void copyAnnotations(WorkflowBundle extracted, Set<WorkflowBean> included)
+			throws IOException {
+		UCFPackage original = wfbundle.getResources();
+		UCFPackage resources = extracted.getResources();
+		for (Annotation annotation : wfbundle.getAnnotations()) {
+			if (!isIncluded(annotation.getTarget(), included)) {
+				continue;
+			}
+			extracted.getAnnotations().add(annotation);
+			String body = annotation.getBody().toASCIIString();
+			// bundles of several nested workflows may be extracted in parallel
+			synchronized (original) {
+				UCFPackage.ResourceEntry entry = original.getResourceEntry(body);
+				if (entry != null) {
+					resources.addResource(original.getResourceAsBytes(body), body,
+							entry.getMediaType());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Check if a bean or any of its ancestors is included.
+	 *
+	 * @param bean
+	 *            the bean
+	 * @param included
+	 *            the included beans
+	 * @return true if the bean belongs to the new bundle
+	 */
+	private static boolean isIncluded(WorkflowBean bean, Set<WorkflowBean> included) {
+		while (bean != null) {
+			if (included.contains(bean)) {
+				return true;
+			}
+			if (!(bean instanceof Child)) {
+				return false;
+			}
+			bean = ((Child<?>) bean).getParent();
+		}
+		return false;
+	}
+}
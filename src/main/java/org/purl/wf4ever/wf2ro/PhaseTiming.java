@@ -0,0 +1,111 @@
+/**
+ *
+ */
+package org.purl.wf4ever.wf2ro;
+
+/**
+ * Wall time, CPU time and bytes produced of a finished conversion phase.
+ *
+ */
+public class PhaseTiming {
+
+	/** Phase key, the same for all the phases of a kind, such as all nested workflows. */
+	private String phase;
+
+	/** Phase name. */
+	private String name;
+
+	/** Wall time in milliseconds. */
+	private long wallMs;
+
+	/** CPU time of the thread running the phase in milliseconds, or -1 if not measured. */
+	private long cpuMs;
+
+	/** Bytes produced or uploaded. */
+	private long bytes;
+
+	/**
+	 * Default empty constructor.
+	 */
+	public PhaseTiming() {
+
+	}
+
+	/**
+	 * Constructor of a phase whose key is its name.
+	 *
+	 * @param name
+	 *            phase name
+	 * @param wallMs
+	 *            wall time in milliseconds
+	 * @param cpuMs
+	 *            CPU time in milliseconds, or -1
+	 * @param bytes
+	 *            bytes produced or uploaded
+	 */
+	public PhaseTiming(String name, long wallMs, long cpuMs, long bytes) {
+		this(name, name, wallMs, cpuMs, bytes);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param phase
+	 *            phase key
+	 * @param name
+	 *            phase name
+	 * @param wallMs
+	 *            wall time in milliseconds
+	 * @param cpuMs
+	 *            CPU time in milliseconds, or -1
+	 * @param bytes
+	 *            bytes produced or uploaded
+	 */
+	public PhaseTiming(String phase, String name, long wallMs, long cpuMs, long bytes) {
+		this.phase = phase;
+		this.name = name;
+		this.wallMs = wallMs;
+		this.cpuMs = cpuMs;
+		this.bytes = bytes;
+	}
+
+	public String getPhase() {
+		return phase;
+	}
+
+	public void setPhase(String phase) {
+		this.phase = phase;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public long getWallMs() {
+		return wallMs;
+	}
+
+	public void setWallMs(long wallMs) {
+		this.wallMs = wallMs;
+	}
+
+	public long getCpuMs() {
+		return cpuMs;
+	}
+
+	public void setCpuMs(long cpuMs) {
+		this.cpuMs = cpuMs;
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	public void setBytes(long bytes) {
+		this.bytes = bytes;
+	}
+}
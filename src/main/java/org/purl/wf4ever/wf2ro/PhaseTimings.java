@@ -0,0 +1,194 @@
+/**
+ *
+ */
+package org.purl.wf4ever.wf2ro;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records the wall time, CPU time and bytes produced of the phases of a job.
+ * A phase is measured in the thread that runs it, which is also the thread
+ * that reads the uploaded resources, so the bytes read from streams wrapped
+ * with {@link #count(InputStream)} are added to the phase running in the
+ * current thread.
+ *
+ */
+public class PhaseTimings {
+
+	/** Measures the CPU time of the current thread. */
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+	/** The phase running in the current thread, or null. */
+	private static final ThreadLocal<Running> CURRENT = new ThreadLocal<>();
+
+	/** Finished phases, in the order they finished. */
+	private final List<PhaseTiming> finished = new ArrayList<>();
+
+	/**
+	 * A phase being measured.
+	 *
+	 */
+	public static final class Running {
+
+		/** Phase key. */
+		private final String phase;
+
+		/** Phase name. */
+		private final String name;
+
+		/** Start wall time in nanoseconds. */
+		private final long wallStart = System.nanoTime();
+
+		/** Start CPU time in nanoseconds, or -1. */
+		private final long cpuStart = cpuTime();
+
+		/** Bytes produced or uploaded. */
+		private final AtomicLong bytes = new AtomicLong();
+
+		/** The phase running in the thread before this one started, or null. */
+		private final Running outer;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param phase
+		 *            phase key
+		 * @param name
+		 *            phase name
+		 * @param outer
+		 *            the phase running in the thread, or null
+		 */
+		private Running(String phase, String name, Running outer) {
+			this.phase = phase;
+			this.name = name;
+			this.outer = outer;
+		}
+	}
+
+	/**
+	 * @return CPU time of the current thread in nanoseconds, or -1 if not
+	 *         supported
+	 */
+	private static long cpuTime() {
+		if (!THREADS.isCurrentThreadCpuTimeSupported()) {
+			return -1;
+		}
+		return THREADS.getCurrentThreadCpuTime();
+	}
+
+	/**
+	 * Start measuring a phase whose key is its name in the current thread.
+	 *
+	 * @param name
+	 *            phase name
+	 * @return the running phase, to be passed to {@link #stop(Running)} in the
+	 *         same thread
+	 */
+	public Running start(String name) {
+		return start(name, name);
+	}
+
+	/**
+	 * Start measuring a phase in the current thread.
+	 *
+	 * @param phase
+	 *            phase key, the same for all the phases of a kind
+	 * @param name
+	 *            phase name
+	 * @return the running phase, to be passed to {@link #stop(Running)} in the
+	 *         same thread
+	 */
+	public Running start(String phase, String name) {
+		Running running = new Running(phase, name, CURRENT.get());
+		CURRENT.set(running);
+		return running;
+	}
+
+	/**
+	 * Stop measuring a phase and record it.
+	 *
+	 * @param running
+	 *            the phase returned by {@link #start(String, String)}
+	 */
+	public void stop(Running running) {
+		long wall = System.nanoTime() - running.wallStart;
+		long cpu = running.cpuStart < 0 ? -1 : cpuTime() - running.cpuStart;
+		if (running.outer != null) {
+			CURRENT.set(running.outer);
+		} else {
+			CURRENT.remove();
+		}
+		PhaseTiming timing = new PhaseTiming(running.phase, running.name, wall / 1000000, cpu < 0 ? -1
+				: cpu / 1000000, running.bytes.get());
+		synchronized (finished) {
+			finished.add(timing);
+		}
+	}
+
+	/**
+	 * @return the finished phases, in the order they finished
+	 */
+	public List<PhaseTiming> getTimings() {
+		synchronized (finished) {
+			return new ArrayList<>(finished);
+		}
+	}
+
+	/**
+	 * Add bytes to the phase running in the current thread, if any.
+	 *
+	 * @param n
+	 *            number of bytes
+	 */
+	public static void addBytes(long n) {
+		Running running = CURRENT.get();
+		if (running != null) {
+			running.bytes.addAndGet(n);
+		}
+	}
+
+	/**
+	 * Wrap a stream so that the bytes read from it are added to the phase
+	 * running in the reading thread.
+	 *
+	 * @param in
+	 *            the stream
+	 * @return the counting stream
+	 */
+	public static InputStream count(InputStream in) {
+		return new FilterInputStream(in) {
+
+			@Override
+			public int read() throws IOException {
+				int b = super.read();
+				if (b >= 0) {
+					addBytes(1);
+				}
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int n = super.read(b, off, len);
+				if (n > 0) {
+					addBytes(n);
+				}
+				return n;
+			}
+
+			@Override
+			public long skip(long n) throws IOException {
+				long skipped = super.skip(n);
+				addBytes(skipped);
+				return skipped;
+			}
+		};
+	}
+}
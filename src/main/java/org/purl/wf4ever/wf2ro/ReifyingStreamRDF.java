@@ -0,0 +1,95 @@
+/**
+ *
+ */
+package org.purl.wf4ever.wf2ro;
+
+import org.apache.jena.riot.system.StreamRDF;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.NodeFactory;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.sparql.core.Quad;
+import com.hp.hpl.jena.vocabulary.RDF;
+
+/**
+ * Passes the triples of several RDF documents to one stream, each followed by
+ * its reification stating which document it was derived from, so that the
+ * documents can be merged into one graph without losing track of their
+ * origin.
+ *
+ * The parser of each document starts and finishes this stream, so the caller
+ * starts and finishes the merged stream itself, before the first document and
+ * after the last one.
+ *
+ */
+class ReifyingStreamRDF implements StreamRDF {
+
+	/** prov:wasDerivedFrom. */
+	static final Node WAS_DERIVED_FROM = NodeFactory
+			.createURI("http://www.w3.org/ns/prov#wasDerivedFrom");
+
+	/** The merged stream. */
+	private final StreamRDF out;
+
+	/** The document being read. */
+	private Node source;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param out
+	 *            the merged stream
+	 */
+	ReifyingStreamRDF(StreamRDF out) {
+		this.out = out;
+	}
+
+	/**
+	 * Set the document whose triples follow.
+	 *
+	 * @param uri
+	 *            the document URI
+	 */
+	void setSource(String uri) {
+		this.source = NodeFactory.createURI(uri);
+	}
+
+	@Override
+	public void start() {
+		// a document starts
+	}
+
+	@Override
+	public void triple(Triple triple) {
+		out.triple(triple);
+		Node statement = NodeFactory.createAnon();
+		out.triple(Triple.create(statement, RDF.Nodes.type, RDF.Nodes.Statement));
+		out.triple(Triple.create(statement, RDF.Nodes.subject, triple.getSubject()));
+		out.triple(Triple.create(statement, RDF.Nodes.predicate, triple.getPredicate()));
+		out.triple(Triple.create(statement, RDF.Nodes.object, triple.getObject()));
+		out.triple(Triple.create(statement, WAS_DERIVED_FROM, source));
+	}
+
+	/**
+	 * Quads are not expected in the merged documents, their graph is dropped.
+	 */
+	@Override
+	public void quad(Quad quad) {
+		triple(quad.asTriple());
+	}
+
+	@Override
+	public void base(String base) {
+		// each document has its own base, the output has absolute URIs
+	}
+
+	@Override
+	public void prefix(String prefix, String iri) {
+		// the prefixes of the documents may conflict
+	}
+
+	@Override
+	public void finish() {
+		// a document ends
+	}
+}
@@ -0,0 +1,193 @@
+/**
+ *
+ */
+package org.purl.wf4ever.wf2ro;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.UUID;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.log4j.Logger;
+
+import uk.org.taverna.scufl2.api.container.WorkflowBundle;
+
+/**
+ * A Wf-RO converter writing the research object into a single RO Bundle ZIP
+ * archive, either a file or any output stream. The first entry is the
+ * uncompressed <code>mimetype</code>, the manifest is
+ * <code>.ro/manifest.rdf</code>.
+ *
+ * If the conversion fails, an archive file is deleted, and an archive written
+ * to a stream is left truncated, without the ZIP central directory, so that it
+ * can't be mistaken for a complete RO Bundle. The failure is thrown by
+ * {@link #convert()}.
+ *
+ */
+public class RoBundleConverter extends LocalConverter {
+
+	/** Logger. */
+	private static final Logger LOG = Logger.getLogger(RoBundleConverter.class);
+
+	/** RO Bundle media type. */
+	public static final String MEDIA_TYPE = "application/vnd.wf4ever.robundle+zip";
+
+	/** The archive. */
+	private final ZipOutputStream zip;
+
+	/** Whether the output stream is closed when the conversion is over. */
+	private final boolean closeStream;
+
+	/** The archive file, or null if writing to a stream. */
+	private final File file;
+
+	/** Buffers the entries before they are written to the archive. */
+	private final BodyStaging staging = new BodyStaging(BodyStaging.DEFAULT_THRESHOLD, null);
+
+	/**
+	 * Constructor writing to a stream. The stream is not closed, and is left
+	 * with a truncated archive if the conversion fails.
+	 *
+	 * @param wfbundle
+	 *            the workflow bundle
+	 * @param wfUri
+	 *            workflow URI
+	 * @param out
+	 *            the output stream
+	 * @throws IOException
+	 *             when the archive can't be started
+	 */
+	public RoBundleConverter(WorkflowBundle wfbundle, URI wfUri, OutputStream out)
+			throws IOException {
+		this(wfbundle, wfUri, out, false, null);
+	}
+
+	/**
+	 * Constructor writing to a file, which is deleted if the conversion fails.
+	 *
+	 * @param wfbundle
+	 *            the workflow bundle
+	 * @param wfUri
+	 *            workflow URI
+	 * @param file
+	 *            the archive file
+	 * @throws IOException
+	 *             when the file can't be created
+	 */
+	public RoBundleConverter(WorkflowBundle wfbundle, URI wfUri, File file) throws IOException {
+		this(wfbundle, wfUri, new FileOutputStream(file), true, file);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param wfbundle
+	 *            the workflow bundle
+	 * @param wfUri
+	 *            workflow URI
+	 * @param out
+	 *            the output stream
+	 * @param closeStream
+	 *            whether to close the stream when the conversion is over
+	 * @param file
+	 *            the archive file, or null
+	 * @throws IOException
+	 *             when the archive can't be started
+	 */
+	private RoBundleConverter(WorkflowBundle wfbundle, URI wfUri, OutputStream out,
+			boolean closeStream, File file) throws IOException {
+		// the RO Bundle specification identifies the archive with an app URI
+		super(wfbundle, wfUri, URI.create("app://" + UUID.randomUUID() + "/"));
+		this.zip = new ZipOutputStream(new BufferedOutputStream(out));
+		this.closeStream = closeStream;
+		this.file = file;
+		writeMimetype();
+	}
+
+	/**
+	 * Write the media type as the first, uncompressed entry.
+	 *
+	 * @throws IOException
+	 *             when the entry can't be written
+	 */
+	private void writeMimetype() throws IOException {
+		byte[] bytes = MEDIA_TYPE.getBytes(Charset.forName("US-ASCII"));
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		ZipEntry entry = new ZipEntry("mimetype");
+		entry.setMethod(ZipEntry.STORED);
+		entry.setSize(bytes.length);
+		entry.setCompressedSize(bytes.length);
+		entry.setCrc(crc.getValue());
+		zip.putNextEntry(entry);
+		zip.write(bytes);
+		zip.closeEntry();
+	}
+
+	@Override
+	protected void store(String path, final InputStream in) throws IOException {
+		// the stream may be a pipe whose serializer waits for a pool thread, so
+		// it is drained before taking the archive lock
+		try (BodyStaging.StagedBody body = staging.stage(path,
+				new SerializerPool.Serialization() {
+
+					@Override
+					public void writeTo(OutputStream out) throws IOException {
+						copy(in, out);
+					}
+				})) {
+			// phases running in parallel write one entry at a time
+			synchronized (zip) {
+				zip.putNextEntry(new ZipEntry(path));
+				try (InputStream staged = body.openStream()) {
+					copy(staged, zip);
+				}
+				zip.closeEntry();
+			}
+		}
+	}
+
+	/**
+	 * Copy a stream.
+	 *
+	 * @param in
+	 *            the input
+	 * @param out
+	 *            the output, not closed
+	 * @throws IOException
+	 *             when the input can't be read or the output written
+	 */
+	private static void copy(InputStream in, OutputStream out) throws IOException {
+		byte[] buffer = new byte[64 * 1024];
+		int n;
+		while ((n = in.read(buffer)) >= 0) {
+			out.write(buffer, 0, n);
+		}
+	}
+
+	@Override
+	protected void finish(boolean success) throws IOException {
+		synchronized (zip) {
+			if (closeStream) {
+				zip.close();
+			} else if (success) {
+				zip.finish();
+				zip.flush();
+			} else {
+				// without the central directory the archive isn't valid
+				zip.flush();
+			}
+		}
+		if (!success && file != null && !file.delete()) {
+			LOG.warn("Can't delete the incomplete research object " + file);
+		}
+	}
+}
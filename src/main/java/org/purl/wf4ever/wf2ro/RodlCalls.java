@@ -0,0 +1,376 @@
+/**
+ *
+ */
+package org.purl.wf4ever.wf2ro;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.purl.wf4ever.rosrs.client.exception.ROSRSException;
+
+/**
+ * Latency, request bytes and status codes of the ROSRS calls of all
+ * converters, by RODL host and operation.
+ *
+ * A call is measured by sending it through {@link #call(URI, String, int,
+ * Request)}, with the HTTP status the ROSRS client requires for the operation
+ * to succeed:
+ *
+ * <pre>
+ * return calls.call(rodlURI, &quot;aggregate&quot;, HttpURLConnection.HTTP_CREATED,
+ * 	new RodlCalls.Request&lt;Resource, ROException&gt;() {
+ *
+ * 		public Resource send(RodlCalls.Call call) throws ROSRSException, ROException {
+ * 			return ro.aggregate(path, call.count(in), contentType);
+ * 		}
+ * 	});
+ * </pre>
+ *
+ * Response bodies are read inside the ROSRS client, so only the request
+ * bodies are counted.
+ *
+ */
+public class RodlCalls {
+
+	/** Status of calls that failed without an HTTP status, e.g. I/O errors. */
+	public static final String STATUS_ERROR = "error";
+
+	/** The calls recorded by converters unless configured otherwise. */
+	private static RodlCalls shared;
+
+	/** Statistics by RODL host and operation. */
+	private final ConcurrentMap<String, Stats> stats = new ConcurrentHashMap<>();
+
+	/**
+	 * Get the calls recorded by all converters.
+	 *
+	 * @return the shared calls
+	 */
+	public static synchronized RodlCalls getShared() {
+		if (shared == null) {
+			shared = new RodlCalls();
+		}
+		return shared;
+	}
+
+	/**
+	 * Replace the calls recorded by all converters.
+	 *
+	 * @param calls
+	 *            the new shared calls
+	 */
+	public static synchronized void setShared(RodlCalls calls) {
+		shared = calls;
+	}
+
+	/**
+	 * Start measuring a call.
+	 *
+	 * @param rodl
+	 *            RODL URI
+	 * @param operation
+	 *            operation name
+	 * @return the call, which must be ended
+	 */
+	public Call start(URI rodl, String operation) {
+		String host = rodl.getAuthority() != null ? rodl.getAuthority() : rodl.toString();
+		String key = host + " " + operation;
+		Stats operationStats = stats.get(key);
+		if (operationStats == null) {
+			operationStats = new Stats(host, operation);
+			Stats previous = stats.putIfAbsent(key, operationStats);
+			if (previous != null) {
+				operationStats = previous;
+			}
+		}
+		return new Call(operationStats);
+	}
+
+	/**
+	 * Send a ROSRS request and record it.
+	 *
+	 * @param rodl
+	 *            RODL URI
+	 * @param operation
+	 *            operation name
+	 * @param status
+	 *            HTTP status of the response if the request succeeds, unless
+	 *            the request reports it with {@link Call#done(int)}
+	 * @param request
+	 *            the request
+	 * @param <T>
+	 *            result type
+	 * @param <E>
+	 *            exception thrown by the request other than
+	 *            {@link ROSRSException}, {@link RuntimeException} for none
+	 * @return the result of the request
+	 * @throws ROSRSException
+	 *             when RODL returns an error
+	 * @throws E
+	 *             when the request fails otherwise
+	 */
+	public <T, E extends Exception> T call(URI rodl, String operation, int status,
+			Request<T, E> request) throws ROSRSException, E {
+		Call call = start(rodl, operation);
+		try {
+			T result = request.send(call);
+			if (call.status == null) {
+				call.done(status);
+			}
+			return result;
+		} catch (ROSRSException e) {
+			throw call.failed(e);
+		} finally {
+			call.end();
+		}
+	}
+
+	/**
+	 * @return statistics of all operations, by host and operation name
+	 */
+	public List<Stats> getStats() {
+		List<Stats> list = new ArrayList<>(new TreeMap<>(stats).values());
+		return Collections.unmodifiableList(list);
+	}
+
+	/**
+	 * Statistics of an operation on a RODL host.
+	 *
+	 */
+	public static final class Stats {
+
+		/** RODL host. */
+		private final String host;
+
+		/** Operation name. */
+		private final String operation;
+
+		/** Latencies. */
+		private final LatencyHistogram latencies = new LatencyHistogram();
+
+		/** Request body bytes. */
+		private final AtomicLong requestBytes = new AtomicLong();
+
+		/** Calls by status. */
+		private final ConcurrentMap<String, AtomicLong> statuses = new ConcurrentHashMap<>();
+
+		/**
+		 * Constructor.
+		 *
+		 * @param host
+		 *            RODL host
+		 * @param operation
+		 *            operation name
+		 */
+		private Stats(String host, String operation) {
+			this.host = host;
+			this.operation = operation;
+		}
+
+		/**
+		 * Record a finished call.
+		 *
+		 * @param micros
+		 *            latency
+		 * @param status
+		 *            HTTP status or {@link RodlCalls#STATUS_ERROR}
+		 * @param bytes
+		 *            request bytes
+		 */
+		private void record(long micros, String status, long bytes) {
+			latencies.record(micros);
+			requestBytes.addAndGet(bytes);
+			AtomicLong count = statuses.get(status);
+			if (count == null) {
+				count = new AtomicLong();
+				AtomicLong previous = statuses.putIfAbsent(status, count);
+				if (previous != null) {
+					count = previous;
+				}
+			}
+			count.incrementAndGet();
+		}
+
+		public String getHost() {
+			return host;
+		}
+
+		public String getOperation() {
+			return operation;
+		}
+
+		public long getCount() {
+			return latencies.getCount();
+		}
+
+		/**
+		 * @return total latency in microseconds
+		 */
+		public long getSumMicros() {
+			return latencies.getSum();
+		}
+
+		/**
+		 * @return largest latency in microseconds
+		 */
+		public long getMaxMicros() {
+			return latencies.getMax();
+		}
+
+		/**
+		 * @param quantile
+		 *            quantile between 0 and 1, e.g. 0.99
+		 * @return the latency percentile in microseconds, at most 12.5% too
+		 *         high
+		 */
+		public long getPercentileMicros(double quantile) {
+			return latencies.getPercentile(quantile);
+		}
+
+		public long getRequestBytes() {
+			return requestBytes.get();
+		}
+
+		/**
+		 * @return number of calls by HTTP status or
+		 *         {@link RodlCalls#STATUS_ERROR}
+		 */
+		public Map<String, Long> getStatuses() {
+			Map<String, Long> map = new TreeMap<>();
+			for (Map.Entry<String, AtomicLong> entry : statuses.entrySet()) {
+				map.put(entry.getKey(), entry.getValue().get());
+			}
+			return map;
+		}
+	}
+
+	/**
+	 * A ROSRS request sent by {@link RodlCalls#call(URI, String, int, Request)}.
+	 *
+	 * @param <T>
+	 *            result type
+	 * @param <E>
+	 *            exception thrown other than {@link ROSRSException}
+	 */
+	public interface Request<T, E extends Exception> {
+
+		/**
+		 * Send the request.
+		 *
+		 * @param call
+		 *            the call, counting the request body
+		 * @return the result
+		 * @throws ROSRSException
+		 *             when RODL returns an error
+		 * @throws E
+		 *             when the request fails otherwise
+		 */
+		T send(Call call) throws ROSRSException, E;
+	}
+
+	/**
+	 * A call being measured. Used by a single thread.
+	 *
+	 */
+	public static final class Call {
+
+		/** Statistics of the operation. */
+		private final Stats stats;
+
+		/** Start time. */
+		private final long start = System.nanoTime();
+
+		/** HTTP status, or null until reported. */
+		private String status;
+
+		/** Request bytes. */
+		private final AtomicLong bytes = new AtomicLong();
+
+		/** Whether the call has been recorded. */
+		private boolean ended;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param stats
+		 *            statistics of the operation
+		 */
+		private Call(Stats stats) {
+			this.stats = stats;
+		}
+
+		/**
+		 * Report that the call succeeded.
+		 *
+		 * @param httpStatus
+		 *            HTTP status of the response
+		 */
+		public void done(int httpStatus) {
+			status = Integer.toString(httpStatus);
+		}
+
+		/**
+		 * Report that RODL returned an error.
+		 *
+		 * @param e
+		 *            the exception with the HTTP status
+		 * @return the exception, to be rethrown
+		 */
+		public ROSRSException failed(ROSRSException e) {
+			status = Integer.toString(e.getStatus());
+			return e;
+		}
+
+		/**
+		 * Count the bytes sent as the request body.
+		 *
+		 * @param in
+		 *            request body
+		 * @return the counting request body
+		 */
+		public InputStream count(InputStream in) {
+			return new FilterInputStream(in) {
+
+				@Override
+				public int read() throws IOException {
+					int b = super.read();
+					if (b >= 0) {
+						bytes.incrementAndGet();
+					}
+					return b;
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					int n = super.read(b, off, len);
+					if (n > 0) {
+						bytes.addAndGet(n);
+					}
+					return n;
+				}
+			};
+		}
+
+		/**
+		 * Record the call. Calls that reported neither success nor an HTTP
+		 * error are recorded as {@link RodlCalls#STATUS_ERROR}.
+		 */
+		public void end() {
+			if (!ended) {
+				ended = true;
+				stats.record((System.nanoTime() - start) / 1000,
+						status != null ? status : STATUS_ERROR, bytes.get());
+			}
+		}
+	}
+}
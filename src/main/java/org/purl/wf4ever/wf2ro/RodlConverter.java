@@ -5,25 +5,37 @@ package org.purl.wf4ever.wf2ro;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.URI;
+import java.util.Collection;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.log4j.Logger;
 import org.purl.wf4ever.rosrs.client.Annotable;
 import org.purl.wf4ever.rosrs.client.Annotation;
 import org.purl.wf4ever.rosrs.client.Folder;
+import org.purl.wf4ever.rosrs.client.FolderEntry;
 import org.purl.wf4ever.rosrs.client.ROSRService;
 import org.purl.wf4ever.rosrs.client.ResearchObject;
 import org.purl.wf4ever.rosrs.client.Resource;
 import org.purl.wf4ever.rosrs.client.exception.ROException;
 import org.purl.wf4ever.rosrs.client.exception.ROSRSException;
+import org.purl.wf4ever.wf2ro.BodyStaging.StagedBody;
 
 import uk.org.taverna.scufl2.api.container.WorkflowBundle;
 
+import com.sun.jersey.api.client.ClientResponse;
+
 /**
  * This class implements a Wf-RO converter uploading all created resources to
  * the RODL.
  * 
+ * The converter is not thread safe, so its phases run one after another: the
+ * RODL client updates the resources and annotations of its research object in
+ * plain maps while they are uploaded.
+ * 
  * @author piotrekhol
  */
 public class RodlConverter extends Wf2ROConverter {
@@ -34,9 +46,24 @@ public class RodlConverter extends Wf2ROConverter {
 	/** RO URI. */
 	private final URI roURI;
 
+	/** RODL URI. */
+	private final URI rodlURI;
+
+	/** RODL access token. */
+	private final String rodlToken;
+
+	/** The clients from which the RODL client is leased. */
+	private final RosrsClients clients = RosrsClients.getShared();
+
 	/** RODL client. */
 	private final ROSRService rosrs;
 
+	/** Records the RODL calls. */
+	private final RodlCalls calls = RodlCalls.getShared();
+
+	/** Whether the RODL client has been returned. */
+	private boolean closed;
+
 	/**
 	 * URI of RO Folder where to extract main workflow, or <code>null</code> to
 	 * not add extracted main workflow to any folder (the main workflow is still
@@ -62,8 +89,18 @@ public class RodlConverter extends Wf2ROConverter {
 	 */
 	private URI extractServices;
 
+	/** The research object, loaded once per conversion. */
 	private ResearchObject ro;
 
+	/** Folders of the research object, looked up once per conversion. */
+	private final ConcurrentMap<URI, Folder> folders = new ConcurrentHashMap<>();
+
+	/** How many times a failed upload of a staged resource is repeated. */
+	private int uploadRetries;
+
+	/** Delay before the first repeated upload, doubled for every next one. */
+	private static final long RETRY_DELAY_MS = 500;
+
 	/**
 	 * Constructor.
 	 * 
@@ -96,15 +133,27 @@ public class RodlConverter extends Wf2ROConverter {
 		this.extractNested = extractNested;
 		this.extractScripts = extractScripts;
 		this.extractServices = extractServices;
-		URI rodlURI = roURI.resolve(".."); // zrobic z tego metode i stala
-		this.rosrs = new ROSRService(rodlURI, rodlToken);
+		this.rodlURI = roURI.resolve(".."); // zrobic z tego metode i stala
+		this.rodlToken = rodlToken;
+		this.rosrs = clients.acquire(rodlURI, rodlToken);
 		this.roURI = roURI;
 	}
 
+	/**
+	 * Return the RODL client to the shared clients. Must be called when the
+	 * conversion is over.
+	 */
+	public synchronized void close() {
+		if (!closed) {
+			closed = true;
+			clients.release(rodlURI, rodlToken);
+		}
+	}
+
 	@Override
 	protected ResearchObject createResearchObject(UUID wfUUID) throws ROSRSException {
 		try {
-			rosrs.getResourceHead(roURI);
+			head(roURI);
 			LOG.debug("Research object " + roURI + " returned status 200 OK, will use this one");
 			return getResearchObject();
 		} catch (ROSRSException e) {
@@ -119,11 +168,42 @@ public class RodlConverter extends Wf2ROConverter {
 			if (slug.endsWith("/")) {
 				slug = slug.substring(0, slug.length() - 1);
 			}
-			ro = ResearchObject.create(rosrs, slug);
+			final String roSlug = slug;
+			ro = calls.call(rodlURI, "create", HttpURLConnection.HTTP_CREATED,
+					new RodlCalls.Request<ResearchObject, RuntimeException>() {
+
+						@Override
+						public ResearchObject send(RodlCalls.Call call) throws ROSRSException {
+							return ResearchObject.create(rosrs, roSlug);
+						}
+					});
 			return ro;
 		}
 	}
 
+	/**
+	 * Send a HEAD request for a resource.
+	 * 
+	 * @param uri
+	 *            resource URI
+	 * @throws ROSRSException
+	 *             when RODL returns an error, such as 404 if the resource
+	 *             doesn't exist
+	 */
+	private void head(final URI uri) throws ROSRSException {
+		calls.call(rodlURI, "head", HttpURLConnection.HTTP_OK,
+				new RodlCalls.Request<Void, RuntimeException>() {
+
+					@Override
+					public Void send(RodlCalls.Call call) throws ROSRSException {
+						ClientResponse response = rosrs.getResourceHead(uri);
+						call.done(response.getStatus());
+						response.close();
+						return null;
+					}
+				});
+	}
+
 	protected static String uriToSlug(URI uri) {
 		// Remove any trailing /'s
 		String path = uri.getPath().replaceAll("/+$", "");
@@ -134,13 +214,30 @@ public class RodlConverter extends Wf2ROConverter {
 		return slug;
 	}
 
-	protected ResearchObject getResearchObject() {
+	/**
+	 * Get the research object, loading its manifest the first time. The
+	 * loaded research object is kept for the whole conversion, and the
+	 * resources, annotations and folder entries added by the conversion are
+	 * added to it locally, so it is never loaded again.
+	 * 
+	 * @return the loaded research object
+	 */
+	protected synchronized ResearchObject getResearchObject() {
 		if (ro == null) {
 			ro = new ResearchObject(roURI, rosrs);
 		}
 		if (!ro.isLoaded()) {
 			try {
-				ro.load();
+				calls.call(rodlURI, "load", HttpURLConnection.HTTP_OK,
+						new RodlCalls.Request<Void, ROException>() {
+
+							@Override
+							public Void send(RodlCalls.Call call) throws ROSRSException,
+									ROException {
+								ro.load();
+								return null;
+							}
+						});
 			} catch (ROSRSException | ROException e) {
 				LOG.debug("Can't load RO from URI " + roURI, e);
 				throw new IllegalStateException("Can't load RO from URI " + roURI, e);
@@ -150,16 +247,99 @@ public class RodlConverter extends Wf2ROConverter {
 	}
 
 	@Override
-	protected Resource uploadAggregatedResource(ResearchObject ro, String path, InputStream in,
+	protected Resource uploadAggregatedResource(final ResearchObject ro, final String path,
+			final InputStream in, final String contentType) throws IOException, ROSRSException,
+			ROException {
+		return calls.call(rodlURI, "aggregate", HttpURLConnection.HTTP_CREATED,
+				new RodlCalls.Request<Resource, ROException>() {
+
+					@Override
+					public Resource send(RodlCalls.Call call) throws ROSRSException, ROException {
+						return ro.aggregate(path, call.count(in), contentType);
+					}
+				});
+	}
+
+	/**
+	 * Set how many times a failed upload of a staged workflow bundle is
+	 * repeated. Only server errors and I/O errors are retried, and only if the
+	 * resource doesn't exist after the failure, since aggregating a resource
+	 * is not idempotent and the server may have created it before failing.
+	 * 
+	 * @param uploadRetries
+	 *            number of repeated uploads, 0 (default) to not repeat
+	 * @see #setStaging(BodyStaging)
+	 */
+	public void setUploadRetries(int uploadRetries) {
+		this.uploadRetries = uploadRetries;
+	}
+
+	@Override
+	protected Resource uploadAggregatedResource(ResearchObject ro, String path, StagedBody body,
 			String contentType) throws IOException, ROSRSException, ROException {
-		return ro.aggregate(path, in, contentType);
+		for (int attempt = 0;; attempt++) {
+			try (InputStream in = body.openStream()) {
+				return uploadAggregatedResource(ro, path, trackUpload(in), contentType);
+			} catch (ROSRSException e) {
+				if (attempt >= uploadRetries || e.getStatus() < 500
+						|| getCancellation().isCancelled() || !isAbsent(path)) {
+					throw e;
+				}
+				LOG.warn(String.format("Uploading %s (%d bytes) returned status %d, will retry",
+						path, body.length(), e.getStatus()));
+			} catch (IOException e) {
+				if (attempt >= uploadRetries || getCancellation().isCancelled()
+						|| !isAbsent(path)) {
+					throw e;
+				}
+				LOG.warn(String.format("Uploading %s (%d bytes) failed, will retry", path,
+						body.length()), e);
+			}
+			try {
+				Thread.sleep(RETRY_DELAY_MS << attempt);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted before uploading " + path + " again", e);
+			}
+		}
+	}
+
+	/**
+	 * Check that a failed upload hasn't created the resource, so that it can
+	 * be repeated without aggregating the resource twice.
+	 * 
+	 * @param path
+	 *            resource path relative to the RO URI
+	 * @return true if the server answers 404 Not Found for the resource, false
+	 *         if it exists or its existence can't be checked
+	 */
+	private boolean isAbsent(String path) {
+		URI uri = roURI.resolve(path);
+		try {
+			head(uri);
+			LOG.warn("The failed upload of " + uri + " has created it, not repeating it");
+			return false;
+		} catch (ROSRSException e) {
+			if (e.getStatus() == HttpURLConnection.HTTP_NOT_FOUND) {
+				return true;
+			}
+			LOG.warn("Can't check if the failed upload of " + uri + " has created it", e);
+			return false;
+		}
 	}
 
 	@Override
-	protected Annotation uploadAnnotation(ResearchObject ro, String name, Annotable target,
-			InputStream in, String contentType) throws ROSRSException, ROException {
-		String bodyPath = createAnnotationBodyPath(target.getName() + "-" + name);
-		return target.annotate(bodyPath, in, contentType);
+	protected Annotation uploadAnnotation(ResearchObject ro, String name, final Annotable target,
+			final InputStream in, final String contentType) throws ROSRSException, ROException {
+		final String bodyPath = createAnnotationBodyPath(target.getName() + "-" + name);
+		return calls.call(rodlURI, "annotate", HttpURLConnection.HTTP_CREATED,
+				new RodlCalls.Request<Annotation, ROException>() {
+
+					@Override
+					public Annotation send(RodlCalls.Call call) throws ROSRSException, ROException {
+						return target.annotate(bodyPath, call.count(in), contentType);
+					}
+				});
 	}
 
 	@Override
@@ -167,7 +347,7 @@ public class RodlConverter extends Wf2ROConverter {
 		if (extractMain == null) {
 			return null;
 		}
-		return getResearchObject().getFolder(extractMain);
+		return getFolder(extractMain);
 	}
 
 	@Override
@@ -175,7 +355,7 @@ public class RodlConverter extends Wf2ROConverter {
 		if (extractNested == null) {
 			return null;
 		}
-		return getResearchObject().getFolder(extractNested);
+		return getFolder(extractNested);
 	}
 
 	@Override
@@ -216,7 +396,7 @@ public class RodlConverter extends Wf2ROConverter {
 		if (extractScripts == null) {
 			return null;
 		}
-		return getResearchObject().getFolder(extractScripts);
+		return getFolder(extractScripts);
 	}
 
 	@Override
@@ -224,7 +404,29 @@ public class RodlConverter extends Wf2ROConverter {
 		if (extractServices == null) {
 			return null;
 		}
-		return getResearchObject().getFolder(extractServices);
+		return getFolder(extractServices);
+	}
+
+	/**
+	 * Get a folder of the research object. The folder handle is kept for the
+	 * whole conversion, so that its entries are loaded at most once.
+	 * 
+	 * @param uri
+	 *            folder URI
+	 * @return the folder or null if the research object has no such folder
+	 */
+	private Folder getFolder(URI uri) {
+		Folder folder = folders.get(uri);
+		if (folder == null) {
+			folder = getResearchObject().getFolder(uri);
+			if (folder != null) {
+				Folder previous = folders.putIfAbsent(uri, folder);
+				if (previous != null) {
+					folder = previous;
+				}
+			}
+		}
+		return folder;
 	}
 
 	/**
@@ -244,8 +446,68 @@ public class RodlConverter extends Wf2ROConverter {
 	}
 
 	@Override
-	protected Resource aggregateExternal(ResearchObject ro, URI external) throws ROSRSException {
-		return Resource.create(ro, external);
+	protected Resource aggregateExternal(final ResearchObject ro, final URI external)
+			throws ROSRSException {
+		return calls.call(rodlURI, "aggregate-external", HttpURLConnection.HTTP_CREATED,
+				new RodlCalls.Request<Resource, RuntimeException>() {
+
+					@Override
+					public Resource send(RodlCalls.Call call) throws ROSRSException {
+						return Resource.create(ro, external);
+					}
+				});
+	}
+
+	@Override
+	protected void addToFolder(final Folder folder, final Resource resource, final String entryName)
+			throws ROSRSException, ROException {
+		if (folder == null) {
+			return;
+		}
+		synchronized (folder) {
+			loadFolder(folder);
+			calls.call(rodlURI, "folder-add", HttpURLConnection.HTTP_CREATED,
+					new RodlCalls.Request<FolderEntry, ROException>() {
+
+						@Override
+						public FolderEntry send(RodlCalls.Call call) throws ROSRSException,
+								ROException {
+							return folder.addEntry(resource, entryName);
+						}
+					});
+		}
+	}
+
+	@Override
+	protected Collection<String> getFolderEntryNames(Folder folder) throws ROSRSException {
+		synchronized (folder) {
+			loadFolder(folder);
+		}
+		return super.getFolderEntryNames(folder);
+	}
+
+	/**
+	 * Load the folder entries unless they have been loaded. The caller must
+	 * hold the folder lock.
+	 * 
+	 * @param folder
+	 *            the folder
+	 * @throws ROSRSException
+	 *             when the folder can't be loaded
+	 */
+	private void loadFolder(final Folder folder) throws ROSRSException {
+		if (folder.isLoaded()) {
+			return;
+		}
+		calls.call(rodlURI, "folder-load", HttpURLConnection.HTTP_OK,
+				new RodlCalls.Request<Void, RuntimeException>() {
+
+					@Override
+					public Void send(RodlCalls.Call call) throws ROSRSException {
+						folder.load();
+						return null;
+					}
+				});
 	}
 
 }
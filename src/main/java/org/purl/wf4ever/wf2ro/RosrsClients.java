@@ -0,0 +1,389 @@
+/**
+ *
+ */
+package org.purl.wf4ever.wf2ro;
+
+import java.net.URI;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.purl.wf4ever.rosrs.client.ROSRService;
+
+/**
+ * ROSRS clients shared by the conversions that use the same RODL with the same
+ * access token, so that consecutive jobs of a user don't set up new clients.
+ * The token stays scoped to the jobs that provided it.
+ *
+ * This is a registry of clients, not a connection pool: the HTTP connections
+ * themselves are kept alive by the JVM for all clients connecting to the same
+ * host, up to the <code>http.maxConnections</code> system property per host,
+ * and the JVM doesn't tell how many of them are in use or idle.
+ *
+ * A client is leased by a conversion and returned when the conversion is
+ * over. Clients that have not been leased for longer than the idle timeout are
+ * evicted, and so are the least recently used idle clients when there are
+ * more clients than the maximum, so that the registry doesn't grow with every
+ * new token.
+ *
+ */
+public class RosrsClients {
+
+	/** Logger. */
+	private static final Logger LOG = Logger.getLogger(RosrsClients.class);
+
+	/** Default idle timeout in seconds. */
+	public static final int DEFAULT_IDLE_TIMEOUT_S = 300;
+
+	/** Default maximum number of clients. */
+	public static final int DEFAULT_MAX_CLIENTS = 100;
+
+	/** Keep-alive connections per host used by the JVM by default. */
+	private static final int DEFAULT_MAX_CONNECTIONS = 5;
+
+	/** The registry used by converters unless configured otherwise. */
+	private static RosrsClients shared;
+
+	/** Clients by RODL URI and token. */
+	private final ConcurrentMap<Key, Lease> clients = new ConcurrentHashMap<>();
+
+	/** How long an unused client is kept, in milliseconds. */
+	private final long idleTimeoutMs;
+
+	/** Number of clients above which the idle ones are evicted. */
+	private final int maxClients;
+
+	/** When the idle clients were last evicted. */
+	private final AtomicLong lastEviction = new AtomicLong(System.currentTimeMillis());
+
+	/** Leases that found a client. */
+	private final AtomicLong hits = new AtomicLong();
+
+	/** Leases that created a client. */
+	private final AtomicLong misses = new AtomicLong();
+
+	/** Clients evicted. */
+	private final AtomicLong evicted = new AtomicLong();
+
+	/**
+	 * Constructor keeping up to {@link #DEFAULT_MAX_CLIENTS} clients.
+	 *
+	 * @param idleTimeoutS
+	 *            how long in seconds an unused client is kept
+	 */
+	public RosrsClients(int idleTimeoutS) {
+		this(idleTimeoutS, DEFAULT_MAX_CLIENTS);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param idleTimeoutS
+	 *            how long in seconds an unused client is kept
+	 * @param maxClients
+	 *            number of clients above which the least recently used idle
+	 *            clients are evicted
+	 */
+	public RosrsClients(int idleTimeoutS, int maxClients) {
+		this.idleTimeoutMs = TimeUnit.SECONDS.toMillis(idleTimeoutS);
+		this.maxClients = maxClients;
+	}
+
+	/**
+	 * @return the registry shared by all converters
+	 */
+	public static synchronized RosrsClients getShared() {
+		if (shared == null) {
+			shared = new RosrsClients(DEFAULT_IDLE_TIMEOUT_S);
+		}
+		return shared;
+	}
+
+	/**
+	 * Replace the registry shared by all converters.
+	 *
+	 * @param clients
+	 *            the new registry
+	 */
+	public static synchronized void setShared(RosrsClients clients) {
+		shared = clients;
+	}
+
+	/**
+	 * Lease a client. It must be returned with {@link #release(URI, String)}.
+	 *
+	 * @param rodlURI
+	 *            RODL URI
+	 * @param token
+	 *            RODL access token
+	 * @return the client
+	 */
+	public ROSRService acquire(URI rodlURI, String token) {
+		evictIdle();
+		Key key = new Key(rodlURI, token);
+		while (true) {
+			Lease lease = clients.get(key);
+			if (lease == null) {
+				Lease created = new Lease(new ROSRService(rodlURI, token));
+				lease = clients.putIfAbsent(key, created);
+				if (lease == null) {
+					misses.incrementAndGet();
+					LOG.debug("Created a ROSRS client for " + rodlURI);
+					lease = created;
+					evictExcess(created);
+				} else {
+					hits.incrementAndGet();
+				}
+			} else {
+				hits.incrementAndGet();
+			}
+			if (lease.acquire()) {
+				return lease.service;
+			}
+			// evicted in the meantime
+		}
+	}
+
+	/**
+	 * Return a leased client.
+	 *
+	 * @param rodlURI
+	 *            RODL URI
+	 * @param token
+	 *            RODL access token
+	 */
+	public void release(URI rodlURI, String token) {
+		Lease lease = clients.get(new Key(rodlURI, token));
+		if (lease != null) {
+			lease.release();
+		}
+	}
+
+	/**
+	 * Evict the clients that have been idle for too long, at most once every
+	 * half of the idle timeout.
+	 */
+	private void evictIdle() {
+		long now = System.currentTimeMillis();
+		long last = lastEviction.get();
+		if (now - last < idleTimeoutMs / 2 || !lastEviction.compareAndSet(last, now)) {
+			return;
+		}
+		Iterator<Map.Entry<Key, Lease>> it = clients.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Key, Lease> entry = it.next();
+			if (entry.getValue().evictIfIdle(now - idleTimeoutMs)) {
+				it.remove();
+				evicted.incrementAndGet();
+				LOG.debug("Evicted the ROSRS client for " + entry.getKey().rodlURI);
+			}
+		}
+	}
+
+	/**
+	 * Evict the least recently used idle clients while there are more clients
+	 * than the maximum. Leased clients are kept, so there may be more clients
+	 * than the maximum while they are all leased.
+	 *
+	 * @param created
+	 *            the client just created, which is not evicted
+	 */
+	private void evictExcess(Lease created) {
+		while (clients.size() > maxClients) {
+			Map.Entry<Key, Lease> oldest = null;
+			for (Map.Entry<Key, Lease> entry : clients.entrySet()) {
+				Lease lease = entry.getValue();
+				if (lease != created && lease.leases.get() == 0
+						&& (oldest == null || lease.lastReleased < oldest.getValue().lastReleased)) {
+					oldest = entry;
+				}
+			}
+			if (oldest == null) {
+				return;
+			}
+			if (oldest.getValue().evictIfIdle(Long.MAX_VALUE)
+					&& clients.remove(oldest.getKey(), oldest.getValue())) {
+				evicted.incrementAndGet();
+				LOG.debug("Evicted the least recently used ROSRS client for "
+						+ oldest.getKey().rodlURI);
+			}
+		}
+	}
+
+	/**
+	 * @return number of clients
+	 */
+	public int getClientCount() {
+		return clients.size();
+	}
+
+	/**
+	 * @return number of clients leased by conversions
+	 */
+	public int getLeasedCount() {
+		int leased = 0;
+		for (Lease lease : clients.values()) {
+			if (lease.leases.get() > 0) {
+				leased++;
+			}
+		}
+		return leased;
+	}
+
+	/**
+	 * @return number of clients not leased by any conversion
+	 */
+	public int getIdleCount() {
+		int idle = 0;
+		for (Lease lease : clients.values()) {
+			if (lease.leases.get() == 0) {
+				idle++;
+			}
+		}
+		return idle;
+	}
+
+	/**
+	 * @return number of clients above which the idle ones are evicted
+	 */
+	public int getMaxClients() {
+		return maxClients;
+	}
+
+	/**
+	 * @return the maximum number of idle keep-alive connections kept by the
+	 *         JVM per host, from the <code>http.maxConnections</code> system
+	 *         property
+	 */
+	public static int getMaxConnections() {
+		return Integer.getInteger("http.maxConnections", DEFAULT_MAX_CONNECTIONS);
+	}
+
+	/**
+	 * @return number of leases that reused a client
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * @return number of leases that created a client
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * @return number of clients evicted
+	 */
+	public long getEvictedCount() {
+		return evicted.get();
+	}
+
+	/**
+	 * A client with its leases.
+	 *
+	 */
+	private static class Lease {
+
+		/** The client. */
+		private final ROSRService service;
+
+		/** Number of conversions using the client, or -1 if evicted. */
+		private final AtomicInteger leases = new AtomicInteger();
+
+		/** When the client was last returned. */
+		private volatile long lastReleased = System.currentTimeMillis();
+
+		/**
+		 * Constructor.
+		 *
+		 * @param service
+		 *            the client
+		 */
+		Lease(ROSRService service) {
+			this.service = service;
+		}
+
+		/**
+		 * @return true if leased, false if the client has been evicted
+		 */
+		boolean acquire() {
+			while (true) {
+				int n = leases.get();
+				if (n < 0) {
+					return false;
+				}
+				if (leases.compareAndSet(n, n + 1)) {
+					return true;
+				}
+			}
+		}
+
+		/**
+		 * Return the client.
+		 */
+		void release() {
+			lastReleased = System.currentTimeMillis();
+			leases.decrementAndGet();
+		}
+
+		/**
+		 * Mark the client as evicted if it isn't leased and has not been used
+		 * since the given time.
+		 *
+		 * @param threshold
+		 *            the time
+		 * @return true if evicted
+		 */
+		boolean evictIfIdle(long threshold) {
+			return lastReleased < threshold && leases.compareAndSet(0, -1);
+		}
+	}
+
+	/**
+	 * RODL URI and access token.
+	 *
+	 */
+	private static class Key {
+
+		/** RODL URI. */
+		private final URI rodlURI;
+
+		/** Access token. */
+		private final String token;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param rodlURI
+		 *            RODL URI
+		 * @param token
+		 *            access token
+		 */
+		Key(URI rodlURI, String token) {
+			this.rodlURI = rodlURI;
+			this.token = token;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return rodlURI.equals(other.rodlURI)
+					&& (token == null ? other.token == null : token.equals(other.token));
+		}
+
+		@Override
+		public int hashCode() {
+			return rodlURI.hashCode() * 31 + (token == null ? 0 : token.hashCode());
+		}
+	}
+}
@@ -0,0 +1,398 @@
+/**
+ *
+ */
+package org.purl.wf4ever.wf2ro;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A bounded pool of threads serializing resources (workflow bundles,
+ * annotation bodies) into pipes that are read by the uploads.
+ *
+ * A serialization failure is passed on to the reader, whose read fails once
+ * the data written so far has been consumed. When the reader closes the pipe
+ * before reaching its end, for example because the upload failed, the writer
+ * fails on its next write and its thread is released.
+ *
+ * The number of threads is bounded but the queue is not, since a full queue
+ * would leave readers waiting for writers that will never start.
+ *
+ */
+public class SerializerPool {
+
+	/** Logger. */
+	private static final Logger LOG = Logger.getLogger(SerializerPool.class);
+
+	/** Default pipe buffer size. */
+	public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+	/** The pool used by converters unless configured otherwise. */
+	private static SerializerPool shared;
+
+	/**
+	 * Writes a resource to an output stream.
+	 *
+	 */
+	public interface Serialization {
+
+		/**
+		 * Write the resource. The stream is closed by the pool.
+		 *
+		 * @param out
+		 *            the output stream
+		 * @throws Exception
+		 *             when the resource can't be serialized
+		 */
+		void writeTo(OutputStream out) throws Exception;
+	}
+
+	/** The threads. */
+	private final ExecutorService executor;
+
+	/** Pipe buffer size in bytes. */
+	private final int bufferSize;
+
+	/** Serializations running. */
+	private final AtomicInteger active = new AtomicInteger();
+
+	/** Serializations waiting for the reader to free some pipe buffer. */
+	private final AtomicInteger blocked = new AtomicInteger();
+
+	/** Serializations finished successfully. */
+	private final AtomicLong completed = new AtomicLong();
+
+	/** Serializations failed or aborted by the reader. */
+	private final AtomicLong failed = new AtomicLong();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param threads
+	 *            maximum number of concurrent serializations
+	 * @param bufferSize
+	 *            pipe buffer size in bytes
+	 */
+	public SerializerPool(int threads, int bufferSize) {
+		if (threads < 1 || bufferSize < 1) {
+			throw new IllegalArgumentException("Invalid serializer pool configuration: threads = "
+					+ threads + ", buffer = " + bufferSize);
+		}
+		this.bufferSize = bufferSize;
+		this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(), new SerializerThreadFactory());
+	}
+
+	/**
+	 * @return the pool shared by all converters
+	 */
+	public static synchronized SerializerPool getShared() {
+		if (shared == null) {
+			shared = new SerializerPool(Runtime.getRuntime().availableProcessors(),
+					DEFAULT_BUFFER_SIZE);
+		}
+		return shared;
+	}
+
+	/**
+	 * Replace the pool shared by all converters. The previous pool is shut
+	 * down once its serializations have finished.
+	 *
+	 * @param pool
+	 *            the new pool
+	 */
+	public static synchronized void setShared(SerializerPool pool) {
+		if (shared != null) {
+			shared.executor.shutdown();
+		}
+		shared = pool;
+	}
+
+	/**
+	 * Start a serialization and return the stream from which its result can be
+	 * read. The caller must close the stream.
+	 *
+	 * @param name
+	 *            what is serialized, for logging
+	 * @param serialization
+	 *            the serialization
+	 * @return the stream with the serialized resource
+	 * @throws IOException
+	 *             when the pipe can't be created
+	 */
+	public SerializedInputStream serialize(final String name, final Serialization serialization)
+			throws IOException {
+		final SerializedInputStream in = new SerializedInputStream(bufferSize);
+		final PipedOutputStream pipe = new PipedOutputStream(in);
+		try {
+			executor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					write(name, serialization, in, pipe);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			in.fail(e);
+			pipe.close();
+		}
+		return in;
+	}
+
+	/**
+	 * Run a serialization in the current thread.
+	 *
+	 * @param name
+	 *            what is serialized, for logging
+	 * @param serialization
+	 *            the serialization
+	 * @param in
+	 *            the reading end of the pipe
+	 * @param pipe
+	 *            the writing end of the pipe
+	 */
+	private void write(String name, Serialization serialization, SerializedInputStream in,
+			PipedOutputStream pipe) {
+		active.incrementAndGet();
+		try {
+			serialization.writeTo(new BlockingAwareOutputStream(pipe, in));
+			completed.incrementAndGet();
+		} catch (Throwable e) {
+			failed.incrementAndGet();
+			if (in.isClosed()) {
+				LOG.debug("Serialization of " + name + " aborted by the reader", e);
+			} else {
+				LOG.error("Can't serialize " + name, e);
+				in.fail(e);
+			}
+		} finally {
+			active.decrementAndGet();
+			try {
+				pipe.close();
+			} catch (IOException e) {
+				LOG.warn("Exception when closing the output stream of " + name, e);
+			}
+		}
+	}
+
+	/**
+	 * @return number of serializations running
+	 */
+	public int getActiveCount() {
+		return active.get();
+	}
+
+	/**
+	 * @return number of serializations waiting for their readers
+	 */
+	public int getBlockedCount() {
+		return blocked.get();
+	}
+
+	/**
+	 * @return number of serializations waiting for a thread
+	 */
+	public int getQueuedCount() {
+		return ((ThreadPoolExecutor) executor).getQueue().size();
+	}
+
+	/**
+	 * @return number of serializations finished successfully
+	 */
+	public long getCompletedCount() {
+		return completed.get();
+	}
+
+	/**
+	 * @return number of serializations failed or aborted
+	 */
+	public long getFailedCount() {
+		return failed.get();
+	}
+
+	/**
+	 * @return pipe buffer size in bytes
+	 */
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * The reading end of a serialization pipe, which fails when the
+	 * serialization failed.
+	 *
+	 */
+	public static class SerializedInputStream extends PipedInputStream {
+
+		/** Serialization failure. */
+		private volatile Throwable failure;
+
+		/** Whether the reader has closed the stream. */
+		private volatile boolean closed;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param bufferSize
+		 *            pipe buffer size
+		 */
+		SerializedInputStream(int bufferSize) {
+			super(bufferSize);
+		}
+
+		/**
+		 * Record the serialization failure.
+		 *
+		 * @param e
+		 *            the failure
+		 */
+		void fail(Throwable e) {
+			failure = e;
+		}
+
+		/**
+		 * @return the serialization failure, or null if it hasn't failed
+		 */
+		public Throwable getFailure() {
+			return failure;
+		}
+
+		/**
+		 * Throw an exception if the serialization failed.
+		 *
+		 * @throws IOException
+		 *             wrapping the serialization failure
+		 */
+		public void rethrowFailure() throws IOException {
+			if (failure != null) {
+				throw new IOException("Serialization failed", failure);
+			}
+		}
+
+		/**
+		 * @return true if the reader has closed the stream
+		 */
+		boolean isClosed() {
+			return closed;
+		}
+
+		/**
+		 * @return the number of bytes that can be written without blocking
+		 * @throws IOException
+		 *             when the pipe is broken
+		 */
+		synchronized int space() throws IOException {
+			return buffer.length - available();
+		}
+
+		@Override
+		public synchronized int read() throws IOException {
+			int b = super.read();
+			if (b < 0) {
+				rethrowFailure();
+			}
+			return b;
+		}
+
+		@Override
+		public synchronized int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n < 0) {
+				rethrowFailure();
+			}
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			closed = true;
+			super.close();
+		}
+	}
+
+	/**
+	 * Counts the writers that are about to wait for the reader.
+	 *
+	 */
+	private class BlockingAwareOutputStream extends OutputStream {
+
+		/** The pipe. */
+		private final PipedOutputStream pipe;
+
+		/** The reading end of the pipe. */
+		private final SerializedInputStream in;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param pipe
+		 *            the pipe
+		 * @param in
+		 *            the reading end of the pipe
+		 */
+		BlockingAwareOutputStream(PipedOutputStream pipe, SerializedInputStream in) {
+			this.pipe = pipe;
+			this.in = in;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (in.space() >= len) {
+				pipe.write(b, off, len);
+				return;
+			}
+			blocked.incrementAndGet();
+			try {
+				pipe.write(b, off, len);
+			} finally {
+				blocked.decrementAndGet();
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			pipe.flush();
+		}
+
+		@Override
+		public void close() {
+			// the pool closes the pipe when the serialization is over
+		}
+	}
+
+	/**
+	 * Creates daemon serializer threads.
+	 *
+	 */
+	private static class SerializerThreadFactory implements ThreadFactory {
+
+		/** Thread counter, for thread names. */
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "wf2ro-serializer-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			// the bundle writers are found through the context class loader
+			thread.setContextClassLoader(SerializerPool.class.getClassLoader());
+			return thread;
+		}
+	}
+}
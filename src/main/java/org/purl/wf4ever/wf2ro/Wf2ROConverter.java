@@ -7,18 +7,25 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
+import java.io.OutputStream;
 import java.net.URI;
 import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Executor;
 
 import org.apache.commons.codec.binary.Hex;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.RDFLanguages;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFLib;
 import org.apache.log4j.Logger;
 import org.openrdf.rio.RDFFormat;
 import org.purl.wf4ever.rosrs.client.Annotable;
@@ -29,6 +36,8 @@ import org.purl.wf4ever.rosrs.client.ResearchObject;
 import org.purl.wf4ever.rosrs.client.Resource;
 import org.purl.wf4ever.rosrs.client.exception.ROException;
 import org.purl.wf4ever.rosrs.client.exception.ROSRSException;
+import org.purl.wf4ever.wf2ro.BodyStaging.StagedBody;
+import org.purl.wf4ever.wf2ro.SerializerPool.SerializedInputStream;
 import org.purl.wf4ever.wfdesc.scufl2.ROEvoSerializer;
 
 import uk.org.taverna.scufl2.api.common.NamedSet;
@@ -40,6 +49,7 @@ import uk.org.taverna.scufl2.api.io.WorkflowBundleIO;
 import uk.org.taverna.scufl2.api.io.WriterException;
 import uk.org.taverna.scufl2.api.profiles.Profile;
 import uk.org.taverna.scufl2.rdfxml.RDFXMLReader;
+import uk.org.taverna.scufl2.ucfpackage.UCFPackage;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.hp.hpl.jena.rdf.model.Model;
@@ -64,6 +74,31 @@ public abstract class Wf2ROConverter {
 	/** Logger. */
 	private static final Logger LOG = Logger.getLogger(Wf2ROConverter.class);
 
+	/**
+	 * Notified of the resources added by the conversion as they are added.
+	 * 
+	 * @author piotrekhol
+	 * 
+	 */
+	public interface ResourceListener {
+
+		/**
+		 * Called after a resource has been added to the list of added
+		 * resources, in the thread that added it.
+		 * 
+		 * @param uri
+		 *            the resource URI
+		 */
+		void resourceAdded(URI uri);
+	}
+
+	/**
+	 * Version of the wfdesc and roevo generators, part of the keys of the
+	 * cached annotation bodies. Increase the suffix when the converter changes
+	 * how it calls them.
+	 */
+	private static final String GENERATOR_VERSION = generatorVersion() + "-1";
+
 	/** Workflow bundle serializer/deserializer. */
 	private static WorkflowBundleIO bundleIO = new WorkflowBundleIO();
 
@@ -71,7 +106,10 @@ public abstract class Wf2ROConverter {
 	private static URITools uriTools = new URITools();
 
 	/** Resources added so far. */
-	private List<URI> resourcesAdded = Collections.synchronizedList(new ArrayList<URI>());
+	private List<URI> resourcesAdded = Collections.synchronizedList(new AddedResources());
+
+	/** Notified of every added resource, or null. */
+	private volatile ResourceListener resourceListener;
 
 	/** Workflow bundle. */
 	private WorkflowBundle wfbundle;
@@ -82,6 +120,45 @@ public abstract class Wf2ROConverter {
 	/** The original workflow URI. */
 	protected URI originalWfUri;
 
+	/**
+	 * Executor for running the conversion phases in parallel, or null to run
+	 * them one after another.
+	 */
+	private Executor executor;
+
+	/** Threads serializing the uploaded resources. */
+	private SerializerPool serializers = SerializerPool.getShared();
+
+	/**
+	 * Staging for the workflow bundles, or null to upload them while they are
+	 * serialized.
+	 */
+	private BodyStaging staging;
+
+	/** Extracted resources already in the folders or the research object. */
+	private final AggregationIndex aggregated = new AggregationIndex(this);
+
+	/** Time spent in each phase. */
+	private PhaseTimings timings = new PhaseTimings();
+
+	/**
+	 * Upload the annotations of the workflow bundle as one annotation instead
+	 * of one annotation each.
+	 */
+	private boolean mergeAnnotations;
+
+	/** Cache of the generated annotation bodies, or null to generate them. */
+	private AnnotationCache annotationCache;
+
+	/**
+	 * Key of the content of the workflow bundle, or null if unknown, in which
+	 * case the generated annotation bodies are not cached.
+	 */
+	private String bundleKey;
+
+	/** Cancellation of the conversion, checked between and inside its phases. */
+	private Cancellation cancellation = new Cancellation();
+
 	/**
 	 * The constructor.
 	 * 
@@ -118,42 +195,241 @@ public abstract class Wf2ROConverter {
 	//	String wfname = wfbundle.getMainWorkflow().getName() + ".wfbundle";
 		String uniqueName = generateUniqName(wfbundle.getMainWorkflow());
 		String wfname = wfbundle.getMainWorkflow().getName() + "-" + uniqueName + ".wfbundle";
-		ResearchObject ro = createResearchObject(wfUUID);
-		Resource wfbundleAggregated = addWorkflowBundle(ro, wfbundle, wfname);
+		final ResearchObject ro = createResearchObject(wfUUID);
+		final Resource wfbundleAggregated;
+		cancellation.check();
+		PhaseTimings.Running upload = timings.start("wfbundle");
+		try {
+			wfbundleAggregated = addWorkflowBundle(ro, wfbundle, wfname);
+		} finally {
+			timings.stop(upload);
+		}
 		Folder mainFolder = getExtractMain();
 		if (mainFolder != null) {
 			// Add to the main folder
-			mainFolder.addEntry(wfbundleAggregated, wfname);
+			addToFolder(mainFolder, wfbundleAggregated, wfname);
 			// TODO: Handle conflicts if already exists
 		}
 
 		resourcesAdded.add(wfbundleAggregated.getUri());
-		try {
-			extractAnnotations(ro, wfbundleAggregated, wfbundle, resourcesAdded);
-		} catch (IOException | ROSRSException e) {
-			LOG.error("Can't extract annotations from workflow", e);
-		}
 
-		try {
-			resourcesAdded.add(addWfDescAnnotation(ro, wfbundle, wfbundleAggregated).getUri());
-		} catch (IOException | ROSRSException e) {
-			LOG.error("Can't upload workflow desc", e);
-		}
-		try {
-			resourcesAdded.add(addRoEvoAnnotation(ro, wfbundle, wfbundleAggregated).getUri());
-		} catch (IOException | ROSRSException e) {
-			LOG.error("Can't upload RO evolution desc", e);
-		}
-		try {
-			URI internalWorkflowURI = uriTools.uriForBean(wfbundle.getMainWorkflow());
-			resourcesAdded.add(addLinkAnnotation(ro, originalWfUri, wfbundleAggregated,
-					internalWorkflowURI).getUri());
-		} catch (ROSRSException e) {
-			LOG.error("Can't upload the link annotation", e);
+		// Everything else only needs the workflow bundle to be aggregated
+		ConversionPhases phases = new ConversionPhases();
+		phases.setTimings(timings);
+		phases.setCancellation(cancellation);
+		phases.add("annotations", new ConversionPhases.Phase() {
+
+			@Override
+			public void run() throws Exception {
+				try {
+					extractAnnotations(ro, wfbundleAggregated, wfbundle, resourcesAdded);
+				} catch (IOException | ROSRSException e) {
+					LOG.error("Can't extract annotations from workflow", e);
+				}
+			}
+		});
+		phases.add("wfdesc", new ConversionPhases.Phase() {
+
+			@Override
+			public void run() throws Exception {
+				try {
+					resourcesAdded.add(addWfDescAnnotation(ro, wfbundle, wfbundleAggregated)
+							.getUri());
+				} catch (IOException | ROSRSException e) {
+					LOG.error("Can't upload workflow desc", e);
+				}
+			}
+		});
+		phases.add("roevo", new ConversionPhases.Phase() {
+
+			@Override
+			public void run() throws Exception {
+				try {
+					resourcesAdded.add(addRoEvoAnnotation(ro, wfbundle, wfbundleAggregated)
+							.getUri());
+				} catch (IOException | ROSRSException e) {
+					LOG.error("Can't upload RO evolution desc", e);
+				}
+			}
+		});
+		phases.add("link", new ConversionPhases.Phase() {
+
+			@Override
+			public void run() throws Exception {
+				try {
+					URI internalWorkflowURI = uriTools.uriForBean(wfbundle.getMainWorkflow());
+					resourcesAdded.add(addLinkAnnotation(ro, originalWfUri, wfbundleAggregated,
+							internalWorkflowURI).getUri());
+				} catch (ROSRSException e) {
+					LOG.error("Can't upload the link annotation", e);
+				}
+			}
+		});
+		if (isExtractNested()) {
+			// every nested workflow is uploaded in its own bundle, independently
+			final NestedBundleExtractor extractor = new NestedBundleExtractor(wfbundle);
+			for (final Workflow nested : wfbundle.getWorkflows()) {
+				if (nested == wfbundle.getMainWorkflow()) {
+					continue;
+				}
+				phases.add("nested", "nested " + nested.getName(), new ConversionPhases.Phase() {
+
+					@Override
+					public void run() throws Exception {
+						uploadNestedWorkflow(ro, extractor, nested);
+					}
+				});
+			}
 		}
-		uploadNestedWorkflows(ro);
-		uploadScripts(ro);
-		uploadWebServices(ro);
+		phases.add("scripts", new ConversionPhases.Phase() {
+
+			@Override
+			public void run() throws Exception {
+				uploadScripts(ro);
+			}
+		});
+		phases.add("services", new ConversionPhases.Phase() {
+
+			@Override
+			public void run() throws Exception {
+				uploadWebServices(ro);
+			}
+		});
+		phases.run(isThreadSafe() ? executor : null);
+	}
+
+	/**
+	 * Set the executor for running the conversion phases that follow the
+	 * workflow bundle upload in parallel. The executor is only used if the
+	 * converter declares that it is thread safe, see {@link #isThreadSafe()}.
+	 * 
+	 * @param executor
+	 *            the executor, or null (default) to run the phases one after
+	 *            another in the calling thread
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Whether the subclass methods uploading resources, annotations and folder
+	 * entries, and getting the folders, may be called by phases running in
+	 * parallel. A subclass returning true must guard the research object and
+	 * folders it shares between the phases.
+	 * 
+	 * @return false, so that the phases run one after another even if an
+	 *         executor is set
+	 */
+	protected boolean isThreadSafe() {
+		return false;
+	}
+
+	/**
+	 * Set the threads serializing the workflow bundles and annotation bodies
+	 * while they are uploaded.
+	 * 
+	 * @param serializers
+	 *            the serializer pool, by default the shared one
+	 */
+	public void setSerializerPool(SerializerPool serializers) {
+		this.serializers = serializers;
+	}
+
+	/**
+	 * Serialize the workflow bundles completely before uploading them, so that
+	 * their length is known and a failed upload can be repeated.
+	 * 
+	 * @param staging
+	 *            the staging, or null (default) to upload the workflow bundles
+	 *            while they are serialized
+	 */
+	public void setStaging(BodyStaging staging) {
+		this.staging = staging;
+	}
+
+	/**
+	 * Set where to record the time of each conversion phase, for example to
+	 * add them to the phases of a job.
+	 * 
+	 * @param timings
+	 *            the phase timings
+	 */
+	public void setTimings(PhaseTimings timings) {
+		this.timings = timings;
+	}
+
+	/**
+	 * @return the time spent in each conversion phase
+	 */
+	public PhaseTimings getTimings() {
+		return timings;
+	}
+
+	/**
+	 * Set the cancellation of the conversion. Once it is cancelled, the phases
+	 * that haven't started are skipped, the running ones stop at their next
+	 * nested workflow, script or service, and the bodies being uploaded fail.
+	 * 
+	 * @param cancellation
+	 *            the cancellation
+	 */
+	public void setCancellation(Cancellation cancellation) {
+		this.cancellation = cancellation;
+	}
+
+	/**
+	 * @return the cancellation of the conversion
+	 */
+	protected Cancellation getCancellation() {
+		return cancellation;
+	}
+
+	/**
+	 * Prepare a body for upload, counting its bytes in the current phase and
+	 * failing it when the conversion is cancelled.
+	 * 
+	 * @param in
+	 *            the body
+	 * @return the body to upload
+	 */
+	protected InputStream trackUpload(InputStream in) {
+		return cancellation.track(PhaseTimings.count(in));
+	}
+
+	/**
+	 * Merge the annotations of the workflow bundle into a single annotation,
+	 * which is uploaded with one request instead of one per annotation. Every
+	 * merged triple is reified and linked to the annotation body it comes from.
+	 * 
+	 * @param mergeAnnotations
+	 *            true to merge, false (default) to upload each annotation
+	 */
+	public void setMergeAnnotations(boolean mergeAnnotations) {
+		this.mergeAnnotations = mergeAnnotations;
+	}
+
+	/**
+	 * Reuse the wfdesc and roevo annotation bodies generated when the same
+	 * workflow was converted before. The bodies are cached only if the key of
+	 * the workflow bundle is set.
+	 * 
+	 * @param annotationCache
+	 *            the cache, or null (default) to generate the bodies every time
+	 */
+	public void setAnnotationCache(AnnotationCache annotationCache) {
+		this.annotationCache = annotationCache;
+	}
+
+	/**
+	 * Set the key of the content of the workflow bundle, under which the
+	 * generated annotation bodies are cached.
+	 * 
+	 * @param bundleKey
+	 *            the key, for example {@link WorkflowSource#getKey()} of the
+	 *            document the bundle was parsed from
+	 */
+	public void setBundleKey(String bundleKey) {
+		this.bundleKey = bundleKey;
 	}
 
 	private void uploadScripts(ResearchObject ro) throws IOException, ROSRSException, ROException {
@@ -162,6 +438,7 @@ public abstract class Wf2ROConverter {
 		}
 		for (Profile p : wfbundle.getProfiles()) {
 			for (Configuration conf : p.getConfigurations()) {
+				cancellation.check();
 				String script = conf.getJson().path("script").asText();
 				if (script.isEmpty()) {
 					// TODO: Also support ExternalTool command line
@@ -170,34 +447,31 @@ public abstract class Wf2ROConverter {
 				// Find unique identifier for script - we'll hash its content
 				String sha = utf8sha(script);
 				Folder folder = getExtractScripts();
-				if (folder != null) {
-					if (hasFolderEntryWithNameContaining(folder, sha)) {
-						// Another workflow with the same id exists - first one
-						// wins
-						continue;
-					}
-				} else {
-					// Only aggregate, without folder
-					// To check for duplicates we'll instead just look at the
-					// URI strings..
-					for (URI resource : ro.getResources().keySet()) {
-						if (resource.toString().contains(sha)) {
-							// Assume already aggregated
-							continue;
-						}
-					}
+				if (!aggregated.claim(ro, folder, sha)) {
+					// Another workflow with the same id exists - first one
+					// wins
+					continue;
 				}
 
-				// We'll use a slightly nicer name, include the sha hash
-				String name = conf.getName() + "-" + sha + ".txt";
-				URI slug = slugForFolder(ro, folder).resolve(name);
-				// Upload script
-				ByteArrayInputStream scriptStream = new ByteArrayInputStream(script.getBytes(UTF8));
-				Resource uploadedScript = uploadAggregatedResource(ro, slug.toASCIIString(),
-						scriptStream, "text/plain");
-				addToFolder(folder, uploadedScript, name);
-				addLinkAnnotation(ro, originalWfUri, uploadedScript, null);
-				resourcesAdded.add(uploadedScript.getUri());
+				boolean uploaded = false;
+				try {
+					// We'll use a slightly nicer name, include the sha hash
+					String name = conf.getName() + "-" + sha + ".txt";
+					URI slug = slugForFolder(ro, folder).resolve(name);
+					// Upload script
+					ByteArrayInputStream scriptStream = new ByteArrayInputStream(
+							script.getBytes(UTF8));
+					Resource uploadedScript = uploadAggregatedResource(ro, slug.toASCIIString(),
+							trackUpload(scriptStream), "text/plain");
+					addToFolder(folder, uploadedScript, name);
+					addLinkAnnotation(ro, originalWfUri, uploadedScript, null);
+					resourcesAdded.add(uploadedScript.getUri());
+					uploaded = true;
+				} finally {
+					if (!uploaded) {
+						aggregated.release(ro, folder, sha);
+					}
+				}
 			}
 		}
 	}
@@ -210,6 +484,7 @@ public abstract class Wf2ROConverter {
 		}
 		for (Profile p : wfbundle.getProfiles()) {
 			for (Configuration conf : p.getConfigurations()) {
+				cancellation.check();
 				String ws = "";
 				JsonNode json = conf.getJson();
 				switch (conf.getType().toString()) {
@@ -233,35 +508,31 @@ public abstract class Wf2ROConverter {
 				URI wsURI = URI.create(ws);
 				UUID uuid = UUIDTool.namespaceUUID(wsURI);
 
-				if (folder != null) {
-					if (hasFolderEntryWithNameContaining(folder, uuid.toString())) {
-						// Another workflow with the same id exists - first one
-						// wins
-						continue;
-					}
-				} else {
-					// Only aggregate, without folder
-					// To check for duplicates we'll instead just look at the
-					// URI strings..
-					for (URI resource : ro.getResources().keySet()) {
-						if (resource.toString().contains(uuid.toString())) {
-							// Assume already aggregated
-							continue;
-						}
-					}
+				if (!aggregated.claim(ro, folder, uuid.toString())) {
+					// Another workflow with the same id exists - first one
+					// wins
+					continue;
 				}
 
-				// aggregate if needed
-				Resource resource = ro.getResource(wsURI);
-				if (resource == null) {
-					resource = aggregateExternal(ro, wsURI);
+				boolean aggregatedNow = false;
+				try {
+					// aggregate if needed
+					Resource resource = getAggregatedResources(ro).get(wsURI);
+					if (resource == null) {
+						resource = aggregateExternal(ro, wsURI);
+					}
+					resourcesAdded.add(resource.getUri());
+					// We'll use a slightly nicer name that includes the hostname
+					String name = wsURI.getHost() + "-" + uuid;
+					addToFolder(folder, resource, name);
+					// FIXME: What is the link relation going to be?
+					// addLinkAnnotation(ro, originalWfUri, resource, null);
+					aggregatedNow = true;
+				} finally {
+					if (!aggregatedNow) {
+						aggregated.release(ro, folder, uuid.toString());
+					}
 				}
-				resourcesAdded.add(resource.getUri());
-				// We'll use a slightly nicer name that includes the hostname
-				String name = wsURI.getHost() + "-" + uuid;
-				addToFolder(folder, resource, name);
-				// FIXME: What is the link relation going to be?
-				// addLinkAnnotation(ro, originalWfUri, resource, null);
 			}
 		}
 	}
@@ -269,26 +540,6 @@ public abstract class Wf2ROConverter {
 	protected abstract Resource aggregateExternal(ResearchObject ro, URI external)
 			throws ROSRSException;
 
-	private boolean hasFolderEntryWithNameContaining(Folder folder, String partialFilename)
-			throws ROSRSException {
-		if (partialFilename.isEmpty()) {
-			return false;
-		}
-		if (!folder.isLoaded()) {
-			folder.load();
-		}
-		for (FolderEntry entry : folder.getFolderEntries().values()) {
-			if (entry.getName() == null) {
-				LOG.warn("No name for folder entry of " + entry.getResourceUri());
-				continue;
-			}
-			if (entry.getName().contains(partialFilename)) {
-				return true;
-			}
-		}
-		return false;
-	}
-
 	private URI slugForFolder(ResearchObject ro, Folder folder) {
 		URI uri = ro.getUri();
 		if (folder != null) {
@@ -305,21 +556,9 @@ public abstract class Wf2ROConverter {
 		return slugBase;
 	}
 
-	private Resource getFolderEntry(Folder folder, String entryName) throws ROSRSException {
-		if (!folder.isLoaded()) {
-			folder.load();
-		}
-		for (FolderEntry entry : folder.getFolderEntries().values()) {
-			if (entry.getName().equals(entryName)) {
-				return entry.getResource();
-			}
-		}
-		return null;
-	}
-
 	private static Charset UTF8 = Charset.forName("UTF-8");
 
-	private String utf8sha(String script) {
+	String utf8sha(String script) {
 		MessageDigest sha1;
 		try {
 			sha1 = MessageDigest.getInstance("SHA1");
@@ -331,82 +570,83 @@ public abstract class Wf2ROConverter {
 		return Hex.encodeHexString(digest);
 	}
 
-	private void uploadNestedWorkflows(ResearchObject ro) throws IOException, ROSRSException,
-			WriterException, ROException {
-		if (!isExtractNested()) {
-			return;
-		}
-
-		Workflow mainWf = wfbundle.getMainWorkflow();
+	/**
+	 * Find the version of scufl2-wfdesc, which provides both the wfdesc writer
+	 * and the roevo serializer.
+	 * 
+	 * @return the version from the jar manifest or, failing that, the jar
+	 *         name, which includes the version in a Maven build
+	 */
+	private static String generatorVersion() {
 		try {
+			Package wfdesc = ROEvoSerializer.class.getPackage();
+			if (wfdesc != null && wfdesc.getImplementationVersion() != null) {
+				return wfdesc.getImplementationVersion();
+			}
+			String location = ROEvoSerializer.class.getProtectionDomain().getCodeSource()
+					.getLocation().getPath();
+			return location.substring(location.lastIndexOf('/', location.length() - 2) + 1);
+		} catch (RuntimeException e) {
+			LOG.debug("Can't find the scufl2-wfdesc version", e);
+			return "unknown";
+		}
+	}
 
-			workflowLoop: for (Workflow otherWf : wfbundle.getWorkflows()) {
-				if (otherWf == mainWf) {
-					continue;
-				}
-				// Cheaky way to save out nested workflows (and any of their
-				// nested wfs, annotations and configurations).
-				//
-				// Note that this is not ideal, it will include lots of
-				// unreferenced workflows and configurations, but is easier than
-				// doing a recursive copy
-				wfbundle.setMainWorkflow(otherWf);
-
-				// Try to extract the UUID
-				/*
-				String id = Workflow.WORKFLOW_ROOT.relativize(otherWf.getIdentifier())
-						.toASCIIString().replace("/", "");
-				UUID uuid;
-				try {
-					uuid = UUID.fromString(id);
-				} catch (IllegalArgumentException ex) {
-					// Fallback, generate a name UUID from the URL
-					uuid = UUIDTool.namespaceUUID(otherWf.getIdentifier());
-				}
-				*/
-				
-				String uniqueName = generateUniqName(otherWf);
-				String name = otherWf.getName() + "-" + uniqueName + ".wfbundle";
-				Folder folder = getExtractNested();
-
-				Resource nestedWf = null;
-				if (folder != null) {
-					if (hasFolderEntryWithNameContaining(folder, uniqueName)) {
-						// Another workflow with the same id exists - first one
-						// wins
-						continue workflowLoop;
-					}
-
-					// A long, but unique name
-					URI slug = slugForFolder(ro, folder).resolve(name);
-					nestedWf = addWorkflowBundle(ro, wfbundle, slug.toString());
-					addToFolder(folder, nestedWf, name);
+	/**
+	 * Upload a nested workflow as a workflow bundle with only the workflows,
+	 * configurations and annotations it needs.
+	 * 
+	 * @param ro
+	 *            research object
+	 * @param extractor
+	 *            builds the bundle of the nested workflow
+	 * @param nested
+	 *            the nested workflow
+	 * @throws IOException
+	 *             when there was a problem with getting/uploading the RO
+	 *             resources
+	 * @throws ROSRSException
+	 *             ROSR service error
+	 * @throws WriterException
+	 *             workflow bundle error
+	 * @throws ROException
+	 *             when the manifest is incorrect
+	 */
+	private void uploadNestedWorkflow(ResearchObject ro, NestedBundleExtractor extractor,
+			Workflow nested) throws IOException, ROSRSException, WriterException, ROException {
+		cancellation.check();
+		String uniqueName = generateUniqName(nested);
+		String name = nested.getName() + "-" + uniqueName + ".wfbundle";
+		Folder folder = getExtractNested();
 
-				} else {
-					// Only aggregate, without folder
-					// To check for duplicates we'll instead just look at the
-					// URI strings..
-					for (URI resource : ro.getResources().keySet()) {
-						if (resource.toString().contains(uniqueName)) {
-							// Assume already aggregated
-							continue workflowLoop;
-						}
-						nestedWf = addWorkflowBundle(ro, wfbundle, name);
-					}
-					if (nestedWf != null) {
-						addLinkAnnotation(ro, originalWfUri, nestedWf, otherWf.getIdentifier());
-					}
-				}
-				resourcesAdded.add(nestedWf.getUri());
+		if (!aggregated.claim(ro, folder, uniqueName)) {
+			// Another workflow with the same id exists - first one
+			// wins
+			return;
+		}
 
+		boolean uploaded = false;
+		try {
+			Resource nestedWf;
+			if (folder != null) {
+				// A long, but unique name
+				URI slug = slugForFolder(ro, folder).resolve(name);
+				nestedWf = addWorkflowBundle(ro, extractor.extract(nested), slug.toString());
+				addToFolder(folder, nestedWf, name);
+			} else {
+				// Only aggregate, without folder
+				nestedWf = addWorkflowBundle(ro, extractor.extract(nested), name);
+				addLinkAnnotation(ro, originalWfUri, nestedWf, nested.getIdentifier());
 			}
+			resourcesAdded.add(nestedWf.getUri());
+			uploaded = true;
 		} finally {
-			// Restore wfbundle main workflow in case it is used elsewhere
-			wfbundle.setMainWorkflow(mainWf);
+			if (!uploaded) {
+				aggregated.release(ro, folder, uniqueName);
+			}
 		}
-
 	}
-	
+
 	protected String generateUniqName(Workflow wf) {
 		// Try to extract the UUID
 		String id = Workflow.WORKFLOW_ROOT.relativize(wf.getIdentifier())
@@ -436,15 +676,69 @@ public abstract class Wf2ROConverter {
 		return getExtractServices() != null;
 	}
 
-	private void addToFolder(Folder folder, Resource resource, String entryName)
+	/**
+	 * Add a resource to a folder of the research object.
+	 * 
+	 * @param folder
+	 *            the folder, or null to do nothing
+	 * @param resource
+	 *            the aggregated resource
+	 * @param entryName
+	 *            folder entry name
+	 * @throws ROSRSException
+	 *             ROSR service error
+	 * @throws ROException
+	 *             when the folder description is incorrect
+	 */
+	protected void addToFolder(Folder folder, Resource resource, String entryName)
 			throws ROSRSException, ROException {
 		if (folder == null) {
 			return;
 		}
-		if (!folder.isLoaded()) {
-			folder.load();
+		// phases running in parallel may share the folder
+		synchronized (folder) {
+			if (!folder.isLoaded()) {
+				folder.load();
+			}
+			folder.addEntry(resource, entryName);
+		}
+	}
+
+	/**
+	 * Get the names of the entries of a folder of the research object.
+	 * 
+	 * @param folder
+	 *            the folder
+	 * @return the entry names
+	 * @throws ROSRSException
+	 *             when the folder can't be loaded
+	 */
+	protected Collection<String> getFolderEntryNames(Folder folder) throws ROSRSException {
+		List<String> names = new ArrayList<>();
+		synchronized (folder) {
+			if (!folder.isLoaded()) {
+				folder.load();
+			}
+			for (FolderEntry entry : folder.getFolderEntries().values()) {
+				if (entry.getName() == null) {
+					LOG.warn("No name for folder entry of " + entry.getResourceUri());
+					continue;
+				}
+				names.add(entry.getName());
+			}
 		}
-		folder.addEntry(resource, entryName);
+		return names;
+	}
+
+	/**
+	 * Get the resources aggregated by the research object.
+	 * 
+	 * @param ro
+	 *            the research object
+	 * @return the resources by URI
+	 */
+	protected Map<URI, Resource> getAggregatedResources(ResearchObject ro) {
+		return ro.getResources();
 	}
 
 	/**
@@ -484,28 +778,36 @@ public abstract class Wf2ROConverter {
 	protected Resource addWorkflowBundle(ResearchObject ro, final WorkflowBundle wfbundle,
 			String wfPath) throws IOException, ROSRSException, WriterException, ROException {
 		// save the scufl2
-		final PipedInputStream in = new PipedInputStream();
-		final PipedOutputStream out = new PipedOutputStream(in);
-		new Thread(new Runnable() {
+		SerializerPool.Serialization serialization = new SerializerPool.Serialization() {
 
-			public void run() {
-				Thread.currentThread().setContextClassLoader(getClass().getClassLoader());
-				try {
+			@Override
+			public void writeTo(OutputStream out) throws Exception {
+				// the writer stores the workflows in the UCF package, which
+				// may be shared with other jobs through the bundle cache
+				synchronized (wfbundle.getResources()) {
 					bundleIO.writeBundle(wfbundle, out,
 							RDFXMLReader.APPLICATION_VND_TAVERNA_SCUFL2_WORKFLOW_BUNDLE);
-				} catch (WriterException | IOException e) {
-					LOG.error("Can't download workflow bundle", e);
-				} finally {
-					try {
-						out.close();
-					} catch (IOException e) {
-						LOG.warn("Exception when closing the workflow bundle output stream", e);
-					}
 				}
 			}
-		}).start();
-		return uploadAggregatedResource(ro, wfPath, in,
-				RDFXMLReader.APPLICATION_VND_TAVERNA_SCUFL2_WORKFLOW_BUNDLE);
+		};
+		if (staging != null) {
+			try (StagedBody body = staging.stage("workflow bundle " + wfPath, serialization)) {
+				return uploadAggregatedResource(ro, wfPath, body,
+						RDFXMLReader.APPLICATION_VND_TAVERNA_SCUFL2_WORKFLOW_BUNDLE);
+			}
+		}
+		SerializedInputStream in = serializers.serialize("workflow bundle " + wfPath,
+				serialization);
+		try {
+			return uploadAggregatedResource(ro, wfPath, trackUpload(in),
+					RDFXMLReader.APPLICATION_VND_TAVERNA_SCUFL2_WORKFLOW_BUNDLE);
+		} catch (RuntimeException e) {
+			in.rethrowFailure();
+			throw e;
+		} finally {
+			// stops the serialization if the upload has failed
+			in.close();
+		}
 	}
 
 	/**
@@ -532,33 +834,48 @@ public abstract class Wf2ROConverter {
 	 * @throws ROException
 	 *             when the manifest is incorrect
 	 */
-	private void extractAnnotations(ResearchObject ro, Resource wfbundleAggregated,
+	void extractAnnotations(ResearchObject ro, Resource wfbundleAggregated,
 			final WorkflowBundle wfbundle, List<URI> resourcesAdded2) throws IOException,
 			ROSRSException, ROException {
 		// search for annotations
 		URITools tools = new URITools();
+		List<AnnotationBody> merged = new ArrayList<>();
 		NamedSet<uk.org.taverna.scufl2.api.annotation.Annotation> annotations = wfbundle
 				.getAnnotations();
 		for (uk.org.taverna.scufl2.api.annotation.Annotation annotation : annotations) {
+			cancellation.check();
 			if (annotation.getTarget().equals(wfbundle)
 					|| annotation.getTarget().equals(wfbundle.getMainWorkflow())) {
 				LOG.debug(String.format("Uploading annotation for %s taken from %s",
 						wfbundleAggregated.getUri(), annotation.getBody()));
-				Model annBody = ModelFactory.createDefaultModel();
 				String annotationBody = annotation.getBody().toASCIIString();
-				try (InputStream wfAnnBody = wfbundle.getResources().getResourceAsInputStream(
-						annotationBody)) {
-					// System.out.println(annotationBody);
-					// System.out.println(wfbundle.getResources().getResourceAsString(annotationBody));
-					annBody.read(wfAnnBody,
-							wfbundle.getGlobalBaseURI().resolve(annotation.getBody())
-									.toASCIIString());
+				String base = wfbundle.getGlobalBaseURI().resolve(annotation.getBody())
+						.toASCIIString();
+				byte[] body;
+				String mediaType;
+				// nested workflow bundles copy annotation bodies in parallel
+				synchronized (wfbundle.getResources()) {
+					UCFPackage.ResourceEntry entry = wfbundle.getResources().getResourceEntry(
+							annotationBody);
+					mediaType = entry != null ? entry.getMediaType() : null;
+					body = wfbundle.getResources().getResourceAsBytes(annotationBody);
 				}
-				try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
-					annBody.write(out);
-					try (ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray())) {
-						resourcesAdded2.add(uploadAnnotation(ro, "wf", wfbundleAggregated, in,
-								"application/rdf+xml").getUri());
+				Lang lang = streamableLang(annotationBody, mediaType);
+				if (mergeAnnotations) {
+					// the model path reads RDF/XML
+					merged.add(new AnnotationBody(body, base, lang != null ? lang : Lang.RDFXML));
+				} else if (lang != null) {
+					resourcesAdded2.add(uploadStreamedAnnotation(ro, wfbundleAggregated, body,
+							base, lang).getUri());
+				} else {
+					Model annBody = ModelFactory.createDefaultModel();
+					annBody.read(new ByteArrayInputStream(body), base);
+					try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+						annBody.write(out);
+						try (ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray())) {
+							resourcesAdded2.add(uploadAnnotation(ro, "wf", wfbundleAggregated,
+									trackUpload(in), "application/rdf+xml").getUri());
+						}
 					}
 				}
 			} else {
@@ -567,6 +884,128 @@ public abstract class Wf2ROConverter {
 						annotation.getBody()));
 			}
 		}
+		if (!merged.isEmpty()) {
+			resourcesAdded2.add(uploadMergedAnnotation(ro, wfbundleAggregated, merged).getUri());
+		}
+	}
+
+	/**
+	 * Find the syntax of an annotation body if it can be rewritten as a
+	 * stream of triples.
+	 * 
+	 * @param path
+	 *            the body path in the workflow bundle
+	 * @param mediaType
+	 *            the body media type in the workflow bundle, or null
+	 * @return the syntax, or null if the body must be read into a model
+	 */
+	static Lang streamableLang(String path, String mediaType) {
+		Lang lang = null;
+		if (mediaType != null) {
+			lang = RDFLanguages.contentTypeToLang(mediaType);
+		}
+		if (lang == null) {
+			lang = RDFLanguages.filenameToLang(path);
+		}
+		if (lang == Lang.RDFXML || lang == Lang.TURTLE || lang == Lang.N3
+				|| lang == Lang.NTRIPLES) {
+			return lang;
+		}
+		return null;
+	}
+
+	/**
+	 * Write the triples of an RDF document as N-Triples, with the relative
+	 * URIs resolved, without building a model.
+	 * 
+	 * @param in
+	 *            the document
+	 * @param base
+	 *            the base URI of the document
+	 * @param lang
+	 *            the syntax of the document
+	 * @param out
+	 *            where to write the triples
+	 */
+	static void writeTriples(InputStream in, String base, Lang lang, OutputStream out) {
+		StreamRDF writer = StreamRDFLib.writer(out);
+		RDFDataMgr.parse(writer, in, base, lang);
+	}
+
+	/**
+	 * Upload an annotation body of the workflow bundle, rewritten as
+	 * N-Triples while it is parsed. N-Triples is uploaded as Turtle, of which
+	 * it is a subset.
+	 * 
+	 * @param ro
+	 *            research object
+	 * @param wfbundleAggregated
+	 *            the workflow bundle URI used in the research object
+	 * @param body
+	 *            the annotation body
+	 * @param base
+	 *            the base URI of the annotation body
+	 * @param lang
+	 *            the syntax of the annotation body
+	 * @return the annotation
+	 * @throws IOException
+	 *             when the annotation body can't be parsed
+	 * @throws ROSRSException
+	 *             ROSR service error
+	 * @throws ROException
+	 *             when the manifest is incorrect
+	 */
+	private Annotation uploadStreamedAnnotation(ResearchObject ro, Resource wfbundleAggregated,
+			final byte[] body, final String base, final Lang lang) throws IOException,
+			ROSRSException, ROException {
+		return uploadSerializedAnnotation(ro, "wf", wfbundleAggregated, "annotation " + base,
+				new SerializerPool.Serialization() {
+
+					@Override
+					public void writeTo(OutputStream out) throws Exception {
+						writeTriples(new ByteArrayInputStream(body), base, lang, out);
+					}
+				});
+	}
+
+
+	/**
+	 * Upload the annotation bodies of the workflow bundle as one annotation,
+	 * with every triple reified and linked to the body it comes from with
+	 * prov:wasDerivedFrom.
+	 * 
+	 * @param ro
+	 *            research object
+	 * @param wfbundleAggregated
+	 *            the workflow bundle URI used in the research object
+	 * @param bodies
+	 *            the annotation bodies
+	 * @return the annotation
+	 * @throws IOException
+	 *             when an annotation body can't be parsed
+	 * @throws ROSRSException
+	 *             ROSR service error
+	 * @throws ROException
+	 *             when the manifest is incorrect
+	 */
+	private Annotation uploadMergedAnnotation(ResearchObject ro, Resource wfbundleAggregated,
+			final List<AnnotationBody> bodies) throws IOException, ROSRSException, ROException {
+		return uploadSerializedAnnotation(ro, "wf", wfbundleAggregated,
+				bodies.size() + " merged annotations", new SerializerPool.Serialization() {
+
+					@Override
+					public void writeTo(OutputStream out) throws Exception {
+						StreamRDF writer = StreamRDFLib.writer(out);
+						ReifyingStreamRDF merged = new ReifyingStreamRDF(writer);
+						writer.start();
+						for (AnnotationBody body : bodies) {
+							merged.setSource(body.base);
+							RDFDataMgr.parse(merged, new ByteArrayInputStream(body.bytes),
+									body.base, body.lang);
+						}
+						writer.finish();
+					}
+				});
 	}
 
 	/**
@@ -590,26 +1029,15 @@ public abstract class Wf2ROConverter {
 	 */
 	protected Annotation addRoEvoAnnotation(ResearchObject ro, final WorkflowBundle wfbundle,
 			Resource wfbundleAggregated) throws IOException, ROSRSException, ROException {
-		final PipedInputStream in = new PipedInputStream();
-		final PipedOutputStream out = new PipedOutputStream(in);
-		new Thread(new Runnable() {
+		return uploadGeneratedAnnotation(ro, "roevo", wfbundleAggregated,
+				new SerializerPool.Serialization() {
 
-			public void run() {
-				ROEvoSerializer roEvo = new ROEvoSerializer();
-				try {
-					roEvo.workflowHistory(wfbundle.getMainWorkflow(), out);
-				} catch (WriterException e) {
-					LOG.error("Can't download workflow desc", e);
-				} finally {
-					try {
-						out.close();
-					} catch (IOException e) {
-						LOG.warn("Exception when closing the annotation body output stream", e);
+					@Override
+					public void writeTo(OutputStream out) throws Exception {
+						ROEvoSerializer roEvo = new ROEvoSerializer();
+						roEvo.workflowHistory(wfbundle.getMainWorkflow(), out);
 					}
-				}
-			}
-		}).start();
-		return uploadAnnotation(ro, "roevo", wfbundleAggregated, in, TEXT_TURTLE);
+				});
 	}
 
 	/**
@@ -634,25 +1062,90 @@ public abstract class Wf2ROConverter {
 	 */
 	protected Annotation addWfDescAnnotation(ResearchObject ro, final WorkflowBundle wfbundle,
 			Resource wfbundleAggregated) throws IOException, ROSRSException, ROException {
-		final PipedInputStream in = new PipedInputStream();
-		final PipedOutputStream out = new PipedOutputStream(in);
-		new Thread(new Runnable() {
+		return uploadGeneratedAnnotation(ro, "wfdesc", wfbundleAggregated,
+				new SerializerPool.Serialization() {
 
-			public void run() {
+					@Override
+					public void writeTo(OutputStream out) throws Exception {
+						bundleIO.writeBundle(wfbundle, out, TEXT_VND_WF4EVER_WFDESC_TURTLE);
+					}
+				});
+	}
+
+	/**
+	 * Upload a Turtle annotation body generated from the workflow bundle,
+	 * reading it from the annotation cache if it has been generated before.
+	 * 
+	 * @param ro
+	 *            research object
+	 * @param name
+	 *            annotation name
+	 * @param wfbundleAggregated
+	 *            the workflow bundle URI used in the research object
+	 * @param serialization
+	 *            generates the body
+	 * @return the annotation
+	 * @throws IOException
+	 *             when there was a problem with getting/uploading the RO
+	 *             resources
+	 * @throws ROSRSException
+	 *             ROSR service error
+	 * @throws ROException
+	 *             when the manifest is incorrect
+	 */
+	private Annotation uploadGeneratedAnnotation(ResearchObject ro, String name,
+			Resource wfbundleAggregated, SerializerPool.Serialization serialization)
+			throws IOException, ROSRSException, ROException {
+		if (annotationCache != null && bundleKey != null) {
+			String key = bundleKey + " " + name + " " + GENERATOR_VERSION;
+			InputStream cached = annotationCache.open(key);
+			if (cached != null) {
 				try {
-					bundleIO.writeBundle(wfbundle, out, TEXT_VND_WF4EVER_WFDESC_TURTLE);
-				} catch (WriterException | IOException e) {
-					LOG.error("Can't download workflow desc", e);
+					return uploadAnnotation(ro, name, wfbundleAggregated,
+							trackUpload(cached), TEXT_TURTLE);
 				} finally {
-					try {
-						out.close();
-					} catch (IOException e) {
-						LOG.warn("Exception when closing the annotation body output stream", e);
-					}
+					cached.close();
 				}
 			}
-		}).start();
-		return uploadAnnotation(ro, "wfdesc", wfbundleAggregated, in, TEXT_TURTLE);
+			serialization = annotationCache.record(key, serialization);
+		}
+		return uploadSerializedAnnotation(ro, name, wfbundleAggregated, name + " annotation",
+				serialization);
+	}
+
+	/**
+	 * Upload a Turtle annotation body while it is serialized.
+	 * 
+	 * @param ro
+	 *            research object
+	 * @param name
+	 *            annotation name
+	 * @param target
+	 *            annotation target
+	 * @param description
+	 *            description of the body for the serializer
+	 * @param serialization
+	 *            writes the body
+	 * @return the annotation
+	 * @throws IOException
+	 *             when the body can't be serialized
+	 * @throws ROSRSException
+	 *             ROSR service error
+	 * @throws ROException
+	 *             when the manifest is incorrect
+	 */
+	private Annotation uploadSerializedAnnotation(ResearchObject ro, String name,
+			Resource target, String description, SerializerPool.Serialization serialization)
+			throws IOException, ROSRSException, ROException {
+		SerializedInputStream in = serializers.serialize(description, serialization);
+		try {
+			return uploadAnnotation(ro, name, target, trackUpload(in), TEXT_TURTLE);
+		} catch (RuntimeException e) {
+			in.rethrowFailure();
+			throw e;
+		} finally {
+			in.close();
+		}
 	}
 
 	/**
@@ -699,7 +1192,7 @@ public abstract class Wf2ROConverter {
 		model.write(out, "TURTLE");
 		ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
 
-		return uploadAnnotation(ro, "link", wfbundleAggregated, in,
+		return uploadAnnotation(ro, "link", wfbundleAggregated, trackUpload(in),
 				RDFFormat.TURTLE.getDefaultMIMEType());
 	}
 
@@ -738,6 +1231,34 @@ public abstract class Wf2ROConverter {
 	protected abstract Resource uploadAggregatedResource(ResearchObject ro, String path,
 			InputStream in, String contentType) throws IOException, ROSRSException, ROException;
 
+	/**
+	 * Saves an aggregated resource that has been serialized completely. By
+	 * default it is uploaded like any other resource, subclasses may use the
+	 * known length or repeat the upload.
+	 * 
+	 * @param ro
+	 *            research object URI
+	 * @param path
+	 *            the resource path
+	 * @param body
+	 *            the serialized resource
+	 * @param contentType
+	 *            resource content type to be sent as in HTTP request
+	 * @return aggregated resource
+	 * @throws IOException
+	 *             when there are problems with uploading the resource
+	 * @throws ROSRSException
+	 *             ROSR service error
+	 * @throws ROException
+	 *             when the manifest is incorrect
+	 */
+	protected Resource uploadAggregatedResource(ResearchObject ro, String path,
+			StagedBody body, String contentType) throws IOException, ROSRSException, ROException {
+		try (InputStream in = body.openStream()) {
+			return uploadAggregatedResource(ro, path, trackUpload(in), contentType);
+		}
+	}
+
 	/**
 	 * Saves a resource in RODL as an annotation body of another resource.
 	 * 
@@ -771,6 +1292,40 @@ public abstract class Wf2ROConverter {
 		return resourcesAdded;
 	}
 
+	/**
+	 * Set the listener notified of every added resource.
+	 * 
+	 * @param resourceListener
+	 *            the listener, or null (default) to not notify
+	 */
+	public void setResourceListener(ResourceListener resourceListener) {
+		this.resourceListener = resourceListener;
+	}
+
+	/**
+	 * The list of added resources, notifying the resource listener. It is
+	 * only used wrapped in a synchronized list, so the listener is notified
+	 * while the list is locked and sees it with the new resource.
+	 * 
+	 * @author piotrekhol
+	 * 
+	 */
+	private class AddedResources extends ArrayList<URI> {
+
+		/** id. */
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public boolean add(URI uri) {
+			super.add(uri);
+			ResourceListener listener = resourceListener;
+			if (listener != null) {
+				listener.resourceAdded(uri);
+			}
+			return true;
+		}
+	}
+
 	/**
 	 * @return RO Folder where to extract main workflow, or <code>null</code> to
 	 *         not add extracted main workflow to any folder (the main workflow
@@ -796,4 +1351,38 @@ public abstract class Wf2ROConverter {
 	 */
 	public abstract Folder getExtractServices();
 
+
+	/**
+	 * An annotation body of the workflow bundle.
+	 * 
+	 * @author piotrekhol
+	 * 
+	 */
+	private static final class AnnotationBody {
+
+		/** The body. */
+		private final byte[] bytes;
+
+		/** The base URI of the body. */
+		private final String base;
+
+		/** The syntax of the body. */
+		private final Lang lang;
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param bytes
+		 *            the body
+		 * @param base
+		 *            the base URI of the body
+		 * @param lang
+		 *            the syntax of the body
+		 */
+		private AnnotationBody(byte[] bytes, String base, Lang lang) {
+			this.bytes = bytes;
+			this.base = base;
+			this.lang = lang;
+		}
+	}
 }
@@ -0,0 +1,106 @@
+/**
+ *
+ */
+package org.purl.wf4ever.wf2ro;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * A workflow document read into memory, with a key identifying its content:
+ * the SHA-256 of its bytes and its format. Bundles parsed from documents with
+ * the same key are the same, which lets the caches share what is derived from
+ * them.
+ *
+ */
+public class WorkflowSource {
+
+	/** The document. */
+	private final byte[] bytes;
+
+	/** The media type of the document. */
+	private final String format;
+
+	/** Content key. */
+	private final String key;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param bytes
+	 *            the document
+	 * @param sha256
+	 *            SHA-256 of the document, hex encoded
+	 * @param format
+	 *            the media type of the document
+	 */
+	private WorkflowSource(byte[] bytes, String sha256, String format) {
+		this.bytes = bytes;
+		this.format = format;
+		this.key = sha256 + " " + format;
+	}
+
+	/**
+	 * Read a workflow document completely, without closing the stream.
+	 *
+	 * @param in
+	 *            the document
+	 * @param format
+	 *            the media type of the document
+	 * @return the document
+	 * @throws IOException
+	 *             when the document can't be read
+	 */
+	public static WorkflowSource read(InputStream in, String format) throws IOException {
+		MessageDigest sha256;
+		try {
+			sha256 = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		InputStream digested = new DigestInputStream(in, sha256);
+		byte[] chunk = new byte[64 * 1024];
+		int n;
+		while ((n = digested.read(chunk)) >= 0) {
+			buffer.write(chunk, 0, n);
+		}
+		return new WorkflowSource(buffer.toByteArray(), Hex.encodeHexString(sha256.digest()),
+				format);
+	}
+
+	/**
+	 * @return a new stream of the document
+	 */
+	public InputStream openStream() {
+		return new ByteArrayInputStream(bytes);
+	}
+
+	/**
+	 * @return the document length in bytes
+	 */
+	public int getLength() {
+		return bytes.length;
+	}
+
+	/**
+	 * @return the media type of the document
+	 */
+	public String getFormat() {
+		return format;
+	}
+
+	/**
+	 * @return the SHA-256 of the document and its format
+	 */
+	public String getKey() {
+		return key;
+	}
+}
@@ -3,7 +3,7 @@ package org.purl.wf4ever.wf2ro.exceptions;
 import java.util.UUID;
 
 /**
- * The requested job does not exist.
+ * The requested job or batch of jobs does not exist.
  * 
  * @author piotrekhol
  * 
@@ -25,4 +25,15 @@ public class NotFoundException extends Exception {
     public NotFoundException(UUID uuid) {
         super("No job with id " + uuid);
     }
+
+
+    /**
+     * Constructor.
+     * 
+     * @param message
+     *            what does not exist
+     */
+    public NotFoundException(String message) {
+        super(message);
+    }
 }
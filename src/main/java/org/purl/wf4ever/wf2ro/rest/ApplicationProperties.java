@@ -26,6 +26,9 @@ public final class ApplicationProperties {
     /** application version in Maven. */
     private static String version;
 
+    /** all properties read from the file. */
+    private static Properties properties = new Properties();
+
     static {
         load();
     }
@@ -63,6 +66,48 @@ public final class ApplicationProperties {
         }
         name = properties.getProperty("application.name");
         version = properties.getProperty("application.version");
+        ApplicationProperties.properties = properties;
+    }
+
+
+    /**
+     * Get a property value.
+     * 
+     * @param key
+     *            property name
+     * @param defaultValue
+     *            value to return if the property is not set
+     * @return the property value or the default value
+     */
+    public static String getString(String key, String defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        return value.trim();
+    }
+
+
+    /**
+     * Get an integer property value.
+     * 
+     * @param key
+     *            property name
+     * @param defaultValue
+     *            value to return if the property is not set or is not a number
+     * @return the property value or the default value
+     */
+    public static int getInt(String key, int defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Property " + key + " is not a number: " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
     }
 
 
@@ -0,0 +1,172 @@
+package org.purl.wf4ever.wf2ro.rest;
+
+import java.net.URI;
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+import org.purl.wf4ever.wf2ro.rest.Job.State;
+
+/**
+ * Status of a batch of jobs as JSON: the jobs and how many of them are in each state.
+ *
+ */
+@XmlRootElement
+public class BatchStatus {
+
+    /** job URIs, in the order of the batch. */
+    private List<URI> jobs;
+
+    /** true if all the jobs have finished. */
+    private boolean finished;
+
+    /** number of jobs waiting for a worker. */
+    private int queued;
+
+    /** number of jobs running. */
+    private int running;
+
+    /** number of jobs finished successfully. */
+    private int done;
+
+    /** number of jobs cancelled. */
+    private int cancelled;
+
+    /** number of jobs failed, because of an invalid resource or a runtime error. */
+    private int failed;
+
+    /** number of finished jobs whose status has been removed. */
+    private int removed;
+
+
+    /**
+     * Default empty constructor.
+     */
+    public BatchStatus() {
+
+    }
+
+
+    /**
+     * Constructor.
+     *
+     * @param jobs
+     *            job URIs
+     */
+    public BatchStatus(List<URI> jobs) {
+        this.jobs = jobs;
+    }
+
+
+    /**
+     * Count a job of the batch.
+     *
+     * @param state
+     *            the job state, or null if its status has been removed
+     */
+    public void count(State state) {
+        if (state == null) {
+            removed++;
+            return;
+        }
+        switch (state) {
+            case QUEUED:
+                queued++;
+                break;
+            case RUNNING:
+                running++;
+                break;
+            case DONE:
+                done++;
+                break;
+            case CANCELLED:
+                cancelled++;
+                break;
+            default:
+                failed++;
+                break;
+        }
+        finished = queued == 0 && running == 0;
+    }
+
+
+    public List<URI> getJobs() {
+        return jobs;
+    }
+
+
+    public void setJobs(List<URI> jobs) {
+        this.jobs = jobs;
+    }
+
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+
+    public void setFinished(boolean finished) {
+        this.finished = finished;
+    }
+
+
+    public int getQueued() {
+        return queued;
+    }
+
+
+    public void setQueued(int queued) {
+        this.queued = queued;
+    }
+
+
+    public int getRunning() {
+        return running;
+    }
+
+
+    public void setRunning(int running) {
+        this.running = running;
+    }
+
+
+    public int getDone() {
+        return done;
+    }
+
+
+    public void setDone(int done) {
+        this.done = done;
+    }
+
+
+    public int getCancelled() {
+        return cancelled;
+    }
+
+
+    public void setCancelled(int cancelled) {
+        this.cancelled = cancelled;
+    }
+
+
+    public int getFailed() {
+        return failed;
+    }
+
+
+    public void setFailed(int failed) {
+        this.failed = failed;
+    }
+
+
+    public int getRemoved() {
+        return removed;
+    }
+
+
+    public void setRemoved(int removed) {
+        this.removed = removed;
+    }
+
+}
@@ -0,0 +1,161 @@
+package org.purl.wf4ever.wf2ro.rest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+
+import org.apache.log4j.Logger;
+import org.purl.wf4ever.wf2ro.AnnotationCache;
+import org.purl.wf4ever.wf2ro.BodyStaging;
+import org.purl.wf4ever.wf2ro.BundleCache;
+import org.purl.wf4ever.wf2ro.DocumentCache;
+import org.purl.wf4ever.wf2ro.RodlConverter;
+
+import uk.org.taverna.scufl2.api.io.WorkflowBundleIO;
+
+/**
+ * Service-wide settings applied to the converter of every job.
+ *
+ */
+public class ConverterSettings {
+
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(ConverterSettings.class);
+
+    /** Bytes in a megabyte. */
+    private static final long MB = 1024 * 1024;
+
+    /** Executor for running the conversion phases in parallel, or null to run them one after another. */
+    private Executor phaseExecutor;
+
+    /** Staging for the workflow bundles, or null to upload them while they are serialized. */
+    private BodyStaging staging;
+
+    /** How many times a failed upload of a staged workflow bundle is repeated. */
+    private int uploadRetries;
+
+    /** Cache of the workflow documents read by the jobs, or null to download them every time. */
+    private DocumentCache documentCache;
+
+    /** Cache of the parsed workflow bundles, or null to parse every workflow. */
+    private BundleCache bundleCache;
+
+    /** Cache of the generated wfdesc and roevo annotation bodies, or null to generate them every time. */
+    private AnnotationCache annotationCache;
+
+
+    /**
+     * Create the settings configured in the application properties.
+     *
+     * @param executor
+     *            the job executor, providing the phase executor
+     * @return the settings
+     */
+    public static ConverterSettings fromProperties(JobExecutor executor) {
+        ConverterSettings settings = new ConverterSettings();
+        settings.setPhaseExecutor(executor.getPhaseExecutor());
+        if (Boolean.parseBoolean(ApplicationProperties.getString("uploads.staging", "false"))) {
+            String dir = ApplicationProperties.getString("uploads.staging.dir", "");
+            settings.setStaging(new BodyStaging(ApplicationProperties.getInt("uploads.staging.threshold",
+                BodyStaging.DEFAULT_THRESHOLD), dir.isEmpty() ? null : new File(dir)));
+            settings.setUploadRetries(ApplicationProperties.getInt("uploads.retries", 0));
+        }
+        String cacheDir = ApplicationProperties.getString("documents.cache.dir", "");
+        if (!cacheDir.isEmpty()) {
+            try {
+                settings.setDocumentCache(new DocumentCache(new File(cacheDir), ApplicationProperties.getInt(
+                    "documents.cache.size", 100) * MB));
+            } catch (IOException e) {
+                LOG.error("Can't use the document cache, workflow documents will be downloaded every time", e);
+            }
+        }
+        int bundlesSize = ApplicationProperties.getInt("bundles.cache.size", 0);
+        if (bundlesSize > 0) {
+            settings.setBundleCache(new BundleCache(new WorkflowBundleIO(), bundlesSize * MB));
+        }
+        String annotationsDir = ApplicationProperties.getString("annotations.cache.dir", "");
+        if (!annotationsDir.isEmpty()) {
+            try {
+                settings.setAnnotationCache(new AnnotationCache(new File(annotationsDir), ApplicationProperties.getInt(
+                    "annotations.cache.size", 100) * MB));
+            } catch (IOException e) {
+                LOG.error("Can't use the annotation cache, annotation bodies will be generated every time", e);
+            }
+        }
+        return settings;
+    }
+
+
+    /**
+     * Apply the settings to a converter.
+     *
+     * @param converter
+     *            the converter
+     */
+    public void configure(RodlConverter converter) {
+        converter.setExecutor(phaseExecutor);
+        converter.setStaging(staging);
+        converter.setUploadRetries(uploadRetries);
+        converter.setAnnotationCache(annotationCache);
+    }
+
+
+    public Executor getPhaseExecutor() {
+        return phaseExecutor;
+    }
+
+
+    public void setPhaseExecutor(Executor phaseExecutor) {
+        this.phaseExecutor = phaseExecutor;
+    }
+
+
+    public BodyStaging getStaging() {
+        return staging;
+    }
+
+
+    public void setStaging(BodyStaging staging) {
+        this.staging = staging;
+    }
+
+
+    public int getUploadRetries() {
+        return uploadRetries;
+    }
+
+
+    public void setUploadRetries(int uploadRetries) {
+        this.uploadRetries = uploadRetries;
+    }
+
+
+    public DocumentCache getDocumentCache() {
+        return documentCache;
+    }
+
+
+    public void setDocumentCache(DocumentCache documentCache) {
+        this.documentCache = documentCache;
+    }
+
+
+    public BundleCache getBundleCache() {
+        return bundleCache;
+    }
+
+
+    public void setBundleCache(BundleCache bundleCache) {
+        this.bundleCache = bundleCache;
+    }
+
+
+    public AnnotationCache getAnnotationCache() {
+        return annotationCache;
+    }
+
+
+    public void setAnnotationCache(AnnotationCache annotationCache) {
+        this.annotationCache = annotationCache;
+    }
+}
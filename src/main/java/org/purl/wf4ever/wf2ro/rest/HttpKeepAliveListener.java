@@ -0,0 +1,45 @@
+package org.purl.wf4ever.wf2ro.rest;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Sets the number of idle keep-alive connections per host that the JVM keeps for reuse by all jobs, from the
+ * rodl.connections.max application property, when the web application starts.
+ *
+ * The JVM reads the http.maxConnections system property only once, when the first HTTP connection is made, so this is
+ * done before the REST API is started. It is still too late if the servlet container, or another web application in
+ * the same JVM, has made an HTTP connection before, so the -Dhttp.maxConnections JVM option is the reliable way to set
+ * it. An explicitly set system property is never overridden.
+ *
+ */
+public class HttpKeepAliveListener implements ServletContextListener {
+
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(HttpKeepAliveListener.class);
+
+    /** The system property read by the JVM. */
+    private static final String MAX_CONNECTIONS = "http.maxConnections";
+
+
+    @Override
+    public void contextInitialized(ServletContextEvent event) {
+        String explicit = System.getProperty(MAX_CONNECTIONS);
+        String configured = ApplicationProperties.getString("rodl.connections.max", null);
+        if (explicit != null) {
+            if (configured != null && !configured.equals(explicit)) {
+                LOG.info(String.format("Using -D%s=%s instead of rodl.connections.max=%s", MAX_CONNECTIONS,
+                    explicit, configured));
+            }
+        } else if (configured != null) {
+            System.setProperty(MAX_CONNECTIONS, configured);
+        }
+    }
+
+
+    @Override
+    public void contextDestroyed(ServletContextEvent event) {
+    }
+}
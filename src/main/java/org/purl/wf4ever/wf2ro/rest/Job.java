@@ -4,22 +4,26 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
 
 import org.apache.log4j.Logger;
 import org.purl.wf4ever.rosrs.client.exception.ROSRSException;
+import org.purl.wf4ever.wf2ro.Cancellation;
+import org.purl.wf4ever.wf2ro.PhaseTimings;
 import org.purl.wf4ever.wf2ro.RodlConverter;
+import org.purl.wf4ever.wf2ro.Wf2ROConverter;
 
-import uk.org.taverna.scufl2.api.container.WorkflowBundle;
 import uk.org.taverna.scufl2.api.io.ReaderException;
-import uk.org.taverna.scufl2.api.io.WorkflowBundleIO;
 
 /**
- * Represents a conversion job. It runs in a separate thread.
+ * Represents a conversion job. It is run by one of the workers of a {@link JobExecutor}.
  * 
  * @author piotrekhol
  */
-public class Job extends Thread {
+public class Job implements Runnable {
 
     /** Logger. */
     private static final Logger LOG = Logger.getLogger(Job.class);
@@ -32,6 +36,8 @@ public class Job extends Thread {
      * 
      */
     public enum State {
+        /** The job has been accepted and is waiting for a free worker. */
+        QUEUED,
         /** The job has started and is running. */
         RUNNING,
         /** The job has finished succesfully. */
@@ -47,6 +53,14 @@ public class Job extends Thread {
         public String toString() {
             return super.toString().toLowerCase();
         };
+
+
+        /**
+         * @return true if the job is in this state once it has finished
+         */
+        public boolean isFinished() {
+            return this != QUEUED && this != RUNNING;
+        }
     }
 
 
@@ -54,7 +68,7 @@ public class Job extends Thread {
     private UUID uuid;
 
     /** Job state. */
-    private State state;
+    private volatile State state;
 
     /** Workflow URI. */
     private URI resource;
@@ -73,7 +87,7 @@ public class Job extends Thread {
     private JobsContainer container;
 
     /** The converter. */
-    private RodlConverter converter;
+    private volatile RodlConverter converter;
 
     /** Reason for the state, i.e. exception message. */
     private String reason;
@@ -81,6 +95,30 @@ public class Job extends Thread {
     /** RO Folders where to extract workflows, scripts and services */
     private JobExtractFolders extract;
 
+    /** The worker thread running the job, or null if the job is not running. */
+    private volatile Thread worker;
+
+    /** Service-wide converter settings. */
+    private ConverterSettings settings = new ConverterSettings();
+
+    /** Upload the workflow annotations as one annotation. */
+    private boolean mergeAnnotations;
+
+    /** Time spent in each phase, from reading the workflow to the last conversion phase. */
+    private final PhaseTimings timings = new PhaseTimings();
+
+    /** Cancellation of the conversion, aborting its downloads and uploads. */
+    private final Cancellation cancellation = new Cancellation();
+
+    /** Downloads and parses the workflow, possibly for other jobs too. */
+    private WorkflowFetch fetch;
+
+    /** Time from cancelling the running job to freeing its worker in ms, or -1. */
+    private volatile long cancelLatencyMs = -1;
+
+    /** Number of changes of the state and the added resources, guarded by the job. */
+    private long version;
+
 
     /**
      * Constructor.
@@ -108,42 +146,197 @@ public class Job extends Thread {
         this.token = token;
         this.container = container;
         this.extract = extract;
-        state = State.RUNNING;
+        this.fetch = new WorkflowFetch(resource, format);
+        state = State.QUEUED;
 
         LOG.debug(String.format("Created a new job:\n\tuuid = %s\n\tresource = %s\n\tformat = %s\n\tro=%s\t\n",
             jobUUID, resource, format, ro));
-        
-        setDaemon(true);
     }
 
 
     @Override
     public void run() {
-        WorkflowBundleIO io = new WorkflowBundleIO();
+        if (!start()) {
+            // cancelled while waiting in the queue
+            container.onJobDone(this);
+            return;
+        }
         try {
-            WorkflowBundle wfbundle = io.readBundle(resource.toURL(), format.toString());
-            converter = new RodlConverter(wfbundle, resource, ro, this.token,
+            convert();
+        } finally {
+            worker = null;
+            if (cancellation.isCancelled()) {
+                cancelLatencyMs = (System.nanoTime() - cancellation.getCancelledAt()) / 1000000;
+                LOG.debug(String.format("Job %s stopped %d ms after it was cancelled", uuid, cancelLatencyMs));
+            }
+        }
+        container.onJobDone(this);
+    }
+
+
+    /**
+     * Mark the job as running in the current thread, unless it has been cancelled.
+     * 
+     * @return true if the job should run, false if it has been cancelled
+     */
+    private synchronized boolean start() {
+        if (state == State.CANCELLED) {
+            return false;
+        }
+        worker = Thread.currentThread();
+        state = State.RUNNING;
+        changed();
+        return true;
+    }
+
+
+    /**
+     * Notify the threads waiting for the job to change. The caller must hold the job lock.
+     */
+    private void changed() {
+        version++;
+        notifyAll();
+    }
+
+
+    /**
+     * @return number of changes of the state and the added resources so far
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+
+    /**
+     * Wait until the state of the job changes or a resource is added.
+     * 
+     * @param seen
+     *            the version the caller has seen
+     * @param timeoutMs
+     *            maximum time to wait in ms
+     * @return the current version, equal to seen if the job hasn't changed before the timeout
+     * @throws InterruptedException
+     *             if the waiting thread is interrupted
+     */
+    public synchronized long awaitChange(long seen, long timeoutMs)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutMs * 1000000;
+        while (version == seen) {
+            long remainingMs = (deadline - System.nanoTime()) / 1000000;
+            if (remainingMs <= 0) {
+                break;
+            }
+            wait(remainingMs);
+        }
+        return version;
+    }
+
+
+    /**
+     * Download the workflow and convert it.
+     */
+    private void convert() {
+        try {
+            PhaseTimings.Running read = timings.start("read");
+            try {
+                fetch.fetch(settings, cancellation);
+            } finally {
+                timings.stop(read);
+            }
+            converter = new RodlConverter(fetch.getBundle(), resource, ro, this.token,
                     extract.getMain(), extract.getNested(), extract.getScripts(),
                     extract.getServices());
-            converter.convert();
-            state = State.DONE;
+            try {
+                settings.configure(converter);
+                converter.setTimings(timings);
+                converter.setBundleKey(fetch.getSource().getKey());
+                converter.setMergeAnnotations(mergeAnnotations);
+                converter.setCancellation(cancellation);
+                converter.setResourceListener(new Wf2ROConverter.ResourceListener() {
+
+                    @Override
+                    public void resourceAdded(URI uri) {
+                        synchronized (Job.this) {
+                            changed();
+                        }
+                    }
+                });
+                converter.convert();
+            } finally {
+                converter.close();
+            }
+            finish(State.DONE, null);
         } catch (ReaderException | IOException e) {
-            LOG.error("Can't read the workflow " + resource + " as " + format, e);
-            state = State.INVALID_RESOURCE;
-            reason = "Can't read the workflow: " + e.getMessage();
+            if (finish(State.INVALID_RESOURCE, "Can't read the workflow: " + e.getMessage())) {
+                LOG.error("Can't read the workflow " + resource + " as " + format, e);
+            }
         } catch (ROSRSException e) {
-            LOG.error("ROSRS exception", e);
-            state = State.RUNTIME_ERROR;
-            reason = "ROSRS exception: " + e.getMessage();
+            if (finish(State.RUNTIME_ERROR, "ROSRS exception: " + e.getMessage())) {
+                LOG.error("ROSRS exception", e);
+            }
         } catch (Throwable e) {
-            LOG.error("Unexpected exception during conversion", e);
-            state = State.RUNTIME_ERROR;
             StringWriter errors = new StringWriter();
             e.printStackTrace(new PrintWriter(errors));
-            reason = errors.toString();
+            if (finish(State.RUNTIME_ERROR, errors.toString())) {
+                LOG.error("Unexpected exception during conversion", e);
+            }
         }
+    }
 
-        container.onJobDone(this);
+
+    /**
+     * Set the final state of the job, unless it has been cancelled, in which case the conversion failures are the
+     * result of the cancellation.
+     * 
+     * @param finalState
+     *            the final state
+     * @param finalReason
+     *            why the job failed, or null
+     * @return true if the state has been set, false if the job has been cancelled
+     */
+    private synchronized boolean finish(State finalState, String finalReason) {
+        if (state == State.CANCELLED) {
+            LOG.debug(String.format("Job %s cancelled, ignoring its final state %s", uuid, finalState));
+            return false;
+        }
+        state = finalState;
+        reason = finalReason;
+        changed();
+        return true;
+    }
+
+
+    /**
+     * Set the service-wide converter settings. Must be called before the job is started.
+     * 
+     * @param settings
+     *            the settings, by default the converter runs its phases one after another in the job thread and
+     *            uploads the workflow bundles while they are serialized
+     */
+    public void setConverterSettings(ConverterSettings settings) {
+        this.settings = settings;
+    }
+
+
+    /**
+     * Upload the workflow annotations as one annotation. Must be called before the job is started.
+     * 
+     * @param mergeAnnotations
+     *            true to merge the annotations, false (default) to upload each one
+     */
+    public void setMergeAnnotations(boolean mergeAnnotations) {
+        this.mergeAnnotations = mergeAnnotations;
+    }
+
+
+    /**
+     * Share the download and parsing of the workflow with other jobs. Must be called before the job is started.
+     * 
+     * @param fetch
+     *            fetch of the same workflow in the same format, by default the job fetches the workflow itself
+     */
+    void setWorkflowFetch(WorkflowFetch fetch) {
+        this.fetch = fetch;
     }
 
 
@@ -156,21 +349,69 @@ public class Job extends Thread {
     }
 
     public JobStatus getJobStatus() {
-        return new JobStatus(resource, format, extract, ro, state, converter != null ? converter.getResourcesAdded() : null,
-                reason);
+        JobStatus status = new JobStatus(resource, format, extract, ro, state,
+                converter != null ? getResourcesAdded() : null, reason);
+        status.setPhases(timings.getTimings());
+        return status;
+    }
+
+
+    /**
+     * @return a copy of the resources added so far
+     */
+    public List<URI> getResourcesAdded() {
+        RodlConverter current = converter;
+        if (current == null) {
+            return Collections.emptyList();
+        }
+        List<URI> added = current.getResourcesAdded();
+        synchronized (added) {
+            return new ArrayList<>(added);
+        }
     }
+
+
+    /**
+     * @return time spent in each phase that has finished
+     */
+    public PhaseTimings getTimings() {
+        return timings;
+    }
+
     
     public String getReason() {
         return reason;
     }
     
     /**
-     * Cancel the job. The job is aborted but not undone.
+     * Time from cancelling the job while it was running to freeing its worker.
+     * 
+     * @return the time in ms, or -1 if the job has not been cancelled while running or is still running
      */
-    public void cancel() {
-        //FIXME not sure if that's how we want to cancel this thread
-        this.interrupt();
+    public long getCancelLatencyMs() {
+        return cancelLatencyMs;
+    }
+
+
+    /**
+     * Cancel the job. The job is aborted but not undone: the conversion stops before its next phase, nested workflow,
+     * script or service, the download or uploads in progress fail, and the worker is interrupted. Resources already
+     * uploaded stay in the RO. A job that has already finished keeps its final state.
+     * 
+     * @return true if the job has been cancelled, false if it had already finished
+     */
+    public synchronized boolean cancel() {
+        if (state.isFinished()) {
+            return false;
+        }
         this.state = State.CANCELLED;
+        changed();
+        cancellation.cancel();
+        Thread thread = worker;
+        if (thread != null) {
+            thread.interrupt();
+        }
+        return true;
     }
     
     
@@ -29,6 +29,9 @@ public class JobConfig {
     /** Folders to extract into */
     private JobExtractFolders extract;
 
+    /** Upload the workflow annotations as one annotation. */
+    private boolean mergeAnnotations;
+
 
     /**
      * Default empty constructor.
@@ -112,4 +115,14 @@ public class JobConfig {
     public void setExtract(JobExtractFolders extract) {
         this.extract = extract;
     }
+
+
+    public boolean isMergeAnnotations() {
+        return mergeAnnotations;
+    }
+
+
+    public void setMergeAnnotations(boolean mergeAnnotations) {
+        this.mergeAnnotations = mergeAnnotations;
+    }
 }
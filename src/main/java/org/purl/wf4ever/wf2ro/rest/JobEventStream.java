@@ -0,0 +1,236 @@
+package org.purl.wf4ever.wf2ro.rest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.apache.log4j.Logger;
+import org.purl.wf4ever.wf2ro.rest.Job.State;
+
+/**
+ * The changes of a job as Server-Sent Events: an "added" event for every resource added by the conversion and a
+ * "state" event for every state of the job, ending with its final state. The stream waits for the job to notify its
+ * changes, and sends a comment when the job hasn't changed for a while, so that a closed connection is noticed.
+ *
+ * A finished job is streamed at once, from its stored status.
+ *
+ * A running job holds one of the permits of the requests waiting for jobs while its stream waits for changes. The
+ * permit is taken and released by {@link #write(OutputStream)}, so that it isn't lost if the response is never
+ * written. If no permit is free, the current events are written and the stream ends.
+ *
+ */
+class JobEventStream implements StreamingOutput {
+
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(JobEventStream.class);
+
+    /** Media type of Server-Sent Events. */
+    static final String MEDIA_TYPE = "text/event-stream";
+
+    /** Encoding of the events. */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** The running job, or null if it has finished. */
+    private final Job job;
+
+    /** Status of the finished job, or null if it is running. */
+    private final JobStatus status;
+
+    /** Time without changes after which a comment is sent, in ms. */
+    private final long heartbeatMs;
+
+    /** Permits of the requests waiting for jobs, or null if the job has finished. */
+    private final Semaphore permits;
+
+
+    /**
+     * Stream a running job.
+     *
+     * @param job
+     *            the job
+     * @param heartbeatMs
+     *            time without changes after which a comment is sent, in ms
+     * @param permits
+     *            permits of the requests waiting for jobs, one is held while the stream waits
+     */
+    JobEventStream(Job job, long heartbeatMs, Semaphore permits) {
+        this.job = job;
+        this.status = null;
+        this.heartbeatMs = heartbeatMs;
+        this.permits = permits;
+    }
+
+
+    /**
+     * Stream a finished job.
+     *
+     * @param status
+     *            its stored status
+     */
+    JobEventStream(JobStatus status) {
+        this.job = null;
+        this.status = status;
+        this.heartbeatMs = 0;
+        this.permits = null;
+    }
+
+
+    @Override
+    public void write(OutputStream output)
+            throws IOException, WebApplicationException {
+        Writer out = new OutputStreamWriter(output, UTF8);
+        try {
+            if (job == null) {
+                if (status.getAdded() != null) {
+                    for (URI uri : status.getAdded()) {
+                        added(out, 0, uri);
+                    }
+                }
+                state(out, 0, status.getStatus(), status.getReason());
+                out.flush();
+                return;
+            }
+            boolean waiting = permits.tryAcquire();
+            if (!waiting) {
+                LOG.debug("Too many requests waiting for jobs, writing the current events of job " + job.getUUID());
+            }
+            try {
+                State sentState = null;
+                int sentAdded = 0;
+                while (true) {
+                    // read the version first, so that no change after it is missed
+                    long version = job.getVersion();
+                    State state = job.getJobState();
+                    List<URI> added = job.getResourcesAdded();
+                    for (int i = sentAdded; i < added.size(); i++) {
+                        added(out, version, added.get(i));
+                    }
+                    sentAdded = added.size();
+                    if (state != sentState) {
+                        state(out, version, state, state.isFinished() ? job.getReason() : null);
+                        sentState = state;
+                    }
+                    out.flush();
+                    if (state.isFinished() || !waiting) {
+                        return;
+                    }
+                    if (job.awaitChange(version, heartbeatMs) == version) {
+                        out.write(": no changes\n\n");
+                        out.flush();
+                    }
+                }
+            } finally {
+                if (waiting) {
+                    permits.release();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.debug("Interrupted while streaming the events of job " + job.getUUID());
+        }
+    }
+
+
+    /**
+     * Write an "added" event.
+     *
+     * @param out
+     *            the stream
+     * @param version
+     *            the version of the job
+     * @param uri
+     *            the added resource
+     * @throws IOException
+     *             when the client has gone
+     */
+    private static void added(Writer out, long version, URI uri)
+            throws IOException {
+        event(out, version, "added", "{\"uri\":" + json(uri.toString()) + "}");
+    }
+
+
+    /**
+     * Write a "state" event.
+     *
+     * @param out
+     *            the stream
+     * @param version
+     *            the version of the job
+     * @param state
+     *            the state
+     * @param reason
+     *            the reason of the final state, or null
+     * @throws IOException
+     *             when the client has gone
+     */
+    private static void state(Writer out, long version, State state, String reason)
+            throws IOException {
+        event(out, version, "state", "{\"status\":" + json(state.toString())
+                + (reason != null ? ",\"reason\":" + json(reason) : "") + "}");
+    }
+
+
+    /**
+     * Write an event.
+     *
+     * @param out
+     *            the stream
+     * @param version
+     *            the version of the job, its id
+     * @param name
+     *            the event name
+     * @param data
+     *            the event data, on one line
+     * @throws IOException
+     *             when the client has gone
+     */
+    private static void event(Writer out, long version, String name, String data)
+            throws IOException {
+        out.write("id: " + version + "\nevent: " + name + "\ndata: " + data + "\n\n");
+    }
+
+
+    /**
+     * @param string
+     *            a string
+     * @return the string as a JSON string literal, without line breaks
+     */
+    static String json(String string) {
+        StringBuilder json = new StringBuilder(string.length() + 2).append('"');
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            switch (c) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+            }
+        }
+        return json.append('"').toString();
+    }
+}
@@ -0,0 +1,243 @@
+package org.purl.wf4ever.wf2ro.rest;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A bounded pool of workers running conversion jobs. Jobs that arrive when all workers are busy wait in an admission
+ * queue; only when the queue is full is a job rejected, and the client is asked to retry later. A rejected job is never
+ * run by the submitting thread, which is a request thread of the container.
+ *
+ * Note that, as with any {@link ThreadPoolExecutor}, workers above the core pool size are only started when the
+ * queue is full.
+ *
+ * Optionally, a separate fixed pool runs the conversion phases of all jobs in parallel. It has to be separate, since a
+ * job waits for its phases to finish while holding a job worker. Its queue is bounded too, and a phase that doesn't fit
+ * is run by the thread that schedules it.
+ *
+ */
+public class JobExecutor {
+
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(JobExecutor.class);
+
+    /** Default capacity of the queue of phases waiting for a phase worker. */
+    public static final int DEFAULT_PHASE_QUEUE_CAPACITY = 100;
+
+    /** How long the workers above the core pool size may stay idle. */
+    private static final long KEEP_ALIVE_S = 60;
+
+    /** The underlying executor. */
+    private final ThreadPoolExecutor executor;
+
+    /** Capacity of the admission queue. */
+    private final int queueCapacity;
+
+    /** Workers running the conversion phases, or null if the phases are run by the job worker. */
+    private final ThreadPoolExecutor phaseExecutor;
+
+
+    /**
+     * Constructor.
+     *
+     * @param corePoolSize
+     *            number of workers kept even if idle
+     * @param maxPoolSize
+     *            maximum number of workers
+     * @param queueCapacity
+     *            maximum number of jobs waiting for a worker
+     * @param phasePoolSize
+     *            number of workers running conversion phases in parallel, or 0 to run the phases of a job one after
+     *            another
+     * @param phaseQueueCapacity
+     *            maximum number of phases waiting for a phase worker
+     */
+    public JobExecutor(int corePoolSize, int maxPoolSize, int queueCapacity, int phasePoolSize,
+            int phaseQueueCapacity) {
+        if (corePoolSize < 1 || maxPoolSize < corePoolSize || queueCapacity < 1 || phaseQueueCapacity < 1) {
+            throw new IllegalArgumentException(String.format(
+                "Invalid job pool configuration: core = %d, max = %d, queue = %d, phase queue = %d", corePoolSize,
+                maxPoolSize, queueCapacity, phaseQueueCapacity));
+        }
+        this.queueCapacity = queueCapacity;
+        this.executor = new ThreadPoolExecutor(corePoolSize, maxPoolSize, KEEP_ALIVE_S, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity), new JobThreadFactory("wf2ro-job-"));
+        if (phasePoolSize > 0) {
+            this.phaseExecutor = new ThreadPoolExecutor(phasePoolSize, phasePoolSize, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(phaseQueueCapacity), new JobThreadFactory("wf2ro-phase-"));
+        } else {
+            this.phaseExecutor = null;
+        }
+        LOG.debug(String.format(
+            "Created a job executor: core = %d, max = %d, queue = %d, phase workers = %d, phase queue = %d",
+            corePoolSize, maxPoolSize, queueCapacity, phasePoolSize, phaseQueueCapacity));
+    }
+
+
+    /**
+     * Create an executor configured in the application properties.
+     *
+     * @return a new executor
+     */
+    public static JobExecutor fromProperties() {
+        int core = ApplicationProperties.getInt("jobs.pool.core", Runtime.getRuntime().availableProcessors());
+        int max = ApplicationProperties.getInt("jobs.pool.max", core);
+        int queue = ApplicationProperties.getInt("jobs.queue.capacity", RestApi.MAX_JOBS);
+        int phases = ApplicationProperties.getInt("jobs.phases.pool", 0);
+        int phaseQueue = ApplicationProperties.getInt("jobs.phases.queue", DEFAULT_PHASE_QUEUE_CAPACITY);
+        return new JobExecutor(core, Math.max(core, max), queue, phases, phaseQueue);
+    }
+
+
+    /**
+     * Submit a job for execution. The job is run by the first free worker.
+     *
+     * @param job
+     *            the job
+     * @throws RejectedExecutionException
+     *             if all workers are busy and the queue is full
+     */
+    public synchronized void submit(Job job)
+            throws RejectedExecutionException {
+        try {
+            executor.execute(job);
+        } catch (RejectedExecutionException e) {
+            LOG.warn(String.format("Job %s rejected, %d jobs are running and %d waiting", job.getUUID(),
+                executor.getActiveCount(), executor.getQueue().size()));
+            throw e;
+        }
+    }
+
+
+    /**
+     * Submit a batch of jobs, all of them or none. The jobs are submitted only if the free places in the queue and
+     * the workers that may still be started are enough for all of them, so that no job of the batch is rejected after
+     * others have started. Other jobs are not submitted meanwhile, and the
+     * workers only free places, so the check holds until the last job of the batch is submitted.
+     *
+     * @param jobs
+     *            the jobs
+     * @return true if all the jobs have been submitted, false if none has been because they don't fit or the executor
+     *         has been shut down
+     */
+    public synchronized boolean submitAll(List<Job> jobs) {
+        if (executor.isShutdown()) {
+            return false;
+        }
+        int free = executor.getQueue().remainingCapacity()
+                + Math.max(0, executor.getMaximumPoolSize() - executor.getPoolSize());
+        if (jobs.size() > free) {
+            LOG.warn(String.format("Batch of %d jobs rejected, %d jobs are running and %d waiting", jobs.size(),
+                executor.getActiveCount(), executor.getQueue().size()));
+            return false;
+        }
+        for (Job job : jobs) {
+            executor.execute(job);
+        }
+        return true;
+    }
+
+
+    /**
+     * Remove a job from the queue if it has not been started yet.
+     *
+     * @param job
+     *            the job
+     * @return true if the job was waiting and has been removed, false if it's already running or done
+     */
+    public boolean dequeue(Job job) {
+        return executor.remove(job);
+    }
+
+
+    /**
+     * @return executor for running the conversion phases of a job in parallel, or null to run them one after another
+     */
+    public Executor getPhaseExecutor() {
+        return phaseExecutor;
+    }
+
+
+    /**
+     * @return number of jobs waiting for a worker
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+
+    /**
+     * @return capacity of the admission queue
+     */
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+
+    /**
+     * @return approximate number of workers running jobs
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+
+    /**
+     * @return current number of workers
+     */
+    public int getPoolSize() {
+        return executor.getPoolSize();
+    }
+
+
+    /**
+     * Stop accepting jobs. Jobs already submitted are still run.
+     */
+    public synchronized void shutdown() {
+        executor.shutdown();
+        if (phaseExecutor != null) {
+            phaseExecutor.shutdown();
+        }
+    }
+
+
+    /**
+     * Creates named daemon worker threads, so that the workers don't prevent the JVM from exiting.
+     *
+     */
+    private static class JobThreadFactory implements ThreadFactory {
+
+        /** Thread name prefix. */
+        private final String prefix;
+
+        /** Worker counter, for thread names. */
+        private final AtomicInteger count = new AtomicInteger();
+
+
+        /**
+         * Constructor.
+         *
+         * @param prefix
+         *            thread name prefix
+         */
+        JobThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
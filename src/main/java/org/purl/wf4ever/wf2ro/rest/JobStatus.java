@@ -5,6 +5,7 @@ import java.util.List;
 
 import javax.xml.bind.annotation.XmlRootElement;
 
+import org.purl.wf4ever.wf2ro.PhaseTiming;
 import org.purl.wf4ever.wf2ro.rest.Job.State;
 
 /**
@@ -36,6 +37,9 @@ public class JobStatus {
 
     private JobExtractFolders extract;
 
+    /** time spent in each phase that has finished. */
+    private List<PhaseTiming> phases;
+
 
     /**
      * Default empty constructor.
@@ -144,4 +148,14 @@ public class JobStatus {
         this.extract = extract;
     }
 
+
+    public List<PhaseTiming> getPhases() {
+        return phases;
+    }
+
+
+    public void setPhases(List<PhaseTiming> phases) {
+        this.phases = phases;
+    }
+
 }
@@ -0,0 +1,827 @@
+package org.purl.wf4ever.wf2ro.rest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+import org.purl.wf4ever.wf2ro.PhaseTiming;
+import org.purl.wf4ever.wf2ro.rest.Job.State;
+
+/**
+ * Statuses of the finished jobs, kept in an append-only journal file that is mapped into memory. Only the offsets of
+ * the statuses are kept on the heap; a status is decoded from the mapped file when it is requested. The journal is
+ * replayed when the store is opened, so the statuses survive restarts.
+ *
+ * Every record is preceded by its length and CRC-32 and followed by a zero length, so replaying stops at the first
+ * record that was not completely written. The journal is rewritten without the removed and replaced statuses when
+ * they take more than half of it. The mapped pages are written to the disk by the operating system and when the store
+ * is closed, so a status may be lost if the machine, not the service, stops before.
+ *
+ * The offsets are split into segments by job UUID, each with its own lock and its own share of the maximum number of
+ * statuses, so that polling clients only contend when they ask for statuses in the same segment. When a segment is
+ * full, its least recently requested status is removed, which approximates removing the least recently requested
+ * status of the store. Each segment keeps the offsets of its statuses in a {@link UuidIndex}, so an indexed status
+ * takes a few dozen bytes of heap. Statuses are decoded without holding any lock; storing and removing them is done by
+ * one thread at a time.
+ *
+ */
+public class JobStatusStore {
+
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(JobStatusStore.class);
+
+    /** Default number of segments. */
+    public static final int DEFAULT_SEGMENTS = 16;
+
+    /** Smallest share of the maximum number of statuses of a segment, smaller stores have fewer segments. */
+    private static final int MIN_SEGMENT_CAPACITY = 64;
+
+    /** First bytes of a journal, "WF2R". */
+    private static final int MAGIC = 0x57463252;
+
+    /** Journal format version. */
+    private static final int VERSION = 2;
+
+    /** Bytes of the magic number and version. */
+    private static final int HEADER = 8;
+
+    /** Bytes of the length and CRC-32 preceding a record. */
+    private static final int RECORD_HEADER = 8;
+
+    /** Record of a status. */
+    private static final byte PUT = 1;
+
+    /** Record of a removed status. */
+    private static final byte REMOVE = 2;
+
+    /** Initial size of the mapping. */
+    private static final int INITIAL_CAPACITY = 1024 * 1024;
+
+    /** The journal is not rewritten until it is larger. */
+    private static final int COMPACT_MIN_BYTES = 1024 * 1024;
+
+    /** Encoding of the strings. */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** The journal file. */
+    private final File file;
+
+    /** Segments of the index, by the hash of the job UUID. */
+    private final Segment[] segments;
+
+    /** Maximum number of statuses in a segment. */
+    private final int segmentCapacity;
+
+    /** Held while the journal is written. */
+    private final Object writeLock = new Object();
+
+    /** The open journal. */
+    private RandomAccessFile journal;
+
+    /** The mapped journal. */
+    private MappedByteBuffer buffer;
+
+    /** Where the next record is written. */
+    private int end;
+
+    /** Bytes of the records in the index. */
+    private long liveBytes;
+
+    /** Statuses removed to keep the maximum number. */
+    private final AtomicLong evictedCount = new AtomicLong();
+
+
+    /**
+     * A segment of the index, locked on itself.
+     *
+     */
+    private static final class Segment {
+
+        /** Offsets of the status records by job UUID, least recently requested first. */
+        private final UuidIndex offsets = new UuidIndex();
+
+        /**
+         * The mapping the offsets refer to. A segment being rewritten keeps the previous mapping, which stays readable
+         * until it is garbage collected.
+         */
+        private ByteBuffer mapping;
+    }
+
+
+    /**
+     * Constructor. Opens the journal and reads the offsets of the statuses it contains.
+     *
+     * @param file
+     *            the journal file, created if it doesn't exist
+     * @param maxJobs
+     *            maximum number of statuses, the least recently requested are removed first
+     * @throws IOException
+     *             when the journal can't be opened or isn't a job journal
+     */
+    public JobStatusStore(File file, int maxJobs)
+            throws IOException {
+        this(file, maxJobs, DEFAULT_SEGMENTS);
+    }
+
+
+    /**
+     * Constructor. Opens the journal and reads the offsets of the statuses it contains.
+     *
+     * @param file
+     *            the journal file, created if it doesn't exist
+     * @param maxJobs
+     *            maximum number of statuses, the least recently requested are removed first
+     * @param segments
+     *            number of segments, fewer if a segment would hold less than 64 statuses
+     * @throws IOException
+     *             when the journal can't be opened or isn't a job journal
+     */
+    public JobStatusStore(File file, int maxJobs, int segments)
+            throws IOException {
+        if (maxJobs < 1 || segments < 1) {
+            throw new IllegalArgumentException(String.format("Invalid job journal size: %d jobs, %d segments",
+                maxJobs, segments));
+        }
+        this.file = file;
+        this.segments = new Segment[Math.max(1, Math.min(segments, maxJobs / MIN_SEGMENT_CAPACITY))];
+        for (int i = 0; i < this.segments.length; i++) {
+            this.segments[i] = new Segment();
+        }
+        this.segmentCapacity = maxJobs / this.segments.length;
+        synchronized (writeLock) {
+            open();
+            replay();
+        }
+        LOG.debug(String.format("Job journal %s has %d statuses, %d bytes", file, size(), end));
+    }
+
+
+    /**
+     * Open a store configured in the application properties. Without a configured journal, the statuses are kept in
+     * a temporary file and lost on restart.
+     *
+     * @return a new store
+     */
+    public static JobStatusStore fromProperties() {
+        int maxJobs = ApplicationProperties.getInt("jobs.journal.max", RestApi.MAX_JOBS_DONE);
+        String path = ApplicationProperties.getString("jobs.journal.file", "");
+        if (!path.isEmpty()) {
+            try {
+                return new JobStatusStore(new File(path), maxJobs);
+            } catch (IOException e) {
+                LOG.error("Can't open the job journal " + path + ", statuses of finished jobs will be lost on restart",
+                    e);
+            }
+        }
+        try {
+            File tmp = File.createTempFile("wf2ro-jobs", ".journal");
+            tmp.deleteOnExit();
+            return new JobStatusStore(tmp, maxJobs);
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't create a job journal", e);
+        }
+    }
+
+
+    /**
+     * Get the status of a finished job.
+     *
+     * @param uuid
+     *            job UUID
+     * @return the status, or null if there is no finished job with this UUID
+     * @throws IOException
+     *             when the status can't be decoded
+     */
+    public JobStatus get(UUID uuid)
+            throws IOException {
+        Segment segment = segment(uuid);
+        ByteBuffer mapping;
+        int offset;
+        synchronized (segment) {
+            offset = segment.offsets.get(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+            mapping = segment.mapping;
+        }
+        if (offset == UuidIndex.NONE) {
+            return null;
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(readRecord(mapping, offset)));
+        in.skipBytes(1 + 16);
+        return readStatus(in);
+    }
+
+
+    /**
+     * Store the status of a finished job, replacing the previous one. The least recently requested status of the
+     * segment is removed if the segment is full.
+     *
+     * @param uuid
+     *            job UUID
+     * @param status
+     *            the status
+     * @throws IOException
+     *             when the journal can't be extended
+     */
+    public void put(UUID uuid, JobStatus status)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(PUT);
+        writeUUID(out, uuid);
+        writeStatus(out, status);
+        synchronized (writeLock) {
+            int offset = append(bytes.toByteArray());
+            Segment segment = segment(uuid);
+            int previous;
+            UUID evicted = null;
+            int evictedOffset = UuidIndex.NONE;
+            synchronized (segment) {
+                // the current mapping covers the previous offsets of the segment too
+                segment.mapping = buffer;
+                previous = segment.offsets.put(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), offset);
+                if (segment.offsets.size() > segmentCapacity) {
+                    int eldest = segment.offsets.eldest();
+                    evicted = new UUID(segment.offsets.msb(eldest), segment.offsets.lsb(eldest));
+                    evictedOffset = segment.offsets.remove(evicted.getMostSignificantBits(),
+                        evicted.getLeastSignificantBits());
+                }
+            }
+            liveBytes += recordSize(offset);
+            if (previous != UuidIndex.NONE) {
+                liveBytes -= recordSize(previous);
+            }
+            if (evicted != null) {
+                // replaying the journal must not bring it back
+                liveBytes -= recordSize(evictedOffset);
+                appendRemove(evicted);
+                evictedCount.incrementAndGet();
+            }
+            compactIfSparse();
+        }
+    }
+
+
+    /**
+     * Remove the status of a finished job.
+     *
+     * @param uuid
+     *            job UUID
+     * @return true if the status was removed, false if there was no finished job with this UUID
+     * @throws IOException
+     *             when the journal can't be extended
+     */
+    public boolean remove(UUID uuid)
+            throws IOException {
+        synchronized (writeLock) {
+            Segment segment = segment(uuid);
+            int previous;
+            synchronized (segment) {
+                previous = segment.offsets.remove(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+            }
+            if (previous == UuidIndex.NONE) {
+                return false;
+            }
+            liveBytes -= recordSize(previous);
+            appendRemove(uuid);
+            compactIfSparse();
+            return true;
+        }
+    }
+
+
+    /**
+     * @return number of statuses
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.offsets.size();
+            }
+        }
+        return size;
+    }
+
+
+    /**
+     * @return size of the journal in bytes, including the removed and replaced statuses
+     */
+    public long getJournalSize() {
+        synchronized (writeLock) {
+            return end;
+        }
+    }
+
+
+    /**
+     * @return number of statuses removed to keep the maximum number
+     */
+    public long getEvictedCount() {
+        return evictedCount.get();
+    }
+
+
+    /**
+     * Write the mapped journal to the disk and close it.
+     *
+     * @throws IOException
+     *             when the journal can't be closed
+     */
+    public void close()
+            throws IOException {
+        synchronized (writeLock) {
+            buffer.force();
+            journal.close();
+        }
+    }
+
+
+    /**
+     * @param uuid
+     *            job UUID
+     * @return the segment of the job
+     */
+    private Segment segment(UUID uuid) {
+        int hash = uuid.hashCode();
+        hash ^= hash >>> 16;
+        return segments[(hash & Integer.MAX_VALUE) % segments.length];
+    }
+
+
+    /**
+     * Open the journal file and map it, writing the header of a new journal. The caller must hold the write lock.
+     *
+     * @throws IOException
+     *             when the journal can't be opened or isn't a job journal
+     */
+    private void open()
+            throws IOException {
+        journal = new RandomAccessFile(file, "rw");
+        boolean created = journal.length() == 0;
+        if (journal.length() > Integer.MAX_VALUE) {
+            journal.close();
+            throw new IOException("The job journal " + file + " is too large");
+        }
+        map((int) Math.max(journal.length(), INITIAL_CAPACITY));
+        if (created) {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(HEADER, 0);
+        } else if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            journal.close();
+            throw new IOException(file + " is not a job journal");
+        }
+        end = HEADER;
+    }
+
+
+    /**
+     * Map the journal, extending the file if it is shorter. The segments keep the previous mapping until they change.
+     *
+     * @param capacity
+     *            bytes to map
+     * @throws IOException
+     *             when the journal can't be mapped
+     */
+    private void map(int capacity)
+            throws IOException {
+        buffer = journal.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+
+    /**
+     * Read the records of the journal and index the statuses, until the first incomplete record. The caller must
+     * hold the write lock.
+     *
+     * @throws IOException
+     *             when a record can't be read
+     */
+    private void replay()
+            throws IOException {
+        int offset = HEADER;
+        while (offset + RECORD_HEADER <= buffer.capacity()) {
+            int length = buffer.getInt(offset);
+            if (length <= 0) {
+                break;
+            }
+            if (offset + RECORD_HEADER + length > buffer.capacity() || crc(offset + RECORD_HEADER, length) != buffer
+                    .getInt(offset + 4)) {
+                LOG.warn(String.format("Job journal %s has an incomplete record at %d, ignoring the rest", file,
+                    offset));
+                break;
+            }
+            ByteBuffer record = buffer.duplicate();
+            record.position(offset + RECORD_HEADER);
+            byte type = record.get();
+            UUID uuid = new UUID(record.getLong(), record.getLong());
+            UuidIndex offsets = segment(uuid).offsets;
+            int previous = UuidIndex.NONE;
+            if (type == PUT) {
+                previous = offsets.put(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), offset);
+                liveBytes += RECORD_HEADER + length;
+            } else if (type == REMOVE) {
+                previous = offsets.remove(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+            }
+            if (previous != UuidIndex.NONE) {
+                liveBytes -= recordSize(previous);
+            }
+            offset += RECORD_HEADER + length;
+        }
+        end = offset;
+        if (end + 4 <= buffer.capacity()) {
+            // overwrite the incomplete record, if any
+            buffer.putInt(end, 0);
+        }
+        // evicted statuses have been removed in the journal, unless the maximum has been lowered since
+        for (Segment segment : segments) {
+            while (segment.offsets.size() > segmentCapacity) {
+                int eldest = segment.offsets.eldest();
+                UUID evicted = new UUID(segment.offsets.msb(eldest), segment.offsets.lsb(eldest));
+                liveBytes -= recordSize(segment.offsets.remove(evicted.getMostSignificantBits(),
+                    evicted.getLeastSignificantBits()));
+                appendRemove(evicted);
+            }
+        }
+        for (Segment segment : segments) {
+            segment.mapping = buffer;
+        }
+    }
+
+
+    /**
+     * Append the removal of a status to the journal. The caller must hold the write lock.
+     *
+     * @param uuid
+     *            job UUID
+     * @throws IOException
+     *             when the journal can't be extended
+     */
+    private void appendRemove(UUID uuid)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(REMOVE);
+        writeUUID(out, uuid);
+        append(bytes.toByteArray());
+    }
+
+
+    /**
+     * Append a record to the journal, extending the mapping if needed. The caller must hold the write lock.
+     *
+     * @param record
+     *            the record
+     * @return the offset of the record
+     * @throws IOException
+     *             when the journal can't be extended
+     */
+    private int append(byte[] record)
+            throws IOException {
+        long needed = (long) end + RECORD_HEADER + record.length + 4;
+        if (needed > buffer.capacity()) {
+            long capacity = Math.max(needed, 2L * buffer.capacity());
+            if (needed > Integer.MAX_VALUE) {
+                throw new IOException("The job journal " + file + " is full");
+            }
+            map((int) Math.min(capacity, Integer.MAX_VALUE));
+        }
+        int offset = end;
+        ByteBuffer out = buffer.duplicate();
+        out.position(offset + RECORD_HEADER);
+        out.put(record);
+        out.putInt(0);
+        buffer.putInt(offset + 4, crc(offset + RECORD_HEADER, record.length));
+        // the record is complete once it has its length
+        buffer.putInt(offset, record.length);
+        end = offset + RECORD_HEADER + record.length;
+        return offset;
+    }
+
+
+    /**
+     * @param offset
+     *            offset of a record in the current mapping
+     * @return bytes of the record, including its length and CRC-32
+     */
+    private int recordSize(int offset) {
+        return RECORD_HEADER + buffer.getInt(offset);
+    }
+
+
+    /**
+     * Read a record.
+     *
+     * @param mapping
+     *            a mapping of the journal
+     * @param offset
+     *            offset of the record in the mapping
+     * @return the record, without its length and CRC-32
+     */
+    private static byte[] readRecord(ByteBuffer mapping, int offset) {
+        byte[] record = new byte[mapping.getInt(offset)];
+        ByteBuffer in = mapping.duplicate();
+        in.position(offset + RECORD_HEADER);
+        in.get(record);
+        return record;
+    }
+
+
+    /**
+     * @param offset
+     *            first byte
+     * @param length
+     *            number of bytes
+     * @return CRC-32 of the mapped bytes
+     */
+    private int crc(int offset, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer in = buffer.duplicate();
+        in.position(offset);
+        in.get(bytes);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+
+    /**
+     * Rewrite the journal if most of it is taken by removed and replaced statuses. The caller must hold the write
+     * lock.
+     *
+     * @throws IOException
+     *             when the journal can't be rewritten
+     */
+    private void compactIfSparse()
+            throws IOException {
+        if (end > COMPACT_MIN_BYTES && liveBytes * 2 < end) {
+            compact();
+        }
+    }
+
+
+    /**
+     * Rewrite the journal with the indexed statuses only and replace the journal file with it. The statuses are
+     * written least recently requested first, so that replaying the rewritten journal keeps their order. The caller
+     * must hold the write lock.
+     *
+     * @throws IOException
+     *             when the journal can't be rewritten
+     */
+    private void compact()
+            throws IOException {
+        long before = end;
+        File tmp = new File(file.getPath() + ".tmp");
+        List<UuidIndex> moved = new ArrayList<>(segments.length);
+        try (RandomAccessFile compacted = new RandomAccessFile(tmp, "rw")) {
+            compacted.setLength(0);
+            compacted.writeInt(MAGIC);
+            compacted.writeInt(VERSION);
+            FileChannel channel = compacted.getChannel();
+            for (Segment segment : segments) {
+                long[] msbs;
+                long[] lsbs;
+                int[] offsets;
+                ByteBuffer mapping;
+                synchronized (segment) {
+                    msbs = new long[segment.offsets.size()];
+                    lsbs = new long[msbs.length];
+                    offsets = new int[msbs.length];
+                    int i = 0;
+                    for (int slot = segment.offsets.eldest(); slot != UuidIndex.NONE; slot = segment.offsets
+                            .next(slot)) {
+                        msbs[i] = segment.offsets.msb(slot);
+                        lsbs[i] = segment.offsets.lsb(slot);
+                        offsets[i] = segment.offsets.value(slot);
+                        i++;
+                    }
+                    mapping = segment.mapping;
+                }
+                UuidIndex segmentMoved = new UuidIndex();
+                for (int i = 0; i < msbs.length; i++) {
+                    ByteBuffer bytes = mapping.duplicate();
+                    bytes.position(offsets[i]);
+                    bytes.limit(offsets[i] + RECORD_HEADER + mapping.getInt(offsets[i]));
+                    segmentMoved.put(msbs[i], lsbs[i], (int) channel.position());
+                    while (bytes.hasRemaining()) {
+                        channel.write(bytes);
+                    }
+                }
+                moved.add(segmentMoved);
+            }
+            compacted.writeInt(0);
+            channel.force(false);
+        }
+        journal.close();
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+        open();
+        end = HEADER;
+        liveBytes = 0;
+        for (int i = 0; i < segments.length; i++) {
+            UuidIndex offsets = segments[i].offsets;
+            synchronized (segments[i]) {
+                // only the order of the statuses may have changed, and setting a value keeps it
+                for (int slot = offsets.eldest(); slot != UuidIndex.NONE; slot = offsets.next(slot)) {
+                    int offset = moved.get(i).peek(offsets.msb(slot), offsets.lsb(slot));
+                    offsets.setValue(slot, offset);
+                    end = Math.max(end, offset + recordSize(offset));
+                    liveBytes += recordSize(offset);
+                }
+                segments[i].mapping = buffer;
+            }
+        }
+        LOG.debug(String.format("Compacted the job journal %s from %d to %d bytes", file, before, end));
+    }
+
+
+    /**
+     * @param out
+     *            the record
+     * @param uuid
+     *            job UUID
+     * @throws IOException
+     *             unexpected
+     */
+    private static void writeUUID(DataOutputStream out, UUID uuid)
+            throws IOException {
+        out.writeLong(uuid.getMostSignificantBits());
+        out.writeLong(uuid.getLeastSignificantBits());
+    }
+
+
+    /**
+     * Encode a status.
+     *
+     * @param out
+     *            the record
+     * @param status
+     *            the status
+     * @throws IOException
+     *             unexpected
+     */
+    private static void writeStatus(DataOutputStream out, JobStatus status)
+            throws IOException {
+        writeURI(out, status.getResource());
+        writeString(out, status.getFormat());
+        writeURI(out, status.getRo());
+        writeString(out, status.getStatus() != null ? status.getStatus().name() : null);
+        writeString(out, status.getReason());
+        JobExtractFolders extract = status.getExtract();
+        out.writeBoolean(extract != null);
+        if (extract != null) {
+            writeURI(out, extract.getMain());
+            writeURI(out, extract.getNested());
+            writeURI(out, extract.getScripts());
+            writeURI(out, extract.getServices());
+        }
+        List<URI> added = status.getAdded();
+        if (added == null) {
+            out.writeInt(-1);
+        } else {
+            // the list of a finished job isn't modified any more
+            synchronized (added) {
+                out.writeInt(added.size());
+                for (URI uri : added) {
+                    writeURI(out, uri);
+                }
+            }
+        }
+        List<PhaseTiming> phases = status.getPhases();
+        out.writeInt(phases != null ? phases.size() : -1);
+        if (phases != null) {
+            for (PhaseTiming phase : phases) {
+                writeString(out, phase.getPhase());
+                writeString(out, phase.getName());
+                out.writeLong(phase.getWallMs());
+                out.writeLong(phase.getCpuMs());
+                out.writeLong(phase.getBytes());
+            }
+        }
+    }
+
+
+    /**
+     * Decode a status.
+     *
+     * @param in
+     *            the record, after the UUID
+     * @return the status
+     * @throws IOException
+     *             when the record is corrupt
+     */
+    private static JobStatus readStatus(DataInputStream in)
+            throws IOException {
+        JobStatus status = new JobStatus();
+        status.setResource(readURI(in));
+        status.setFormat(readString(in));
+        status.setRo(readURI(in));
+        String state = readString(in);
+        status.setStatus(state != null ? State.valueOf(state) : null);
+        status.setReason(readString(in));
+        if (in.readBoolean()) {
+            status.setExtract(new JobExtractFolders(readURI(in), readURI(in), readURI(in), readURI(in)));
+        }
+        int added = in.readInt();
+        if (added >= 0) {
+            List<URI> uris = new ArrayList<>(added);
+            for (int i = 0; i < added; i++) {
+                uris.add(readURI(in));
+            }
+            status.setAdded(uris);
+        }
+        int phases = in.readInt();
+        if (phases >= 0) {
+            List<PhaseTiming> timings = new ArrayList<>(phases);
+            for (int i = 0; i < phases; i++) {
+                timings.add(new PhaseTiming(readString(in), readString(in), in.readLong(), in.readLong(), in.readLong()));
+            }
+            status.setPhases(timings);
+        }
+        return status;
+    }
+
+
+    /**
+     * @param out
+     *            the record
+     * @param uri
+     *            a URI or null
+     * @throws IOException
+     *             unexpected
+     */
+    private static void writeURI(DataOutputStream out, URI uri)
+            throws IOException {
+        writeString(out, uri != null ? uri.toString() : null);
+    }
+
+
+    /**
+     * @param in
+     *            the record
+     * @return a URI or null
+     * @throws IOException
+     *             when the record is corrupt
+     */
+    private static URI readURI(DataInputStream in)
+            throws IOException {
+        String uri = readString(in);
+        return uri != null ? URI.create(uri) : null;
+    }
+
+
+    /**
+     * Write a string of any length, unlike {@link DataOutputStream#writeUTF(String)}.
+     *
+     * @param out
+     *            the record
+     * @param string
+     *            a string or null
+     * @throws IOException
+     *             unexpected
+     */
+    private static void writeString(DataOutputStream out, String string)
+            throws IOException {
+        if (string == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = string.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+
+    /**
+     * @param in
+     *            the record
+     * @return a string or null
+     * @throws IOException
+     *             when the record is corrupt
+     */
+    private static String readString(DataInputStream in)
+            throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+}
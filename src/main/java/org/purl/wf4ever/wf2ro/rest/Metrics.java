@@ -0,0 +1,305 @@
+package org.purl.wf4ever.wf2ro.rest;
+
+import java.io.PrintWriter;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.purl.wf4ever.wf2ro.AnnotationCache;
+import org.purl.wf4ever.wf2ro.BundleCache;
+import org.purl.wf4ever.wf2ro.DocumentCache;
+import org.purl.wf4ever.wf2ro.PhaseTiming;
+import org.purl.wf4ever.wf2ro.RodlCalls;
+import org.purl.wf4ever.wf2ro.RosrsClients;
+import org.purl.wf4ever.wf2ro.SerializerPool;
+import org.purl.wf4ever.wf2ro.rest.Job.State;
+
+/**
+ * Service-wide metrics: histograms of the phase times of finished jobs and the number of finished jobs by state,
+ * written together with the current state of the job, serializer and ROSRS client pools, the RODL call latencies and
+ * the workflow cache counts in the Prometheus text format.
+ *
+ */
+public class Metrics {
+
+    /** Upper bounds of the phase time histogram buckets, in seconds. */
+    private static final double[] BUCKETS_S = { 0.01, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 300 };
+
+    /** Quantiles of the RODL call latencies. */
+    private static final double[] QUANTILES = { 0.5, 0.95, 0.99 };
+
+    /** Phase statistics by phase name. */
+    private final Map<String, PhaseStats> phases = new TreeMap<>();
+
+    /** Finished jobs by state. */
+    private final Map<State, Long> finished = new EnumMap<>(State.class);
+
+    /** Jobs cancelled while running. */
+    private long cancelCount;
+
+    /** Total time from cancelling a running job to freeing its worker, in seconds. */
+    private double cancelS;
+
+    /** Longest time from cancelling a running job to freeing its worker, in seconds. */
+    private double cancelMaxS;
+
+
+    /**
+     * Statistics of a phase.
+     *
+     */
+    private static class PhaseStats {
+
+        /** Phases finished within each bucket, not cumulative. */
+        private final long[] buckets = new long[BUCKETS_S.length + 1];
+
+        /** Number of phases. */
+        private long count;
+
+        /** Total wall time in seconds. */
+        private double wallS;
+
+        /** Total CPU time in seconds. */
+        private double cpuS;
+
+        /** Total bytes. */
+        private long bytes;
+    }
+
+
+    /**
+     * Record a finished job.
+     *
+     * @param state
+     *            the final job state
+     * @param timings
+     *            the phases of the job
+     */
+    public synchronized void jobFinished(State state, List<PhaseTiming> timings) {
+        Long count = finished.get(state);
+        finished.put(state, count == null ? 1 : count + 1);
+        for (PhaseTiming timing : timings) {
+            // one series for all phases of a kind, such as all nested workflows
+            String name = timing.getPhase() != null ? timing.getPhase() : timing.getName();
+            PhaseStats stats = phases.get(name);
+            if (stats == null) {
+                stats = new PhaseStats();
+                phases.put(name, stats);
+            }
+            double wallS = timing.getWallMs() / 1000.0;
+            int bucket = 0;
+            while (bucket < BUCKETS_S.length && wallS > BUCKETS_S[bucket]) {
+                bucket++;
+            }
+            stats.buckets[bucket]++;
+            stats.count++;
+            stats.wallS += wallS;
+            if (timing.getCpuMs() >= 0) {
+                stats.cpuS += timing.getCpuMs() / 1000.0;
+            }
+            stats.bytes += timing.getBytes();
+        }
+    }
+
+
+    /**
+     * Record a job cancelled while running.
+     *
+     * @param latencyMs
+     *            time from cancelling the job to freeing its worker
+     */
+    public synchronized void jobCancelled(long latencyMs) {
+        double latencyS = latencyMs / 1000.0;
+        cancelCount++;
+        cancelS += latencyS;
+        cancelMaxS = Math.max(cancelMaxS, latencyS);
+    }
+
+
+    /**
+     * Write all metrics in the Prometheus text format.
+     *
+     * @param out
+     *            the output
+     * @param executor
+     *            the job workers
+     * @param settings
+     *            the converter settings with the workflow caches, or null
+     */
+    public synchronized void write(PrintWriter out, JobExecutor executor, ConverterSettings settings) {
+        header(out, "wf2ro_phase_duration_seconds", "histogram", "Wall time of the phases of finished jobs.");
+        for (Map.Entry<String, PhaseStats> entry : phases.entrySet()) {
+            PhaseStats stats = entry.getValue();
+            String phase = "phase=\"" + entry.getKey() + "\"";
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS_S.length; i++) {
+                cumulative += stats.buckets[i];
+                out.printf("wf2ro_phase_duration_seconds_bucket{%s,le=\"%s\"} %d\n", phase, BUCKETS_S[i], cumulative);
+            }
+            out.printf("wf2ro_phase_duration_seconds_bucket{%s,le=\"+Inf\"} %d\n", phase, stats.count);
+            out.printf("wf2ro_phase_duration_seconds_sum{%s} %s\n", phase, stats.wallS);
+            out.printf("wf2ro_phase_duration_seconds_count{%s} %d\n", phase, stats.count);
+        }
+        header(out, "wf2ro_phase_cpu_seconds_total", "counter", "CPU time of the phases of finished jobs.");
+        for (Map.Entry<String, PhaseStats> entry : phases.entrySet()) {
+            out.printf("wf2ro_phase_cpu_seconds_total{phase=\"%s\"} %s\n", entry.getKey(), entry.getValue().cpuS);
+        }
+        header(out, "wf2ro_phase_bytes_total", "counter", "Bytes read or uploaded by the phases of finished jobs.");
+        for (Map.Entry<String, PhaseStats> entry : phases.entrySet()) {
+            out.printf("wf2ro_phase_bytes_total{phase=\"%s\"} %d\n", entry.getKey(), entry.getValue().bytes);
+        }
+        header(out, "wf2ro_jobs_finished_total", "counter", "Finished jobs by state.");
+        for (State state : State.values()) {
+            if (state != State.QUEUED && state != State.RUNNING) {
+                Long count = finished.get(state);
+                out.printf("wf2ro_jobs_finished_total{state=\"%s\"} %d\n", state, count == null ? 0 : count);
+            }
+        }
+        header(out, "wf2ro_job_cancel_seconds", "summary",
+            "Time from cancelling a running job to freeing its worker.");
+        out.printf("wf2ro_job_cancel_seconds_sum %s\n", cancelS);
+        out.printf("wf2ro_job_cancel_seconds_count %d\n", cancelCount);
+        header(out, "wf2ro_job_cancel_seconds_max", "gauge",
+            "Longest time from cancelling a running job to freeing its worker.");
+        out.printf("wf2ro_job_cancel_seconds_max %s\n", cancelMaxS);
+        if (executor != null) {
+            gauge(out, "wf2ro_jobs_queued", "Jobs waiting for a worker.", executor.getQueueDepth());
+            gauge(out, "wf2ro_jobs_queue_capacity", "Capacity of the job queue.", executor.getQueueCapacity());
+            gauge(out, "wf2ro_jobs_active", "Jobs being run.", executor.getActiveCount());
+            gauge(out, "wf2ro_jobs_workers", "Job workers.", executor.getPoolSize());
+        }
+        SerializerPool serializers = SerializerPool.getShared();
+        gauge(out, "wf2ro_serializers_active", "Resources being serialized.", serializers.getActiveCount());
+        gauge(out, "wf2ro_serializers_queued", "Resources waiting for a serializer.", serializers.getQueuedCount());
+        RosrsClients clients = RosrsClients.getShared();
+        gauge(out, "wf2ro_rodl_clients", "ROSRS clients kept for reuse.", clients.getClientCount());
+        gauge(out, "wf2ro_rodl_clients_leased", "ROSRS clients used by jobs.", clients.getLeasedCount());
+        gauge(out, "wf2ro_rodl_clients_idle", "ROSRS clients kept for reuse and not used by any job.",
+            clients.getIdleCount());
+        gauge(out, "wf2ro_rodl_clients_max", "ROSRS clients above which the idle ones are evicted.",
+            clients.getMaxClients());
+        gauge(out, "wf2ro_rodl_connections_max", "Idle keep-alive connections the JVM keeps per RODL host.",
+            RosrsClients.getMaxConnections());
+        header(out, "wf2ro_rodl_client_leases_total", "counter", "ROSRS client leases by whether a client was reused.");
+        out.printf("wf2ro_rodl_client_leases_total{reused=\"true\"} %d\n", clients.getHitCount());
+        out.printf("wf2ro_rodl_client_leases_total{reused=\"false\"} %d\n", clients.getMissCount());
+        writeRodlCalls(out, RodlCalls.getShared().getStats());
+        DocumentCache documents = settings != null ? settings.getDocumentCache() : null;
+        if (documents != null) {
+            header(out, "wf2ro_documents_total", "counter", "Workflow documents read through the cache by outcome.");
+            out.printf("wf2ro_documents_total{outcome=\"hit\"} %d\n", documents.getHitCount());
+            out.printf("wf2ro_documents_total{outcome=\"miss\"} %d\n", documents.getMissCount());
+            out.printf("wf2ro_documents_total{outcome=\"stale\"} %d\n", documents.getStaleCount());
+            header(out, "wf2ro_documents_evicted_total", "counter", "Workflow documents removed from the cache.");
+            out.printf("wf2ro_documents_evicted_total %d\n", documents.getEvictedCount());
+            gauge(out, "wf2ro_documents_cached", "Workflow documents in the cache.", documents.getEntryCount());
+            gauge(out, "wf2ro_documents_cached_bytes", "Size of the cached workflow documents.", documents.getSize());
+        }
+        BundleCache bundles = settings != null ? settings.getBundleCache() : null;
+        if (bundles != null) {
+            header(out, "wf2ro_bundles_total", "counter", "Workflow bundles read through the cache by outcome.");
+            out.printf("wf2ro_bundles_total{outcome=\"hit\"} %d\n", bundles.getHitCount());
+            out.printf("wf2ro_bundles_total{outcome=\"miss\"} %d\n", bundles.getMissCount());
+            header(out, "wf2ro_bundles_evicted_total", "counter", "Parsed workflow bundles removed from the cache.");
+            out.printf("wf2ro_bundles_evicted_total %d\n", bundles.getEvictedCount());
+            gauge(out, "wf2ro_bundles_cached", "Parsed workflow bundles in the cache.", bundles.getEntryCount());
+            gauge(out, "wf2ro_bundles_cached_bytes", "Estimated heap size of the cached workflow bundles.",
+                bundles.getSize());
+        }
+        AnnotationCache annotations = settings != null ? settings.getAnnotationCache() : null;
+        if (annotations != null) {
+            header(out, "wf2ro_annotations_total", "counter", "Generated annotation bodies by cache outcome.");
+            out.printf("wf2ro_annotations_total{outcome=\"hit\"} %d\n", annotations.getHitCount());
+            out.printf("wf2ro_annotations_total{outcome=\"miss\"} %d\n", annotations.getMissCount());
+            header(out, "wf2ro_annotations_evicted_total", "counter", "Annotation bodies removed from the cache.");
+            out.printf("wf2ro_annotations_evicted_total %d\n", annotations.getEvictedCount());
+            gauge(out, "wf2ro_annotations_cached", "Annotation bodies in the cache.", annotations.getEntryCount());
+            gauge(out, "wf2ro_annotations_cached_bytes", "Compressed size of the cached annotation bodies.",
+                annotations.getSize());
+        }
+        out.flush();
+    }
+
+
+    /**
+     * Write the latency percentiles, request bytes and statuses of the RODL calls.
+     *
+     * @param out
+     *            the output
+     * @param stats
+     *            statistics by RODL host and operation
+     */
+    private static void writeRodlCalls(PrintWriter out, List<RodlCalls.Stats> stats) {
+        header(out, "wf2ro_rodl_request_seconds", "summary", "Latency of the RODL calls.");
+        for (RodlCalls.Stats operation : stats) {
+            String labels = labels(operation);
+            for (double quantile : QUANTILES) {
+                out.printf("wf2ro_rodl_request_seconds{%s,quantile=\"%s\"} %s\n", labels, quantile,
+                    operation.getPercentileMicros(quantile) / 1e6);
+            }
+            out.printf("wf2ro_rodl_request_seconds_sum{%s} %s\n", labels, operation.getSumMicros() / 1e6);
+            out.printf("wf2ro_rodl_request_seconds_count{%s} %d\n", labels, operation.getCount());
+        }
+        header(out, "wf2ro_rodl_request_seconds_max", "gauge", "Longest RODL call.");
+        for (RodlCalls.Stats operation : stats) {
+            out.printf("wf2ro_rodl_request_seconds_max{%s} %s\n", labels(operation), operation.getMaxMicros() / 1e6);
+        }
+        header(out, "wf2ro_rodl_request_bytes_total", "counter", "Request body bytes sent to RODL.");
+        for (RodlCalls.Stats operation : stats) {
+            out.printf("wf2ro_rodl_request_bytes_total{%s} %d\n", labels(operation), operation.getRequestBytes());
+        }
+        header(out, "wf2ro_rodl_responses_total", "counter", "RODL calls by response status.");
+        for (RodlCalls.Stats operation : stats) {
+            for (Map.Entry<String, Long> status : operation.getStatuses().entrySet()) {
+                out.printf("wf2ro_rodl_responses_total{%s,status=\"%s\"} %d\n", labels(operation), status.getKey(),
+                    status.getValue());
+            }
+        }
+    }
+
+
+    /**
+     * @param operation
+     *            statistics of a RODL operation
+     * @return the host and operation labels
+     */
+    private static String labels(RodlCalls.Stats operation) {
+        return String.format("host=\"%s\",operation=\"%s\"", operation.getHost(), operation.getOperation());
+    }
+
+
+    /**
+     * Write the help and type of a metric.
+     *
+     * @param out
+     *            the output
+     * @param name
+     *            metric name
+     * @param type
+     *            metric type
+     * @param help
+     *            description
+     */
+    private static void header(PrintWriter out, String name, String type, String help) {
+        out.printf("# HELP %s %s\n# TYPE %s %s\n", name, help, name, type);
+    }
+
+
+    /**
+     * Write a gauge.
+     *
+     * @param out
+     *            the output
+     * @param name
+     *            metric name
+     * @param help
+     *            description
+     * @param value
+     *            current value
+     */
+    private static void gauge(PrintWriter out, String name, String help, long value) {
+        header(out, name, "gauge", help);
+        out.printf("%s %d\n", name, value);
+    }
+}
@@ -0,0 +1,34 @@
+package org.purl.wf4ever.wf2ro.rest;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+
+/**
+ * Service metrics for monitoring, in the Prometheus text format.
+ *
+ */
+@Path("metrics")
+public class MetricsResource {
+
+    /** Prometheus text format media type. */
+    public static final String TEXT_PROMETHEUS = "text/plain; version=0.0.4";
+
+
+    /**
+     * Get the phase time histograms, the finished jobs by state, the state of the worker pools, the RODL call
+     * latencies and the workflow cache counts.
+     *
+     * @return the metrics
+     */
+    @GET
+    @Produces(TEXT_PROMETHEUS)
+    public String getMetrics() {
+        StringWriter out = new StringWriter();
+        RestApi.getMetrics().write(new PrintWriter(out), RestApi.getExecutor(), RestApi.getSettings());
+        return out.toString();
+    }
+}
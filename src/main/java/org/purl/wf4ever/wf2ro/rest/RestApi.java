@@ -1,11 +1,19 @@
 package org.purl.wf4ever.wf2ro.rest;
 
+import java.io.IOException;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.Consumes;
@@ -16,12 +24,16 @@ import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 import javax.ws.rs.core.UriInfo;
 
+import org.apache.log4j.Logger;
+import org.purl.wf4ever.wf2ro.RosrsClients;
+import org.purl.wf4ever.wf2ro.SerializerPool;
 import org.purl.wf4ever.wf2ro.exceptions.BadRequestException;
 import org.purl.wf4ever.wf2ro.exceptions.CancelledException;
 import org.purl.wf4ever.wf2ro.exceptions.NotFoundException;
@@ -38,10 +50,13 @@ import com.sun.jersey.multipart.FormDataParam;
 @Path("jobs")
 public class RestApi implements JobsContainer {
 
-    /** Maximum number of concurrent jobs. */
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(RestApi.class);
+
+    /** Default capacity of the queue of jobs waiting for a worker. */
     public static final int MAX_JOBS = 100;
 
-    /** Maximum number of finished jobs kept in memory. */
+    /** Default maximum number of finished jobs kept in the job journal. */
     public static final int MAX_JOBS_DONE = 100000;
 
     /** Context. */
@@ -55,15 +70,58 @@ public class RestApi implements JobsContainer {
     /** Running jobs. */
     private static Map<UUID, Job> jobs = new ConcurrentHashMap<>(MAX_JOBS);
 
+    /** Workers running the jobs. */
+    private static JobExecutor executor = JobExecutor.fromProperties();
+
+    /** Settings applied to the converter of every job. */
+    private static ConverterSettings settings = ConverterSettings.fromProperties(executor);
+
+    /** Phase times and states of the finished jobs. */
+    private static Metrics metrics = new Metrics();
+
+    static {
+        SerializerPool.setShared(new SerializerPool(ApplicationProperties.getInt("serializers.pool", Runtime
+                .getRuntime().availableProcessors()), ApplicationProperties.getInt("serializers.buffer",
+            SerializerPool.DEFAULT_BUFFER_SIZE)));
+        RosrsClients.setShared(new RosrsClients(ApplicationProperties.getInt("rodl.clients.idle",
+            RosrsClients.DEFAULT_IDLE_TIMEOUT_S), ApplicationProperties.getInt("rodl.clients.max",
+            RosrsClients.DEFAULT_MAX_CLIENTS)));
+    }
+
     /** Statuses of finished jobs. */
-    @SuppressWarnings("serial")
-    private static Map<UUID, JobStatus> finishedJobs = Collections
-            .synchronizedMap(new LinkedHashMap<UUID, JobStatus>() {
+    private static JobStatusStore finishedJobs = JobStatusStore.fromProperties();
+
+    /** Requests waiting for a job to change, each of them holds a request thread. */
+    private static Semaphore waiting = new Semaphore(ApplicationProperties.getInt("jobs.wait.max", 100));
+
+    /** Maximum time a status request waits for a job in ms. */
+    private static long maxWaitMs = ApplicationProperties.getInt("jobs.wait.timeout.max", 60) * 1000L;
+
+    /** Time without changes after which an event stream sends a comment in ms. */
+    private static long heartbeatMs = ApplicationProperties.getInt("jobs.events.heartbeat", 15) * 1000L;
 
-                protected boolean removeEldestEntry(Map.Entry<UUID, JobStatus> eldest) {
-                    return size() > MAX_JOBS_DONE;
-                };
-            });
+    /** Seconds after which a client whose job has been rejected is asked to retry. */
+    private static int retryAfterS = ApplicationProperties.getInt("jobs.queue.retry", 30);
+
+    /** Maximum number of jobs in a batch. */
+    private static int maxBatchJobs = ApplicationProperties.getInt("jobs.batch.max", MAX_JOBS);
+
+    /** Job UUIDs of the batches, the least recently requested batches are forgotten first. */
+    private static Map<UUID, List<UUID>> batches = Collections.synchronizedMap(new LinkedHashMap<UUID, List<UUID>>(
+            16, 0.75f, true) {
+
+        /** id. */
+        private static final long serialVersionUID = 1L;
+
+        /** Maximum number of batches kept. */
+        private final int maxBatches = ApplicationProperties.getInt("jobs.batches.max", 1000);
+
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<UUID, List<UUID>> eldest) {
+            return size() > maxBatches;
+        }
+    });
 
 
     /**
@@ -90,6 +148,8 @@ public class RestApi implements JobsContainer {
      * @param extract_services
      *            URI of RO Folder where to extract services, or null to not
      *            extract.
+     * @param merge_annotations
+     *            upload the workflow annotations as one annotation
      * @return 201 Created
      * @throws BadRequestException
      *             the incoming parameters are incorrect
@@ -104,9 +164,11 @@ public class RestApi implements JobsContainer {
             @FormDataParam("extract_main") URI extract_main,
             @FormDataParam("extract_nested") URI extract_nested,
             @FormDataParam("extract_scripts") URI extract_scripts,
-            @FormDataParam("extract_services") URI extract_services)
+            @FormDataParam("extract_services") URI extract_services,
+            @FormDataParam("merge_annotations") boolean merge_annotations)
             throws BadRequestException {
-        return createJob(resourceURI, format, roURI, token, new JobExtractFolders(extract_main, extract_nested, extract_scripts, extract_services));
+        return createJob(resourceURI, format, roURI, token, new JobExtractFolders(extract_main, extract_nested, extract_scripts, extract_services),
+            merge_annotations);
     }
 
 
@@ -134,6 +196,8 @@ public class RestApi implements JobsContainer {
      * @param extract_services
      *            URI of RO Folder where to extract services, or null to not
      *            extract.
+     * @param merge_annotations
+     *            upload the workflow annotations as one annotation
      * @return 201 Created
      * @throws BadRequestException
      *             the incoming parameters are incorrect
@@ -148,9 +212,11 @@ public class RestApi implements JobsContainer {
             @FormParam("extract_main") URI extract_main,
             @FormParam("extract_nested") URI extract_nested,
             @FormParam("extract_scripts") URI extract_scripts,
-            @FormParam("extract_services") URI extract_services)
+            @FormParam("extract_services") URI extract_services,
+            @FormParam("merge_annotations") boolean merge_annotations)
             throws BadRequestException {
-        return createJob(resourceURI, formatURI, roURI, token, new JobExtractFolders(extract_main, extract_nested, extract_scripts, extract_services));
+        return createJob(resourceURI, formatURI, roURI, token, new JobExtractFolders(extract_main, extract_nested, extract_scripts, extract_services),
+            merge_annotations);
     }
 
 
@@ -168,7 +234,8 @@ public class RestApi implements JobsContainer {
     @Consumes(MediaType.APPLICATION_JSON)
     public Response createJobJson(JobConfig config)
             throws BadRequestException {
-        return createJob(config.getResource(), config.getFormat(), config.getRo(), config.getToken(), config.getExtract());
+        return createJob(config.getResource(), config.getFormat(), config.getRo(), config.getToken(), config.getExtract(),
+            config.isMergeAnnotations());
     }
 
 
@@ -185,15 +252,111 @@ public class RestApi implements JobsContainer {
      *            RODL access token
      * @param extract
      *            RO Folders where to extract workflows, scripts and services
-     * @return 201 Created
+     * @param mergeAnnotations
+     *            upload the workflow annotations as one annotation
+     * @return 201 Created, or 503 Service Unavailable with Retry-After if the queue is full
      * @throws BadRequestException
      *             the incoming parameters are incorrect
      */
-    private Response createJob(URI resourceURI, String format, URI roURI, String token, JobExtractFolders extract)
+    private Response createJob(URI resourceURI, String format, URI roURI, String token, JobExtractFolders extract,
+            boolean mergeAnnotations)
             throws BadRequestException {
-        if (jobs.size() >= MAX_JOBS) {
-            return Response.status(Status.SERVICE_UNAVAILABLE).build();
+        Job job = newJob(resourceURI, format, roURI, token, extract, mergeAnnotations);
+        URI jobURI = uriInfo.getAbsolutePathBuilder().path(job.getUUID().toString()).build();
+        jobs.put(job.getUUID(), job);
+        try {
+            executor.submit(job);
+        } catch (RejectedExecutionException e) {
+            jobs.remove(job.getUUID());
+            return Response.status(Status.SERVICE_UNAVAILABLE).header("Retry-After", retryAfterS).build();
+        }
+        return Response.created(jobURI).build();
+    }
+
+
+    /**
+     * Create a batch of jobs. Jobs converting the same workflow in the same format share its download and parsing,
+     * so each workflow is fetched and parsed once for the whole batch. The batch is accepted whole or not at all: it
+     * is submitted only if the queue has room for all its jobs, see {@link JobExecutor#submitAll(List)}.
+     * 
+     * @param configs
+     *            JSON array with the config params of each job
+     * @return 201 Created with the batch URI and JSON with the batch status, which lists the job URIs in the order of
+     *         the configs, or 503 Service Unavailable with Retry-After if the jobs don't fit into the queue, in which
+     *         case none has been started
+     * @throws BadRequestException
+     *             the batch is empty or too large, or the incoming parameters of a job are incorrect
+     * @throws IOException
+     *             The status of a finished job can't be read from the job journal
+     */
+    @POST
+    @Path("/batch")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response createBatchJson(List<JobConfig> configs)
+            throws BadRequestException, IOException {
+        if (configs == null || configs.isEmpty()) {
+            throw new BadRequestException("The batch has no jobs");
+        }
+        if (configs.size() > maxBatchJobs) {
+            throw new BadRequestException("The batch has more than " + maxBatchJobs + " jobs");
+        }
+        Map<List<Object>, WorkflowFetch> fetches = new HashMap<>();
+        List<Job> batch = new ArrayList<>(configs.size());
+        List<UUID> uuids = new ArrayList<>(configs.size());
+        for (JobConfig config : configs) {
+            Job job = newJob(config.getResource(), config.getFormat(), config.getRo(), config.getToken(),
+                config.getExtract(), config.isMergeAnnotations());
+            List<Object> workflow = Arrays.<Object> asList(config.getResource(), config.getFormat());
+            WorkflowFetch fetch = fetches.get(workflow);
+            if (fetch == null) {
+                fetch = new WorkflowFetch(config.getResource(), config.getFormat());
+                fetches.put(workflow, fetch);
+            }
+            job.setWorkflowFetch(fetch);
+            batch.add(job);
+            uuids.add(job.getUUID());
         }
+        for (Job job : batch) {
+            jobs.put(job.getUUID(), job);
+        }
+        if (!executor.submitAll(batch)) {
+            for (Job job : batch) {
+                jobs.remove(job.getUUID());
+            }
+            return Response.status(Status.SERVICE_UNAVAILABLE).header("Retry-After", retryAfterS).build();
+        }
+        UUID batchUUID = UUID.randomUUID();
+        batches.put(batchUUID, uuids);
+        LOG.debug(String.format("Created batch %s of %d jobs converting %d workflows", batchUUID, batch.size(),
+            fetches.size()));
+        URI batchURI = uriInfo.getAbsolutePathBuilder().path(batchUUID.toString()).build();
+        return Response.created(batchURI).entity(getBatchStatus(uuids)).build();
+    }
+
+
+    /**
+     * Create a new job, not submitted yet.
+     * 
+     * @param resourceURI
+     *            workflow URI
+     * @param format
+     *            workflow format URI
+     * @param roURI
+     *            RO URI
+     * @param token
+     *            RODL access token
+     * @param extract
+     *            RO Folders where to extract workflows, scripts and services
+     * @param mergeAnnotations
+     *            upload the workflow annotations as one annotation
+     * @return the job
+     * @throws BadRequestException
+     *             the incoming parameters are incorrect
+     */
+    private Job newJob(URI resourceURI, String format, URI roURI, String token, JobExtractFolders extract,
+            boolean mergeAnnotations)
+            throws BadRequestException {
         if (resourceURI == null) {
             throw new BadRequestException("Resource URI cannot be null");
         }
@@ -203,47 +366,247 @@ public class RestApi implements JobsContainer {
         if (roURI == null) {
             throw new BadRequestException("Research Object URI cannot be null");
         }
-        UUID jobUUID = UUID.randomUUID();
-        URI jobURI = uriInfo.getAbsolutePathBuilder().path(jobUUID.toString()).build();
-        Job job = new Job(jobUUID, resourceURI, format, roURI, token, this, extract);
-        jobs.put(jobUUID, job);
-        job.start();
-        return Response.created(jobURI).build();
+        Job job = new Job(UUID.randomUUID(), resourceURI, format, roURI, token, this, extract);
+        job.setConverterSettings(settings);
+        job.setMergeAnnotations(mergeAnnotations);
+        return job;
     }
 
 
     /**
-     * Get job status.
+     * Get the status of a batch of jobs.
+     * 
+     * @param uuid
+     *            batch UUID
+     * @return JSON with the batch status
+     * @throws NotFoundException
+     *             No batch with given UUID
+     * @throws IOException
+     *             The status of a finished job can't be read from the job journal
+     */
+    @GET
+    @Path("/batch/{uuid}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public BatchStatus getBatchStatus(@PathParam("uuid") UUID uuid)
+            throws NotFoundException, IOException {
+        List<UUID> batch = batches.get(uuid);
+        if (batch == null) {
+            throw new NotFoundException("No batch with id " + uuid);
+        }
+        return getBatchStatus(batch);
+    }
+
+
+    /**
+     * @param batch
+     *            job UUIDs
+     * @return the job URIs and how many jobs are in each state
+     * @throws IOException
+     *             The status of a finished job can't be read from the job journal
+     */
+    private BatchStatus getBatchStatus(List<UUID> batch)
+            throws IOException {
+        List<URI> uris = new ArrayList<>(batch.size());
+        for (UUID uuid : batch) {
+            uris.add(uriInfo.getBaseUriBuilder().path(RestApi.class).path(uuid.toString()).build());
+        }
+        BatchStatus status = new BatchStatus(uris);
+        for (UUID uuid : batch) {
+            Job job = jobs.get(uuid);
+            if (job != null) {
+                status.count(job.getJobState());
+            } else {
+                // a finished job is stored before it is removed from the running jobs
+                JobStatus finished = finishedJobs.get(uuid);
+                status.count(finished != null ? finished.getStatus() : null);
+            }
+        }
+        return status;
+    }
+
+
+    /**
+     * Get job status. With waitFor, the request waits until the job has finished or reached the given state, or the
+     * timeout has passed, and then returns the status the job has at that time.
      * 
      * @param uuid
      *            job UUID
+     * @param waitFor
+     *            "done" to wait for the job to finish, or a job state, or null to not wait
+     * @param timeout
+     *            maximum time to wait, such as 30s, 500ms or 2m, in seconds if without unit
      * @return JSON with job status
      * @throws NotFoundException
      *             No job with given UUID
      * @throws CancelledException
      *             The job has already been cancelled
+     * @throws BadRequestException
+     *             The state or the timeout to wait for is incorrect
+     * @throws IOException
+     *             The status of the finished job can't be read from the job journal
      */
     @GET
     @Path("/{uuid}")
     @Produces(MediaType.APPLICATION_JSON)
-    public JobStatus getJobStatus(@PathParam("uuid") UUID uuid)
-            throws NotFoundException, CancelledException {
-        if (jobs.containsKey(uuid)) {
-            if (jobs.get(uuid).getJobState() == State.CANCELLED) {
+    public JobStatus getJobStatus(@PathParam("uuid") UUID uuid, @QueryParam("waitFor") String waitFor,
+            @QueryParam("timeout") String timeout)
+            throws NotFoundException, CancelledException, BadRequestException, IOException {
+        if (waitFor != null) {
+            awaitJob(uuid, parseState(waitFor), parseTimeout(timeout));
+        }
+        Job job = jobs.get(uuid);
+        if (job != null) {
+            if (job.getJobState() == State.CANCELLED) {
                 throw new CancelledException(uuid);
             } else {
-                return jobs.get(uuid).getJobStatus();
+                return job.getJobStatus();
             }
         }
-        if (finishedJobs.containsKey(uuid)) {
-            return finishedJobs.get(uuid);
+        JobStatus status = finishedJobs.get(uuid);
+        if (status != null) {
+            return status;
         }
         throw new NotFoundException(uuid);
     }
 
 
     /**
-     * Cancel a job. Not sure if it's an abort or an undo.
+     * Stream the changes of a job as Server-Sent Events, see {@link JobEventStream}. The stream ends when the job has
+     * finished.
+     * 
+     * @param uuid
+     *            job UUID
+     * @return 200 OK with the event stream, or 503 Service Unavailable if too many requests are waiting for jobs
+     * @throws NotFoundException
+     *             No job with given UUID
+     * @throws IOException
+     *             The status of the finished job can't be read from the job journal
+     */
+    @GET
+    @Path("/{uuid}/events")
+    @Produces(JobEventStream.MEDIA_TYPE)
+    public Response getJobEvents(@PathParam("uuid") UUID uuid)
+            throws NotFoundException, IOException {
+        Job job = jobs.get(uuid);
+        JobEventStream stream;
+        if (job != null) {
+            // the stream takes its permit when it is written, so that it isn't lost if it never is
+            if (waiting.availablePermits() == 0) {
+                return Response.status(Status.SERVICE_UNAVAILABLE).build();
+            }
+            stream = new JobEventStream(job, heartbeatMs, waiting);
+        } else {
+            JobStatus status = finishedJobs.get(uuid);
+            if (status == null) {
+                throw new NotFoundException(uuid);
+            }
+            stream = new JobEventStream(status);
+        }
+        return Response.ok(stream).header("Cache-Control", "no-cache").build();
+    }
+
+
+    /**
+     * Wait until a running job has finished or reached a state, or the timeout has passed. The request doesn't wait
+     * if the job isn't running or too many requests are waiting already.
+     * 
+     * @param uuid
+     *            job UUID
+     * @param target
+     *            state to wait for, or null to wait for the job to finish
+     * @param timeoutMs
+     *            maximum time to wait in ms
+     */
+    private static void awaitJob(UUID uuid, State target, long timeoutMs) {
+        Job job = jobs.get(uuid);
+        if (job == null) {
+            return;
+        }
+        if (!waiting.tryAcquire()) {
+            LOG.debug("Too many requests waiting for jobs, returning the status of job " + uuid + " at once");
+            return;
+        }
+        try {
+            long deadline = System.nanoTime() + timeoutMs * 1000000;
+            while (true) {
+                // read the version first, so that no change after it is missed
+                long version = job.getVersion();
+                State state = job.getJobState();
+                if (state == target || state.isFinished()) {
+                    return;
+                }
+                long remainingMs = (deadline - System.nanoTime()) / 1000000;
+                if (remainingMs <= 0) {
+                    return;
+                }
+                job.awaitChange(version, remainingMs);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            waiting.release();
+        }
+    }
+
+
+    /**
+     * @param waitFor
+     *            "done" or a job state
+     * @return the job state, or null for "done"
+     * @throws BadRequestException
+     *             if it isn't a job state
+     */
+    private static State parseState(String waitFor)
+            throws BadRequestException {
+        if (waitFor.equalsIgnoreCase("done")) {
+            return null;
+        }
+        try {
+            return State.valueOf(waitFor.toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException("Unknown job state to wait for: " + waitFor);
+        }
+    }
+
+
+    /**
+     * @param timeout
+     *            such as 30s, 500ms or 2m, in seconds if without unit, or null
+     * @return the timeout in ms, at most the maximum time to wait
+     * @throws BadRequestException
+     *             if the timeout is not a non-negative duration
+     */
+    static long parseTimeout(String timeout)
+            throws BadRequestException {
+        if (timeout == null || timeout.isEmpty()) {
+            return maxWaitMs;
+        }
+        String value = timeout.trim().toLowerCase(Locale.ENGLISH);
+        long unitMs = 1000;
+        if (value.endsWith("ms")) {
+            value = value.substring(0, value.length() - 2);
+            unitMs = 1;
+        } else if (value.endsWith("s")) {
+            value = value.substring(0, value.length() - 1);
+        } else if (value.endsWith("m")) {
+            value = value.substring(0, value.length() - 1);
+            unitMs = 60000;
+        }
+        try {
+            long ms = Long.parseLong(value.trim());
+            if (ms < 0) {
+                throw new BadRequestException("Negative timeout: " + timeout);
+            }
+            return ms > maxWaitMs / unitMs ? maxWaitMs : ms * unitMs;
+        } catch (NumberFormatException e) {
+            throw new BadRequestException("Incorrect timeout: " + timeout, e);
+        }
+    }
+
+
+    /**
+     * Cancel a job. The conversion is aborted but not undone, see {@link Job#cancel()}. A job that has just finished
+     * keeps its final state, and the status of a finished job is removed.
      * 
      * @param uuid
      *            job UUID
@@ -251,20 +614,23 @@ public class RestApi implements JobsContainer {
      *             No job with given UUID
      * @throws CancelledException
      *             The job has already been cancelled
+     * @throws IOException
+     *             The removal of the finished job can't be written to the job journal
      */
     @DELETE
     @Path("/{uuid}")
     public void cancelJob(@PathParam("uuid") UUID uuid)
-            throws NotFoundException, CancelledException {
-        if (jobs.containsKey(uuid)) {
-            if (jobs.get(uuid).getJobState() == State.CANCELLED) {
+            throws NotFoundException, CancelledException, IOException {
+        Job job = jobs.get(uuid);
+        if (job != null) {
+            if (job.getJobState() == State.CANCELLED) {
                 throw new CancelledException(uuid);
-            } else {
-                jobs.get(uuid).cancel();
+            } else if (job.cancel()) {
+                if (executor.dequeue(job)) {
+                    onJobDone(job);
+                }
             }
-        } else if (finishedJobs.containsKey(uuid)) {
-            finishedJobs.remove(uuid);
-        } else {
+        } else if (!finishedJobs.remove(uuid)) {
             throw new NotFoundException(uuid);
         }
     }
@@ -272,7 +638,40 @@ public class RestApi implements JobsContainer {
 
     @Override
     public void onJobDone(Job job) {
-        finishedJobs.put(job.getUUID(), job.getJobStatus());
+        JobStatus status = job.getJobStatus();
+        try {
+            finishedJobs.put(job.getUUID(), status);
+        } catch (IOException e) {
+            LOG.error("Can't store the status of the finished job " + job.getUUID(), e);
+        }
         jobs.remove(job.getUUID());
+        metrics.jobFinished(status.getStatus(), status.getPhases());
+        if (job.getCancelLatencyMs() >= 0) {
+            metrics.jobCancelled(job.getCancelLatencyMs());
+        }
+    }
+
+
+    /**
+     * @return the workers running the jobs
+     */
+    static JobExecutor getExecutor() {
+        return executor;
+    }
+
+
+    /**
+     * @return phase times and states of the finished jobs
+     */
+    static Metrics getMetrics() {
+        return metrics;
+    }
+
+
+    /**
+     * @return settings applied to the converter of every job
+     */
+    static ConverterSettings getSettings() {
+        return settings;
     }
 }
@@ -0,0 +1,372 @@
+package org.purl.wf4ever.wf2ro.rest;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash map from UUIDs, stored as their two longs, to non-negative ints, which keeps its entries in
+ * the order of their last use. It takes about 37 bytes per entry, without any objects per entry, which is several
+ * times less than a {@link java.util.LinkedHashMap} of boxed keys and values.
+ *
+ * Collisions are resolved by linear probing, and removed entries are replaced by shifting the following entries back,
+ * so there are no tombstones. The order of use is a doubly linked list of slot numbers. The map is not thread safe.
+ *
+ */
+class UuidIndex {
+
+    /** Marks an empty slot, and the end of the order of use. */
+    static final int NONE = -1;
+
+    /** Initial number of slots. */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /** Most significant bits of the keys. */
+    private long[] msbs;
+
+    /** Least significant bits of the keys. */
+    private long[] lsbs;
+
+    /** Values, {@link #NONE} in empty slots. */
+    private int[] values;
+
+    /** Slot used before, or {@link #NONE} for the least recently used entry. */
+    private int[] previous;
+
+    /** Slot used after, or {@link #NONE} for the most recently used entry. */
+    private int[] next;
+
+    /** Least recently used slot. */
+    private int eldest = NONE;
+
+    /** Most recently used slot. */
+    private int youngest = NONE;
+
+    /** Number of entries. */
+    private int size;
+
+
+    /**
+     * Constructor.
+     */
+    UuidIndex() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+
+    /**
+     * Get a value and mark its entry as the most recently used.
+     *
+     * @param msb
+     *            most significant bits of the key
+     * @param lsb
+     *            least significant bits of the key
+     * @return the value, or {@link #NONE} if there is no entry for the key
+     */
+    int get(long msb, long lsb) {
+        int slot = find(msb, lsb);
+        if (slot == NONE) {
+            return NONE;
+        }
+        unlink(slot);
+        linkYoungest(slot);
+        return values[slot];
+    }
+
+
+    /**
+     * Get a value without changing the order of use.
+     *
+     * @param msb
+     *            most significant bits of the key
+     * @param lsb
+     *            least significant bits of the key
+     * @return the value, or {@link #NONE} if there is no entry for the key
+     */
+    int peek(long msb, long lsb) {
+        int slot = find(msb, lsb);
+        return slot == NONE ? NONE : values[slot];
+    }
+
+
+    /**
+     * Set a value and mark its entry as the most recently used.
+     *
+     * @param msb
+     *            most significant bits of the key
+     * @param lsb
+     *            least significant bits of the key
+     * @param value
+     *            the value, not negative
+     * @return the previous value, or {@link #NONE} if there was no entry for the key
+     */
+    int put(long msb, long lsb, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative value " + value);
+        }
+        int slot = find(msb, lsb);
+        if (slot != NONE) {
+            int old = values[slot];
+            values[slot] = value;
+            unlink(slot);
+            linkYoungest(slot);
+            return old;
+        }
+        if ((size + 1) * 4L > values.length * 3L) {
+            resize(values.length * 2);
+        }
+        slot = home(msb, lsb);
+        while (values[slot] != NONE) {
+            slot = (slot + 1) & (values.length - 1);
+        }
+        msbs[slot] = msb;
+        lsbs[slot] = lsb;
+        values[slot] = value;
+        linkYoungest(slot);
+        size++;
+        return NONE;
+    }
+
+
+    /**
+     * Remove an entry.
+     *
+     * @param msb
+     *            most significant bits of the key
+     * @param lsb
+     *            least significant bits of the key
+     * @return the removed value, or {@link #NONE} if there was no entry for the key
+     */
+    int remove(long msb, long lsb) {
+        int slot = find(msb, lsb);
+        if (slot == NONE) {
+            return NONE;
+        }
+        int old = values[slot];
+        unlink(slot);
+        values[slot] = NONE;
+        size--;
+        // shift back the following entries of the probe sequence, so that it has no holes
+        int mask = values.length - 1;
+        int hole = slot;
+        for (int i = (hole + 1) & mask; values[i] != NONE; i = (i + 1) & mask) {
+            int home = home(msbs[i], lsbs[i]);
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                move(i, hole);
+                hole = i;
+            }
+        }
+        return old;
+    }
+
+
+    /**
+     * @return number of entries
+     */
+    int size() {
+        return size;
+    }
+
+
+    /**
+     * @return the least recently used slot, or {@link #NONE} if the map is empty
+     */
+    int eldest() {
+        return eldest;
+    }
+
+
+    /**
+     * @param slot
+     *            a slot with an entry
+     * @return the next more recently used slot, or {@link #NONE}
+     */
+    int next(int slot) {
+        return next[slot];
+    }
+
+
+    /**
+     * @param slot
+     *            a slot with an entry
+     * @return most significant bits of its key
+     */
+    long msb(int slot) {
+        return msbs[slot];
+    }
+
+
+    /**
+     * @param slot
+     *            a slot with an entry
+     * @return least significant bits of its key
+     */
+    long lsb(int slot) {
+        return lsbs[slot];
+    }
+
+
+    /**
+     * @param slot
+     *            a slot with an entry
+     * @return its value
+     */
+    int value(int slot) {
+        return values[slot];
+    }
+
+
+    /**
+     * Replace the value of an entry without changing the order of use.
+     *
+     * @param slot
+     *            a slot with an entry
+     * @param value
+     *            the value, not negative
+     */
+    void setValue(int slot, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative value " + value);
+        }
+        values[slot] = value;
+    }
+
+
+    /**
+     * @param msb
+     *            most significant bits of the key
+     * @param lsb
+     *            least significant bits of the key
+     * @return the slot of the key, or {@link #NONE}
+     */
+    private int find(long msb, long lsb) {
+        int mask = values.length - 1;
+        for (int slot = home(msb, lsb); values[slot] != NONE; slot = (slot + 1) & mask) {
+            if (msbs[slot] == msb && lsbs[slot] == lsb) {
+                return slot;
+            }
+        }
+        return NONE;
+    }
+
+
+    /**
+     * @param msb
+     *            most significant bits of the key
+     * @param lsb
+     *            least significant bits of the key
+     * @return the first slot of the probe sequence of the key
+     */
+    private int home(long msb, long lsb) {
+        // the finalizer of MurmurHash3, random UUIDs are random already but name based ones may share bits
+        long h = msb * 31 + lsb;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) h & (values.length - 1);
+    }
+
+
+    /**
+     * Move an entry to an empty slot, keeping its place in the order of use.
+     *
+     * @param from
+     *            the slot of the entry
+     * @param to
+     *            the empty slot
+     */
+    private void move(int from, int to) {
+        msbs[to] = msbs[from];
+        lsbs[to] = lsbs[from];
+        values[to] = values[from];
+        previous[to] = previous[from];
+        next[to] = next[from];
+        if (previous[to] != NONE) {
+            next[previous[to]] = to;
+        } else {
+            eldest = to;
+        }
+        if (next[to] != NONE) {
+            previous[next[to]] = to;
+        } else {
+            youngest = to;
+        }
+        values[from] = NONE;
+    }
+
+
+    /**
+     * Remove a slot from the order of use.
+     *
+     * @param slot
+     *            the slot
+     */
+    private void unlink(int slot) {
+        if (previous[slot] != NONE) {
+            next[previous[slot]] = next[slot];
+        } else {
+            eldest = next[slot];
+        }
+        if (next[slot] != NONE) {
+            previous[next[slot]] = previous[slot];
+        } else {
+            youngest = previous[slot];
+        }
+    }
+
+
+    /**
+     * Add a slot to the order of use as the most recently used.
+     *
+     * @param slot
+     *            the slot
+     */
+    private void linkYoungest(int slot) {
+        previous[slot] = youngest;
+        next[slot] = NONE;
+        if (youngest != NONE) {
+            next[youngest] = slot;
+        } else {
+            eldest = slot;
+        }
+        youngest = slot;
+    }
+
+
+    /**
+     * Allocate empty slots.
+     *
+     * @param capacity
+     *            number of slots, a power of two
+     */
+    private void allocate(int capacity) {
+        msbs = new long[capacity];
+        lsbs = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, NONE);
+        previous = new int[capacity];
+        next = new int[capacity];
+        eldest = NONE;
+        youngest = NONE;
+        size = 0;
+    }
+
+
+    /**
+     * Move the entries to more slots, keeping their order of use.
+     *
+     * @param capacity
+     *            number of slots, a power of two
+     */
+    private void resize(int capacity) {
+        long[] oldMsbs = msbs;
+        long[] oldLsbs = lsbs;
+        int[] oldValues = values;
+        int[] oldNext = next;
+        int oldEldest = eldest;
+        allocate(capacity);
+        for (int slot = oldEldest; slot != NONE; slot = oldNext[slot]) {
+            put(oldMsbs[slot], oldLsbs[slot], oldValues[slot]);
+        }
+    }
+}
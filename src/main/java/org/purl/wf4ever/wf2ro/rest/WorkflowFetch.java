@@ -0,0 +1,130 @@
+package org.purl.wf4ever.wf2ro.rest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.purl.wf4ever.wf2ro.BundleCache;
+import org.purl.wf4ever.wf2ro.Cancellation;
+import org.purl.wf4ever.wf2ro.DocumentCache;
+import org.purl.wf4ever.wf2ro.PhaseTimings;
+import org.purl.wf4ever.wf2ro.WorkflowSource;
+
+import uk.org.taverna.scufl2.api.container.WorkflowBundle;
+import uk.org.taverna.scufl2.api.io.ReaderException;
+import uk.org.taverna.scufl2.api.io.WorkflowBundleIO;
+
+/**
+ * Downloads and parses a workflow once for all the jobs that share it, such as the jobs of a batch that convert the
+ * same workflow into several ROs. The first job to need the workflow fetches it while the others wait, and then they
+ * all convert the same bundle, which they must not modify.
+ *
+ * A failure to download or parse the workflow is kept and reported to every job, unless the job that fetched it was
+ * cancelled, in which case the next job fetches it again.
+ *
+ */
+class WorkflowFetch {
+
+    /** Workflow URI. */
+    private final URI resource;
+
+    /** Workflow format MIME type. */
+    private final String format;
+
+    /** Held by the job fetching the workflow. */
+    private final Lock lock = new ReentrantLock();
+
+    /** The workflow document, once fetched. */
+    private volatile WorkflowSource source;
+
+    /** The parsed workflow, once fetched. */
+    private volatile WorkflowBundle bundle;
+
+    /** Why the workflow can't be fetched, an {@link IOException} or a {@link ReaderException}, or null. */
+    private Exception failure;
+
+
+    /**
+     * Constructor.
+     *
+     * @param resource
+     *            workflow URI
+     * @param format
+     *            workflow format MIME type
+     */
+    WorkflowFetch(URI resource, String format) {
+        this.resource = resource;
+        this.format = format;
+    }
+
+
+    /**
+     * Download and parse the workflow, unless it has been done already, through the document and bundle caches if
+     * there are any. Waits while another job is fetching the workflow.
+     *
+     * @param settings
+     *            the converter settings of the job, with the caches
+     * @param cancellation
+     *            cancellation of the job, aborting the download and the waiting
+     * @throws IOException
+     *             when the workflow can't be downloaded, or the job has been cancelled
+     * @throws ReaderException
+     *             when the workflow can't be parsed
+     */
+    void fetch(ConverterSettings settings, Cancellation cancellation)
+            throws IOException, ReaderException {
+        try {
+            // cancelling a job interrupts its worker
+            lock.lockInterruptibly();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Cancelled while waiting for the workflow " + resource);
+        }
+        try {
+            if (bundle != null) {
+                return;
+            }
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            } else if (failure instanceof ReaderException) {
+                throw (ReaderException) failure;
+            }
+            DocumentCache documents = settings.getDocumentCache();
+            try (InputStream in = cancellation.track(PhaseTimings.count(documents != null ? documents.open(resource)
+                    : resource.toURL().openStream()))) {
+                WorkflowSource read = WorkflowSource.read(in, format);
+                cancellation.check();
+                BundleCache bundles = settings.getBundleCache();
+                WorkflowBundle parsed = bundles != null ? bundles.read(read) : new WorkflowBundleIO().readBundle(
+                    read.openStream(), read.getFormat());
+                source = read;
+                bundle = parsed;
+            } catch (IOException | ReaderException e) {
+                if (!cancellation.isCancelled()) {
+                    failure = e;
+                }
+                throw e;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * @return the workflow document, or null if it hasn't been fetched
+     */
+    WorkflowSource getSource() {
+        return source;
+    }
+
+
+    /**
+     * @return the parsed workflow, or null if it hasn't been fetched
+     */
+    WorkflowBundle getBundle() {
+        return bundle;
+    }
+}
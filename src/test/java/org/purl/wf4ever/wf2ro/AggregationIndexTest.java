@@ -0,0 +1,189 @@
+package org.purl.wf4ever.wf2ro;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.purl.wf4ever.rosrs.client.Folder;
+import org.purl.wf4ever.rosrs.client.ResearchObject;
+import org.purl.wf4ever.rosrs.client.Resource;
+
+import uk.org.taverna.scufl2.api.container.WorkflowBundle;
+
+/**
+ * Verifies that the tokens put by the converter in resource names are recognized, and that each resource is claimed
+ * once per folder or research object.
+ *
+ */
+public class AggregationIndexTest {
+
+    /** RO URI. */
+    private static final URI RO_URI = URI.create("http://example.org/ROs/ro1/");
+
+    /** A script already in the research object. */
+    private static final String AGGREGATED = "2fd4e1c67a2d28fced849ee1bb76e7391b93eb12";
+
+    /** A script not extracted yet. */
+    private static final String NEW = "a794fc8c-f3c6-4c80-a3d0-50f89100c0fc";
+
+    /** Number of times the resources of the research object have been listed. */
+    private final AtomicInteger listings = new AtomicInteger();
+
+    /** The research object. */
+    private final ResearchObject ro = new ResearchObject(RO_URI, null);
+
+    /** The index. */
+    private AggregationIndex index;
+
+
+    /**
+     * Create an index of a research object aggregating one script.
+     *
+     * @throws IOException
+     *             unexpected
+     */
+    @Before
+    public void setUp()
+            throws IOException {
+        Wf2ROConverter converter = new RoBundleConverter(new WorkflowBundle(), RO_URI, new ByteArrayOutputStream()) {
+
+            @Override
+            protected Map<URI, Resource> getAggregatedResources(ResearchObject researchObject) {
+                listings.incrementAndGet();
+                Map<URI, Resource> resources = new HashMap<>();
+                URI script = RO_URI.resolve("scripts/beanshell-" + AGGREGATED + ".txt");
+                resources.put(script, new Resource(researchObject, script, null, null, null));
+                return resources;
+            }
+
+
+            @Override
+            protected Collection<String> getFolderEntryNames(Folder folder) {
+                return Collections.emptyList();
+            }
+        };
+        index = new AggregationIndex(converter);
+    }
+
+
+    /**
+     * UUIDs and SHA-1 digests are found in names and URIs, other hex strings are not.
+     */
+    @Test
+    public void tokens() {
+        Set<String> tokens = new HashSet<>();
+        AggregationIndex.addTokens("Workflow2-A794FC8C-F3C6-4C80-A3D0-50F89100C0FC.wfbundle", tokens);
+        AggregationIndex.addTokens(
+            "http://example.org/ROs/ro1/scripts/beanshell-2fd4e1c67a2d28fced849ee1bb76e7391b93eb12.txt", tokens);
+        AggregationIndex.addTokens("www.example.org-be1a9bbb-0a4a-5bd9-a3a9-2b9e2c6e0b8f", tokens);
+        AggregationIndex.addTokens("deadbeef-123", tokens);
+        AggregationIndex.addTokens("2fd4e1c67a2d28fced849ee1bb76e7391b93eb12ff", tokens);
+        assertEquals(
+            new HashSet<>(Arrays.asList("a794fc8c-f3c6-4c80-a3d0-50f89100c0fc",
+                "2fd4e1c67a2d28fced849ee1bb76e7391b93eb12", "be1a9bbb-0a4a-5bd9-a3a9-2b9e2c6e0b8f")), tokens);
+    }
+
+
+    /**
+     * A resource already aggregated or claimed before is not claimed again, in any letter case, and the research
+     * object is listed once.
+     *
+     * @throws Exception
+     *             unexpected
+     */
+    @Test
+    public void duplicateClaims()
+            throws Exception {
+        assertFalse(index.claim(ro, null, AGGREGATED));
+        assertTrue(index.claim(ro, null, NEW));
+        assertFalse(index.claim(ro, null, NEW));
+        assertFalse(index.claim(ro, null, NEW.toUpperCase()));
+        // resources without a token are always extracted
+        assertTrue(index.claim(ro, null, ""));
+        assertTrue(index.claim(ro, null, ""));
+        assertEquals(1, listings.get());
+    }
+
+
+    /**
+     * A resource that failed to be extracted can be claimed again, and claims are separate for each folder.
+     *
+     * @throws Exception
+     *             unexpected
+     */
+    @Test
+    public void releaseAfterFailure()
+            throws Exception {
+        Folder scripts = new Folder(ro, RO_URI.resolve("scripts/"), null, null, null, null, false);
+        assertTrue(index.claim(ro, null, NEW));
+        index.release(ro, null, NEW.toUpperCase());
+        assertTrue(index.claim(ro, null, NEW));
+        assertTrue(index.claim(ro, scripts, NEW));
+        assertFalse(index.claim(ro, scripts, NEW));
+        index.release(ro, scripts, NEW);
+        assertTrue(index.claim(ro, scripts, NEW));
+        assertFalse(index.claim(ro, null, NEW));
+    }
+
+
+    /**
+     * Of the threads claiming the same resource at the same time exactly one wins, and the research object is listed
+     * once.
+     *
+     * @throws Exception
+     *             unexpected
+     */
+    @Test
+    public void racingClaims()
+            throws Exception {
+        int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Boolean>> claims = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                claims.add(executor.submit(new Callable<Boolean>() {
+
+                    @Override
+                    public Boolean call()
+                            throws Exception {
+                        start.await();
+                        return index.claim(ro, null, NEW);
+                    }
+                }));
+            }
+            start.countDown();
+            int won = 0;
+            for (Future<Boolean> claim : claims) {
+                if (claim.get()) {
+                    won++;
+                }
+            }
+            assertEquals(1, won);
+            assertEquals(1, listings.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
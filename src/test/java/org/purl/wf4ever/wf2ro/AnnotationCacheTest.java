@@ -0,0 +1,199 @@
+package org.purl.wf4ever.wf2ro;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Verifies that the annotation cache stores complete bodies only and keeps its size budget.
+ *
+ */
+public class AnnotationCacheTest {
+
+    /** Cache directory. */
+    private File directory;
+
+
+    /**
+     * Create the cache directory.
+     *
+     * @throws IOException
+     *             unexpected
+     */
+    @Before
+    public void setUp()
+            throws IOException {
+        directory = File.createTempFile("wf2ro-annotations", "");
+        directory.delete();
+    }
+
+
+    /**
+     * Delete the cache directory.
+     */
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+
+    /**
+     * A body is stored while it is serialized and read back after a restart.
+     *
+     * @throws Exception
+     *             unexpected
+     */
+    @Test
+    public void storesBodies()
+            throws Exception {
+        AnnotationCache cache = new AnnotationCache(directory, 1024 * 1024);
+        byte[] body = body(10000, 1);
+        assertNull(cache.open("a wfdesc"));
+        assertArrayEquals(body, serialize(cache, "a wfdesc", body));
+        assertArrayEquals(body, read(cache.open("a wfdesc")));
+        assertNull(cache.open("a roevo"));
+
+        cache = new AnnotationCache(directory, 1024 * 1024);
+        assertEquals(1, cache.getEntryCount());
+        assertArrayEquals(body, read(cache.open("a wfdesc")));
+        assertEquals(1, cache.getHitCount());
+    }
+
+
+    /**
+     * A failed serialization is not stored.
+     *
+     * @throws Exception
+     *             unexpected
+     */
+    @Test
+    public void skipsFailures()
+            throws Exception {
+        AnnotationCache cache = new AnnotationCache(directory, 1024 * 1024);
+        try {
+            cache.record("a wfdesc", new SerializerPool.Serialization() {
+
+                @Override
+                public void writeTo(OutputStream out)
+                        throws Exception {
+                    out.write(new byte[100]);
+                    throw new IOException("Can't generate");
+                }
+            }).writeTo(new ByteArrayOutputStream());
+            fail("The failure was not passed on");
+        } catch (IOException e) {
+            // expected
+        }
+        assertNull(cache.open("a wfdesc"));
+        assertEquals(0, cache.getEntryCount());
+        assertEquals(0, directory.listFiles().length);
+    }
+
+
+    /**
+     * The least recently used bodies are removed when the cache is full.
+     *
+     * @throws Exception
+     *             unexpected
+     */
+    @Test
+    public void evicts()
+            throws Exception {
+        AnnotationCache cache = new AnnotationCache(directory, 2500);
+        serialize(cache, "a", body(1000, 1));
+        serialize(cache, "b", body(1000, 2));
+        assertNotNull(cache.open("a"));
+        serialize(cache, "c", body(1000, 3));
+        assertEquals(1, cache.getEvictedCount());
+        assertNotNull(cache.open("a"));
+        assertNull(cache.open("b"));
+        assertNotNull(cache.open("c"));
+        assertEquals(2, directory.listFiles().length);
+    }
+
+
+    /**
+     * @param length
+     *            body length
+     * @param seed
+     *            random seed
+     * @return an incompressible body
+     */
+    private static byte[] body(int length, int seed) {
+        byte[] body = new byte[length];
+        new Random(seed).nextBytes(body);
+        return body;
+    }
+
+
+    /**
+     * Serialize a body through the cache.
+     *
+     * @param cache
+     *            the cache
+     * @param key
+     *            body key
+     * @param body
+     *            the body
+     * @return what was written to the upload
+     * @throws Exception
+     *             unexpected
+     */
+    private static byte[] serialize(AnnotationCache cache, String key, final byte[] body)
+            throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cache.record(key, new SerializerPool.Serialization() {
+
+            @Override
+            public void writeTo(OutputStream out)
+                    throws Exception {
+                out.write(body, 0, 10);
+                out.write(body, 10, body.length - 10);
+                out.close();
+            }
+        }).writeTo(out);
+        return out.toByteArray();
+    }
+
+
+    /**
+     * @param in
+     *            a cached body
+     * @return its content
+     * @throws IOException
+     *             unexpected
+     */
+    private static byte[] read(InputStream in)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[1024];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+}
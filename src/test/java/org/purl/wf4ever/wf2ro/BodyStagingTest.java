@@ -0,0 +1,171 @@
+package org.purl.wf4ever.wf2ro;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.purl.wf4ever.wf2ro.BodyStaging.StagedBody;
+
+/**
+ * Verifies that staged bodies can be read repeatedly and that temporary files are removed.
+ *
+ */
+public class BodyStagingTest {
+
+    /** Threshold used in the tests. */
+    private static final int THRESHOLD = 1024;
+
+    /** Directory for the temporary files. */
+    private File directory;
+
+
+    /**
+     * Create the directory for the temporary files.
+     *
+     * @throws IOException
+     *             unexpected
+     */
+    @Before
+    public void setUp()
+            throws IOException {
+        directory = File.createTempFile("wf2ro-staging", "");
+        directory.delete();
+        directory.mkdir();
+    }
+
+
+    /**
+     * Delete the directory for the temporary files.
+     */
+    @After
+    public void tearDown() {
+        directory.delete();
+    }
+
+
+    /**
+     * A small body is kept in memory.
+     *
+     * @throws IOException
+     *             unexpected
+     */
+    @Test
+    public void small()
+            throws IOException {
+        BodyStaging staging = new BodyStaging(THRESHOLD, directory);
+        try (StagedBody body = staging.stage("test", bytes(100))) {
+            assertEquals(100, body.length());
+            assertEquals(0, directory.list().length);
+            assertArrayEquals(expected(100), read(body));
+        }
+    }
+
+
+    /**
+     * A large body is written to a file that can be read more than once and is deleted when the body is closed.
+     *
+     * @throws IOException
+     *             unexpected
+     */
+    @Test
+    public void large()
+            throws IOException {
+        BodyStaging staging = new BodyStaging(THRESHOLD, directory);
+        try (StagedBody body = staging.stage("test", bytes(100 * THRESHOLD))) {
+            assertEquals(100 * THRESHOLD, body.length());
+            assertEquals(1, directory.list().length);
+            assertArrayEquals(expected(100 * THRESHOLD), read(body));
+            assertArrayEquals(expected(100 * THRESHOLD), read(body));
+        }
+        assertEquals(0, directory.list().length);
+    }
+
+
+    /**
+     * The temporary file is deleted when the serialization fails.
+     */
+    @Test
+    public void failure() {
+        BodyStaging staging = new BodyStaging(THRESHOLD, directory);
+        try {
+            staging.stage("test", new SerializerPool.Serialization() {
+
+                @Override
+                public void writeTo(OutputStream out)
+                        throws Exception {
+                    out.write(new byte[10 * THRESHOLD]);
+                    throw new IllegalStateException("broken");
+                }
+            });
+            fail("The serialization failure should be reported");
+        } catch (IOException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(0, directory.list().length);
+    }
+
+
+    /**
+     * @param size
+     *            number of bytes
+     * @return a serialization writing the expected bytes in small chunks
+     */
+    private static SerializerPool.Serialization bytes(final int size) {
+        return new SerializerPool.Serialization() {
+
+            @Override
+            public void writeTo(OutputStream out)
+                    throws Exception {
+                byte[] data = expected(size);
+                for (int i = 0; i < size; i += 100) {
+                    out.write(data, i, Math.min(100, size - i));
+                }
+            }
+        };
+    }
+
+
+    /**
+     * @param size
+     *            number of bytes
+     * @return the bytes written by {@link #bytes(int)}
+     */
+    private static byte[] expected(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) i;
+        }
+        return data;
+    }
+
+
+    /**
+     * @param body
+     *            a staged body
+     * @return the body content
+     * @throws IOException
+     *             unexpected
+     */
+    private static byte[] read(StagedBody body)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = body.openStream()) {
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+            }
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,193 @@
+package org.purl.wf4ever.wf2ro;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import uk.org.taverna.scufl2.api.container.WorkflowBundle;
+import uk.org.taverna.scufl2.api.io.ReaderException;
+import uk.org.taverna.scufl2.api.io.WorkflowBundleIO;
+import uk.org.taverna.scufl2.api.profiles.Profile;
+
+/**
+ * Verifies that the bundle cache parses each document once and keeps its budget.
+ *
+ */
+public class BundleCacheTest {
+
+    /** t2flow media type. */
+    private static final String T2FLOW = "application/vnd.taverna.t2flow+xml";
+
+    /** Documents parsed. */
+    private final AtomicInteger parses = new AtomicInteger();
+
+    /** Released when the parses may finish. */
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    /** A reader that counts the parses and fails on an empty document. */
+    private final WorkflowBundleIO io = new WorkflowBundleIO() {
+
+        @Override
+        public WorkflowBundle readBundle(InputStream in, String mediaType)
+                throws ReaderException, IOException {
+            parses.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            if (in.read() < 0) {
+                throw new ReaderException("Empty document");
+            }
+            return new WorkflowBundle();
+        }
+    };
+
+
+    /**
+     * The same document is parsed once, a different one or format again.
+     *
+     * @throws Exception
+     *             unexpected
+     */
+    @Test
+    public void parsesOnce()
+            throws Exception {
+        release.countDown();
+        BundleCache cache = new BundleCache(io, 1024 * 1024);
+        WorkflowBundle bundle = cache.read(document(100, 1), T2FLOW);
+        assertSame(bundle, cache.read(document(100, 1), T2FLOW));
+        assertNotSame(bundle, cache.read(document(100, 2), T2FLOW));
+        assertNotSame(bundle, cache.read(document(100, 1), "application/vnd.taverna.scufl2.workflow-bundle"));
+        assertEquals(3, parses.get());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(3, cache.getMissCount());
+        assertEquals(3 * 100 * BundleCache.HEAP_PER_SOURCE_BYTE, cache.getSize());
+    }
+
+
+    /**
+     * A cached bundle modified by a job is reported when it is handed out again, if assertions are enabled.
+     *
+     * @throws Exception
+     *             unexpected
+     */
+    @Test
+    public void detectsModification()
+            throws Exception {
+        release.countDown();
+        BundleCache cache = new BundleCache(io, 1024 * 1024);
+        cache.read(document(100, 1), T2FLOW).getProfiles().add(new Profile("modified"));
+        boolean assertions = false;
+        assert assertions = true;
+        try {
+            cache.read(document(100, 1), T2FLOW);
+            assertFalse("The modification should have been detected", assertions);
+        } catch (AssertionError e) {
+            assertTrue(assertions);
+        }
+    }
+
+
+    /**
+     * Concurrent reads of the same document wait for a single parse.
+     *
+     * @throws Exception
+     *             unexpected
+     */
+    @Test
+    public void concurrentReads()
+            throws Exception {
+        final BundleCache cache = new BundleCache(io, 1024 * 1024);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<WorkflowBundle>> reads = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                reads.add(executor.submit(new Callable<WorkflowBundle>() {
+
+                    @Override
+                    public WorkflowBundle call()
+                            throws Exception {
+                        return cache.read(document(1000, 1), T2FLOW);
+                    }
+                }));
+            }
+            Thread.sleep(100);
+            release.countDown();
+            for (Future<WorkflowBundle> read : reads) {
+                assertSame(reads.get(0).get(), read.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(1, parses.get());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(3, cache.getHitCount());
+    }
+
+
+    /**
+     * The least recently used bundles are evicted and documents that can't be parsed are not cached.
+     *
+     * @throws Exception
+     *             unexpected
+     */
+    @Test
+    public void evictsAndFails()
+            throws Exception {
+        release.countDown();
+        BundleCache cache = new BundleCache(io, 250 * BundleCache.HEAP_PER_SOURCE_BYTE);
+        WorkflowBundle first = cache.read(document(100, 1), T2FLOW);
+        cache.read(document(100, 2), T2FLOW);
+        cache.read(document(100, 1), T2FLOW);
+        cache.read(document(100, 3), T2FLOW);
+        assertEquals(1, cache.getEvictedCount());
+        assertEquals(2, cache.getEntryCount());
+        assertSame(first, cache.read(document(100, 1), T2FLOW));
+        assertEquals(3, parses.get());
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                cache.read(document(0, 0), T2FLOW);
+                fail("An empty document was parsed");
+            } catch (ReaderException e) {
+                // expected
+            }
+        }
+        assertEquals(5, parses.get());
+        assertEquals(2, cache.getEntryCount());
+    }
+
+
+    /**
+     * @param length
+     *            document length
+     * @param value
+     *            value of every byte
+     * @return a document
+     */
+    private static InputStream document(int length, int value) {
+        byte[] document = new byte[length];
+        for (int i = 0; i < length; i++) {
+            document[i] = (byte) value;
+        }
+        return new ByteArrayInputStream(document);
+    }
+}
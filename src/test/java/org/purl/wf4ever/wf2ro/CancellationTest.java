@@ -0,0 +1,144 @@
+package org.purl.wf4ever.wf2ro;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Verifies that a cancellation stops the checks and the tracked upload bodies, including the ones waiting for a
+ * serializer.
+ *
+ */
+public class CancellationTest {
+
+    /**
+     * Checks pass until the cancellation, then fail.
+     */
+    @Test
+    public void check() {
+        Cancellation cancellation = new Cancellation();
+        cancellation.check();
+        assertFalse(cancellation.isCancelled());
+        assertEquals(0, cancellation.getCancelledAt());
+        cancellation.cancel();
+        assertTrue(cancellation.isCancelled());
+        assertTrue(cancellation.getCancelledAt() != 0);
+        try {
+            cancellation.check();
+            fail("The cancellation was not detected");
+        } catch (CancellationException e) {
+            // expected
+        }
+    }
+
+
+    /**
+     * A tracked body fails on its next read, also if it is tracked after the cancellation.
+     *
+     * @throws IOException
+     *             unexpected
+     */
+    @Test
+    public void tracked()
+            throws IOException {
+        Cancellation cancellation = new Cancellation();
+        InputStream in = cancellation.track(new ByteArrayInputStream(new byte[10]));
+        assertEquals(0, in.read());
+        cancellation.cancel();
+        assertReadFails(in);
+        assertReadFails(cancellation.track(new ByteArrayInputStream(new byte[10])));
+    }
+
+
+    /**
+     * An upload waiting for a stuck serializer is released, and the serializer stops at its next write.
+     *
+     * @throws Exception
+     *             unexpected
+     */
+    @Test
+    public void serialized()
+            throws Exception {
+        final CountDownLatch written = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final AtomicReference<Throwable> writerFailure = new AtomicReference<>();
+        SerializerPool serializers = new SerializerPool(1, 1024);
+        final Cancellation cancellation = new Cancellation();
+        final InputStream in = cancellation.track(serializers.serialize("test", new SerializerPool.Serialization() {
+
+            @Override
+            public void writeTo(OutputStream out)
+                    throws Exception {
+                out.write(new byte[100]);
+                out.flush();
+                written.countDown();
+                proceed.await();
+                try {
+                    out.write(new byte[100]);
+                } catch (IOException e) {
+                    writerFailure.set(e);
+                    throw e;
+                }
+            }
+        }));
+        final AtomicReference<Throwable> readerFailure = new AtomicReference<>();
+        final CountDownLatch released = new CountDownLatch(1);
+        Thread reader = new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    byte[] buffer = new byte[1024];
+                    while (in.read(buffer) >= 0) {
+                        continue;
+                    }
+                } catch (Throwable e) {
+                    readerFailure.set(e);
+                }
+                released.countDown();
+            }
+        };
+        reader.start();
+        assertTrue(written.await(5, TimeUnit.SECONDS));
+        cancellation.cancel();
+        proceed.countDown();
+        assertTrue("The upload was not released", released.await(10, TimeUnit.SECONDS));
+        assertTrue(String.valueOf(readerFailure.get()), readerFailure.get() instanceof InterruptedIOException);
+        reader.join();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (writerFailure.get() == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue("The serializer was not stopped", writerFailure.get() != null);
+    }
+
+
+    /**
+     * @param in
+     *            a cancelled body
+     * @throws IOException
+     *             unexpected
+     */
+    private static void assertReadFails(InputStream in)
+            throws IOException {
+        try {
+            in.read();
+            fail("The cancelled body can still be read");
+        } catch (InterruptedIOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package org.purl.wf4ever.wf2ro;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+/**
+ * Verifies that conversion phases respect their dependencies.
+ *
+ */
+public class ConversionPhasesTest {
+
+    /**
+     * A phase that records its name when run.
+     */
+    private static class Recording implements ConversionPhases.Phase {
+
+        /** Where to record. */
+        private final List<String> log;
+
+        /** Phase name. */
+        private final String name;
+
+
+        /**
+         * Constructor.
+         *
+         * @param log
+         *            where to record
+         * @param name
+         *            phase name
+         */
+        Recording(List<String> log, String name) {
+            this.log = log;
+            this.name = name;
+        }
+
+
+        @Override
+        public void run()
+                throws Exception {
+            log.add(name);
+        }
+    }
+
+
+    /**
+     * Without an executor the phases run in the order they were added.
+     *
+     * @throws Exception
+     *             unexpected
+     */
+    @Test
+    public void sequential()
+            throws Exception {
+        List<String> log = new ArrayList<>();
+        ConversionPhases phases = new ConversionPhases();
+        phases.add("a", new Recording(log, "a"));
+        phases.add("b", new Recording(log, "b"));
+        phases.add("c", new Recording(log, "c"), "a", "b");
+        phases.run(null);
+        assertEquals(Arrays.asList("a", "b", "c"), log);
+    }
+
+
+    /**
+     * A phase runs only after all its dependencies, and all phases run.
+     *
+     * @throws Exception
+     *             unexpected
+     */
+    @Test
+    public void parallel()
+            throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (int i = 0; i < 50; i++) {
+                List<String> log = Collections.synchronizedList(new ArrayList<String>());
+                ConversionPhases phases = new ConversionPhases();
+                phases.add("a", new Recording(log, "a"));
+                phases.add("b", new Recording(log, "b"), "a");
+                phases.add("c", new Recording(log, "c"), "a");
+                phases.add("d", new Recording(log, "d"), "b", "c");
+                phases.add("e", new Recording(log, "e"));
+                phases.run(executor);
+                assertEquals(5, log.size());
+                assertTrue(log.indexOf("b") > log.indexOf("a"));
+                assertTrue(log.indexOf("c") > log.indexOf("a"));
+                assertTrue(log.indexOf("d") > log.indexOf("b"));
+                assertTrue(log.indexOf("d") > log.indexOf("c"));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+
+    /**
+     * A failed phase is reported and its dependents are skipped, but independent phases still run.
+     *
+     * @throws Exception
+     *             unexpected
+     */
+    @Test
+    public void failure()
+            throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<String> log = Collections.synchronizedList(new ArrayList<String>());
+            ConversionPhases phases = new ConversionPhases();
+            phases.add("a", new ConversionPhases.Phase() {
+
+                @Override
+                public void run()
+                        throws Exception {
+                    throw new IOException("a failed");
+                }
+            });
+            phases.add("b", new Recording(log, "b"), "a");
+            phases.add("c", new Recording(log, "c"));
+            try {
+                phases.run(executor);
+                fail("The failure should be reported");
+            } catch (IOException e) {
+                assertEquals("a failed", e.getMessage());
+            }
+            assertEquals(Arrays.asList("c"), log);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+
+    /**
+     * After a cancellation the phases that haven't started are not run.
+     *
+     * @throws Exception
+     *             unexpected
+     */
+    @Test
+    public void cancelled()
+            throws Exception {
+        List<String> log = new ArrayList<>();
+        final Cancellation cancellation = new Cancellation();
+        ConversionPhases phases = new ConversionPhases();
+        phases.setCancellation(cancellation);
+        phases.add("a", new Recording(log, "a"));
+        phases.add("b", new ConversionPhases.Phase() {
+
+            @Override
+            public void run()
+                    throws Exception {
+                cancellation.cancel();
+            }
+        });
+        phases.add("c", new Recording(log, "c"));
+        try {
+            phases.run(null);
+            fail("The cancellation should be reported");
+        } catch (CancellationException e) {
+            // expected
+        }
+        assertEquals(Arrays.asList("a"), log);
+    }
+}
@@ -0,0 +1,327 @@
+package org.purl.wf4ever.wf2ro;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Verifies that the document cache revalidates, deduplicates and evicts the cached documents.
+ *
+ */
+public class DocumentCacheTest {
+
+    /** Cache directory. */
+    private File directory;
+
+    /** Server of the documents. */
+    private HttpServer server;
+
+    /** Document contents by path. */
+    private final Map<String, byte[]> documents = new ConcurrentHashMap<>();
+
+    /** Paths of the documents served without an ETag. */
+    private final Set<String> withoutValidators = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /** Full responses sent by the server. */
+    private final AtomicInteger downloads = new AtomicInteger();
+
+
+    /**
+     * Start the server and create the cache directory.
+     *
+     * @throws IOException
+     *             unexpected
+     */
+    @Before
+    public void setUp()
+            throws IOException {
+        directory = File.createTempFile("wf2ro-documents", "");
+        directory.delete();
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange exchange)
+                    throws IOException {
+                byte[] body = documents.get(exchange.getRequestURI().getPath());
+                if (body == null) {
+                    exchange.sendResponseHeaders(404, -1);
+                } else {
+                    String etag = "\"" + body.length + "-" + body[0] + "\"";
+                    if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                        exchange.sendResponseHeaders(304, -1);
+                    } else {
+                        downloads.incrementAndGet();
+                        if (!withoutValidators.contains(exchange.getRequestURI().getPath())) {
+                            exchange.getResponseHeaders().add("ETag", etag);
+                        }
+                        exchange.sendResponseHeaders(200, body.length);
+                        try (OutputStream out = exchange.getResponseBody()) {
+                            out.write(body);
+                        }
+                    }
+                }
+                exchange.close();
+            }
+        });
+        server.start();
+    }
+
+
+    /**
+     * Stop the server and delete the cache directory.
+     */
+    @After
+    public void tearDown() {
+        server.stop(0);
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+
+    /**
+     * An unchanged document is downloaded once, a changed one again.
+     *
+     * @throws IOException
+     *             unexpected
+     */
+    @Test
+    public void revalidates()
+            throws IOException {
+        DocumentCache cache = new DocumentCache(directory, 1024 * 1024);
+        documents.put("/a", body(100, 1));
+        assertArrayEquals(body(100, 1), read(cache, "/a"));
+        assertArrayEquals(body(100, 1), read(cache, "/a"));
+        assertEquals(1, downloads.get());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+
+        documents.put("/a", body(200, 2));
+        assertArrayEquals(body(200, 2), read(cache, "/a"));
+        assertEquals(2, downloads.get());
+        assertEquals(1, cache.getEntryCount());
+        assertEquals(200, cache.getSize());
+    }
+
+
+    /**
+     * A document without validators is downloaded every time, and its entry and body survive downloading the same
+     * content again.
+     *
+     * @throws IOException
+     *             unexpected
+     */
+    @Test
+    public void redownloadsWithoutValidators()
+            throws IOException {
+        DocumentCache cache = new DocumentCache(directory, 1024 * 1024);
+        documents.put("/a", body(100, 1));
+        withoutValidators.add("/a");
+        assertArrayEquals(body(100, 1), read(cache, "/a"));
+        assertArrayEquals(body(100, 1), read(cache, "/a"));
+        assertEquals(2, downloads.get());
+        assertEquals(1, cache.getEntryCount());
+        assertEquals(100, cache.getSize());
+
+        cache = new DocumentCache(directory, 1024 * 1024);
+        assertEquals(1, cache.getEntryCount());
+        assertEquals(100, cache.getSize());
+    }
+
+
+    /**
+     * The entry of a changed document survives a restart, and its new body isn't deleted as unreferenced.
+     *
+     * @throws IOException
+     *             unexpected
+     */
+    @Test
+    public void persistsChangedDocument()
+            throws IOException {
+        DocumentCache cache = new DocumentCache(directory, 1024 * 1024);
+        documents.put("/a", body(100, 1));
+        read(cache, "/a");
+        documents.put("/a", body(200, 2));
+        read(cache, "/a");
+
+        cache = new DocumentCache(directory, 1024 * 1024);
+        assertEquals(1, cache.getEntryCount());
+        assertEquals(200, cache.getSize());
+        assertArrayEquals(body(200, 2), read(cache, "/a"));
+        assertEquals(2, downloads.get());
+        assertEquals(1, cache.getHitCount());
+    }
+
+
+    /**
+     * The cache survives a restart and serves a stale copy when the server is gone.
+     *
+     * @throws IOException
+     *             unexpected
+     */
+    @Test
+    public void persists()
+            throws IOException {
+        documents.put("/a", body(100, 1));
+        read(new DocumentCache(directory, 1024 * 1024), "/a");
+        DocumentCache cache = new DocumentCache(directory, 1024 * 1024);
+        assertEquals(1, cache.getEntryCount());
+        assertArrayEquals(body(100, 1), read(cache, "/a"));
+        assertEquals(1, downloads.get());
+
+        URI uri = uri("/a");
+        server.stop(0);
+        assertArrayEquals(body(100, 1), read(cache, uri));
+        assertEquals(1, cache.getStaleCount());
+    }
+
+
+    /**
+     * Identical documents are stored once and the least recently used ones are evicted.
+     *
+     * @throws IOException
+     *             unexpected
+     */
+    @Test
+    public void deduplicatesAndEvicts()
+            throws IOException {
+        DocumentCache cache = new DocumentCache(directory, 250);
+        documents.put("/a", body(100, 1));
+        documents.put("/b", body(100, 1));
+        documents.put("/c", body(100, 3));
+        documents.put("/d", body(100, 4));
+        read(cache, "/a");
+        read(cache, "/b");
+        assertEquals(2, cache.getEntryCount());
+        assertEquals(100, cache.getSize());
+        read(cache, "/c");
+        read(cache, "/a");
+        read(cache, "/d");
+        assertEquals(2, cache.getEvictedCount());
+        assertEquals(2, cache.getEntryCount());
+        assertEquals(200, cache.getSize());
+        assertEquals(4, downloads.get());
+        // /a was used most recently, /b shared its body and /c was evicted
+        read(cache, "/a");
+        assertEquals(4, downloads.get());
+        read(cache, "/c");
+        assertEquals(5, downloads.get());
+    }
+
+
+    /**
+     * A document larger than the budget is read without being cached, and replaces its cached copy.
+     *
+     * @throws IOException
+     *             unexpected
+     */
+    @Test
+    public void largerThanBudget()
+            throws IOException {
+        DocumentCache cache = new DocumentCache(directory, 250);
+        documents.put("/a", body(100, 1));
+        read(cache, "/a");
+        assertEquals(1, cache.getEntryCount());
+
+        documents.put("/a", body(300, 2));
+        assertArrayEquals(body(300, 2), read(cache, "/a"));
+        assertArrayEquals(body(300, 2), read(cache, "/a"));
+        assertEquals(3, downloads.get());
+        assertEquals(0, cache.getEntryCount());
+        assertEquals(0, cache.getSize());
+        // neither the temporary files nor the previous copy are left
+        assertEquals(0, directory.listFiles().length);
+    }
+
+
+    /**
+     * @param length
+     *            body length
+     * @param value
+     *            value of every byte
+     * @return a document body
+     */
+    private static byte[] body(int length, int value) {
+        byte[] body = new byte[length];
+        Arrays.fill(body, (byte) value);
+        return body;
+    }
+
+
+    /**
+     * @param path
+     *            document path
+     * @return document URI
+     */
+    private URI uri(String path) {
+        return URI.create("http://localhost:" + server.getAddress().getPort() + path);
+    }
+
+
+    /**
+     * Read a document through the cache.
+     *
+     * @param cache
+     *            the cache
+     * @param path
+     *            document path
+     * @return the content
+     * @throws IOException
+     *             unexpected
+     */
+    private byte[] read(DocumentCache cache, String path)
+            throws IOException {
+        return read(cache, uri(path));
+    }
+
+
+    /**
+     * Read a document through the cache.
+     *
+     * @param cache
+     *            the cache
+     * @param uri
+     *            document URI
+     * @return the content
+     * @throws IOException
+     *             unexpected
+     */
+    private static byte[] read(DocumentCache cache, URI uri)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = cache.open(uri)) {
+            byte[] buffer = new byte[1024];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+            }
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,129 @@
+package org.purl.wf4ever.wf2ro;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.org.taverna.scufl2.api.container.WorkflowBundle;
+import uk.org.taverna.scufl2.api.io.WorkflowBundleIO;
+
+/**
+ * Verifies that research objects are created as directory trees.
+ *
+ */
+public class FileSystemConverterTest {
+
+    /** Workflow name, in src/test/resources. */
+    private static final String HELLO_ANYONE_T2FLOW = "helloanyone.t2flow";
+
+    /** Directory in which the research objects are created. */
+    private Path parent;
+
+
+    /**
+     * Create the output directory.
+     *
+     * @throws IOException
+     *             unexpected
+     */
+    @Before
+    public void setUp()
+            throws IOException {
+        parent = Files.createTempDirectory("wf2ro-fs");
+    }
+
+
+    /**
+     * Delete the output directory with the research objects.
+     *
+     * @throws IOException
+     *             unexpected
+     */
+    @After
+    public void tearDown()
+            throws IOException {
+        Files.walkFileTree(parent, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+                    throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e)
+                    throws IOException {
+                if (e != null) {
+                    throw e;
+                }
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+
+    /**
+     * The research object directory contains the resources and the manifest, and nothing else is left behind.
+     *
+     * @throws Exception
+     *             any kind of conversion exception
+     */
+    @Test
+    public void convert()
+            throws Exception {
+        WorkflowBundle wfbundle;
+        try (InputStream in = getClass().getClassLoader().getResourceAsStream(HELLO_ANYONE_T2FLOW)) {
+            wfbundle = new WorkflowBundleIO().readBundle(in, null);
+        }
+        Path target = parent.resolve("ro");
+        FileSystemConverter converter = new FileSystemConverter(wfbundle, URI.create(HELLO_ANYONE_T2FLOW), target);
+        converter.setExtractFolders(URI.create("workflows/"), null, null, null);
+        converter.convert();
+
+        assertTrue(Files.isRegularFile(target.resolve(LocalManifest.MANIFEST_PATH)));
+        assertEquals(MockupWf2ROConverter.EXPECTED_ANNOTATIONS.size() + 1, converter.getResourcesAdded().size());
+        URI wfbundleUri = converter.getResourcesAdded().get(0);
+        assertTrue(Files.isRegularFile(target.resolve(target.toUri().relativize(wfbundleUri).getPath())));
+        try (DirectoryStream<Path> children = Files.newDirectoryStream(parent)) {
+            int count = 0;
+            for (Path child : children) {
+                assertEquals(target, child);
+                count++;
+            }
+            assertEquals(1, count);
+        }
+    }
+
+
+    /**
+     * Nothing is created before the conversion.
+     *
+     * @throws Exception
+     *             unexpected
+     */
+    @Test
+    public void notConverted()
+            throws Exception {
+        new FileSystemConverter(new WorkflowBundle(), URI.create(HELLO_ANYONE_T2FLOW), parent.resolve("ro"));
+        try (DirectoryStream<Path> children = Files.newDirectoryStream(parent)) {
+            assertFalse(children.iterator().hasNext());
+        }
+    }
+}
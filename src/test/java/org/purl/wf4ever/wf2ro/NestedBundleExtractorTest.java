@@ -0,0 +1,105 @@
+package org.purl.wf4ever.wf2ro;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.org.taverna.scufl2.api.container.WorkflowBundle;
+import uk.org.taverna.scufl2.api.core.Workflow;
+import uk.org.taverna.scufl2.api.io.WorkflowBundleIO;
+import uk.org.taverna.scufl2.api.profiles.ProcessorBinding;
+
+/**
+ * Verifies that the bundles of nested workflows contain only what they need.
+ *
+ */
+public class NestedBundleExtractorTest {
+
+    /** Workflow with nested workflows, in src/test/resources. */
+    private static final String NESTING_T2FLOW = "nesting.t2flow";
+
+    /** The original bundle. */
+    private WorkflowBundle wfbundle;
+
+
+    /**
+     * Read the workflow.
+     *
+     * @throws Exception
+     *             when the workflow can't be read
+     */
+    @Before
+    public void setUp()
+            throws Exception {
+        try (InputStream in = getClass().getClassLoader().getResourceAsStream(NESTING_T2FLOW)) {
+            wfbundle = new WorkflowBundleIO().readBundle(in, null);
+        }
+    }
+
+
+    /**
+     * A nested workflow is extracted with the workflows nested in it, but not with its parent.
+     *
+     * @throws Exception
+     *             unexpected
+     */
+    @Test
+    public void transitiveNesting()
+            throws Exception {
+        Workflow mainWf = wfbundle.getMainWorkflow();
+        Workflow nested = wfbundle.getWorkflows().getByName("Workflow2");
+        WorkflowBundle extracted = new NestedBundleExtractor(wfbundle).extract(nested);
+
+        assertSame(nested, extracted.getMainWorkflow());
+        assertEquals(wfbundle.getGlobalBaseURI(), extracted.getGlobalBaseURI());
+        assertEquals(new HashSet<>(Arrays.asList("Workflow2", "Workflow21", "Workflow10")),
+            names(extracted.getWorkflows()));
+        assertNotNull(extracted.getMainProfile());
+        for (ProcessorBinding binding : extracted.getMainProfile().getProcessorBindings()) {
+            assertTrue(extracted.getWorkflows().contains(binding.getBoundProcessor().getParent()));
+        }
+
+        // the original bundle is unchanged
+        assertSame(mainWf, wfbundle.getMainWorkflow());
+        assertEquals(4, wfbundle.getWorkflows().size());
+    }
+
+
+    /**
+     * A workflow without nested workflows is extracted alone.
+     *
+     * @throws Exception
+     *             unexpected
+     */
+    @Test
+    public void leaf()
+            throws Exception {
+        Workflow nested = wfbundle.getWorkflows().getByName("Workflow10");
+        WorkflowBundle extracted = new NestedBundleExtractor(wfbundle).extract(nested);
+        assertEquals(new HashSet<>(Arrays.asList("Workflow10")), names(extracted.getWorkflows()));
+        assertEquals(1, extracted.getMainProfile().getProcessorBindings().size());
+    }
+
+
+    /**
+     * @param workflows
+     *            workflows
+     * @return their names
+     */
+    private static Set<String> names(Set<Workflow> workflows) {
+        Set<String> names = new HashSet<>();
+        for (Workflow wf : workflows) {
+            names.add(wf.getName());
+        }
+        return names;
+    }
+}
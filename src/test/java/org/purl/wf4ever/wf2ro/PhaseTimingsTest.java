@@ -0,0 +1,115 @@
+package org.purl.wf4ever.wf2ro;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Verifies that phases are timed and that the bytes read are added to the phase running in the reading thread.
+ *
+ */
+public class PhaseTimingsTest {
+
+    /**
+     * Bytes read in a phase are added to it, and to the outer phase again when the inner one stops.
+     *
+     * @throws IOException
+     *             never
+     */
+    @Test
+    public void countsBytesOfCurrentPhase()
+            throws IOException {
+        PhaseTimings timings = new PhaseTimings();
+        PhaseTimings.Running outer = timings.start("outer");
+        read(PhaseTimings.count(new ByteArrayInputStream(new byte[100])));
+        PhaseTimings.Running inner = timings.start("nested", "inner");
+        read(PhaseTimings.count(new ByteArrayInputStream(new byte[30])));
+        timings.stop(inner);
+        read(PhaseTimings.count(new ByteArrayInputStream(new byte[5])));
+        timings.stop(outer);
+
+        List<PhaseTiming> phases = timings.getTimings();
+        assertEquals(2, phases.size());
+        assertEquals("nested", phases.get(0).getPhase());
+        assertEquals("inner", phases.get(0).getName());
+        assertEquals(30, phases.get(0).getBytes());
+        assertEquals("outer", phases.get(1).getPhase());
+        assertEquals("outer", phases.get(1).getName());
+        assertEquals(105, phases.get(1).getBytes());
+        assertTrue(phases.get(1).getWallMs() >= phases.get(0).getWallMs());
+    }
+
+
+    /**
+     * Bytes read outside of any phase are not recorded.
+     *
+     * @throws IOException
+     *             never
+     */
+    @Test
+    public void ignoresBytesOutsidePhases()
+            throws IOException {
+        PhaseTimings timings = new PhaseTimings();
+        read(PhaseTimings.count(new ByteArrayInputStream(new byte[10])));
+        timings.stop(timings.start("empty"));
+        assertEquals(0, timings.getTimings().get(0).getBytes());
+    }
+
+
+    /**
+     * Phases run by the phase executor are recorded in the converter timings.
+     *
+     * @throws Exception
+     *             any kind of phase failure
+     */
+    @Test
+    public void recordsConversionPhases()
+            throws Exception {
+        PhaseTimings timings = new PhaseTimings();
+        ConversionPhases phases = new ConversionPhases();
+        phases.setTimings(timings);
+        phases.add("first", new ConversionPhases.Phase() {
+
+            @Override
+            public void run()
+                    throws Exception {
+                read(PhaseTimings.count(new ByteArrayInputStream(new byte[7])));
+            }
+        });
+        phases.add("second", new ConversionPhases.Phase() {
+
+            @Override
+            public void run()
+                    throws Exception {
+            }
+        }, "first");
+        phases.run(null);
+        assertEquals(2, timings.getTimings().size());
+        assertEquals("first", timings.getTimings().get(0).getName());
+        assertEquals(7, timings.getTimings().get(0).getBytes());
+    }
+
+
+    /**
+     * Read a stream to the end.
+     *
+     * @param in
+     *            the stream
+     * @throws IOException
+     *             never
+     */
+    private static void read(InputStream in)
+            throws IOException {
+        byte[] buffer = new byte[16];
+        while (in.read(buffer) >= 0) {
+            continue;
+        }
+        in.close();
+    }
+}
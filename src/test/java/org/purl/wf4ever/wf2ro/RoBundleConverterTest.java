@@ -0,0 +1,67 @@
+package org.purl.wf4ever.wf2ro;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import uk.org.taverna.scufl2.api.container.WorkflowBundle;
+import uk.org.taverna.scufl2.api.io.WorkflowBundleIO;
+
+/**
+ * Verifies the layout of the RO Bundle archives.
+ *
+ */
+public class RoBundleConverterTest {
+
+    /** Workflow name, in src/test/resources. */
+    private static final String HELLO_ANYONE_T2FLOW = "helloanyone.t2flow";
+
+
+    /**
+     * The archive starts with the uncompressed media type and contains the workflow bundle, the annotation bodies
+     * and the manifest.
+     *
+     * @throws Exception
+     *             any kind of conversion exception
+     */
+    @Test
+    public void convert()
+            throws Exception {
+        WorkflowBundle wfbundle;
+        try (InputStream in = getClass().getClassLoader().getResourceAsStream(HELLO_ANYONE_T2FLOW)) {
+            wfbundle = new WorkflowBundleIO().readBundle(in, null);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RoBundleConverter converter = new RoBundleConverter(wfbundle, URI.create(HELLO_ANYONE_T2FLOW), out);
+        converter.convert();
+
+        List<String> names = new ArrayList<>();
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            ZipEntry entry = zip.getNextEntry();
+            assertEquals("mimetype", entry.getName());
+            assertEquals(ZipEntry.STORED, entry.getMethod());
+            assertEquals(RoBundleConverter.MEDIA_TYPE, IOUtils.toString(zip, "US-ASCII"));
+            while ((entry = zip.getNextEntry()) != null) {
+                names.add(entry.getName());
+            }
+        }
+        assertEquals(LocalManifest.MANIFEST_PATH, names.get(names.size() - 1));
+        assertTrue(names.get(0).startsWith("Hello_Anyone-") && names.get(0).endsWith(".wfbundle"));
+        // annotations from the t2flow, wfdesc, roevo and the link annotation
+        assertEquals(MockupWf2ROConverter.EXPECTED_ANNOTATIONS.size(), names.size() - 2);
+        for (String name : names.subList(1, names.size() - 1)) {
+            assertTrue(name, name.startsWith(".ro/"));
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package org.purl.wf4ever.wf2ro;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.List;
+
+import org.junit.Test;
+import org.purl.wf4ever.rosrs.client.exception.ROSRSException;
+
+/**
+ * Verifies the RODL call statistics and the latency histogram.
+ *
+ */
+public class RodlCallsTest {
+
+    /** RODL URI. */
+    private static final URI RODL = URI.create("http://sandbox.wf4ever-project.org/rodl/ROs/");
+
+
+    /**
+     * Calls are grouped by host and operation, with their statuses and request bytes.
+     *
+     * @throws IOException
+     *             never
+     */
+    @Test
+    public void recordsCalls()
+            throws IOException {
+        RodlCalls calls = new RodlCalls();
+        RodlCalls.Call call = calls.start(RODL, "aggregate");
+        try (InputStream in = call.count(new ByteArrayInputStream(new byte[1234]))) {
+            while (in.read(new byte[100]) >= 0) {
+                continue;
+            }
+        }
+        call.done(201);
+        call.end();
+        call.end();
+
+        call = calls.start(RODL, "aggregate");
+        try {
+            throw call.failed(new ROSRSException("conflict", 409, "Conflict"));
+        } catch (ROSRSException e) {
+            assertEquals(409, e.getStatus());
+        } finally {
+            call.end();
+        }
+        calls.start(RODL, "annotate").end();
+
+        List<RodlCalls.Stats> stats = calls.getStats();
+        assertEquals(2, stats.size());
+        RodlCalls.Stats aggregate = stats.get(0);
+        assertEquals("sandbox.wf4ever-project.org", aggregate.getHost());
+        assertEquals("aggregate", aggregate.getOperation());
+        assertEquals(2, aggregate.getCount());
+        assertEquals(1234, aggregate.getRequestBytes());
+        assertEquals(Long.valueOf(1), aggregate.getStatuses().get("201"));
+        assertEquals(Long.valueOf(1), aggregate.getStatuses().get("409"));
+        assertEquals(Long.valueOf(1), stats.get(1).getStatuses().get(RodlCalls.STATUS_ERROR));
+    }
+
+
+    /**
+     * Calls sent through the helper are recorded with the status of the operation, the status reported by the
+     * request, or the status of the error.
+     *
+     * @throws ROSRSException
+     *             unexpected
+     */
+    @Test
+    public void recordsRequests()
+            throws ROSRSException {
+        RodlCalls calls = new RodlCalls();
+        assertEquals("loaded", calls.call(RODL, "load", 200, new RodlCalls.Request<String, RuntimeException>() {
+
+            @Override
+            public String send(RodlCalls.Call call) {
+                return "loaded";
+            }
+        }));
+        calls.call(RODL, "load", 200, new RodlCalls.Request<Void, RuntimeException>() {
+
+            @Override
+            public Void send(RodlCalls.Call call) {
+                call.done(203);
+                return null;
+            }
+        });
+        try {
+            calls.call(RODL, "load", 200, new RodlCalls.Request<Void, RuntimeException>() {
+
+                @Override
+                public Void send(RodlCalls.Call call)
+                        throws ROSRSException {
+                    throw new ROSRSException("gone", 410, "Gone");
+                }
+            });
+            fail("The error wasn't rethrown");
+        } catch (ROSRSException e) {
+            assertEquals(410, e.getStatus());
+        }
+        try {
+            calls.call(RODL, "load", 200, new RodlCalls.Request<Void, RuntimeException>() {
+
+                @Override
+                public Void send(RodlCalls.Call call) {
+                    throw new IllegalStateException("broken");
+                }
+            });
+            fail("The error wasn't rethrown");
+        } catch (IllegalStateException e) {
+            assertEquals("broken", e.getMessage());
+        }
+
+        RodlCalls.Stats load = calls.getStats().get(0);
+        assertEquals(4, load.getCount());
+        assertEquals(Long.valueOf(1), load.getStatuses().get("200"));
+        assertEquals(Long.valueOf(1), load.getStatuses().get("203"));
+        assertEquals(Long.valueOf(1), load.getStatuses().get("410"));
+        assertEquals(Long.valueOf(1), load.getStatuses().get(RodlCalls.STATUS_ERROR));
+    }
+
+
+    /**
+     * Percentiles are within one bucket of the exact values and never above the maximum.
+     */
+    @Test
+    public void percentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000000, histogram.getMax());
+        assertEquals(1000000, histogram.getPercentile(1));
+        long p50 = histogram.getPercentile(0.5);
+        assertTrue("p50 " + p50, p50 >= 500000 && p50 <= 500000 * 1.125);
+        long p99 = histogram.getPercentile(0.99);
+        assertTrue("p99 " + p99, p99 >= 990000 && p99 <= 1000000);
+        assertEquals(0, new LatencyHistogram().getPercentile(0.5));
+    }
+
+
+    /**
+     * Every value is at most the upper bound of its bucket and above the upper bound of the previous one.
+     */
+    @Test
+    public void buckets() {
+        for (long value : new long[] { 0, 1, 7, 8, 9, 15, 16, 17, 1000, 123456789, 1L << 40 }) {
+            int index = LatencyHistogram.index(value);
+            assertTrue(value + " in " + index, value <= LatencyHistogram.upperBound(index));
+            if (index > 0) {
+                assertTrue(value + " in " + index, value > LatencyHistogram.upperBound(index - 1));
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package org.purl.wf4ever.wf2ro;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.net.URI;
+
+import org.junit.Test;
+import org.purl.wf4ever.rosrs.client.ROSRService;
+
+/**
+ * Verifies that ROSRS clients are shared per RODL and token and evicted when idle.
+ *
+ */
+public class RosrsClientsTest {
+
+    /** RODL URI. */
+    private static final URI RODL = URI.create("http://example.org/ROs/");
+
+
+    /**
+     * Clients are shared only by conversions with the same token.
+     */
+    @Test
+    public void sharing() {
+        RosrsClients clients = new RosrsClients(RosrsClients.DEFAULT_IDLE_TIMEOUT_S);
+        ROSRService a = clients.acquire(RODL, "token-a");
+        assertSame(a, clients.acquire(RODL, "token-a"));
+        assertNotSame(a, clients.acquire(RODL, "token-b"));
+        assertEquals(2, clients.getClientCount());
+        assertEquals(2, clients.getLeasedCount());
+        assertEquals(1, clients.getHitCount());
+        assertEquals(2, clients.getMissCount());
+    }
+
+
+    /**
+     * Idle clients are evicted, leased ones are not.
+     *
+     * @throws InterruptedException
+     *             unexpected
+     */
+    @Test
+    public void eviction()
+            throws InterruptedException {
+        RosrsClients clients = new RosrsClients(0);
+        ROSRService a = clients.acquire(RODL, "token-a");
+        clients.acquire(RODL, "token-b");
+        clients.release(RODL, "token-a");
+        Thread.sleep(10);
+        clients.acquire(RODL, "token-c");
+        assertEquals(1, clients.getEvictedCount());
+        assertEquals(2, clients.getClientCount());
+        assertNotSame(a, clients.acquire(RODL, "token-a"));
+    }
+
+
+    /**
+     * Above the maximum the least recently used idle client is evicted, leased ones are not.
+     *
+     * @throws InterruptedException
+     *             unexpected
+     */
+    @Test
+    public void maximum()
+            throws InterruptedException {
+        RosrsClients clients = new RosrsClients(RosrsClients.DEFAULT_IDLE_TIMEOUT_S, 2);
+        ROSRService a = clients.acquire(RODL, "token-a");
+        ROSRService b = clients.acquire(RODL, "token-b");
+        clients.release(RODL, "token-a");
+        Thread.sleep(10);
+        clients.release(RODL, "token-b");
+        clients.acquire(RODL, "token-c");
+        assertEquals(1, clients.getEvictedCount());
+        assertEquals(2, clients.getClientCount());
+        assertEquals(1, clients.getIdleCount());
+        assertSame(b, clients.acquire(RODL, "token-b"));
+        assertEquals(0, clients.getIdleCount());
+        assertNotSame(a, clients.acquire(RODL, "token-a"));
+        // all leased, none can be evicted
+        assertEquals(3, clients.getClientCount());
+    }
+}
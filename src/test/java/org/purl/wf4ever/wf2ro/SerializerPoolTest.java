@@ -0,0 +1,127 @@
+package org.purl.wf4ever.wf2ro;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.purl.wf4ever.wf2ro.SerializerPool.SerializedInputStream;
+
+/**
+ * Verifies that serialization failures are passed between the writer and the reader.
+ *
+ */
+public class SerializerPoolTest {
+
+    /** Size of the test resources, larger than the buffer. */
+    private static final int SIZE = 100 * 1024;
+
+
+    /**
+     * The reader gets everything the writer wrote.
+     *
+     * @throws IOException
+     *             unexpected
+     */
+    @Test
+    public void roundTrip()
+            throws IOException {
+        SerializerPool pool = new SerializerPool(1, 1024);
+        try (SerializedInputStream in = pool.serialize("test", new SerializerPool.Serialization() {
+
+            @Override
+            public void writeTo(OutputStream out)
+                    throws Exception {
+                for (int i = 0; i < SIZE; i++) {
+                    out.write(i);
+                }
+            }
+        })) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+            }
+            assertEquals(SIZE, out.size());
+            assertEquals((byte) 12345, out.toByteArray()[12345]);
+        }
+    }
+
+
+    /**
+     * The reader fails when the writer has failed.
+     *
+     * @throws IOException
+     *             unexpected
+     */
+    @Test
+    public void writerFailure()
+            throws IOException {
+        SerializerPool pool = new SerializerPool(1, 1024);
+        try (SerializedInputStream in = pool.serialize("test", new SerializerPool.Serialization() {
+
+            @Override
+            public void writeTo(OutputStream out)
+                    throws Exception {
+                out.write(new byte[100]);
+                throw new IllegalStateException("broken");
+            }
+        })) {
+            byte[] buffer = new byte[4096];
+            try {
+                while (in.read(buffer) >= 0) {
+                    continue;
+                }
+                fail("The serialization failure should be reported");
+            } catch (IOException e) {
+                assertNotNull(in.getFailure());
+                assertEquals("broken", e.getCause().getMessage());
+            }
+        }
+    }
+
+
+    /**
+     * The writer stops when the reader closes the stream.
+     *
+     * @throws Exception
+     *             unexpected
+     */
+    @Test
+    public void readerAbort()
+            throws Exception {
+        SerializerPool pool = new SerializerPool(1, 1024);
+        final CountDownLatch stopped = new CountDownLatch(1);
+        SerializedInputStream in = pool.serialize("test", new SerializerPool.Serialization() {
+
+            @Override
+            public void writeTo(OutputStream out)
+                    throws Exception {
+                try {
+                    while (true) {
+                        out.write(new byte[256]);
+                    }
+                } finally {
+                    stopped.countDown();
+                }
+            }
+        });
+        assertEquals(256, in.read(new byte[256]));
+        in.close();
+        assertTrue("The writer should stop", stopped.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 50 && pool.getActiveCount() > 0; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(0, pool.getActiveCount());
+        assertEquals(1, pool.getFailedCount());
+        assertEquals(0, pool.getBlockedCount());
+    }
+}
@@ -2,16 +2,20 @@ package org.purl.wf4ever.wf2ro;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.*;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.StringReader;
 import java.net.URI;
+import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.List;
 
+import org.apache.jena.riot.Lang;
 import org.junit.Test;
 import org.mockito.Mock;
 import org.openrdf.rio.RDFFormat;
@@ -31,6 +35,7 @@ import com.hp.hpl.jena.rdf.model.Property;
 import com.hp.hpl.jena.rdf.model.RDFNode;
 import com.hp.hpl.jena.rdf.model.Resource;
 import com.hp.hpl.jena.vocabulary.DCTerms;
+import com.hp.hpl.jena.vocabulary.RDF;
 
 /**
  * The test verifies correct conversion using a mockup converter.
@@ -53,6 +58,13 @@ public class Wf2RoConverterTest {
     private static final String HELLO_ANYONE_T2FLOW = "helloanyone.t2flow";
     private static final String NESTING_T2FLOW = "nesting.t2flow";
 
+    /**
+     * Resources added with merged workflow annotations: the workflow bundle, the annotations that aren't workflow
+     * annotations and the one annotation into which the workflow annotations are merged.
+     */
+    private static final int MERGED_RESOURCES_ADDED = 1 + MockupWf2ROConverter.EXPECTED_ANNOTATIONS.size()
+            - MockupWf2ROConverter.BODY_WF_ANNOTATIONS.length + 1;
+
 
     /**
      * A simple test of the conversion logic.
@@ -132,6 +144,59 @@ public class Wf2RoConverterTest {
     }
 
 
+    /**
+     * Merged workflow annotations are uploaded as one annotation with the origin of each statement.
+     * 
+     * @throws Exception
+     *             any kind of conversion exception
+     */
+    @Test
+    public void mergedAnnotations()
+            throws Exception {
+        WorkflowBundleIO io = new WorkflowBundleIO();
+        InputStream helloWorld = getClass().getClassLoader().getResourceAsStream(HELLO_ANYONE_T2FLOW);
+        WorkflowBundle wfbundle = io.readBundle(helloWorld, null);
+
+        MockupWf2ROConverter converter = new MockupWf2ROConverter(wfbundle, URI.create(HELLO_ANYONE_T2FLOW));
+        converter.setMergeAnnotations(true);
+        converter.convert();
+        assertEquals(MERGED_RESOURCES_ADDED, converter.getResourcesAdded().size());
+
+        String body = MockupWf2ROConverter.BODY_WF_ANNOTATIONS[0];
+        OntModel model = ModelFactory.createOntologyModel(OntModelSpec.OWL_LITE_MEM);
+        model.read(new StringReader(converter.getResources().get(URI.create(body))), body,
+            RDFFormat.TURTLE.getName().toUpperCase());
+        Individual wf = model.getIndividual(WF_URI);
+        assertNotNull("Could not find Workflow " + WF_URI, wf);
+        Literal title = model.createLiteral("Hello Anyone");
+        assertTrue("workflow title is propagated to the RO", wf.hasProperty(DCTerms.title, title));
+        List<Resource> statements = model.listSubjectsWithProperty(RDF.object, title).toList();
+        assertEquals(1, statements.size());
+        assertTrue("statement origin is kept",
+            statements.get(0).hasProperty(model.createProperty("http://www.w3.org/ns/prov#wasDerivedFrom")));
+    }
+
+
+    /**
+     * Annotation bodies in the common RDF syntaxes are rewritten as N-Triples with their relative URIs resolved.
+     */
+    @Test
+    public void streamedAnnotations() {
+        assertEquals(Lang.TURTLE, Wf2ROConverter.streamableLang("annotation/a.ttl", "text/turtle"));
+        assertEquals(Lang.RDFXML, Wf2ROConverter.streamableLang("annotation/a.rdf", null));
+        assertNull(Wf2ROConverter.streamableLang("annotation/a", null));
+        assertNull(Wf2ROConverter.streamableLang("annotation/a.trig", null));
+
+        String body = "@prefix dc: <http://purl.org/dc/terms/> .\n<../workflow/Hello/> dc:title \"Hello\" .\n";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Wf2ROConverter.writeTriples(new ByteArrayInputStream(body.getBytes(Charset.forName("UTF-8"))),
+            "http://ns.taverna.org.uk/2010/workflowBundle/1/annotation/a.ttl", Lang.TURTLE, out);
+        assertEquals("<http://ns.taverna.org.uk/2010/workflowBundle/1/workflow/Hello/> "
+                + "<http://purl.org/dc/terms/title> \"Hello\" .", new String(out.toByteArray(),
+            Charset.forName("UTF-8")).trim());
+    }
+
+
     /**
      * A helper method for verifying the correct link between the workflow bundle and its main worklow.
      * 
@@ -161,8 +226,9 @@ public class Wf2RoConverterTest {
     protected void checkHasWorkflowAnnotations(MockupWf2ROConverter converter) {
         OntModel model = ModelFactory.createOntologyModel(OntModelSpec.OWL_LITE_MEM);
         for (String body : MockupWf2ROConverter.BODY_WF_ANNOTATIONS) {
+            // streamed as N-Triples, uploaded as Turtle
             model.read(new ByteArrayInputStream(converter.getResources().get(URI.create(body)).getBytes()), body,
-                RDFFormat.RDFXML.getName().toUpperCase());
+                RDFFormat.TURTLE.getName().toUpperCase());
         }
         //        model.write(System.out);
         Individual wf = model.getIndividual(WF_URI);
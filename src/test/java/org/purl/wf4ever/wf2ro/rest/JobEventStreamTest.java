@@ -0,0 +1,104 @@
+package org.purl.wf4ever.wf2ro.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.purl.wf4ever.wf2ro.rest.Job.State;
+
+/**
+ * Verifies that the events of a job are written as they happen, and that the stream of a finished job ends at once.
+ *
+ */
+public class JobEventStreamTest {
+
+    /**
+     * A finished job is streamed from its status, with the reason escaped onto one line.
+     *
+     * @throws Exception
+     *             unexpected
+     */
+    @Test
+    public void finished()
+            throws Exception {
+        JobStatus status = new JobStatus(URI.create("http://example.org/wf.t2flow"),
+                "application/vnd.taverna.t2flow+xml", new JobExtractFolders(), URI.create("http://example.org/ROs/ro/"),
+                State.RUNTIME_ERROR, Arrays.asList(URI.create("http://example.org/ROs/ro/wf.wfbundle")),
+                "Failed \"badly\"\n\tat here");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new JobEventStream(status).write(out);
+        assertEquals("id: 0\nevent: added\ndata: {\"uri\":\"http://example.org/ROs/ro/wf.wfbundle\"}\n\n"
+                + "id: 0\nevent: state\ndata: {\"status\":\"runtime_error\",\"reason\":\"Failed \\\"badly\\\"\\n\\tat here\"}\n\n",
+            out.toString("UTF-8"));
+    }
+
+
+    /**
+     * The stream of a queued job holds a permit until the job is cancelled, and then ends and releases it.
+     *
+     * @throws Exception
+     *             unexpected
+     */
+    @Test
+    public void cancelled()
+            throws Exception {
+        final Job job = new Job(UUID.randomUUID(), URI.create("http://example.org/wf.t2flow"),
+                "application/vnd.taverna.t2flow+xml", URI.create("http://example.org/ROs/ro/"), null, null,
+                new JobExtractFolders());
+        final Semaphore permit = new Semaphore(1);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread streaming = new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    new JobEventStream(job, 10000, permit).write(out);
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }
+        };
+        streaming.start();
+        while (permit.availablePermits() == 1 && streaming.isAlive()) {
+            Thread.sleep(10);
+        }
+        // the cancellation wakes the stream up long before the heartbeat
+        job.cancel();
+        streaming.join(5000);
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertEquals(1, permit.availablePermits());
+        String events = out.toString("UTF-8");
+        assertTrue(events, events.endsWith("event: state\ndata: {\"status\":\"cancelled\"}\n\n"));
+    }
+
+
+    /**
+     * Without a free permit, the stream of a running job writes its current state and ends instead of waiting.
+     *
+     * @throws Exception
+     *             unexpected
+     */
+    @Test
+    public void noPermit()
+            throws Exception {
+        Job job = new Job(UUID.randomUUID(), URI.create("http://example.org/wf.t2flow"),
+                "application/vnd.taverna.t2flow+xml", URI.create("http://example.org/ROs/ro/"), null, null,
+                new JobExtractFolders());
+        Semaphore permit = new Semaphore(0);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new JobEventStream(job, 10000, permit).write(out);
+        assertEquals(0, permit.availablePermits());
+        String events = out.toString("UTF-8");
+        assertTrue(events, events.endsWith("event: state\ndata: {\"status\":\"" + job.getJobState() + "\"}\n\n"));
+    }
+}
@@ -0,0 +1,148 @@
+package org.purl.wf4ever.wf2ro.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+/**
+ * Verifies that jobs that don't fit are rejected, and that a batch of jobs is submitted whole or not at all.
+ *
+ */
+public class JobExecutorTest {
+
+    /**
+     * A batch that doesn't fit into the queue isn't started at all, one that fits is queued whole.
+     *
+     * @throws Exception
+     *             unexpected
+     */
+    @Test
+    public void submitAll()
+            throws Exception {
+        final CountDownLatch busy = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(3);
+        JobsContainer container = new JobsContainer() {
+
+            @Override
+            public void onJobDone(Job job) {
+                busy.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                finished.countDown();
+            }
+        };
+        JobExecutor executor = new JobExecutor(1, 1, 2, 0, JobExecutor.DEFAULT_PHASE_QUEUE_CAPACITY);
+        try {
+            // keeps the only worker busy
+            executor.submit(job(container));
+            assertTrue(busy.await(10, TimeUnit.SECONDS));
+
+            assertFalse(executor.submitAll(jobs(container, 3)));
+            assertEquals(0, executor.getQueueDepth());
+            assertTrue(executor.submitAll(jobs(container, 2)));
+            assertEquals(2, executor.getQueueDepth());
+            assertFalse(executor.submitAll(jobs(container, 1)));
+
+            release.countDown();
+            assertTrue(finished.await(10, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+        assertFalse(executor.submitAll(jobs(container, 1)));
+    }
+
+
+    /**
+     * A job that doesn't fit into the queue is rejected, not run by the submitting thread.
+     *
+     * @throws Exception
+     *             unexpected
+     */
+    @Test
+    public void submitRejects()
+            throws Exception {
+        final CountDownLatch busy = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Thread submitting = Thread.currentThread();
+        final AtomicBoolean ranBySubmitter = new AtomicBoolean();
+        JobsContainer container = new JobsContainer() {
+
+            @Override
+            public void onJobDone(Job job) {
+                if (Thread.currentThread() == submitting) {
+                    ranBySubmitter.set(true);
+                    return;
+                }
+                busy.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        JobExecutor executor = new JobExecutor(1, 1, 1, 0, JobExecutor.DEFAULT_PHASE_QUEUE_CAPACITY);
+        try {
+            executor.submit(job(container));
+            assertTrue(busy.await(10, TimeUnit.SECONDS));
+            executor.submit(job(container));
+            try {
+                executor.submit(job(container));
+                fail("The job should have been rejected");
+            } catch (RejectedExecutionException e) {
+                // expected
+            }
+            assertFalse(ranBySubmitter.get());
+            assertEquals(1, executor.getQueueDepth());
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+
+    /**
+     * @param container
+     *            the container notified when the jobs are done
+     * @param count
+     *            number of jobs
+     * @return jobs failing at once
+     */
+    private static List<Job> jobs(JobsContainer container, int count) {
+        List<Job> jobs = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            jobs.add(job(container));
+        }
+        return jobs;
+    }
+
+
+    /**
+     * @param container
+     *            the container notified when the job is done
+     * @return a job failing at once, because its workflow doesn't exist
+     */
+    private static Job job(JobsContainer container) {
+        return new Job(UUID.randomUUID(), new File("no-such-workflow.t2flow").toURI(),
+                "application/vnd.taverna.t2flow+xml", URI.create("http://example.org/ROs/ro/"), null, container,
+                new JobExtractFolders());
+    }
+}
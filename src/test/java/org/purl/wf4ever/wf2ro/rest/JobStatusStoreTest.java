@@ -0,0 +1,297 @@
+package org.purl.wf4ever.wf2ro.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.purl.wf4ever.wf2ro.PhaseTiming;
+import org.purl.wf4ever.wf2ro.rest.Job.State;
+
+/**
+ * Verifies that the job statuses survive reopening the journal, including after an incomplete write and a
+ * compaction.
+ *
+ */
+public class JobStatusStoreTest {
+
+    /** Journal file. */
+    private File file;
+
+
+    /**
+     * Create the journal file name.
+     *
+     * @throws IOException
+     *             unexpected
+     */
+    @Before
+    public void setUp()
+            throws IOException {
+        file = File.createTempFile("wf2ro-jobs", ".journal");
+        file.delete();
+    }
+
+
+    /**
+     * Delete the journal file.
+     */
+    @After
+    public void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+    }
+
+
+    /**
+     * Statuses are decoded as they were stored, also after reopening the journal.
+     *
+     * @throws IOException
+     *             unexpected
+     */
+    @Test
+    public void roundTrip()
+            throws IOException {
+        UUID done = UUID.randomUUID();
+        UUID failed = UUID.randomUUID();
+        JobStatusStore store = new JobStatusStore(file, 10);
+        store.put(done, status(State.DONE, null));
+        store.put(failed, status(State.RUNTIME_ERROR, longReason()));
+        store.close();
+
+        store = new JobStatusStore(file, 10);
+        assertEquals(2, store.size());
+        JobStatus status = store.get(done);
+        assertEquals(URI.create("http://example.org/wf.t2flow"), status.getResource());
+        assertEquals("application/vnd.taverna.t2flow+xml", status.getFormat());
+        assertEquals(URI.create("http://example.org/ROs/ro/"), status.getRo());
+        assertEquals(State.DONE, status.getStatus());
+        assertNull(status.getReason());
+        assertEquals(URI.create("http://example.org/ROs/ro/scripts/"), status.getExtract().getScripts());
+        assertNull(status.getExtract().getServices());
+        assertEquals(Arrays.asList(URI.create("http://example.org/ROs/ro/wf.wfbundle")), status.getAdded());
+        assertEquals(1, status.getPhases().size());
+        assertEquals("nested", status.getPhases().get(0).getPhase());
+        assertEquals("nested read", status.getPhases().get(0).getName());
+        assertEquals(-1, status.getPhases().get(0).getCpuMs());
+        assertEquals(longReason(), store.get(failed).getReason());
+        assertNull(store.get(UUID.randomUUID()));
+        store.close();
+    }
+
+
+    /**
+     * Removed statuses stay removed, and the least recently requested statuses are removed when there are too many.
+     *
+     * @throws IOException
+     *             unexpected
+     */
+    @Test
+    public void removal()
+            throws IOException {
+        UUID[] uuids = { UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID() };
+        JobStatusStore store = new JobStatusStore(file, 2, 1);
+        store.put(uuids[0], status(State.DONE, null));
+        store.put(uuids[1], status(State.DONE, null));
+        assertTrue(store.remove(uuids[1]));
+        assertFalse(store.remove(uuids[1]));
+        store.put(uuids[2], status(State.DONE, null));
+        store.put(uuids[3], status(State.DONE, null));
+        assertNull(store.get(uuids[0]));
+        store.close();
+
+        store = new JobStatusStore(file, 2, 1);
+        assertEquals(2, store.size());
+        assertNull(store.get(uuids[0]));
+        assertNull(store.get(uuids[1]));
+        assertEquals(State.DONE, store.get(uuids[2]).getStatus());
+        assertEquals(State.DONE, store.get(uuids[3]).getStatus());
+        store.close();
+    }
+
+
+    /**
+     * A requested status is kept longer than an older one that hasn't been requested, also after reopening the
+     * journal.
+     *
+     * @throws IOException
+     *             unexpected
+     */
+    @Test
+    public void leastRecentlyRequested()
+            throws IOException {
+        UUID[] uuids = { UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID() };
+        JobStatusStore store = new JobStatusStore(file, 2, 1);
+        store.put(uuids[0], status(State.DONE, null));
+        store.put(uuids[1], status(State.DONE, null));
+        store.get(uuids[0]);
+        store.put(uuids[2], status(State.DONE, null));
+        assertEquals(1, store.getEvictedCount());
+        assertNull(store.get(uuids[1]));
+        store.close();
+
+        store = new JobStatusStore(file, 2, 1);
+        assertEquals(State.DONE, store.get(uuids[0]).getStatus());
+        assertNull(store.get(uuids[1]));
+        assertEquals(State.DONE, store.get(uuids[2]).getStatus());
+        store.close();
+    }
+
+
+    /**
+     * Statuses are read while others are stored and the journal is rewritten.
+     *
+     * @throws Exception
+     *             unexpected
+     */
+    @Test
+    public void concurrent()
+            throws Exception {
+        final JobStatusStore store = new JobStatusStore(file, 1000);
+        final UUID[] uuids = new UUID[50];
+        for (int i = 0; i < uuids.length; i++) {
+            uuids[i] = UUID.randomUUID();
+            store.put(uuids[i], status(State.DONE, null));
+        }
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        List<Thread> readers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread reader = new Thread() {
+
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; writing.get(); i++) {
+                            JobStatus status = store.get(uuids[i % uuids.length]);
+                            assertEquals(URI.create("http://example.org/ROs/ro/"), status.getRo());
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            reader.start();
+            readers.add(reader);
+        }
+        try {
+            UUID replaced = UUID.randomUUID();
+            for (int i = 0; i < 200; i++) {
+                store.put(replaced, status(State.RUNTIME_ERROR, longReason()));
+            }
+        } finally {
+            writing.set(false);
+            for (Thread reader : readers) {
+                reader.join();
+            }
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertEquals(51, store.size());
+        store.close();
+    }
+
+
+    /**
+     * An incompletely written record is ignored and overwritten.
+     *
+     * @throws IOException
+     *             unexpected
+     */
+    @Test
+    public void incompleteRecord()
+            throws IOException {
+        UUID first = UUID.randomUUID();
+        UUID second = UUID.randomUUID();
+        JobStatusStore store = new JobStatusStore(file, 10);
+        store.put(first, status(State.DONE, null));
+        long end = store.getJournalSize();
+        store.put(second, status(State.DONE, null));
+        store.close();
+        try (RandomAccessFile journal = new RandomAccessFile(file, "rw")) {
+            // corrupt the last byte of the second record
+            journal.seek(store.getJournalSize() - 1);
+            journal.write(0xff);
+        }
+
+        store = new JobStatusStore(file, 10);
+        assertEquals(1, store.size());
+        assertEquals(end, store.getJournalSize());
+        store.put(second, status(State.INVALID_RESOURCE, null));
+        store.close();
+
+        store = new JobStatusStore(file, 10);
+        assertEquals(State.INVALID_RESOURCE, store.get(second).getStatus());
+        store.close();
+    }
+
+
+    /**
+     * The journal is compacted when most of it is replaced statuses, and the statuses survive.
+     *
+     * @throws IOException
+     *             unexpected
+     */
+    @Test
+    public void compaction()
+            throws IOException {
+        UUID uuid = UUID.randomUUID();
+        JobStatusStore store = new JobStatusStore(file, 10);
+        long largest = 0;
+        for (int i = 0; i < 1000; i++) {
+            store.put(uuid, status(State.RUNTIME_ERROR, longReason() + i));
+            largest = Math.max(largest, store.getJournalSize());
+        }
+        assertTrue(store.getJournalSize() < largest);
+        assertEquals(longReason() + 999, store.get(uuid).getReason());
+        store.close();
+
+        store = new JobStatusStore(file, 10);
+        assertEquals(longReason() + 999, store.get(uuid).getReason());
+        store.close();
+    }
+
+
+    /**
+     * @param state
+     *            job state
+     * @param reason
+     *            reason of the state
+     * @return a job status
+     */
+    private static JobStatus status(State state, String reason) {
+        JobStatus status = new JobStatus(URI.create("http://example.org/wf.t2flow"),
+                "application/vnd.taverna.t2flow+xml", new JobExtractFolders(null, null,
+                        URI.create("http://example.org/ROs/ro/scripts/"), null), URI.create("http://example.org/ROs/ro/"),
+                state, Arrays.asList(URI.create("http://example.org/ROs/ro/wf.wfbundle")), reason);
+        status.setPhases(Arrays.asList(new PhaseTiming("nested", "nested read", 40, -1, 1000)));
+        return status;
+    }
+
+
+    /**
+     * @return a stack trace longer than {@link java.io.DataOutputStream#writeUTF(String)} allows
+     */
+    private static String longReason() {
+        StringBuilder reason = new StringBuilder();
+        while (reason.length() < 70000) {
+            reason.append("\tat org.purl.wf4ever.wf2ro.Wf2ROConverter.convert(Wf2ROConverter.java:1)\n");
+        }
+        return reason.toString();
+    }
+}
@@ -0,0 +1,61 @@
+package org.purl.wf4ever.wf2ro.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.URI;
+import java.util.UUID;
+
+import org.junit.Test;
+import org.purl.wf4ever.wf2ro.rest.Job.State;
+
+/**
+ * Verifies how a job is cancelled.
+ */
+public class JobTest {
+
+    /**
+     * A queued job is cancelled.
+     */
+    @Test
+    public void cancelQueued() {
+        Job job = job(null);
+        assertTrue(job.cancel());
+        assertEquals(State.CANCELLED, job.getJobState());
+    }
+
+
+    /**
+     * A job that has finished, but whose status hasn't been stored yet, keeps its final state.
+     */
+    @Test
+    public void cancelFinished() {
+        Job job = job(new JobsContainer() {
+
+            @Override
+            public void onJobDone(Job job) {
+            }
+        });
+        job.run();
+        assertEquals(State.INVALID_RESOURCE, job.getJobState());
+        long version = job.getVersion();
+
+        assertFalse(job.cancel());
+        assertEquals(State.INVALID_RESOURCE, job.getJobState());
+        assertEquals(version, job.getVersion());
+    }
+
+
+    /**
+     * @param container
+     *            the container notified when the job is done
+     * @return a job failing at once, because its workflow doesn't exist
+     */
+    private static Job job(JobsContainer container) {
+        return new Job(UUID.randomUUID(), new File("no-such-workflow.t2flow").toURI(),
+                "application/vnd.taverna.t2flow+xml", URI.create("http://example.org/ROs/ro/"), null, container,
+                new JobExtractFolders());
+    }
+}
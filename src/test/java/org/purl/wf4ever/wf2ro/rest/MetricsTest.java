@@ -0,0 +1,50 @@
+package org.purl.wf4ever.wf2ro.rest;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.purl.wf4ever.wf2ro.PhaseTiming;
+import org.purl.wf4ever.wf2ro.rest.Job.State;
+
+/**
+ * Verifies the Prometheus text output of the metrics.
+ *
+ */
+public class MetricsTest {
+
+    /**
+     * Phase times go to cumulative buckets, phases share the series of their key and finished jobs are counted by
+     * state.
+     */
+    @Test
+    public void write() {
+        Metrics metrics = new Metrics();
+        metrics.jobFinished(State.DONE, Arrays.asList(new PhaseTiming("read", 40, 10, 1000), new PhaseTiming(
+                "nested", "nested a", 700, 500, 10), new PhaseTiming("nested", "nested b c", 3000, -1, 20)));
+        metrics.jobFinished(State.RUNTIME_ERROR, Arrays.asList(new PhaseTiming("read", 20, 5, 500)));
+        metrics.jobCancelled(250);
+        metrics.jobCancelled(1500);
+        StringWriter out = new StringWriter();
+        metrics.write(new PrintWriter(out), null, null);
+        String text = out.toString();
+
+        assertTrue(text, text.contains("# TYPE wf2ro_phase_duration_seconds histogram\n"));
+        assertTrue(text, text.contains("wf2ro_phase_duration_seconds_bucket{phase=\"read\",le=\"0.01\"} 0\n"));
+        assertTrue(text, text.contains("wf2ro_phase_duration_seconds_bucket{phase=\"read\",le=\"0.05\"} 2\n"));
+        assertTrue(text, text.contains("wf2ro_phase_duration_seconds_bucket{phase=\"nested\",le=\"1.0\"} 1\n"));
+        assertTrue(text, text.contains("wf2ro_phase_duration_seconds_bucket{phase=\"nested\",le=\"5.0\"} 2\n"));
+        assertTrue(text, text.contains("wf2ro_phase_duration_seconds_count{phase=\"nested\"} 2\n"));
+        assertTrue(text, text.contains("wf2ro_phase_cpu_seconds_total{phase=\"nested\"} 0.5\n"));
+        assertTrue(text, text.contains("wf2ro_phase_bytes_total{phase=\"read\"} 1500\n"));
+        assertTrue(text, text.contains("wf2ro_jobs_finished_total{state=\"done\"} 1\n"));
+        assertTrue(text, text.contains("wf2ro_jobs_finished_total{state=\"runtime_error\"} 1\n"));
+        assertTrue(text, text.contains("wf2ro_jobs_finished_total{state=\"cancelled\"} 0\n"));
+        assertTrue(text, text.contains("wf2ro_job_cancel_seconds_sum 1.75\n"));
+        assertTrue(text, text.contains("wf2ro_job_cancel_seconds_count 2\n"));
+        assertTrue(text, text.contains("wf2ro_job_cancel_seconds_max 1.5\n"));
+    }
+}
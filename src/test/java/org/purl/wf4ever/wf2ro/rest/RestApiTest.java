@@ -230,7 +230,8 @@ public class RestApiTest extends JerseyTest {
             System.out.print(".");
             status = webResource.uri(jobURI).get(JobStatus.class);
             assertTrue("Status is: " + status.getStatus().toString(),
-                status.getStatus() == State.RUNNING || status.getStatus() == State.DONE);
+                status.getStatus() == State.QUEUED || status.getStatus() == State.RUNNING
+                        || status.getStatus() == State.DONE);
             assertEquals(WF_URI, status.getResource());
             assertEquals(TAVERNA_FORMAT, status.getFormat());
             assertEquals(RO_URI_NEW, status.getRo());
@@ -241,7 +242,7 @@ public class RestApiTest extends JerseyTest {
             Thread.sleep(1000);
         }
         System.out.println(webResource.uri(jobURI).get(String.class));
-        if (status.getStatus() == State.RUNNING) {
+        if (status.getStatus() == State.QUEUED || status.getStatus() == State.RUNNING) {
             fail("The job hasn't finished on time");
         }
         assertNotNull(status.getAdded());
@@ -280,7 +281,8 @@ public class RestApiTest extends JerseyTest {
             System.out.print(".");
             status = webResource.uri(jobURI).get(JobStatus.class);
             assertTrue("Status is: " + status.getStatus().toString(),
-                status.getStatus() == State.RUNNING || status.getStatus() == State.DONE);
+                status.getStatus() == State.QUEUED || status.getStatus() == State.RUNNING
+                        || status.getStatus() == State.DONE);
             assertEquals(WF_URI, status.getResource());
             assertEquals(TAVERNA_FORMAT, status.getFormat());
             assertEquals(RO_URI_NEW, status.getRo());
@@ -291,7 +293,7 @@ public class RestApiTest extends JerseyTest {
             Thread.sleep(1000);
         }
         System.out.println(webResource.uri(jobURI).get(String.class));
-        if (status.getStatus() == State.RUNNING) {
+        if (status.getStatus() == State.QUEUED || status.getStatus() == State.RUNNING) {
             fail("The job hasn't finished on time");
         }
         assertNotNull(status.getAdded());
@@ -340,7 +342,8 @@ public class RestApiTest extends JerseyTest {
             System.out.print(".");
             status = webResource.uri(jobURI).get(JobStatus.class);
             assertTrue("Status is: " + status.getStatus().toString(),
-                status.getStatus() == State.RUNNING || status.getStatus() == State.DONE);
+                status.getStatus() == State.QUEUED || status.getStatus() == State.RUNNING
+                        || status.getStatus() == State.DONE);
             assertEquals(WF_URI, status.getResource());
             assertEquals(TAVERNA_FORMAT, status.getFormat());
             assertEquals(RO_URI_EXISTING, status.getRo());
@@ -351,7 +354,7 @@ public class RestApiTest extends JerseyTest {
             Thread.sleep(1000);
         }
         System.out.println(webResource.uri(jobURI).get(String.class));
-        if (status.getStatus() == State.RUNNING) {
+        if (status.getStatus() == State.QUEUED || status.getStatus() == State.RUNNING) {
             fail("The job hasn't finished on time");
         }
         assertNotNull(status.getAdded());
@@ -403,7 +406,7 @@ public class RestApiTest extends JerseyTest {
             Thread.sleep(1000);
         }
         System.out.println(webResource.uri(jobURI).get(String.class));
-        if (status.getStatus() == State.RUNNING) {
+        if (status.getStatus() == State.QUEUED || status.getStatus() == State.RUNNING) {
             fail("The job hasn't finished on time");
         }
         response = webResource.path("jobs").post(ClientResponse.class, f);
@@ -421,7 +424,7 @@ public class RestApiTest extends JerseyTest {
             Thread.sleep(1000);
         }
         System.out.println(webResource.uri(jobURI).get(String.class));
-        if (status.getStatus() == State.RUNNING) {
+        if (status.getStatus() == State.QUEUED || status.getStatus() == State.RUNNING) {
             fail("The 2nd job hasn't finished on time");
         }
         assertNotNull(status.getAdded());
@@ -459,14 +462,14 @@ public class RestApiTest extends JerseyTest {
         for (int i = 0; i < MAX_JOB_TIME_S; i++) {
             System.out.print(".");
             status = webResource.uri(jobURI).get(JobStatus.class);
-            if (status.getStatus() != State.RUNNING) {
+            if (status.getStatus() != State.QUEUED && status.getStatus() != State.RUNNING) {
                 System.out.println();
                 break;
             }
             Thread.sleep(1000);
         }
         System.out.println(webResource.uri(jobURI).get(String.class));
-        if (status.getStatus() == State.RUNNING) {
+        if (status.getStatus() == State.QUEUED || status.getStatus() == State.RUNNING) {
             fail("The job hasn't finished on time");
         }
         Assert.assertEquals(State.RUNTIME_ERROR, status.getStatus());
@@ -0,0 +1,96 @@
+package org.purl.wf4ever.wf2ro.rest;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import org.junit.Test;
+
+/**
+ * Verifies that the UUID index behaves like an access ordered {@link LinkedHashMap}.
+ *
+ */
+public class UuidIndexTest {
+
+    /**
+     * Entries are found, replaced and removed, and kept in the order of their last use.
+     */
+    @Test
+    public void basics() {
+        UUID a = UUID.randomUUID();
+        UUID b = UUID.randomUUID();
+        UUID c = UUID.randomUUID();
+        UuidIndex index = new UuidIndex();
+        assertEquals(UuidIndex.NONE, index.put(a.getMostSignificantBits(), a.getLeastSignificantBits(), 1));
+        assertEquals(UuidIndex.NONE, index.put(b.getMostSignificantBits(), b.getLeastSignificantBits(), 2));
+        assertEquals(UuidIndex.NONE, index.put(c.getMostSignificantBits(), c.getLeastSignificantBits(), 3));
+        assertEquals(1, index.get(a.getMostSignificantBits(), a.getLeastSignificantBits()));
+        assertEquals(2, index.put(b.getMostSignificantBits(), b.getLeastSignificantBits(), 20));
+        assertEquals(3, index.peek(c.getMostSignificantBits(), c.getLeastSignificantBits()));
+        assertEquals(3, index.size());
+        // c hasn't been used since it was added, peeking doesn't count
+        assertEquals(c.getLeastSignificantBits(), index.lsb(index.eldest()));
+        assertEquals(3, index.remove(c.getMostSignificantBits(), c.getLeastSignificantBits()));
+        assertEquals(UuidIndex.NONE, index.remove(c.getMostSignificantBits(), c.getLeastSignificantBits()));
+        assertEquals(a.getLeastSignificantBits(), index.lsb(index.eldest()));
+        assertEquals(20, index.value(index.next(index.eldest())));
+        assertEquals(UuidIndex.NONE, index.next(index.next(index.eldest())));
+    }
+
+
+    /**
+     * Random operations on keys with few distinct hashes give the same results as a {@link LinkedHashMap}, also
+     * through resizing and removing entries in the middle of probe sequences.
+     */
+    @Test
+    public void randomOperations() {
+        Random random = new Random(1);
+        List<UUID> keys = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            // keys sharing their most significant bits
+            keys.add(new UUID(i % 3, random.nextInt(5000)));
+        }
+        UuidIndex index = new UuidIndex();
+        Map<UUID, Integer> expected = new LinkedHashMap<>(16, 0.75f, true);
+        for (int i = 0; i < 100000; i++) {
+            UUID key = keys.get(random.nextInt(keys.size()));
+            long msb = key.getMostSignificantBits();
+            long lsb = key.getLeastSignificantBits();
+            switch (random.nextInt(4)) {
+                case 0:
+                case 1:
+                    assertEquals(orNone(expected.put(key, i)), index.put(msb, lsb, i));
+                    break;
+                case 2:
+                    assertEquals(orNone(expected.remove(key)), index.remove(msb, lsb));
+                    break;
+                default:
+                    assertEquals(orNone(expected.get(key)), index.get(msb, lsb));
+                    break;
+            }
+        }
+        assertEquals(expected.size(), index.size());
+        int slot = index.eldest();
+        for (Map.Entry<UUID, Integer> entry : expected.entrySet()) {
+            assertEquals(entry.getKey(), new UUID(index.msb(slot), index.lsb(slot)));
+            assertEquals((int) entry.getValue(), index.value(slot));
+            slot = index.next(slot);
+        }
+        assertEquals(UuidIndex.NONE, slot);
+    }
+
+
+    /**
+     * @param value
+     *            a value or null
+     * @return the value, or {@link UuidIndex#NONE} for null
+     */
+    private static int orNone(Integer value) {
+        return value != null ? value : UuidIndex.NONE;
+    }
+}
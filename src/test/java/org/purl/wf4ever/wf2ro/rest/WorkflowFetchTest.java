@@ -0,0 +1,70 @@
+package org.purl.wf4ever.wf2ro.rest;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+import org.purl.wf4ever.wf2ro.Cancellation;
+
+/**
+ * Verifies that the jobs sharing a workflow fetch share its failure, unless the failure was caused by a cancellation.
+ *
+ */
+public class WorkflowFetchTest {
+
+    /**
+     * A workflow that can't be downloaded isn't downloaded again for the next job.
+     *
+     * @throws Exception
+     *             unexpected
+     */
+    @Test
+    public void sharedFailure()
+            throws Exception {
+        WorkflowFetch fetch = new WorkflowFetch(new File("no-such-workflow.t2flow").toURI(),
+                "application/vnd.taverna.t2flow+xml");
+        IOException first = fail(fetch, new Cancellation());
+        assertSame(first, fail(fetch, new Cancellation()));
+    }
+
+
+    /**
+     * A download failing in a cancelled job is repeated by the next job.
+     *
+     * @throws Exception
+     *             unexpected
+     */
+    @Test
+    public void cancelledFailure()
+            throws Exception {
+        WorkflowFetch fetch = new WorkflowFetch(new File("no-such-workflow.t2flow").toURI(),
+                "application/vnd.taverna.t2flow+xml");
+        Cancellation cancelled = new Cancellation();
+        cancelled.cancel();
+        IOException first = fail(fetch, cancelled);
+        assertNotSame(first, fail(fetch, new Cancellation()));
+    }
+
+
+    /**
+     * @param fetch
+     *            a fetch of a missing workflow
+     * @param cancellation
+     *            cancellation of the fetching job
+     * @return the failure
+     * @throws Exception
+     *             if the fetch succeeds or fails otherwise
+     */
+    private static IOException fail(WorkflowFetch fetch, Cancellation cancellation)
+            throws Exception {
+        try {
+            fetch.fetch(new ConverterSettings(), cancellation);
+        } catch (IOException e) {
+            return e;
+        }
+        throw new AssertionError("The missing workflow was fetched");
+    }
+}